@@ -0,0 +1,61 @@
+package jwyag.bench;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// GitCommit parsing, alone and as part of a logGraphviz style history walk
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommitBenchmark {
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Benchmark
+	public void parseCommit(RepoState state, Cursor cursor, Blackhole bh) {
+		byte[] raw = state.repo.rawCommits.get(cursor.next++ % state.repo.rawCommits.size());
+		Object commit = Jwyag.newCommit(raw);
+		bh.consume(Jwyag.commitTree(commit));
+		bh.consume(Jwyag.commitParents(commit));
+	}
+
+	// Reads every commit reachable from the tip, the way logGraphviz does
+	// minus the printing
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int walkHistory(RepoState state) {
+		Object repo = state.repo.repo;
+		Set<String> seen = new HashSet<>();
+		ArrayDeque<String> pending = new ArrayDeque<>();
+		pending.push(state.repo.head());
+		while (!pending.isEmpty()) {
+			String sha = pending.pop();
+			if (!seen.add(sha)) {
+				continue;
+			}
+			Object commit = Jwyag.objectRead(repo, sha);
+			for (String parent : Jwyag.commitParents(commit)) {
+				pending.push(parent);
+			}
+		}
+		return seen.size();
+	}
+}
@@ -0,0 +1,92 @@
+package jwyag.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// A repository written by GitRepoGenerator at benchmark setup, with the ids
+// and raw bytes of its objects found by walking it from refs/heads/master.
+// The seed is fixed so runs are comparable.
+final class GeneratedRepo {
+	private static final long SEED = 42;
+
+	final Path dir;
+	final Object repo;
+	final List<String> blobs = new ArrayList<>();
+	final List<String> trees = new ArrayList<>();
+	final List<String> commits = new ArrayList<>();
+	final List<byte[]> rawTrees = new ArrayList<>();
+	final List<byte[]> rawCommits = new ArrayList<>();
+	// The tree with the most entries
+	byte[] widestTree = new byte[0];
+
+	private final String head;
+	private int widestEntries = -1;
+
+	GeneratedRepo(String profile, int files, int commitCount, boolean packed) throws IOException {
+		dir = Files.createTempDirectory("jwyag-bench");
+		Jwyag.generate(Jwyag.newGenerator(profile, SEED, files, commitCount), dir.toString(), packed);
+		repo = Jwyag.openRepo(dir.toString());
+		head = Files.readString(dir.resolve(".git/refs/heads/master")).trim();
+
+		Set<String> seen = new HashSet<>();
+		ArrayDeque<String> pending = new ArrayDeque<>();
+		pending.push(head);
+		while (!pending.isEmpty()) {
+			String sha = pending.pop();
+			if (!seen.add(sha)) {
+				continue;
+			}
+			Object commit = Jwyag.objectRead(repo, sha);
+			commits.add(sha);
+			rawCommits.add(Jwyag.commitSerialize(commit));
+			addTree(Jwyag.commitTree(commit), seen);
+			for (String parent : Jwyag.commitParents(commit)) {
+				pending.push(parent);
+			}
+		}
+	}
+
+	String head() {
+		return head;
+	}
+
+	private void addTree(String sha, Set<String> seen) {
+		if (!seen.add(sha)) {
+			return;
+		}
+		Object tree = Jwyag.objectRead(repo, sha);
+		byte[] raw = Jwyag.treeSerialize(tree);
+		trees.add(sha);
+		rawTrees.add(raw);
+		List<?> items = Jwyag.treeItems(tree);
+		if (items.size() > widestEntries) {
+			widestEntries = items.size();
+			widestTree = raw;
+		}
+		for (Object leaf : items) {
+			String child = Jwyag.leafSha(leaf);
+			if (Jwyag.leafIsTree(leaf)) {
+				addTree(child, seen);
+			} else if (seen.add(child)) {
+				blobs.add(child);
+			}
+		}
+	}
+
+	void delete() {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package jwyag.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+// Bridge to the project's classes. They live in the default package, which a
+// named package can't import, and JMH refuses benchmarks in the default
+// package. Calls go through method handles held in static finals, which the
+// JIT treats as constants, so they compile down to direct calls.
+final class Jwyag {
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+	static final Class<?> REPOSITORY = type("GitRepository");
+	static final Class<?> OBJECT = type("GitObject");
+
+	private static final MethodHandle CREATE_REPO = staticMethod("GitRepository", "createRepo", REPOSITORY,
+			String.class);
+	private static final MethodHandle OPEN_REPO = constructor("GitRepository", String.class);
+	private static final MethodHandle OBJECT_READ = staticMethod("GitObjectHelper", "objectRead", OBJECT, REPOSITORY,
+			String.class);
+	private static final MethodHandle OBJECT_WRITE = staticMethod("GitObjectHelper", "objectWrite", String.class,
+			OBJECT, REPOSITORY);
+	private static final MethodHandle OBJECT_HASH = staticMethod("GitObjectHelper", "objectHash", String.class,
+			byte[].class, byte[].class, REPOSITORY);
+	private static final MethodHandle NEW_BLOB = constructor("GitBlob", byte[].class);
+	private static final MethodHandle NEW_COMMIT = constructor("GitCommit", byte[].class);
+	private static final MethodHandle COMMIT_TREE = virtualMethod("GitCommit", "getTree", String.class);
+	private static final MethodHandle COMMIT_PARENTS = virtualMethod("GitCommit", "getParents", List.class);
+	private static final MethodHandle TREE_PARSE_ONE = staticMethod("GitTreeLeaf", "treeParseOne", type("Tuple"),
+			byte[].class, int.class);
+	private static final MethodHandle TUPLE_FIRST = virtualMethod("Tuple", "getFirst", Object.class);
+	private static final MethodHandle COMMIT_SERIALIZE = virtualMethod("GitCommit", "serialize", byte[].class);
+	private static final MethodHandle TREE_SERIALIZE = virtualMethod("GitTree", "serialize", byte[].class);
+	private static final MethodHandle TREE_ITEMS = virtualMethod("GitTree", "getItems", List.class);
+	private static final MethodHandle LEAF_IS_TREE = virtualMethod("GitTreeLeaf", "isTree", boolean.class);
+	private static final MethodHandle LEAF_SHA = virtualMethod("GitTreeLeaf", "getSha", String.class);
+	private static final Class<?> PROFILE = type("GitRepoGenerator$Profile");
+	private static final MethodHandle NEW_GENERATOR = constructor("GitRepoGenerator", PROFILE, long.class, int.class,
+			int.class);
+	private static final MethodHandle GENERATE = virtualMethod("GitRepoGenerator", "generate", void.class,
+			String.class, boolean.class);
+	private static final MethodHandle INDEX_READ = staticMethod("GitIndex", "indexRead", type("GitIndex"),
+			REPOSITORY);
+
+	private Jwyag() {
+	}
+
+	static Object createRepo(String path) {
+		try {
+			return CREATE_REPO.invoke(path);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static Object openRepo(String path) {
+		try {
+			return OPEN_REPO.invoke(path);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static Object objectRead(Object repo, String sha) {
+		try {
+			return OBJECT_READ.invoke(repo, sha);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static String objectWrite(Object obj, Object repo) {
+		try {
+			return (String) OBJECT_WRITE.invoke(obj, repo);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static String objectHash(byte[] data, String fmt, Object repo) {
+		try {
+			return (String) OBJECT_HASH.invoke(data, fmt.getBytes(), repo);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static Object newBlob(byte[] data) {
+		try {
+			return NEW_BLOB.invoke(data);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static Object newCommit(byte[] data) {
+		try {
+			return NEW_COMMIT.invoke(data);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static String commitTree(Object commit) {
+		try {
+			return (String) COMMIT_TREE.invoke(commit);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<String> commitParents(Object commit) {
+		try {
+			return (List<String>) COMMIT_PARENTS.invoke(commit);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	// Returns the position after the parsed entry
+	static int treeParseOne(byte[] raw, int start) {
+		try {
+			return (Integer) TUPLE_FIRST.invoke(TREE_PARSE_ONE.invoke(raw, start));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static byte[] commitSerialize(Object commit) {
+		try {
+			return (byte[]) COMMIT_SERIALIZE.invoke(commit);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static byte[] treeSerialize(Object tree) {
+		try {
+			return (byte[]) TREE_SERIALIZE.invoke(tree);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static List<?> treeItems(Object tree) {
+		try {
+			return (List<?>) TREE_ITEMS.invoke(tree);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static boolean leafIsTree(Object leaf) {
+		try {
+			return (boolean) LEAF_IS_TREE.invoke(leaf);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static String leafSha(Object leaf) {
+		try {
+			return (String) LEAF_SHA.invoke(leaf);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	// profile is the name of a GitRepoGenerator.Profile, e.g. MONOREPO
+	static Object newGenerator(String profile, long seed, int files, int commits) {
+		try {
+			return NEW_GENERATOR.invoke(profileConstant(profile), seed, files, commits);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static void generate(Object generator, String path, boolean packed) {
+		try {
+			GENERATE.invoke(generator, path, packed);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static Object indexRead(Object repo) {
+		try {
+			return INDEX_READ.invoke(repo);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object profileConstant(String name) {
+		return Enum.valueOf((Class) PROFILE, name);
+	}
+
+	private static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("jwyag classes are not on the classpath", e);
+		}
+	}
+
+	private static MethodHandle staticMethod(String owner, String name, Class<?> ret, Class<?>... params) {
+		try {
+			return LOOKUP.findStatic(type(owner), name, MethodType.methodType(ret, params));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MethodHandle virtualMethod(String owner, String name, Class<?> ret, Class<?>... params) {
+		try {
+			return LOOKUP.findVirtual(type(owner), name, MethodType.methodType(ret, params));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MethodHandle constructor(String owner, Class<?>... params) {
+		try {
+			return LOOKUP.findConstructor(type(owner), MethodType.methodType(void.class, params));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException) {
+			return (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		return new RuntimeException(t);
+	}
+}
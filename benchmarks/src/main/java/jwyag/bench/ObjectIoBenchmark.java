@@ -0,0 +1,101 @@
+package jwyag.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// GitObjectHelper.objectRead / objectWrite; reads are from loose objects
+// unless -p packed=true
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectIoBenchmark {
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	// Fresh repository per iteration so writes never hit existing objects
+	@State(Scope.Thread)
+	public static class WriteState {
+		@Param({ "4096" })
+		public int blobSize;
+
+		Path dir;
+		Object target;
+		byte[] data;
+		long counter;
+
+		@Setup(Level.Iteration)
+		public void setup() throws IOException {
+			dir = Files.createTempDirectory("jwyag-bench");
+			target = Jwyag.createRepo(dir.toString());
+			data = new byte[blobSize];
+			new java.util.Random(7).nextBytes(data);
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() throws IOException {
+			try (Stream<Path> paths = Files.walk(dir)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+
+		byte[] nextBlob() {
+			long n = counter++;
+			for (int i = 0; i < 8; i++) {
+				data[i] = (byte) (n >>> (i * 8));
+			}
+			return data;
+		}
+	}
+
+	@Benchmark
+	public Object readBlob(RepoState state, Cursor cursor) {
+		GeneratedRepo repo = state.repo;
+		return Jwyag.objectRead(repo.repo, repo.blobs.get(cursor.next++ % repo.blobs.size()));
+	}
+
+	@Benchmark
+	public Object readTree(RepoState state, Cursor cursor) {
+		GeneratedRepo repo = state.repo;
+		return Jwyag.objectRead(repo.repo, repo.trees.get(cursor.next++ % repo.trees.size()));
+	}
+
+	@Benchmark
+	public Object readCommit(RepoState state, Cursor cursor) {
+		GeneratedRepo repo = state.repo;
+		return Jwyag.objectRead(repo.repo, repo.commits.get(cursor.next++ % repo.commits.size()));
+	}
+
+	@Benchmark
+	public String writeBlob(WriteState state) {
+		return Jwyag.objectWrite(Jwyag.newBlob(state.nextBlob()), state.target);
+	}
+
+	// Serialization and hashing only, nothing is written
+	@Benchmark
+	public String hashBlob(WriteState state) {
+		return Jwyag.objectWrite(Jwyag.newBlob(state.nextBlob()), null);
+	}
+}
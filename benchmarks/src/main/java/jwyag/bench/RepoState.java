@@ -0,0 +1,39 @@
+package jwyag.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Shared generated repository; its shape is set with -p profile=...,files=...,
+// commits=..., and -p packed=true writes the objects into one pack
+@State(Scope.Benchmark)
+public class RepoState {
+	@Param({ "MONOREPO" })
+	public String profile;
+
+	@Param({ "10000" })
+	public int files;
+
+	@Param({ "1000" })
+	public int commits;
+
+	@Param({ "false" })
+	public boolean packed;
+
+	GeneratedRepo repo;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		repo = new GeneratedRepo(profile, files, commits, packed);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		repo.delete();
+	}
+}
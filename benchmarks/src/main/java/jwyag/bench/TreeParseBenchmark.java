@@ -0,0 +1,31 @@
+package jwyag.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// GitTreeLeaf.treeParseOne over the widest tree of the repository
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeParseBenchmark {
+
+	@Benchmark
+	public void parseTree(RepoState state, Blackhole bh) {
+		byte[] raw = state.repo.widestTree;
+		int pos = 0;
+		while (pos < raw.length) {
+			pos = Jwyag.treeParseOne(raw, pos);
+		}
+		bh.consume(pos);
+	}
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// Stages files. Files whose stat data matches their index entry are
+// skipped, the others are hashed and written in parallel, and the index is
+// rewritten once at the end.
+public class GitAdd {
+	private final GitRepository repo;
+	private final Path worktree;
+	private final GitIgnore ignore;
+	private final boolean fileMode;
+
+	public GitAdd(GitRepository repo) throws IOException {
+		this.repo = repo;
+		this.worktree = repo.getWorktree();
+		this.ignore = GitIgnore.load(repo);
+		this.fileMode = repo.getConf().getBoolean("core.filemode", true);
+	}
+
+	// Stages worktree relative paths ("" for the whole worktree). Directories
+	// add every file below them that isn't ignored, and tracked files that
+	// are gone are removed from the index. index.lock is held throughout, so
+	// a concurrent add or commit fails instead of being overwritten.
+	public void add(List<String> paths) throws IOException {
+		try (GitIndex.Lock lock = GitIndex.Lock.lock(repo)) {
+			add(paths, lock);
+		}
+	}
+
+	private void add(List<String> paths, GitIndex.Lock lock) throws IOException {
+		GitIndex index = lock.read();
+		Map<String, GitIndexEntry> tracked = new HashMap<>();
+		for (GitIndexEntry entry : index.getEntries()) {
+			if (entry.flagStage() == 0) {
+				tracked.put(entry.name(), entry);
+			}
+		}
+
+		Map<String, BasicFileAttributes> files = new LinkedHashMap<>();
+		Set<String> removed = new HashSet<>();
+		for (String path : paths) {
+			collect(path, index, tracked, files, removed);
+		}
+
+		List<String> changed = new ArrayList<>();
+		for (Map.Entry<String, BasicFileAttributes> file : files.entrySet()) {
+			if (!isUnchanged(tracked.get(file.getKey()), file.getValue())) {
+				changed.add(file.getKey());
+			}
+		}
+		if (changed.isEmpty() && removed.isEmpty()) {
+			return;
+		}
+
+		// Many new blobs go into one pack, finished before the index names them
+		List<GitIndexEntry> updates;
+		GitBulkCheckin bulk = changed.size() >= GitBulkCheckin.THRESHOLD ? GitBulkCheckin.begin(repo) : null;
+		try {
+			updates = changed.parallelStream().map(name -> {
+				try {
+					return stage(name, files.get(name), tracked.get(name));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			if (bulk != null) {
+				bulk.close();
+			}
+		}
+
+		GitIndex updated = new GitIndex(2, merge(index.getEntries(), updates, removed));
+		updated.setCacheTree(invalidate(index, updated, updates));
+		updated.setUntrackedCache(index.getUntrackedCache());
+		lock.commit(updated);
+	}
+
+	private void collect(String path, GitIndex index, Map<String, GitIndexEntry> tracked,
+			Map<String, BasicFileAttributes> files, Set<String> removed) throws IOException {
+		Path file = path.isEmpty() ? worktree : worktree.resolve(path);
+		BasicFileAttributes attrs = stat(file);
+		String prefix = path.isEmpty() ? "" : path + "/";
+
+		if (attrs == null) {
+			boolean matched = false;
+			for (GitIndexEntry entry : index.getEntries()) {
+				if (entry.name().equals(path) || entry.name().startsWith(prefix)) {
+					removed.add(entry.name());
+					matched = true;
+				}
+			}
+			if (!matched) {
+				throw new IOException("pathspec '" + path + "' did not match any files");
+			}
+			return;
+		}
+
+		if (!attrs.isDirectory()) {
+			if (!tracked.containsKey(path)) {
+				GitIgnore.Rule rule = ignore.match(path, false);
+				if (rule != null && !rule.isNegative()) {
+					throw new IOException("The following path is ignored by one of your .gitignore files: " + path);
+				}
+			}
+			files.put(path, attrs);
+			return;
+		}
+
+		for (Tuple<String, BasicFileAttributes> found : new GitWorktreeWalker(repo, ignore).walk(path)) {
+			files.put(found.getFirst(), found.getSecond());
+		}
+		// Tracked files stay tracked even if ignored, and deleted ones go
+		for (GitIndexEntry entry : index.getEntries()) {
+			if (entry.name().startsWith(prefix) && !files.containsKey(entry.name())) {
+				BasicFileAttributes trackedAttrs = stat(worktree.resolve(entry.name()));
+				if (trackedAttrs == null || trackedAttrs.isDirectory()) {
+					removed.add(entry.name());
+				} else {
+					files.put(entry.name(), trackedAttrs);
+				}
+			}
+		}
+	}
+
+	private static BasicFileAttributes stat(Path path) throws IOException {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	// Same check as status: mtime, size and file type
+	private static boolean isUnchanged(GitIndexEntry entry, BasicFileAttributes attrs) {
+		if (entry == null) {
+			return false;
+		}
+		Instant mtime = attrs.lastModifiedTime().toInstant();
+		return mtime.getEpochSecond() == entry.mtime().getFirst() && mtime.getNano() == entry.mtime().getSecond()
+				&& (int) attrs.size() == entry.fsize() && modeType(attrs) == entry.modeType();
+	}
+
+	private static int modeType(BasicFileAttributes attrs) {
+		return attrs.isSymbolicLink() ? 0b1010 : 0b1000;
+	}
+
+	// Writes the blob and builds the entry. attrs is the stat taken before
+	// reading, so a file changing meanwhile looks modified to the next status.
+	private GitIndexEntry stage(String name, BasicFileAttributes attrs, GitIndexEntry old) throws IOException {
+		Path path = worktree.resolve(name);
+		byte[] data;
+		int perms;
+		if (attrs.isSymbolicLink()) {
+			data = Files.readSymbolicLink(path).toString().replace(path.getFileSystem().getSeparator(), "/")
+					.getBytes(StandardCharsets.UTF_8);
+			perms = 0;
+		} else {
+			data = Files.readAllBytes(path);
+			perms = permissions(path, old);
+		}
+		String sha = GitObjectHelper.objectWrite(new GitBlob(data), repo);
+
+		Instant mtime = attrs.lastModifiedTime().toInstant();
+		Instant ctime = mtime;
+		long dev = 0;
+		long ino = 0;
+		int uid = 0;
+		int gid = 0;
+		try {
+			Map<String, Object> unix = Files.readAttributes(path, "unix:ctime,dev,ino,uid,gid", LinkOption.NOFOLLOW_LINKS);
+			ctime = ((FileTime) unix.get("ctime")).toInstant();
+			dev = (Long) unix.get("dev");
+			ino = (Long) unix.get("ino");
+			uid = (Integer) unix.get("uid");
+			gid = (Integer) unix.get("gid");
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			// No unix view on this platform, the fields stay zero
+		}
+
+		return new GitIndexEntry(new Tuple<>((int) ctime.getEpochSecond(), ctime.getNano()),
+				new Tuple<>((int) mtime.getEpochSecond(), mtime.getNano()), (int) dev, (int) ino, modeType(attrs),
+				perms, uid, gid, (int) attrs.size(), sha, false, 0, name);
+	}
+
+	// With core.filemode off the executable bit on disk is not trusted
+	private int permissions(Path path, GitIndexEntry old) throws IOException {
+		int fallback = old != null && old.modeType() == 0b1000 ? old.modePerms() : 0644;
+		if (!fileMode) {
+			return fallback;
+		}
+		try {
+			PosixFileAttributes posix = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			return posix.permissions().contains(PosixFilePermission.OWNER_EXECUTE) ? 0755 : 0644;
+		} catch (UnsupportedOperationException e) {
+			return fallback;
+		}
+	}
+
+	// Cached tree ids stay valid except above new, changed and dropped entries
+	private static GitCacheTree invalidate(GitIndex index, GitIndex updated, List<GitIndexEntry> updates) {
+		GitCacheTree cacheTree = index.getCacheTree();
+		if (cacheTree == null) {
+			return null;
+		}
+		for (GitIndexEntry update : updates) {
+			cacheTree.invalidate(update.name());
+		}
+		Set<String> kept = new HashSet<>();
+		for (GitIndexEntry entry : updated.getEntries()) {
+			kept.add(entry.name());
+		}
+		for (GitIndexEntry entry : index.getEntries()) {
+			if (!kept.contains(entry.name())) {
+				cacheTree.invalidate(entry.name());
+			}
+		}
+		return cacheTree;
+	}
+
+	// The new index: old entries minus replaced and removed ones, and minus
+	// anything a new path turns from a file into a directory or back
+	private static List<GitIndexEntry> merge(List<GitIndexEntry> entries, List<GitIndexEntry> updates,
+			Set<String> removed) {
+		Map<String, GitIndexEntry> byName = new HashMap<>();
+		Set<String> dirs = new HashSet<>();
+		for (GitIndexEntry update : updates) {
+			byName.put(update.name(), update);
+			String name = update.name();
+			for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+				dirs.add(name.substring(0, slash));
+			}
+		}
+
+		List<GitIndexEntry> out = new ArrayList<>(entries.size() + updates.size());
+		for (GitIndexEntry entry : entries) {
+			String name = entry.name();
+			if (byName.containsKey(name) || removed.contains(name) || dirs.contains(name)) {
+				continue;
+			}
+			boolean underFile = false;
+			for (int slash = name.indexOf('/'); slash >= 0 && !underFile; slash = name.indexOf('/', slash + 1)) {
+				underFile = byName.containsKey(name.substring(0, slash));
+			}
+			if (!underFile) {
+				out.add(entry);
+			}
+		}
+		out.addAll(updates);
+		out.sort((a, b) -> {
+			int c = Arrays.compareUnsigned(a.name().getBytes(StandardCharsets.UTF_8),
+					b.name().getBytes(StandardCharsets.UTF_8));
+			return c != 0 ? c : Integer.compare(a.flagStage(), b.flagStage());
+		});
+		return out;
+	}
+}
@@ -0,0 +1,91 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking object reads: objectRead runs on a fixed pool of daemon
+// threads and callers get a CompletableFuture, so a caller can fan out the
+// reads for many trees and blobs and wait for them together.
+//
+// Concurrent requests for the same id share one read: the second caller
+// gets the future of the read already in flight (counted as an
+// "in-flight" cache hit in GitMetrics). Coalesced callers receive the same
+// GitObject instance and must not modify it. Missing objects complete
+// with null, read errors complete exceptionally.
+public class GitAsyncObjectReader implements Closeable {
+	private static final AtomicInteger POOLS = new AtomicInteger();
+
+	private final GitRepository repo;
+	private final ExecutorService executor;
+	private final Map<String, CompletableFuture<GitObject>> inFlight = new ConcurrentHashMap<>();
+
+	// Reads block on the disk rather than the CPU, so twice the cores
+	public GitAsyncObjectReader(GitRepository repo) {
+		this(repo, Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+	}
+
+	public GitAsyncObjectReader(GitRepository repo, int threads) {
+		this.repo = repo;
+		int pool = POOLS.incrementAndGet();
+		AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "jwyag-read-" + pool + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public CompletableFuture<GitObject> readAsync(String sha) {
+		CompletableFuture<GitObject> future = new CompletableFuture<>();
+		CompletableFuture<GitObject> running = inFlight.putIfAbsent(sha, future);
+		if (running != null) {
+			GitMetrics.cacheHit("in-flight");
+			return running.copy();
+		}
+		GitMetrics.cacheMiss("in-flight");
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(GitObjectHelper.objectRead(repo, sha));
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					inFlight.remove(sha, future);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(sha, future);
+			future.completeExceptionally(e);
+		}
+		// A caller cancelling its copy leaves the others' read alone
+		return future.copy();
+	}
+
+	// The objects in the order of shas, null for missing ones. Fails with the
+	// first error if any read fails.
+	public CompletableFuture<List<GitObject>> readAll(List<String> shas) {
+		List<CompletableFuture<GitObject>> futures = new ArrayList<>(shas.size());
+		for (String sha : shas) {
+			futures.add(readAsync(sha));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			List<GitObject> ret = new ArrayList<>(futures.size());
+			for (CompletableFuture<GitObject> future : futures) {
+				ret.add(future.join());
+			}
+			return ret;
+		});
+	}
+
+	// Reads already queued still run; new ones are rejected
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
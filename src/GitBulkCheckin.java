@@ -0,0 +1,78 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bulk-checkin: while a session is open, objectWrite appends new objects to
+// one pack instead of creating a loose file (and fan-out directory) for
+// each. Objects written during the session are readable right away through
+// the unfinished pack; close() writes the .idx, which is when other
+// processes can see them.
+//
+// Sessions nest: an inner begin() joins the pack of the outer session and
+// only the outer close() finishes it. Databases other than the file one
+// have no packs: sessions on them pass objects straight through.
+public class GitBulkCheckin implements Closeable {
+	// Below this many objects loose files are cheaper than a pack
+	public static final int THRESHOLD = 64;
+
+	private final GitRepository repo;
+	private final GitPackWriter pack;
+	private final boolean owner;
+
+	private GitBulkCheckin(GitRepository repo, GitPackWriter pack, boolean owner) {
+		this.repo = repo;
+		this.pack = pack;
+		this.owner = owner;
+	}
+
+	public static GitBulkCheckin begin(GitRepository repo) throws IOException {
+		if (!(repo.getObjectDatabase() instanceof GitFileObjectDatabase)) {
+			return new GitBulkCheckin(repo, null, false);
+		}
+		ReentrantLock lock = repo.getBulkCheckinLock();
+		lock.lock();
+		try {
+			GitPackWriter current = repo.getBulkCheckin();
+			if (current != null) {
+				return new GitBulkCheckin(repo, current, false);
+			}
+			GitPackWriter pack = new GitPackWriter(repo);
+			repo.setBulkCheckin(pack);
+			return new GitBulkCheckin(repo, pack, true);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Appends an object to the session's pack, returns its id. Once the
+	// owner has closed the session the object is written as usual.
+	public String add(String fmt, byte[] data) throws IOException {
+		String sha = GitObjectHelper.objectId(fmt, data);
+		if (pack == null || !pack.add(fmt, data, sha)) {
+			repo.getObjectDatabase().write(fmt, data, sha);
+		}
+		return sha;
+	}
+
+	public int getCount() {
+		return pack == null ? 0 : pack.getCount();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!owner) {
+			return;
+		}
+		ReentrantLock lock = repo.getBulkCheckinLock();
+		lock.lock();
+		try {
+			// Detached first, so writers that look the session up afterwards
+			// go loose; ones already holding the pack are turned away by it
+			repo.setBulkCheckin(null);
+			pack.finish();
+			repo.rescanPacks();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
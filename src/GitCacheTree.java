@@ -0,0 +1,148 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Tree ids of the directories in the index, git's TREE index extension.
+// Commit reuses the id of every directory that is still valid instead of
+// hashing it again; anything that changes an index entry has to invalidate
+// the directories above it.
+//
+// Each node is "<name>\0<entry count> <subtree count>\n", the 20 byte id
+// when the count isn't -1, then its subtrees. The root has an empty name.
+public class GitCacheTree {
+	public static final String SIGNATURE = "TREE";
+
+	private final String name;
+	// Index entries below this directory, -1 when the id is stale
+	private int entryCount = -1;
+	private String sha;
+	private final Map<String, GitCacheTree> children = new TreeMap<>();
+
+	public GitCacheTree() {
+		this("");
+	}
+
+	private GitCacheTree(String name) {
+		this.name = name;
+	}
+
+	public boolean isValid() {
+		return entryCount >= 0;
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	public String getSha() {
+		return sha;
+	}
+
+	public void setValid(int entryCount, String sha) {
+		this.entryCount = entryCount;
+		this.sha = sha;
+	}
+
+	public Collection<GitCacheTree> getChildren() {
+		return children.values();
+	}
+
+	// Child directory, created stale if missing
+	public GitCacheTree child(String name) {
+		return children.computeIfAbsent(name, GitCacheTree::new);
+	}
+
+	// Drops the children whose names aren't in keep
+	public void retain(List<String> keep) {
+		children.keySet().retainAll(keep);
+	}
+
+	// Marks every directory containing path stale, path being an index entry
+	public void invalidate(String path) {
+		GitCacheTree node = this;
+		int start = 0;
+		while (node != null) {
+			node.entryCount = -1;
+			int slash = path.indexOf('/', start);
+			if (slash < 0) {
+				return;
+			}
+			node = node.children.get(path.substring(start, slash));
+			start = slash + 1;
+		}
+	}
+
+	public byte[] serialize() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out);
+		return out.toByteArray();
+	}
+
+	private void write(ByteArrayOutputStream out) {
+		out.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+		out.write(0);
+		out.writeBytes((entryCount + " " + children.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+		if (entryCount >= 0) {
+			out.writeBytes(GitObjectHelper.shaToBytes(sha));
+		}
+		for (GitCacheTree child : children.values()) {
+			child.write(out);
+		}
+	}
+
+	public static GitCacheTree parse(byte[] data) throws IOException {
+		int[] pos = { 0 };
+		GitCacheTree root = parseNode(data, pos);
+		if (pos[0] != data.length) {
+			throw new IOException("Trailing data in the cache tree extension");
+		}
+		return root;
+	}
+
+	private static GitCacheTree parseNode(byte[] data, int[] pos) throws IOException {
+		int nul = indexOf(data, (byte) 0, pos[0]);
+		int nl = nul < 0 ? -1 : indexOf(data, (byte) '\n', nul);
+		if (nl < 0) {
+			throw new IOException("Corrupt cache tree extension");
+		}
+		GitCacheTree node = new GitCacheTree(new String(data, pos[0], nul - pos[0], StandardCharsets.UTF_8));
+		String[] counts = new String(data, nul + 1, nl - nul - 1, StandardCharsets.US_ASCII).split(" ");
+		int subtrees;
+		try {
+			node.entryCount = Integer.parseInt(counts[0]);
+			subtrees = Integer.parseInt(counts[1]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt cache tree extension", e);
+		}
+		pos[0] = nl + 1;
+		if (node.entryCount >= 0) {
+			if (pos[0] + 20 > data.length) {
+				throw new IOException("Truncated cache tree extension");
+			}
+			node.sha = GitObjectHelper.shaToHex(data, pos[0]);
+			pos[0] += 20;
+		}
+		List<GitCacheTree> parsed = new ArrayList<>(subtrees);
+		for (int i = 0; i < subtrees; i++) {
+			parsed.add(parseNode(data, pos));
+		}
+		for (GitCacheTree child : parsed) {
+			node.children.put(child.name, child);
+		}
+		return node;
+	}
+
+	private static int indexOf(byte[] data, byte b, int from) {
+		for (int i = from; i < data.length; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -1,31 +1,85 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+// A commit (and, through GitTag, a tag): a list of "key value" header lines,
+// a blank line, then a free form message.
+//
+// Parsed objects keep the raw buffer and only record where each header line
+// starts and ends; values are decoded when asked for. Objects built in
+// memory, or edited after parsing, keep their headers in kvlm instead.
 public class GitCommit extends GitObject {
 	private static final byte[] COMMIT_FMT = "commit".getBytes(StandardCharsets.UTF_8);
-	private LinkedHashMap<byte[], Object> kvlm;
+
+	// Raw content, null once headers are held in kvlm
+	private byte[] raw;
+	// keyStart, keyEnd, valueEnd for each header line; the value starts at
+	// keyEnd + 1 and runs up to (not including) the newline at valueEnd
+	private int[] headers;
+	private int headerCount;
+	// Start of the message in raw, -1 when there is no blank line
+	private int messageStart;
+
+	// Header values by key for objects built in memory, in insertion order
+	private LinkedHashMap<String, List<byte[]>> kvlm;
+	private byte[] message;
 
 	public GitCommit(byte[] data) {
 		super(data);
 	}
 
-	public Map<byte[], Object> getKvlm() {
-		return this.kvlm;
-	}
-
 	@Override
 	public byte[] serialize() {
-		return kvlmSerialize(kvlm);
+		if (raw != null) {
+			return raw;
+		}
+		return kvlmSerialize(kvlm, message);
 	}
 
 	@Override
 	protected void deserialize(byte[] data) {
-		kvlm = new LinkedHashMap<>();
-		this.kvlm = kvlmParse(data, 0, kvlm);
-		// this.printKvlm();
+		raw = data;
+		headers = new int[8 * 3];
+		headerCount = 0;
+		messageStart = -1;
+
+		int pos = 0;
+		while (pos < data.length) {
+			// A blank line ends the headers
+			if (data[pos] == '\n') {
+				messageStart = pos + 1;
+				return;
+			}
+
+			int nl = indexOf(data, (byte) '\n', pos);
+			// Lines starting with a space continue the previous value
+			while (nl >= 0 && nl + 1 < data.length && data[nl + 1] == ' ') {
+				nl = indexOf(data, (byte) '\n', nl + 1);
+			}
+			if (nl < 0) {
+				nl = data.length;
+			}
+			int spc = indexOf(data, (byte) ' ', pos);
+			if (spc < 0 || spc > nl) {
+				spc = nl;
+			}
+
+			if (headerCount * 3 == headers.length) {
+				headers = Arrays.copyOf(headers, headers.length * 2);
+			}
+			headers[headerCount * 3] = pos;
+			headers[headerCount * 3 + 1] = spc;
+			headers[headerCount * 3 + 2] = nl;
+			headerCount++;
+
+			pos = nl + 1;
+		}
 	}
 
 	@Override
@@ -38,133 +92,182 @@ public class GitCommit extends GitObject {
 		kvlm = new LinkedHashMap<>();
 	}
 
-	private LinkedHashMap<byte[], Object> kvlmParse(byte[] raw, int start, LinkedHashMap<byte[], Object> dct) {
-		if (start >= raw.length) {
-			return dct;
-		}
+	// Typed accessors
 
-		// Find the next space and newline
-		int spc = indexOf(raw, (byte) ' ', start);
-		int nl = indexOf(raw, (byte) '\n', start);
+	public String getTree() {
+		return getHeader("tree");
+	}
 
-		// Base case: if newline appears first or no space is found
-		if (spc < 0 || nl < spc) {
-			if (nl == start) {
-				dct.put(null, extract(raw, start + 1, raw.length));
-				return dct;
-			}
-		}
+	public List<String> getParents() {
+		return getHeaders("parent");
+	}
 
-		// Recursive case: read key-value pair
-		byte[] key = extract(raw, start, spc);
-		int end = start;
+	public String getAuthor() {
+		return getHeader("author");
+	}
 
-		// Find the end of the value
-		while (true) {
-			end = indexOf(raw, (byte) '\n', end + 1);
-			if (end < 0 || (end + 1 >= raw.length) || raw[end + 1] != ' ') {
-				break;
-			}
+	public String getCommitter() {
+		return getHeader("committer");
+	}
+
+	// The message, or null if the object has none
+	public String getMessage() {
+		if (raw == null) {
+			return message == null ? null : new String(message, StandardCharsets.UTF_8);
+		}
+		if (messageStart < 0) {
+			return null;
 		}
+		return new String(raw, messageStart, raw.length - messageStart, StandardCharsets.UTF_8);
+	}
 
-		// Extract value and handle continuation lines
-		byte[] valueBytes = extract(raw, spc + 1, end);
-		byte[] value = replace(valueBytes, new byte[] { (byte) '\n', (byte) ' ' }, new byte[] { (byte) '\n' });
-
-		String keyStr = new String(key);
-		String valueStr = new String(value);
-
-		if (dct.containsKey(keyStr.getBytes())) {
-			Object existing = dct.get(keyStr.getBytes());
-			if (existing instanceof java.util.List) {
-				@SuppressWarnings("unchecked")
-				java.util.List<String> list = (java.util.List<String>) existing;
-				list.add(valueStr);
-			} else {
-				java.util.List<String> list = new java.util.ArrayList<>();
-				list.add((String) existing);
-				list.add(valueStr);
-				dct.put(keyStr.getBytes(), list);
-			}
-		} else {
-			dct.put(keyStr.getBytes(), valueStr);
+	// The message as stored, or null if the object has none
+	public byte[] getMessageBytes() {
+		if (raw == null) {
+			return message;
 		}
+		if (messageStart < 0) {
+			return null;
+		}
+		return Arrays.copyOfRange(raw, messageStart, raw.length);
+	}
 
-		return kvlmParse(raw, end + 1, dct);
+	// First value of a header, or null
+	public String getHeader(String key) {
+		byte[] value = getHeaderBytes(key);
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
 	}
 
-	public void printKvlm() {
-		printKvlm(this.kvlm);
+	public byte[] getHeaderBytes(String key) {
+		if (raw == null) {
+			List<byte[]> values = kvlm.get(key);
+			return values == null ? null : values.get(0);
+		}
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < headerCount; i++) {
+			if (keyEquals(i, keyBytes)) {
+				return decodeValue(i);
+			}
+		}
+		return null;
 	}
 
-	public static void printKvlm(Map<byte[], Object> kvlm) {
-		for (Map.Entry<byte[], Object> entry : kvlm.entrySet()) {
-			String key;
-			if (entry.getKey() == null) {
-				key = "null";
-			} else {
-				key = new String(entry.getKey());
+	// Every value of a repeated header such as parent, in order
+	public List<String> getHeaders(String key) {
+		List<String> ret = new ArrayList<>(2);
+		if (raw == null) {
+			List<byte[]> values = kvlm.get(key);
+			if (values != null) {
+				for (byte[] value : values) {
+					ret.add(new String(value, StandardCharsets.UTF_8));
+				}
 			}
-			Object value = entry.getValue();
-			if (value instanceof java.util.List) {
-				java.util.List<?> list = (java.util.List<?>) value;
-				System.out.println("Key: " + key + " -> Values: " + list);
-			} else if (value instanceof byte[]) {
-				String s = new String((byte[]) value);
-				System.out.println("Key: " + key + " -> Values: " + s);
-			} else {
-				System.out.println("Key: " + key + " -> Value: " + value);
+			return ret;
+		}
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < headerCount; i++) {
+			if (keyEquals(i, keyBytes)) {
+				ret.add(new String(decodeValue(i), StandardCharsets.UTF_8));
 			}
 		}
+		return ret;
+	}
 
+	// Editing, used to build new objects
+
+	// Replaces every value of key with a single one
+	public void setHeader(String key, String value) {
+		materialize();
+		List<byte[]> values = new ArrayList<>(1);
+		values.add(value.getBytes(StandardCharsets.UTF_8));
+		kvlm.put(key, values);
 	}
 
-	public Object getValueFromKvlm(byte[] key) {
-		for (Map.Entry<byte[], Object> entry : kvlm.entrySet()) {
-			if (Arrays.equals(entry.getKey(), key)) {
-				return entry.getValue();
-			}
-		}
-		return null;
+	public void addHeader(String key, String value) {
+		materialize();
+		kvlm.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value.getBytes(StandardCharsets.UTF_8));
 	}
 
-	private static byte[] extract(byte[] array, int start, int end) {
-		byte[] result = new byte[end - start];
-		System.arraycopy(array, start, result, 0, end - start);
-		return result;
+	public void setMessage(String message) {
+		materialize();
+		this.message = message.getBytes(StandardCharsets.UTF_8);
 	}
 
-	private static byte[] replace(byte[] source, byte[] target, byte[] replacement) {
-		String sourceStr = new String(source);
-		String targetStr = new String(target);
-		String replacementStr = new String(replacement);
-		String resultStr = sourceStr.replace(targetStr, replacementStr);
-		return resultStr.getBytes();
+	// Moves parsed headers into kvlm so they can be edited
+	private void materialize() {
+		if (raw == null) {
+			return;
+		}
+		kvlm = new LinkedHashMap<>();
+		for (int i = 0; i < headerCount; i++) {
+			int keyStart = headers[i * 3];
+			int keyEnd = headers[i * 3 + 1];
+			String key = new String(raw, keyStart, keyEnd - keyStart, StandardCharsets.UTF_8);
+			kvlm.computeIfAbsent(key, k -> new ArrayList<>(1)).add(decodeValue(i));
+		}
+		message = messageStart < 0 ? null : Arrays.copyOfRange(raw, messageStart, raw.length);
+		raw = null;
+		headers = null;
 	}
 
-	private static byte[] kvlmSerialize(Map<byte[], Object> kvlm) {
-		StringBuilder ret = new StringBuilder();
+	private boolean keyEquals(int header, byte[] key) {
+		int keyStart = headers[header * 3];
+		int keyEnd = headers[header * 3 + 1];
+		return Arrays.equals(raw, keyStart, keyEnd, key, 0, key.length);
+	}
 
-		for (Map.Entry<byte[], Object> entry : kvlm.entrySet()) {
-			byte[] key = entry.getKey();
-			if (key == null)
-				continue;
-			Object val = entry.getValue();
-			byte[][] values = val instanceof byte[][] ? (byte[][]) val : new byte[][] { (byte[]) val };
+	// Copies a value out of raw, dropping the space that starts continuation lines
+	private byte[] decodeValue(int header) {
+		int start = Math.min(headers[header * 3 + 1] + 1, headers[header * 3 + 2]);
+		int end = headers[header * 3 + 2];
+		byte[] out = new byte[end - start];
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			out[n++] = raw[i];
+			if (raw[i] == '\n' && i + 1 < end && raw[i + 1] == ' ') {
+				i++;
+			}
+		}
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	public void printKvlm() {
+		if (raw != null) {
+			materialize();
+		}
+		for (Map.Entry<String, List<byte[]>> entry : kvlm.entrySet()) {
+			for (byte[] value : entry.getValue()) {
+				System.out.println("Key: " + entry.getKey() + " -> Value: " + new String(value, StandardCharsets.UTF_8));
+			}
+		}
+		System.out.println("Message: " + getMessage());
+	}
 
-			for (byte[] value : values) {
-				String valueStr = new String(value, StandardCharsets.UTF_8);
-				valueStr = valueStr.replace("\n", "\n ");
-				ret.append(new String(key, StandardCharsets.UTF_8)).append(' ').append(valueStr).append('\n');
+	private static byte[] kvlmSerialize(Map<String, List<byte[]>> kvlm, byte[] message) {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+
+		for (Map.Entry<String, List<byte[]>> entry : kvlm.entrySet()) {
+			byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			for (byte[] value : entry.getValue()) {
+				ret.write(key, 0, key.length);
+				ret.write(' ');
+				// Multi line values continue on lines starting with a space
+				for (byte b : value) {
+					ret.write(b);
+					if (b == '\n') {
+						ret.write(' ');
+					}
+				}
+				ret.write('\n');
 			}
 		}
 
-		byte[] message = (byte[]) kvlm.get(null);
 		if (message != null) {
-			ret.append('\n').append(new String(message, StandardCharsets.UTF_8)).append('\n');
+			ret.write('\n');
+			ret.write(message, 0, message.length);
 		}
 
-		return ret.toString().getBytes(StandardCharsets.UTF_8);
+		return ret.toByteArray();
 	}
 
 	private static int indexOf(byte[] array, byte value, int fromIndex) {
@@ -176,46 +279,34 @@ public class GitCommit extends GitObject {
 		return -1;
 	}
 
-	public static void logGraphviz(GitRepository repo, String sha, Set<String> seen) throws Exception {
+	public static void logGraphviz(GitRepository repo, String sha, Set<String> seen, PrintStream out)
+			throws Exception {
 		if (seen.contains(sha)) {
 			return;
 		}
 		seen.add(sha);
 
 		GitObject commit = GitObjectHelper.objectRead(repo, sha);
-		System.out.println(commit.getFmt());
 		if (!(commit instanceof GitCommit)) {
 			return;
 		}
 		GitCommit gitCommit = (GitCommit) commit;
 
 		String shortHash = sha.substring(0, 8);
-		String message = new String((byte[]) gitCommit.kvlm.get(null), StandardCharsets.UTF_8).trim();
+		String message = gitCommit.getMessage();
+		message = message == null ? "" : message.trim();
 		message = message.replace("\\", "\\\\").replace("\"", "\\\"");
 
 		if (message.contains("\n")) {
 			message = message.substring(0, message.indexOf("\n"));
 		}
 
-		System.out.println("\t" + sha + " [label=\"" + shortHash + ": " + message + "\"]");
+		out.println("\t" + sha + " [label=\"" + shortHash + ": " + message + "\"]");
 		assert new String(COMMIT_FMT, StandardCharsets.UTF_8).equals(gitCommit.getFmt());
 
-		if (!gitCommit.kvlm.containsKey("parent".getBytes(StandardCharsets.UTF_8))) {
-			return;
-		}
-
-		Object parentsObj = gitCommit.kvlm.get("parent".getBytes(StandardCharsets.UTF_8));
-		byte[][] parents;
-		if (parentsObj instanceof byte[]) {
-			parents = new byte[][] { (byte[]) parentsObj };
-		} else {
-			parents = (byte[][]) parentsObj;
-		}
-
-		for (byte[] parent : parents) {
-			String parentSha = new String(parent, StandardCharsets.US_ASCII);
-			System.out.println("\t" + sha + " ->" + parentSha + ";");
-			logGraphviz(repo, parentSha, seen);
+		for (String parentSha : gitCommit.getParents()) {
+			out.println("\t" + sha + " -> " + parentSha + ";");
+			logGraphviz(repo, parentSha, seen, out);
 		}
 	}
 }
@@ -0,0 +1,585 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// objects/info/commit-graph: the parents, tree and date of every commit in
+// one sorted table, so a history walk needn't inflate and parse commits.
+// Version 1 format as written by git: a header, a chunk table, then the
+// OIDF (fanout), OIDL (ids), CDAT (commit data) and EDGE (parents of octopus
+// merges) chunks, and a SHA-1 trailer. Generation numbers are topological
+// levels; there is no GDAT chunk and no split graph chain.
+//
+// With changed paths, BIDX and BDAT hold a Bloom filter per commit of the
+// paths (and their leading directories) that differ from its first parent.
+// A path the filter doesn't have certainly didn't change, so a path-limited
+// walk skips the tree diff of most commits.
+public class GitCommitGraph {
+	public static final String FILE = "commit-graph";
+
+	private static final int SIGNATURE = 0x43475048; // "CGPH"
+	private static final int CHUNK_OIDF = 0x4f494446;
+	private static final int CHUNK_OIDL = 0x4f49444c;
+	private static final int CHUNK_CDAT = 0x43444154;
+	private static final int CHUNK_EDGE = 0x45444745;
+	private static final int CHUNK_BIDX = 0x42494458;
+	private static final int CHUNK_BDAT = 0x42444154;
+	private static final int PARENT_NONE = 0x70000000;
+	private static final int PARENT_EXTRA = 0x80000000;
+	private static final int GENERATION_MAX = 0x3fffffff;
+
+	// git's defaults; filters written with other settings aren't reused
+	private static final int BLOOM_HASHES = 7;
+	private static final int BLOOM_BITS_PER_ENTRY = 10;
+	private static final int BLOOM_MAX_CHANGED_PATHS = 512;
+	private static final int BLOOM_SEED0 = 0x293ae76f;
+	private static final int BLOOM_SEED1 = 0x7e646e2c;
+
+	private final ByteBuffer graph;
+	private final int count;
+	private final int fanout;
+	private final int ids;
+	private final int data;
+	// -1 without the chunk
+	private final int edges;
+	private final int bloomIndex;
+	private final int bloomData;
+	// From the BDAT header, 0 without filters
+	private final int bloomVersion;
+	private final int bloomHashes;
+
+	private GitCommitGraph(ByteBuffer graph, Map<Integer, Integer> chunks) {
+		this.graph = graph;
+		this.fanout = chunks.get(CHUNK_OIDF);
+		this.count = graph.getInt(fanout + 255 * 4);
+		this.ids = chunks.get(CHUNK_OIDL);
+		this.data = chunks.get(CHUNK_CDAT);
+		this.edges = chunks.getOrDefault(CHUNK_EDGE, -1);
+		int version = 0;
+		if (chunks.containsKey(CHUNK_BIDX) && chunks.containsKey(CHUNK_BDAT)) {
+			version = graph.getInt(chunks.get(CHUNK_BDAT));
+		}
+		// Murmur3 is all git has ever used; version 2 only fixed its handling
+		// of bytes over 0x7f
+		if (version == 1 || version == 2) {
+			this.bloomVersion = version;
+			this.bloomHashes = graph.getInt(chunks.get(CHUNK_BDAT) + 4);
+			this.bloomIndex = chunks.get(CHUNK_BIDX);
+			this.bloomData = chunks.get(CHUNK_BDAT) + 12;
+		} else {
+			this.bloomVersion = 0;
+			this.bloomHashes = 0;
+			this.bloomIndex = -1;
+			this.bloomData = -1;
+		}
+	}
+
+	// Maps a commit-graph file
+	public static GitCommitGraph open(Path path) throws IOException {
+		ByteBuffer graph;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			graph = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.BIG_ENDIAN);
+		}
+		if (graph.limit() < 8 + 20 || graph.getInt(0) != SIGNATURE) {
+			throw new IOException("Not a commit-graph: " + path);
+		}
+		if (graph.get(4) != 1 || graph.get(5) != 1) {
+			throw new IOException("Unsupported commit-graph version in " + path);
+		}
+		if (graph.get(7) != 0) {
+			throw new IOException("Commit-graph chains aren't supported: " + path);
+		}
+		int chunkCount = graph.get(6) & 0xff;
+
+		Map<Integer, Integer> chunks = new HashMap<>();
+		for (int i = 0; i < chunkCount; i++) {
+			int entry = 8 + i * 12;
+			chunks.put(graph.getInt(entry), (int) graph.getLong(entry + 4));
+		}
+		for (int id : new int[] { CHUNK_OIDF, CHUNK_OIDL, CHUNK_CDAT }) {
+			if (!chunks.containsKey(id)) {
+				throw new IOException("Commit-graph is missing a required chunk: " + path);
+			}
+		}
+		return new GitCommitGraph(graph, chunks);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public boolean hasBloomFilters() {
+		return bloomVersion != 0;
+	}
+
+	// Position of the commit id, or -1
+	public int find(byte[] id) {
+		int first = id[0] & 0xff;
+		int lo = first == 0 ? 0 : graph.getInt(fanout + (first - 1) * 4);
+		int hi = graph.getInt(fanout + first * 4);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareId(mid, id);
+			if (cmp == 0) {
+				return mid;
+			} else if (cmp < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return -1;
+	}
+
+	public String getId(int pos) {
+		byte[] id = new byte[20];
+		graph.get(ids + pos * 20, id);
+		return GitObjectHelper.shaToHex(id, 0);
+	}
+
+	public String getTree(int pos) {
+		byte[] id = new byte[20];
+		graph.get(data + pos * 36, id);
+		return GitObjectHelper.shaToHex(id, 0);
+	}
+
+	// Positions of the parents, in order
+	public int[] getParents(int pos) {
+		int base = data + pos * 36 + 20;
+		int first = graph.getInt(base);
+		int second = graph.getInt(base + 4);
+		if (first == PARENT_NONE) {
+			return new int[0];
+		}
+		if (second == PARENT_NONE) {
+			return new int[] { first };
+		}
+		if ((second & PARENT_EXTRA) == 0) {
+			return new int[] { first, second };
+		}
+		int[] ret = { first };
+		int edge = edges + (second & ~PARENT_EXTRA) * 4;
+		int parent;
+		do {
+			parent = graph.getInt(edge);
+			ret = Arrays.copyOf(ret, ret.length + 1);
+			ret[ret.length - 1] = parent & ~PARENT_EXTRA;
+			edge += 4;
+		} while ((parent & PARENT_EXTRA) == 0);
+		return ret;
+	}
+
+	public int getGeneration(int pos) {
+		return graph.getInt(data + pos * 36 + 28) >>> 2;
+	}
+
+	// Committer date, seconds since the epoch
+	public long getCommitTime(int pos) {
+		int base = data + pos * 36 + 28;
+		return (graph.getInt(base) & 3L) << 32 | (graph.getInt(base + 4) & 0xffffffffL);
+	}
+
+	// False only if the commit's filter proves a path didn't change against
+	// its first parent. keys are the bloomKey()s of the path and of its
+	// leading directories: a changed path adds them all, so a single one
+	// missing is proof.
+	public boolean maybeChanged(int pos, List<int[]> keys) {
+		if (bloomVersion == 0) {
+			return true;
+		}
+		int start = pos == 0 ? 0 : graph.getInt(bloomIndex + (pos - 1) * 4);
+		int length = graph.getInt(bloomIndex + pos * 4) - start;
+		if (length <= 0) {
+			// Not computed
+			return true;
+		}
+		long bits = length * 8L;
+		for (int[] key : keys) {
+			for (int i = 0; i < bloomHashes; i++) {
+				long bit = Integer.toUnsignedLong(key[i]) % bits;
+				if ((graph.get(bloomData + start + (int) (bit >>> 3)) & 1 << (bit & 7)) == 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// The Bloom filter hashes of a path, for maybeChanged
+	public int[] bloomKey(String path) {
+		return bloomKey(path.getBytes(StandardCharsets.UTF_8), bloomVersion == 2, Math.max(bloomHashes, 1));
+	}
+
+	private static int[] bloomKey(byte[] path, boolean unsignedBytes, int hashes) {
+		int h0 = murmur3(BLOOM_SEED0, path, unsignedBytes);
+		int h1 = murmur3(BLOOM_SEED1, path, unsignedBytes);
+		int[] ret = new int[hashes];
+		for (int i = 0; i < hashes; i++) {
+			ret[i] = h0 + i * h1;
+		}
+		return ret;
+	}
+
+	// 32 bit murmur3. Version 1 filters come from a C implementation that
+	// sign extended bytes over 0x7f, which signed Java bytes reproduce.
+	@SuppressWarnings("fallthrough")
+	private static int murmur3(int seed, byte[] data, boolean unsignedBytes) {
+		int mask = unsignedBytes ? 0xff : 0xffffffff;
+		int h = seed;
+		int blocks = data.length / 4;
+		for (int i = 0; i < blocks; i++) {
+			int k = (data[i * 4] & mask) | (data[i * 4 + 1] & mask) << 8 | (data[i * 4 + 2] & mask) << 16
+					| (data[i * 4 + 3] & mask) << 24;
+			k *= 0xcc9e2d51;
+			k = Integer.rotateLeft(k, 15);
+			k *= 0x1b873593;
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+		int tail = blocks * 4;
+		int k = 0;
+		switch (data.length & 3) {
+		case 3:
+			k ^= (data[tail + 2] & mask) << 16;
+			// fall through
+		case 2:
+			k ^= (data[tail + 1] & mask) << 8;
+			// fall through
+		case 1:
+			k ^= data[tail] & mask;
+			k *= 0xcc9e2d51;
+			k = Integer.rotateLeft(k, 15);
+			k *= 0x1b873593;
+			h ^= k;
+			break;
+		default:
+			break;
+		}
+		h ^= data.length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	// The stored filter of the commit at pos if it was written with the
+	// settings write() uses, otherwise null
+	private byte[] reusableFilter(int pos) {
+		if (bloomVersion != 1 || bloomHashes != BLOOM_HASHES
+				|| graph.getInt(bloomData - 12 + 8) != BLOOM_BITS_PER_ENTRY) {
+			return null;
+		}
+		int start = pos == 0 ? 0 : graph.getInt(bloomIndex + (pos - 1) * 4);
+		int length = graph.getInt(bloomIndex + pos * 4) - start;
+		if (length <= 0) {
+			return null;
+		}
+		byte[] ret = new byte[length];
+		graph.get(bloomData + start, ret);
+		return ret;
+	}
+
+	private int compareId(int n, byte[] id) {
+		int base = ids + n * 20;
+		for (int i = 0; i < 20; i++) {
+			int a = graph.get(base + i) & 0xff;
+			int b = id[i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	// A commit being written
+	private static final class Entry {
+		final byte[] id;
+		final String tree;
+		final List<String> parents;
+		final long time;
+		int[] parentPos;
+		int generation;
+		byte[] filter;
+
+		Entry(byte[] id, String tree, List<String> parents, long time) {
+			this.id = id;
+			this.tree = tree;
+			this.parents = parents;
+			this.time = time;
+		}
+	}
+
+	// Writes a commit-graph of every commit reachable from the refs and HEAD,
+	// returning the number of commits. With changedPaths, each commit gets a
+	// Bloom filter; those of the previous graph are reused.
+	public static int write(GitRepository repo, boolean changedPaths) throws IOException {
+		Set<String> tips = new LinkedHashSet<>(GitObjectHelper.refListAll(repo).values());
+		String head = GitObjectHelper.refResolve(repo, "HEAD");
+		if (head != null) {
+			tips.add(head);
+		}
+
+		// Read every commit once; tags are peeled, refs to other objects skipped
+		Map<String, Entry> commits = new HashMap<>();
+		Deque<String> pending = new ArrayDeque<>();
+		for (String tip : tips) {
+			String sha = tip;
+			GitObject obj = GitObjectHelper.objectRead(repo, sha);
+			while (obj instanceof GitTag tag) {
+				sha = tag.getObject();
+				obj = GitObjectHelper.objectRead(repo, sha);
+			}
+			if (obj instanceof GitCommit commit) {
+				if (!commits.containsKey(sha)) {
+					commits.put(sha, entry(sha, commit));
+					pending.push(sha);
+				}
+			}
+		}
+		while (!pending.isEmpty()) {
+			for (String parent : commits.get(pending.pop()).parents) {
+				if (!commits.containsKey(parent)) {
+					GitObject obj = GitObjectHelper.objectRead(repo, parent);
+					if (!(obj instanceof GitCommit) || obj instanceof GitTag) {
+						throw new IOException("Missing parent commit " + parent);
+					}
+					commits.put(parent, entry(parent, (GitCommit) obj));
+					pending.push(parent);
+				}
+			}
+		}
+
+		List<Entry> sorted = new ArrayList<>(commits.values());
+		sorted.sort((a, b) -> Arrays.compareUnsigned(a.id, b.id));
+		int n = sorted.size();
+		Map<String, Integer> positions = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			positions.put(GitObjectHelper.shaToHex(sorted.get(i).id, 0), i);
+		}
+		int extraParents = 0;
+		for (Entry entry : sorted) {
+			entry.parentPos = new int[entry.parents.size()];
+			for (int i = 0; i < entry.parentPos.length; i++) {
+				entry.parentPos[i] = positions.get(entry.parents.get(i));
+			}
+			if (entry.parentPos.length > 2) {
+				extraParents += entry.parentPos.length - 1;
+			}
+		}
+		computeGenerations(sorted);
+
+		int bloomSize = 0;
+		if (changedPaths) {
+			GitCommitGraph previous = repo.getCommitGraph();
+			GitTreeDiff diff = new GitTreeDiff(repo);
+			for (Entry entry : sorted) {
+				int pos = previous == null ? -1 : previous.find(entry.id);
+				entry.filter = pos < 0 ? null : previous.reusableFilter(pos);
+				if (entry.filter == null) {
+					String parentTree = entry.parentPos.length == 0 ? null : sorted.get(entry.parentPos[0]).tree;
+					entry.filter = bloomFilter(diff.changedPaths(parentTree, entry.tree, BLOOM_MAX_CHANGED_PATHS));
+				}
+				bloomSize += entry.filter.length;
+			}
+		}
+
+		List<Integer> chunkIds = new ArrayList<>(List.of(CHUNK_OIDF, CHUNK_OIDL, CHUNK_CDAT));
+		List<Long> chunkSizes = new ArrayList<>(List.of(256 * 4L, n * 20L, n * 36L));
+		if (extraParents > 0) {
+			chunkIds.add(CHUNK_EDGE);
+			chunkSizes.add(extraParents * 4L);
+		}
+		if (changedPaths) {
+			chunkIds.add(CHUNK_BIDX);
+			chunkSizes.add(n * 4L);
+			chunkIds.add(CHUNK_BDAT);
+			chunkSizes.add(12L + bloomSize);
+		}
+		int chunkCount = chunkIds.size();
+		long size = 8 + (chunkCount + 1) * 12;
+		for (long chunkSize : chunkSizes) {
+			size += chunkSize;
+		}
+		if (size + 20 > Integer.MAX_VALUE) {
+			throw new IOException("Too many commits for a commit-graph");
+		}
+
+		ByteBuffer out = ByteBuffer.allocate((int) size + 20);
+		out.putInt(SIGNATURE);
+		out.put((byte) 1).put((byte) 1).put((byte) chunkCount).put((byte) 0);
+		long chunkOffset = 8 + (chunkCount + 1) * 12;
+		for (int i = 0; i < chunkCount; i++) {
+			out.putInt(chunkIds.get(i)).putLong(chunkOffset);
+			chunkOffset += chunkSizes.get(i);
+		}
+		out.putInt(0).putLong(chunkOffset);
+
+		int[] fanout = new int[256];
+		for (Entry entry : sorted) {
+			fanout[entry.id[0] & 0xff]++;
+		}
+		int running = 0;
+		for (int i = 0; i < 256; i++) {
+			running += fanout[i];
+			out.putInt(running);
+		}
+		for (Entry entry : sorted) {
+			out.put(entry.id);
+		}
+		int nextEdge = 0;
+		for (Entry entry : sorted) {
+			out.put(GitObjectHelper.shaToBytes(entry.tree));
+			int[] parents = entry.parentPos;
+			out.putInt(parents.length > 0 ? parents[0] : PARENT_NONE);
+			if (parents.length > 2) {
+				out.putInt(PARENT_EXTRA | nextEdge);
+				nextEdge += parents.length - 1;
+			} else {
+				out.putInt(parents.length > 1 ? parents[1] : PARENT_NONE);
+			}
+			// Dates past 2^34 seconds don't fit and are clamped
+			long time = Math.min(Math.max(entry.time, 0), (1L << 34) - 1);
+			out.putInt(entry.generation << 2 | (int) (time >>> 32));
+			out.putInt((int) time);
+		}
+		for (Entry entry : sorted) {
+			int[] parents = entry.parentPos;
+			for (int i = 1; parents.length > 2 && i < parents.length; i++) {
+				out.putInt(i == parents.length - 1 ? PARENT_EXTRA | parents[i] : parents[i]);
+			}
+		}
+		if (changedPaths) {
+			int end = 0;
+			for (Entry entry : sorted) {
+				end += entry.filter.length;
+				out.putInt(end);
+			}
+			out.putInt(1).putInt(BLOOM_HASHES).putInt(BLOOM_BITS_PER_ENTRY);
+			for (Entry entry : sorted) {
+				out.put(entry.filter);
+			}
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(out.array(), 0, out.position());
+			out.put(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 algorithm not found", e);
+		}
+
+		Path infoDir = GitObjectHelper.repoFile(repo, "objects", "info");
+		Files.createDirectories(infoDir);
+		Path tmp = Files.createTempFile(infoDir, "tmp_graph_", "");
+		try {
+			Files.write(tmp, out.array());
+			Files.move(tmp, infoDir.resolve(FILE), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return n;
+	}
+
+	private static Entry entry(String sha, GitCommit commit) {
+		return new Entry(GitObjectHelper.shaToBytes(sha), commit.getTree(), commit.getParents(),
+				commitTime(commit));
+	}
+
+	// Seconds from the committer line, "<name> <email> <time> <tz>"
+	public static long commitTime(GitCommit commit) {
+		String committer = commit.getCommitter();
+		if (committer == null) {
+			return 0;
+		}
+		String[] fields = committer.substring(committer.lastIndexOf('>') + 1).trim().split(" ");
+		try {
+			return Long.parseLong(fields[0]);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	// 1 + the largest generation among the parents, without recursing:
+	// histories are deeper than the stack
+	private static void computeGenerations(List<Entry> sorted) {
+		Deque<Entry> stack = new ArrayDeque<>();
+		for (Entry root : sorted) {
+			if (root.generation != 0) {
+				continue;
+			}
+			stack.push(root);
+			while (!stack.isEmpty()) {
+				Entry entry = stack.peek();
+				if (entry.generation != 0) {
+					// Pushed again through another child
+					stack.pop();
+					continue;
+				}
+				int max = 0;
+				boolean ready = true;
+				for (int parent : entry.parentPos) {
+					Entry p = sorted.get(parent);
+					if (p.generation == 0) {
+						stack.push(p);
+						ready = false;
+					} else {
+						max = Math.max(max, p.generation);
+					}
+				}
+				if (ready) {
+					stack.pop();
+					entry.generation = Math.min(max + 1, GENERATION_MAX);
+				}
+			}
+		}
+	}
+
+	// A filter of the changed paths and their leading directories; null
+	// paths (too many changes) set every bit, as does going over the limit
+	// with the directories added
+	private static byte[] bloomFilter(List<String> paths) {
+		Set<String> keys = new LinkedHashSet<>();
+		if (paths != null) {
+			for (String path : paths) {
+				keys.add(path);
+				for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+					keys.add(path.substring(0, slash));
+				}
+			}
+		}
+		if (paths == null || keys.size() > BLOOM_MAX_CHANGED_PATHS) {
+			return new byte[] { (byte) 0xff };
+		}
+		if (keys.isEmpty()) {
+			return new byte[1];
+		}
+		byte[] filter = new byte[(keys.size() * BLOOM_BITS_PER_ENTRY + 7) / 8];
+		long bits = filter.length * 8L;
+		for (String key : keys) {
+			for (int hash : bloomKey(key.getBytes(StandardCharsets.UTF_8), false, BLOOM_HASHES)) {
+				long bit = Integer.toUnsignedLong(hash) % bits;
+				filter[(int) (bit >>> 3)] |= 1 << (bit & 7);
+			}
+		}
+		return filter;
+	}
+}
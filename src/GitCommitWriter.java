@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Commits the index: writes its trees, the commit object on top of HEAD,
+// and moves the checked out branch (or a detached HEAD) to it.
+public class GitCommitWriter {
+	private final GitRepository repo;
+	private final Map<String, String> env;
+
+	public GitCommitWriter(GitRepository repo) {
+		this(repo, System.getenv());
+	}
+
+	public GitCommitWriter(GitRepository repo, Map<String, String> env) {
+		this.repo = repo;
+		this.env = env;
+	}
+
+	// Id of the new commit, or null when the index matches HEAD's tree. Like
+	// git, holds index.lock from reading the index until the branch has moved,
+	// so nothing is staged in between that the commit would silently miss.
+	public String commit(String message, boolean allowEmpty) throws IOException {
+		message = cleanup(message);
+		if (message.isEmpty()) {
+			throw new IOException("Aborting commit due to empty commit message.");
+		}
+
+		try (GitIndex.Lock lock = GitIndex.Lock.lock(repo)) {
+			return commit(message, allowEmpty, lock);
+		}
+	}
+
+	private String commit(String message, boolean allowEmpty, GitIndex.Lock lock) throws IOException {
+		GitIndex index = lock.read();
+		String tree = GitTreeWriter.writeTree(repo, index);
+
+		String branch = GitObjectHelper.branchGetActive(repo);
+		String ref = branch == null ? "HEAD" : "refs/heads/" + branch;
+		String parent = GitObjectHelper.refResolve(repo, "HEAD");
+		if (parent != null && !allowEmpty) {
+			GitObject head = GitObjectHelper.objectRead(repo, parent);
+			if (head instanceof GitCommit && tree.equals(((GitCommit) head).getTree())) {
+				return null;
+			}
+		}
+
+		// Both default to the same moment, as git does
+		Instant now = Instant.now();
+		GitCommit commit = new GitCommit(null);
+		commit.setHeader("tree", tree);
+		if (parent != null) {
+			commit.addHeader("parent", parent);
+		}
+		commit.setHeader("author", ident("AUTHOR", now));
+		commit.setHeader("committer", ident("COMMITTER", now));
+		commit.setMessage(message);
+		String sha = GitObjectHelper.objectWrite(commit, repo);
+
+		GitObjectHelper.refUpdate(repo, ref, sha, parent);
+
+		// The cache tree is now valid throughout
+		try {
+			lock.commit(index);
+		} catch (IOException e) {
+			// Next commit rebuilds whatever is stale
+		}
+		return sha;
+	}
+
+	// "Name <email> <seconds> <+hhmm>" from GIT_<role>_NAME, _EMAIL and _DATE,
+	// falling back on user.name, user.email and now
+	String ident(String role, Instant now) throws IOException {
+		GitConfig conf = repo.getConf();
+		String name = env.getOrDefault("GIT_" + role + "_NAME", conf.get("user.name"));
+		String email = env.getOrDefault("GIT_" + role + "_EMAIL", conf.getString("user.email", env.get("EMAIL")));
+		if (name == null || name.isBlank() || email == null) {
+			throw new IOException((role.equals("AUTHOR") ? "Author" : "Committer") + " identity unknown\n\n"
+					+ "*** Please tell me who you are.\n\n" + "Run\n\n"
+					+ "  git config user.email \"you@example.com\"\n" + "  git config user.name \"Your Name\"\n");
+		}
+		String date = env.get("GIT_" + role + "_DATE");
+		return sanitize(name) + " <" + sanitize(email) + "> " + (date == null ? formatDate(now) : parseDate(date));
+	}
+
+	// Angle brackets and newlines would break the header line
+	private static String sanitize(String s) {
+		return s.replaceAll("[<>\n]", "").trim();
+	}
+
+	private static String formatDate(Instant instant) {
+		ZoneOffset offset = ZoneId.systemDefault().getRules().getOffset(instant);
+		return instant.getEpochSecond() + " " + formatOffset(offset);
+	}
+
+	private static String formatOffset(ZoneOffset offset) {
+		int minutes = offset.getTotalSeconds() / 60;
+		return String.format("%c%02d%02d", minutes < 0 ? '-' : '+', Math.abs(minutes) / 60, Math.abs(minutes) % 60);
+	}
+
+	// Git's raw "<seconds> <+hhmm>" (optionally "@"-prefixed), ISO 8601 or
+	// RFC 2822 dates
+	static String parseDate(String date) throws IOException {
+		String s = date.trim();
+		if (s.matches("@?\\d+ [+-]\\d{4}")) {
+			return s.startsWith("@") ? s.substring(1) : s;
+		}
+		if (s.matches("@?\\d+")) {
+			return formatDate(Instant.ofEpochSecond(Long.parseLong(s.startsWith("@") ? s.substring(1) : s)));
+		}
+		try {
+			OffsetDateTime odt = OffsetDateTime.parse(s.replaceFirst(" ", "T"));
+			return odt.toEpochSecond() + " " + formatOffset(odt.getOffset());
+		} catch (DateTimeParseException e) {
+			// Not ISO 8601
+		}
+		try {
+			ZonedDateTime zdt = ZonedDateTime.parse(s, DateTimeFormatter.RFC_1123_DATE_TIME);
+			return zdt.toEpochSecond() + " " + formatOffset(zdt.getOffset());
+		} catch (DateTimeParseException e) {
+			throw new IOException("Invalid date format: " + date, e);
+		}
+	}
+
+	// Git's "whitespace" cleanup: trailing spaces go, runs of blank lines
+	// become one, leading and trailing blank lines are dropped
+	static String cleanup(String message) {
+		List<String> lines = new ArrayList<>();
+		for (String line : message.split("\n", -1)) {
+			line = line.stripTrailing();
+			if (line.isEmpty() && (lines.isEmpty() || lines.get(lines.size() - 1).isEmpty())) {
+				continue;
+			}
+			lines.add(line);
+		}
+		while (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+			lines.remove(lines.size() - 1);
+		}
+		return lines.isEmpty() ? "" : String.join("\n", lines) + "\n";
+	}
+}
@@ -0,0 +1,595 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Parsed git config. Immutable once built: every value is looked up by its
+// canonical name, "section.key" or "section.subsection.key", where section
+// and key are lower case and the subsection keeps its case.
+//
+// A key written without "=" (a bare "bare" line) has a null value, which
+// reads as true and as an empty string.
+public final class GitConfig {
+	// Nested include.path files deeper than this are treated as a loop
+	private static final int MAX_INCLUDE_DEPTH = 10;
+
+	// Parsed files by path, reused while none of the files they read changed
+	private static final Map<Path, Cached> CACHE = new ConcurrentHashMap<>();
+
+	private static final GitConfig EMPTY = new GitConfig(new LinkedHashMap<>());
+
+	// Values by canonical name, in file order; later values win for get()
+	private final Map<String, List<String>> values;
+
+	private GitConfig(Map<String, List<String>> values) {
+		this.values = values;
+	}
+
+	// A parsed file, and the mtime of it and every file it included
+	private record Cached(GitConfig config, List<Tuple<Path, FileTime>> files) {
+	}
+
+	public static GitConfig empty() {
+		return EMPTY;
+	}
+
+	// System, global and repository config layered in that order, the way git
+	// reads them. GIT_CONFIG_NOSYSTEM, GIT_CONFIG_SYSTEM and GIT_CONFIG_GLOBAL
+	// are honoured.
+	public static GitConfig load(Path gitdir) throws IOException {
+		List<Path> layers = new ArrayList<>();
+		if (System.getenv("GIT_CONFIG_NOSYSTEM") == null) {
+			String system = System.getenv("GIT_CONFIG_SYSTEM");
+			layers.add(Paths.get(system != null ? system : "/etc/gitconfig"));
+		}
+		String global = System.getenv("GIT_CONFIG_GLOBAL");
+		if (global != null) {
+			layers.add(Paths.get(global));
+		} else {
+			String xdg = System.getenv("XDG_CONFIG_HOME");
+			String home = System.getProperty("user.home");
+			if (xdg != null && !xdg.isEmpty()) {
+				layers.add(Paths.get(xdg, "git", "config"));
+			} else if (home != null) {
+				layers.add(Paths.get(home, ".config", "git", "config"));
+			}
+			if (home != null) {
+				layers.add(Paths.get(home, ".gitconfig"));
+			}
+		}
+		layers.add(gitdir.resolve("config"));
+
+		Builder builder = new Builder();
+		for (Path layer : layers) {
+			builder.addAll(read(layer));
+		}
+		return builder.build();
+	}
+
+	// One file and its includes; an empty config if the file doesn't exist
+	public static GitConfig read(Path file) throws IOException {
+		Path key = file.toAbsolutePath().normalize();
+		Cached cached = CACHE.get(key);
+		if (cached != null && unchanged(cached.files())) {
+			return cached.config();
+		}
+
+		List<Tuple<Path, FileTime>> files = new ArrayList<>();
+		Builder builder = new Builder();
+		parseFile(key, builder, files, 0);
+		GitConfig config = builder.build();
+		CACHE.put(key, new Cached(config, files));
+		return config;
+	}
+
+	private static boolean unchanged(List<Tuple<Path, FileTime>> files) throws IOException {
+		for (Tuple<Path, FileTime> file : files) {
+			if (!Objects.equals(mtime(file.getFirst()), file.getSecond())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static FileTime mtime(Path file) throws IOException {
+		return Files.isRegularFile(file) ? Files.getLastModifiedTime(file) : null;
+	}
+
+	private static void parseFile(Path file, Builder builder, List<Tuple<Path, FileTime>> files, int depth)
+			throws IOException {
+		if (depth > MAX_INCLUDE_DEPTH) {
+			throw new IOException("Config include depth exceeded in " + file);
+		}
+		// Missing files are recorded too, so creating one invalidates the cache
+		files.add(new Tuple<>(file, mtime(file)));
+		if (!Files.isRegularFile(file)) {
+			return;
+		}
+		String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		new Parser(text, file, builder, files, depth).parse();
+	}
+
+	// Lookups
+
+	// Last value of name, null if unset
+	public String get(String name) {
+		List<String> list = values.get(canonical(name));
+		if (list == null) {
+			return null;
+		}
+		String value = list.get(list.size() - 1);
+		return value == null ? "" : value;
+	}
+
+	public String get(String section, String subsection, String key) {
+		return get(name(section, subsection, key));
+	}
+
+	public String getString(String name, String def) {
+		String value = get(name);
+		return value == null ? def : value;
+	}
+
+	// Every value of a multi-valued key such as remote.origin.fetch
+	public List<String> getAll(String name) {
+		List<String> list = values.get(canonical(name));
+		if (list == null) {
+			return Collections.emptyList();
+		}
+		List<String> ret = new ArrayList<>(list.size());
+		for (String value : list) {
+			ret.add(value == null ? "" : value);
+		}
+		return ret;
+	}
+
+	public boolean contains(String name) {
+		return values.containsKey(canonical(name));
+	}
+
+	public boolean getBoolean(String name, boolean def) throws IOException {
+		List<String> list = values.get(canonical(name));
+		if (list == null) {
+			return def;
+		}
+		String value = list.get(list.size() - 1);
+		if (value == null) {
+			return true;
+		}
+		switch (value.toLowerCase()) {
+		case "true":
+		case "yes":
+		case "on":
+			return true;
+		case "false":
+		case "no":
+		case "off":
+		case "":
+			return false;
+		default:
+			try {
+				return Long.parseLong(value) != 0;
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad boolean config value '" + value + "' for " + name);
+			}
+		}
+	}
+
+	public int getInt(String name, int def) throws IOException {
+		long value = getLong(name, def);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new IOException("Config value out of range for " + name);
+		}
+		return (int) value;
+	}
+
+	// Integers may carry a k, m or g suffix, as in core.deltaBaseCacheLimit = 96m
+	public long getLong(String name, long def) throws IOException {
+		String value = get(name);
+		if (value == null) {
+			return def;
+		}
+		String s = value.trim();
+		long unit = 1;
+		if (!s.isEmpty()) {
+			switch (Character.toLowerCase(s.charAt(s.length() - 1))) {
+			case 'k':
+				unit = 1L << 10;
+				break;
+			case 'm':
+				unit = 1L << 20;
+				break;
+			case 'g':
+				unit = 1L << 30;
+				break;
+			}
+			if (unit != 1) {
+				s = s.substring(0, s.length() - 1);
+			}
+		}
+		try {
+			return Math.multiplyExact(Long.parseLong(s), unit);
+		} catch (NumberFormatException | ArithmeticException e) {
+			throw new IOException("Bad numeric config value '" + value + "' for " + name);
+		}
+	}
+
+	// Subsection names used with section, e.g. the remotes for "remote"
+	public Set<String> getSubsections(String section) {
+		String prefix = section.toLowerCase() + ".";
+		Set<String> ret = new LinkedHashSet<>();
+		for (String name : values.keySet()) {
+			int last = name.lastIndexOf('.');
+			if (name.startsWith(prefix) && last > prefix.length()) {
+				ret.add(name.substring(prefix.length(), last));
+			}
+		}
+		return ret;
+	}
+
+	// Canonical names of every key set
+	public Set<String> names() {
+		return Collections.unmodifiableSet(values.keySet());
+	}
+
+	// Serializes the config in git's file format, one section per
+	// section/subsection pair
+	public String toText() {
+		Map<String, List<String>> sections = new LinkedHashMap<>();
+		for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+			String name = entry.getKey();
+			int first = name.indexOf('.');
+			int last = name.lastIndexOf('.');
+			String header = first == last ? "[" + name.substring(0, first) + "]"
+					: "[" + name.substring(0, first) + " \"" + escapeSubsection(name.substring(first + 1, last)) + "\"]";
+			List<String> lines = sections.computeIfAbsent(header, k -> new ArrayList<>());
+			String key = name.substring(last + 1);
+			for (String value : entry.getValue()) {
+				lines.add(value == null ? "\t" + key : "\t" + key + " = " + quote(value));
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, List<String>> section : sections.entrySet()) {
+			sb.append(section.getKey()).append('\n');
+			for (String line : section.getValue()) {
+				sb.append(line).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	public void write(Path file) throws IOException {
+		Files.writeString(file, toText(), StandardCharsets.UTF_8);
+	}
+
+	private static String escapeSubsection(String subsection) {
+		return subsection.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static String quote(String value) {
+		boolean quote = !value.isEmpty() && (Character.isWhitespace(value.charAt(0))
+				|| Character.isWhitespace(value.charAt(value.length() - 1)) || value.indexOf('#') >= 0
+				|| value.indexOf(';') >= 0);
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		if (quote) {
+			sb.append('"');
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		if (quote) {
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	private static String name(String section, String subsection, String key) {
+		return subsection == null ? section + "." + key : section + "." + subsection + "." + key;
+	}
+
+	// Lower cases the section and key but not the subsection
+	private static String canonical(String name) {
+		int first = name.indexOf('.');
+		int last = name.lastIndexOf('.');
+		if (first < 0) {
+			return name.toLowerCase();
+		}
+		return name.substring(0, first).toLowerCase() + name.substring(first, last + 1)
+				+ name.substring(last + 1).toLowerCase();
+	}
+
+	// Collects values, in order, into a new config
+	public static final class Builder {
+		private final Map<String, List<String>> values = new LinkedHashMap<>();
+
+		public Builder add(String section, String subsection, String key, String value) {
+			return add(name(section, subsection, key), value);
+		}
+
+		public Builder add(String name, String value) {
+			values.computeIfAbsent(canonical(name), k -> new ArrayList<>(1)).add(value);
+			return this;
+		}
+
+		// Replaces every value of name
+		public Builder set(String name, String value) {
+			values.remove(canonical(name));
+			return add(name, value);
+		}
+
+		public Builder addAll(GitConfig config) {
+			for (Map.Entry<String, List<String>> entry : config.values.entrySet()) {
+				values.computeIfAbsent(entry.getKey(), k -> new ArrayList<>(1)).addAll(entry.getValue());
+			}
+			return this;
+		}
+
+		public GitConfig build() {
+			Map<String, List<String>> copy = new LinkedHashMap<>();
+			for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+				copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+			}
+			return new GitConfig(Collections.unmodifiableMap(copy));
+		}
+	}
+
+	// Parser for one file. Follows git's rules: "#" and ";" start comments
+	// outside quotes, a backslash at the end of a line continues the value,
+	// and whitespace around a value is dropped unless quoted.
+	private static final class Parser {
+		private final String text;
+		private final Path file;
+		private final Builder builder;
+		private final List<Tuple<Path, FileTime>> files;
+		private final int depth;
+		private int pos = 0;
+		private int line = 1;
+		private String section;
+		private String subsection;
+
+		Parser(String text, Path file, Builder builder, List<Tuple<Path, FileTime>> files, int depth) {
+			this.text = text;
+			this.file = file;
+			this.builder = builder;
+			this.files = files;
+			this.depth = depth;
+		}
+
+		void parse() throws IOException {
+			// Byte order mark
+			if (text.startsWith("\uFEFF")) {
+				pos = 1;
+			}
+			while (pos < text.length()) {
+				char c = text.charAt(pos);
+				if (c == '\n') {
+					line++;
+					pos++;
+				} else if (Character.isWhitespace(c)) {
+					pos++;
+				} else if (c == '#' || c == ';') {
+					skipLine();
+				} else if (c == '[') {
+					parseHeader();
+				} else if (Character.isLetter(c)) {
+					parseEntry();
+				} else {
+					throw error();
+				}
+			}
+		}
+
+		private void parseHeader() throws IOException {
+			pos++;
+			int start = pos;
+			while (pos < text.length() && isNameChar(text.charAt(pos), true)) {
+				pos++;
+			}
+			if (pos == start || pos >= text.length()) {
+				throw error();
+			}
+			String name = text.substring(start, pos);
+			subsection = null;
+
+			if (text.charAt(pos) == ']') {
+				// Deprecated [section.subsection] form: the subsection is lower cased
+				int dot = name.indexOf('.');
+				if (dot >= 0) {
+					subsection = name.substring(dot + 1).toLowerCase();
+					name = name.substring(0, dot);
+				}
+			} else {
+				if (text.charAt(pos) != ' ' && text.charAt(pos) != '\t') {
+					throw error();
+				}
+				while (pos < text.length() && (text.charAt(pos) == ' ' || text.charAt(pos) == '\t')) {
+					pos++;
+				}
+				if (pos >= text.length() || text.charAt(pos) != '"') {
+					throw error();
+				}
+				pos++;
+				StringBuilder sb = new StringBuilder();
+				while (true) {
+					if (pos >= text.length() || text.charAt(pos) == '\n') {
+						throw error();
+					}
+					char c = text.charAt(pos++);
+					if (c == '"') {
+						break;
+					}
+					if (c == '\\') {
+						if (pos >= text.length() || text.charAt(pos) == '\n') {
+							throw error();
+						}
+						c = text.charAt(pos++);
+					}
+					sb.append(c);
+				}
+				subsection = sb.toString();
+				if (pos >= text.length() || text.charAt(pos) != ']') {
+					throw error();
+				}
+			}
+			pos++;
+			section = name.toLowerCase();
+		}
+
+		private void parseEntry() throws IOException {
+			if (section == null) {
+				throw error();
+			}
+			int start = pos;
+			while (pos < text.length() && isNameChar(text.charAt(pos), false)) {
+				pos++;
+			}
+			String key = text.substring(start, pos).toLowerCase();
+			while (pos < text.length() && (text.charAt(pos) == ' ' || text.charAt(pos) == '\t')) {
+				pos++;
+			}
+
+			String value;
+			if (pos >= text.length() || text.charAt(pos) == '\n' || text.charAt(pos) == '#'
+					|| text.charAt(pos) == ';') {
+				value = null;
+			} else if (text.charAt(pos) == '=') {
+				pos++;
+				value = parseValue();
+			} else {
+				throw error();
+			}
+
+			builder.add(section, subsection, key, value);
+			if (section.equals("include") && subsection == null && key.equals("path") && value != null) {
+				include(value);
+			}
+		}
+
+		private String parseValue() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			boolean quoted = false;
+			// Length of sb up to the last character that must be kept, so
+			// trailing unquoted whitespace can be cut
+			int keep = 0;
+			while (pos < text.length()) {
+				char c = text.charAt(pos++);
+				if (c == '\n') {
+					if (quoted) {
+						throw error();
+					}
+					line++;
+					break;
+				}
+				if (!quoted && (c == '#' || c == ';')) {
+					skipLine();
+					break;
+				}
+				if (c == '"') {
+					quoted = !quoted;
+					keep = sb.length();
+					continue;
+				}
+				if (c == '\\') {
+					if (pos >= text.length()) {
+						throw error();
+					}
+					char e = text.charAt(pos++);
+					switch (e) {
+					case '\n':
+						line++;
+						continue;
+					case 'n':
+						sb.append('\n');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'b':
+						if (sb.length() > 0) {
+							sb.setLength(sb.length() - 1);
+						}
+						break;
+					case '\\':
+					case '"':
+						sb.append(e);
+						break;
+					default:
+						throw error();
+					}
+					keep = sb.length();
+					continue;
+				}
+				if (!quoted && Character.isWhitespace(c)) {
+					// Leading whitespace is dropped, inner runs are kept as they are
+					if (sb.length() > 0) {
+						sb.append(c);
+					}
+					continue;
+				}
+				sb.append(c);
+				keep = sb.length();
+			}
+			if (quoted) {
+				throw error();
+			}
+			sb.setLength(keep);
+			return sb.toString();
+		}
+
+		// Relative include paths are relative to the including file
+		private void include(String value) throws IOException {
+			Path path;
+			if (value.startsWith("~/")) {
+				path = Paths.get(System.getProperty("user.home"), value.substring(2));
+			} else {
+				path = Paths.get(value);
+				if (!path.isAbsolute()) {
+					path = file.getParent().resolve(path);
+				}
+			}
+			parseFile(path.normalize(), builder, files, depth + 1);
+		}
+
+		private void skipLine() {
+			while (pos < text.length() && text.charAt(pos) != '\n') {
+				pos++;
+			}
+		}
+
+		private static boolean isNameChar(char c, boolean section) {
+			return Character.isLetterOrDigit(c) || c == '-' || (section && c == '.');
+		}
+
+		private IOException error() {
+			return new IOException("Bad config line " + line + " in " + file);
+		}
+	}
+}
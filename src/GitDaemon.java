@@ -0,0 +1,245 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Long running server keeping one repository (index, refs, JIT) warm.
+//
+// Protocol: a client connects to the unix socket and sends one line with
+// the command and its arguments separated by tabs. Whatever it sends after
+// the request line is the command's stdin. The answer comes back in
+// packets, as in git's sideband: four hex digits giving the packet's
+// length including themselves, a band byte, then the data. Band 1 is the
+// command's stdout and band 2 its stderr. The last packet, band 3, holds
+// the exit status in decimal, then the connection is closed.
+//
+// Each client is served on a thread of its own with its own streams (see
+// GitIo), so a long cat-file --batch session doesn't hold up the others.
+public class GitDaemon {
+	// Read-only commands, anything that writes goes through the normal CLI
+	private static final List<String> COMMANDS = Arrays.asList("cat-file", "log", "ls-files", "rev-parse",
+			"status");
+
+	private static final int BAND_STDOUT = 1;
+	private static final int BAND_STDERR = 2;
+	private static final int BAND_STATUS = 3;
+	// git's largest sideband packet, 65520 bytes, less the header
+	private static final int MAX_PACKET_DATA = 65520 - 5;
+
+	private final GitRepository repo;
+	private final Path socket;
+
+	public GitDaemon(GitRepository repo, Path socket) {
+		this.repo = repo;
+		this.socket = socket;
+	}
+
+	public void serve() throws IOException {
+		repo.enableCaching();
+		main.daemonRepo = repo;
+
+		GitFsMonitor monitor = null;
+		if (GitFsMonitor.isEnabled(repo)) {
+			monitor = new GitFsMonitor(repo);
+			monitor.start();
+		}
+
+		WatchService watchService = FileSystems.getDefault().newWatchService();
+		registerTree(watchService, repo.getGitdir());
+		Thread watcher = new Thread(() -> watch(watchService), "jwyag-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService clients = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "jwyag-daemon-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		Files.deleteIfExists(socket);
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socket));
+			System.out.println("Listening on " + socket);
+
+			while (true) {
+				SocketChannel client = server.accept();
+				clients.execute(() -> {
+					try (client) {
+						handle(client);
+					} catch (IOException e) {
+						// The client went away; nothing to answer
+						System.err.println("jwyag daemon: " + e);
+					}
+				});
+			}
+		} finally {
+			clients.shutdownNow();
+			watchService.close();
+			if (monitor != null) {
+				monitor.close();
+			}
+			Files.deleteIfExists(socket);
+		}
+	}
+
+	private void handle(SocketChannel client) throws IOException {
+		InputStream in = Channels.newInputStream(client);
+		OutputStream socketOut = new BufferedOutputStream(Channels.newOutputStream(client), 1 << 16);
+
+		String[] request = readRequest(in);
+		if (request == null) {
+			return;
+		}
+
+		PrintStream out = new PrintStream(new BufferedOutputStream(new Band(socketOut, BAND_STDOUT), MAX_PACKET_DATA),
+				false, StandardCharsets.UTF_8);
+		PrintStream err = new PrintStream(new Band(socketOut, BAND_STDERR), true, StandardCharsets.UTF_8);
+		int status;
+		try {
+			if (!COMMANDS.contains(request[0])) {
+				err.println("Command not served by the daemon: " + request[0]);
+				status = 1;
+			} else {
+				status = main.run(request[0], Arrays.copyOfRange(request, 1, request.length), new GitIo(in, out, err));
+			}
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			status = 128;
+		}
+		out.flush();
+		err.flush();
+		byte[] trailer = String.valueOf(status).getBytes(StandardCharsets.US_ASCII);
+		synchronized (socketOut) {
+			writePacket(socketOut, BAND_STATUS, trailer, 0, trailer.length);
+			socketOut.flush();
+		}
+		if (out.checkError() || err.checkError()) {
+			throw new IOException("Could not write the answer to " + String.join(" ", request));
+		}
+	}
+
+	private static void writePacket(OutputStream sink, int band, byte[] data, int off, int len) throws IOException {
+		sink.write(String.format("%04x", len + 5).getBytes(StandardCharsets.US_ASCII));
+		sink.write(band);
+		sink.write(data, off, len);
+	}
+
+	// One band of a connection's answer, cut into packets. Both bands write
+	// to the same socket stream, one whole packet at a time.
+	private static final class Band extends OutputStream {
+		private final OutputStream sink;
+		private final int band;
+
+		Band(OutputStream sink, int band) {
+			this.sink = sink;
+			this.band = band;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (sink) {
+				while (len > 0) {
+					int n = Math.min(len, MAX_PACKET_DATA);
+					writePacket(sink, band, b, off, n);
+					off += n;
+					len -= n;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (sink) {
+				sink.flush();
+			}
+		}
+	}
+
+	// Reads the request line byte by byte so nothing after it is consumed
+	private static String[] readRequest(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			line.write(b);
+		}
+		String request = line.toString(StandardCharsets.UTF_8).trim();
+		if (request.isEmpty()) {
+			return null;
+		}
+		return request.split("\t");
+	}
+
+	// WatchService isn't recursive, so every directory is registered on its own.
+	// objects/ is skipped: nothing cached here depends on it.
+	private void registerTree(WatchService watchService, Path dir) throws IOException {
+		try (Stream<Path> dirs = Files.walk(dir)) {
+			for (Path d : (Iterable<Path>) dirs::iterator) {
+				if (Files.isDirectory(d) && !d.startsWith(repo.getGitdir().resolve("objects"))) {
+					d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				}
+			}
+		}
+	}
+
+	private void watch(WatchService watchService) {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path dir = (Path) key.watchable();
+				boolean relevant = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						relevant = true;
+						continue;
+					}
+					Path changed = dir.resolve((Path) event.context());
+					if (GitFsMonitor.isMonitorFile(changed.getFileName().toString())) {
+						continue;
+					}
+					relevant = true;
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+						registerTree(watchService, changed);
+					}
+				}
+				// Any change to refs, HEAD or the index drops the warm state
+				if (relevant) {
+					repo.invalidateCaches();
+				}
+				key.reset();
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			// Shutting down
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
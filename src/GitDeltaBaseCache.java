@@ -0,0 +1,139 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Recently resolved delta bases by pack and offset, so walking a delta chain
+// stops at the first base some earlier read already resolved. Adjacent
+// commits' trees delta against each other, so a history walk keeps hitting
+// the bases of the previous chain.
+//
+// Least recently used entries go first once the total content size passes
+// core.deltaBaseCacheLimit. Entries are shared: callers must not modify the
+// returned arrays. Hits and misses are counted as the "delta-base" cache in
+// GitMetrics.
+//
+// The cache is split into STRIPES LRUs, each with its own lock, so
+// concurrent readers rarely wait on one another. The limit is one budget
+// over all of them: any object up to the whole limit is admitted, and once
+// the total passes it the stripes give up their least recently used entry
+// in turn, which only approximates one global LRU order.
+public class GitDeltaBaseCache {
+	// git's default core.deltaBaseCacheLimit
+	public static final long DEFAULT_LIMIT = 96L << 20;
+
+	private static final int STRIPES = 16;
+
+	private record Key(GitPack pack, long offset) {
+	}
+
+	private static final class Stripe {
+		private long size;
+		private final LinkedHashMap<Key, Tuple<String, byte[]>> entries = new LinkedHashMap<>(64, 0.75f, true);
+	}
+
+	private final long limit;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	// Sum of the stripes' sizes, changed under the lock of the stripe that
+	// changed
+	private final AtomicLong size = new AtomicLong();
+	// Next stripe to evict from
+	private final AtomicInteger victim = new AtomicInteger();
+
+	public GitDeltaBaseCache(long limit) {
+		this.limit = limit;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	// From the top bits of a multiplicative hash: the stripe's own map
+	// buckets by the low bits, which would otherwise all be the same
+	private Stripe stripe(Key key) {
+		return stripes[(key.hashCode() * 0x9e3779b9) >>> (32 - Integer.numberOfTrailingZeros(STRIPES))];
+	}
+
+	public Tuple<String, byte[]> get(GitPack pack, long offset) {
+		Key key = new Key(pack, offset);
+		Stripe stripe = stripe(key);
+		Tuple<String, byte[]> entry;
+		synchronized (stripe) {
+			entry = stripe.entries.get(key);
+		}
+		if (entry != null) {
+			GitMetrics.cacheHit("delta-base");
+		} else {
+			GitMetrics.cacheMiss("delta-base");
+		}
+		return entry;
+	}
+
+	public void put(GitPack pack, long offset, Tuple<String, byte[]> object) {
+		Key key = new Key(pack, offset);
+		Stripe stripe = stripe(key);
+		long length = object.getSecond().length;
+		// An object over the whole budget would only flush everything else
+		if (length > limit) {
+			return;
+		}
+		synchronized (stripe) {
+			Tuple<String, byte[]> old = stripe.entries.put(key, object);
+			long delta = length - (old == null ? 0 : old.getSecond().length);
+			stripe.size += delta;
+			size.addAndGet(delta);
+		}
+		evict();
+	}
+
+	// Drops entries, one stripe at a time, until the total is within the
+	// limit. Only one stripe lock is held at once. Stops after a full round
+	// of empty stripes: what is left over belongs to puts still running,
+	// which evict after themselves.
+	private void evict() {
+		int empty = 0;
+		while (size.get() > limit && empty < STRIPES) {
+			Stripe stripe = stripes[victim.getAndIncrement() & (STRIPES - 1)];
+			synchronized (stripe) {
+				Iterator<Map.Entry<Key, Tuple<String, byte[]>>> it = stripe.entries.entrySet().iterator();
+				if (!it.hasNext()) {
+					empty++;
+					continue;
+				}
+				empty = 0;
+				long length = it.next().getValue().getSecond().length;
+				it.remove();
+				stripe.size -= length;
+				size.addAndGet(-length);
+			}
+		}
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.entries.clear();
+				size.addAndGet(-stripe.size);
+				stripe.size = 0;
+			}
+		}
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	public long getSize() {
+		return size.get();
+	}
+
+	public int getCount() {
+		int count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.entries.size();
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,517 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Writes history as a git fast-import stream: commits parents first, each
+// preceded by the blobs it introduces and followed by only the paths that
+// changed against its first parent. A blob is sent once and referenced by
+// mark afterwards.
+//
+// Memory stays proportional to the number of commits and blobs, not their
+// content: object ids, marks and parent links live in primitive arrays, and
+// commits and trees are read again when needed instead of being kept.
+public class GitFastExport {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// Commit states
+	private static final byte SEEN = 1;
+	private static final byte LOADED = 2;
+	private static final byte DONE = 3;
+
+	private final GitRepository repo;
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// Commits found by the walk, numbered in the order they were seen
+	private final IdTable commitIds = new IdTable();
+	private byte[] commitShas = new byte[1024 * 20];
+	private byte[] states = new byte[1024];
+	private int[] parentStart = new int[1024];
+	private int[] parentCount = new int[1024];
+	private int[] parents = new int[1024];
+	private int parentsSize;
+	private int commitCount;
+
+	// Exported (or imported) marks, for blobs and commits
+	private final IdTable marks = new IdTable();
+	private byte[] markShas = new byte[1024 * 20];
+	private int lastMark;
+
+	private record Change(String path, int mode, String sha) {
+	}
+
+	public GitFastExport(GitRepository repo, WritableByteChannel channel) {
+		this.repo = repo;
+		this.channel = channel;
+	}
+
+	// Objects in a previous export's marks file are not sent again
+	public void importMarks(Path file) throws IOException {
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			int space = line.indexOf(' ');
+			int mark = Integer.parseInt(line.substring(1, space));
+			setMark(GitObjectHelper.shaToBytes(line.substring(space + 1).trim()), mark);
+			lastMark = Math.max(lastMark, mark);
+		}
+	}
+
+	public void exportMarks(Path file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int mark = 1; mark <= lastMark; mark++) {
+			if (!isZero(markShas, mark * 20)) {
+				sb.append(':').append(mark).append(' ').append(GitObjectHelper.shaToHex(markShas, mark * 20))
+						.append('\n');
+			}
+		}
+		Files.writeString(file, sb, StandardCharsets.UTF_8);
+	}
+
+	// Exports the history of each ref ("refs/heads/main"), then points each
+	// ref at its tip
+	public void export(List<String> refs) throws IOException {
+		List<String> resets = new ArrayList<>();
+		for (String ref : refs) {
+			String sha = GitObjectHelper.refResolve(repo, ref);
+			if (sha == null) {
+				throw new IOException("Not a valid ref: " + ref);
+			}
+			GitObject obj = GitObjectHelper.objectRead(repo, sha);
+			if (obj instanceof GitTag) {
+				exportTag(ref, (GitTag) obj);
+			} else if (obj instanceof GitCommit) {
+				// A tip already sent under another ref only needs the ref set
+				if (marks.get(GitObjectHelper.shaToBytes(sha)) > 0) {
+					resets.add(ref);
+				} else {
+					walk(ref, sha);
+				}
+			} else {
+				System.err.println("warning: Skipping " + ref + ", not a commit or tag");
+			}
+		}
+		for (String ref : resets) {
+			write("reset " + ref + "\nfrom " + commitRef(GitObjectHelper.refResolve(repo, ref)) + "\n\n");
+		}
+		write("done\n");
+		flush();
+	}
+
+	// Depth first, parents before children; the stack holds commit numbers
+	// only, so a long linear history costs four bytes a commit
+	private void walk(String ref, String tip) throws IOException {
+		int[] stack = new int[64];
+		int depth = 0;
+		int[] next = new int[64];
+		stack[depth] = commitId(GitObjectHelper.shaToBytes(tip));
+		next[depth++] = 0;
+		while (depth > 0) {
+			int id = stack[depth - 1];
+			if (states[id] == SEEN) {
+				loadParents(id);
+			}
+			int parent = -1;
+			while (next[depth - 1] < parentCount[id]) {
+				int candidate = parents[parentStart[id] + next[depth - 1]++];
+				if (states[candidate] != DONE) {
+					parent = candidate;
+					break;
+				}
+			}
+			if (parent >= 0) {
+				if (depth == stack.length) {
+					stack = Arrays.copyOf(stack, depth * 2);
+					next = Arrays.copyOf(next, depth * 2);
+				}
+				stack[depth] = parent;
+				next[depth++] = 0;
+			} else {
+				depth--;
+				exportCommit(ref, id);
+				states[id] = DONE;
+			}
+		}
+	}
+
+	private int commitId(byte[] sha) {
+		int id = commitIds.get(sha);
+		if (id >= 0) {
+			return id;
+		}
+		id = commitCount++;
+		if (id == states.length) {
+			int capacity = id * 2;
+			commitShas = Arrays.copyOf(commitShas, capacity * 20);
+			states = Arrays.copyOf(states, capacity);
+			parentStart = Arrays.copyOf(parentStart, capacity);
+			parentCount = Arrays.copyOf(parentCount, capacity);
+		}
+		System.arraycopy(sha, 0, commitShas, id * 20, 20);
+		// Commits exported before count as done
+		states[id] = marks.get(sha) > 0 ? DONE : SEEN;
+		commitIds.put(sha, id);
+		return id;
+	}
+
+	private void loadParents(int id) throws IOException {
+		GitCommit commit = readCommit(GitObjectHelper.shaToHex(commitShas, id * 20));
+		List<String> list = commit.getParents();
+		// Parents are numbered first: that may grow the arrays
+		int[] ids = new int[list.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = commitId(GitObjectHelper.shaToBytes(list.get(i)));
+		}
+		if (parentsSize + ids.length > parents.length) {
+			parents = Arrays.copyOf(parents, Math.max(parents.length * 2, parentsSize + ids.length));
+		}
+		parentStart[id] = parentsSize;
+		parentCount[id] = ids.length;
+		System.arraycopy(ids, 0, parents, parentsSize, ids.length);
+		parentsSize += ids.length;
+		states[id] = LOADED;
+	}
+
+	private void exportCommit(String ref, int id) throws IOException {
+		String sha = GitObjectHelper.shaToHex(commitShas, id * 20);
+		GitCommit commit = readCommit(sha);
+		List<String> parentShas = commit.getParents();
+
+		String base = parentShas.isEmpty() ? null : readCommit(parentShas.get(0)).getTree();
+		List<Change> changes = new ArrayList<>();
+		diffTrees(base, commit.getTree(), "", changes);
+
+		// New blobs go first so the commit can refer to them by mark
+		for (Change change : changes) {
+			if (change.mode != 0 && change.mode != 0160000) {
+				exportBlob(change.sha);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		// Without a parent fast-import would continue the branch
+		if (parentShas.isEmpty()) {
+			sb.append("reset ").append(ref).append('\n');
+		}
+		sb.append("commit ").append(ref).append('\n');
+		sb.append("mark :").append(setMark(GitObjectHelper.shaToBytes(sha), ++lastMark)).append('\n');
+		if (commit.getAuthor() != null) {
+			sb.append("author ").append(commit.getAuthor()).append('\n');
+		}
+		sb.append("committer ").append(commit.getCommitter()).append('\n');
+		String encoding = commit.getHeader("encoding");
+		if (encoding != null) {
+			sb.append("encoding ").append(encoding).append('\n');
+		}
+		byte[] message = commit.getMessageBytes();
+		if (message == null) {
+			message = new byte[0];
+		}
+		sb.append("data ").append(message.length).append('\n');
+		write(sb.toString());
+		write(message);
+
+		sb.setLength(0);
+		sb.append('\n');
+		for (int i = 0; i < parentShas.size(); i++) {
+			sb.append(i == 0 ? "from " : "merge ").append(commitRef(parentShas.get(i))).append('\n');
+		}
+		for (Change change : changes) {
+			if (change.mode == 0) {
+				sb.append("D ").append(quote(change.path)).append('\n');
+			}
+		}
+		for (Change change : changes) {
+			if (change.mode == 0160000) {
+				sb.append("M 160000 ").append(change.sha).append(' ').append(quote(change.path)).append('\n');
+			} else if (change.mode != 0) {
+				sb.append("M ").append(Integer.toOctalString(change.mode)).append(" :")
+						.append(marks.get(GitObjectHelper.shaToBytes(change.sha))).append(' ')
+						.append(quote(change.path)).append('\n');
+			}
+		}
+		sb.append('\n');
+		write(sb.toString());
+	}
+
+	private void exportBlob(String sha) throws IOException {
+		byte[] id = GitObjectHelper.shaToBytes(sha);
+		if (marks.get(id) > 0) {
+			return;
+		}
+		Tuple<GitObjectInfo, InputStream> opened = GitObjectHelper.objectOpen(repo, sha);
+		if (opened == null) {
+			throw new IOException("Blob " + sha + " not found");
+		}
+		write("blob\nmark :" + setMark(id, ++lastMark) + "\ndata " + opened.getFirst().size() + "\n");
+		// Streamed into the output buffer, so large blobs never sit in
+		// memory whole
+		try (InputStream in = opened.getSecond()) {
+			int n;
+			do {
+				if (!buffer.hasRemaining()) {
+					flush();
+				}
+				n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				if (n > 0) {
+					buffer.position(buffer.position() + n);
+				}
+			} while (n >= 0);
+		}
+		write("\n");
+	}
+
+	// Annotated tags of exported commits; others can't be expressed
+	private void exportTag(String ref, GitTag tag) throws IOException {
+		String target = tag.getObject();
+		if (!"commit".equals(tag.getHeader("type"))) {
+			System.err.println("warning: Skipping " + ref + ", it does not tag a commit");
+			return;
+		}
+		if (marks.get(GitObjectHelper.shaToBytes(target)) <= 0) {
+			walk(ref, target);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("tag ").append(tag.getHeader("tag")).append('\n');
+		sb.append("from ").append(commitRef(target)).append('\n');
+		if (tag.getHeader("tagger") != null) {
+			sb.append("tagger ").append(tag.getHeader("tagger")).append('\n');
+		}
+		byte[] message = tag.getMessageBytes();
+		if (message == null) {
+			message = new byte[0];
+		}
+		sb.append("data ").append(message.length).append('\n');
+		write(sb.toString());
+		write(message);
+		write("\n");
+	}
+
+	// Adds and modifications (mode, id) and deletions (mode 0) from tree a to
+	// tree b, either of which may be null; equal subtrees are skipped whole
+	private void diffTrees(String a, String b, String prefix, List<Change> changes) throws IOException {
+		if (a != null && a.equals(b)) {
+			return;
+		}
+		List<GitTreeLeaf> left = a == null ? List.of() : readTree(a);
+		List<GitTreeLeaf> right = b == null ? List.of() : readTree(b);
+		int i = 0;
+		int j = 0;
+		while (i < left.size() || j < right.size()) {
+			int cmp = i == left.size() ? 1 : j == right.size() ? -1 : compare(left.get(i), right.get(j));
+			if (cmp < 0) {
+				GitTreeLeaf gone = left.get(i++);
+				changes.add(new Change(prefix + gone.getPath(), 0, null));
+			} else if (cmp > 0) {
+				added(right.get(j++), prefix, changes);
+			} else {
+				GitTreeLeaf old = left.get(i++);
+				GitTreeLeaf now = right.get(j++);
+				if (now.isTree()) {
+					diffTrees(old.getSha(), now.getSha(), prefix + now.getPath() + "/", changes);
+				} else if (!old.getSha().equals(now.getSha()) || mode(old) != mode(now)) {
+					changes.add(new Change(prefix + now.getPath(), mode(now), now.getSha()));
+				}
+			}
+		}
+	}
+
+	private void added(GitTreeLeaf leaf, String prefix, List<Change> changes) throws IOException {
+		if (leaf.isTree()) {
+			diffTrees(null, leaf.getSha(), prefix + leaf.getPath() + "/", changes);
+		} else {
+			changes.add(new Change(prefix + leaf.getPath(), mode(leaf), leaf.getSha()));
+		}
+	}
+
+	// Tree order: directories sort as if their name ended with '/'
+	private static int compare(GitTreeLeaf a, GitTreeLeaf b) {
+		return Arrays.compareUnsigned(sortKey(a), sortKey(b));
+	}
+
+	private static byte[] sortKey(GitTreeLeaf leaf) {
+		String name = leaf.getPath().toString();
+		return (leaf.isTree() ? name + "/" : name).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int mode(GitTreeLeaf leaf) {
+		return Integer.parseInt(new String(leaf.getMode(), StandardCharsets.US_ASCII).trim(), 8);
+	}
+
+	private String commitRef(String sha) {
+		int mark = marks.get(GitObjectHelper.shaToBytes(sha));
+		return mark > 0 ? ":" + mark : sha;
+	}
+
+	private int setMark(byte[] sha, int mark) {
+		if ((mark + 1) * 20 > markShas.length) {
+			markShas = Arrays.copyOf(markShas, Math.max(markShas.length * 2, (mark + 1) * 20));
+		}
+		System.arraycopy(sha, 0, markShas, mark * 20, 20);
+		marks.put(sha, mark);
+		return mark;
+	}
+
+	private GitCommit readCommit(String sha) throws IOException {
+		GitObject obj = GitObjectHelper.objectRead(repo, sha);
+		if (!(obj instanceof GitCommit)) {
+			throw new IOException("Not a commit: " + sha);
+		}
+		return (GitCommit) obj;
+	}
+
+	private List<GitTreeLeaf> readTree(String sha) throws IOException {
+		GitObject obj = GitObjectHelper.objectRead(repo, sha);
+		if (!(obj instanceof GitTree)) {
+			throw new IOException("Not a tree: " + sha);
+		}
+		return ((GitTree) obj).getItems();
+	}
+
+	// fast-import needs quotes for paths starting with one or holding a
+	// newline; C escapes as in git
+	static String quote(String path) {
+		boolean plain = !path.startsWith("\"");
+		for (int i = 0; plain && i < path.length(); i++) {
+			char c = path.charAt(i);
+			plain = c >= ' ' && c != 0x7f;
+		}
+		if (plain) {
+			return path;
+		}
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < ' ' || c == 0x7f) {
+					sb.append(String.format("\\%03o", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static boolean isZero(byte[] data, int offset) {
+		for (int i = offset; i < offset + 20; i++) {
+			if (data[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void write(String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		write(bytes, bytes.length);
+	}
+
+	private void write(byte[] data) throws IOException {
+		write(data, data.length);
+	}
+
+	private void write(byte[] data, int length) throws IOException {
+		if (length > buffer.remaining()) {
+			flush();
+		}
+		if (length > buffer.capacity()) {
+			ByteBuffer direct = ByteBuffer.wrap(data, 0, length);
+			while (direct.hasRemaining()) {
+				channel.write(direct);
+			}
+			return;
+		}
+		buffer.put(data, 0, length);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	// Open addressing from a raw object id to a non-negative int; the ids
+	// themselves are the keys, 20 bytes each in one array
+	private static final class IdTable {
+		private byte[] keys = new byte[1024 * 20];
+		private int[] values = new int[1024];
+		private boolean[] used = new boolean[1024];
+		private int size;
+
+		// The value, or -1 when absent
+		int get(byte[] sha) {
+			int mask = values.length - 1;
+			for (int slot = hash(sha) & mask; used[slot]; slot = (slot + 1) & mask) {
+				if (Arrays.equals(keys, slot * 20, slot * 20 + 20, sha, 0, 20)) {
+					return values[slot];
+				}
+			}
+			return -1;
+		}
+
+		void put(byte[] sha, int value) {
+			if ((size + 1) * 2 > values.length) {
+				grow();
+			}
+			int mask = values.length - 1;
+			int slot = hash(sha) & mask;
+			while (used[slot]) {
+				if (Arrays.equals(keys, slot * 20, slot * 20 + 20, sha, 0, 20)) {
+					values[slot] = value;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			used[slot] = true;
+			System.arraycopy(sha, 0, keys, slot * 20, 20);
+			values[slot] = value;
+			size++;
+		}
+
+		private void grow() {
+			byte[] oldKeys = keys;
+			int[] oldValues = values;
+			boolean[] oldUsed = used;
+			keys = new byte[oldKeys.length * 2];
+			values = new int[oldValues.length * 2];
+			used = new boolean[oldUsed.length * 2];
+			size = 0;
+			byte[] sha = new byte[20];
+			for (int i = 0; i < oldUsed.length; i++) {
+				if (oldUsed[i]) {
+					System.arraycopy(oldKeys, i * 20, sha, 0, 20);
+					put(sha, oldValues[i]);
+				}
+			}
+		}
+
+		// Ids are uniformly distributed already
+		private static int hash(byte[] sha) {
+			return (sha[0] & 0xff) << 24 | (sha[1] & 0xff) << 16 | (sha[2] & 0xff) << 8 | (sha[3] & 0xff);
+		}
+	}
+}
@@ -0,0 +1,803 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Reads a git fast-import stream (blob, commit, tag, reset, progress,
+// checkpoint, feature, option and done commands) and writes every object
+// straight into a pack through a GitBulkCheckin session.
+//
+// Each branch keeps its tree in memory; subtrees are only read from the
+// repository when a path below them changes, and only changed directories
+// are hashed again on commit. Marks are held in primitive arrays indexed by
+// mark number. Refs are updated once the pack is complete.
+public class GitFastImport {
+	private static final int MODE_TREE = 040000;
+
+	private final GitRepository repo;
+	private final boolean force;
+	private final PrintStream progress;
+	private Input in;
+	private GitBulkCheckin bulk;
+
+	// Mark n is at markIds[n * 20], its type (a GitPack.OBJ_* code) at markTypes[n]
+	private byte[] markIds = new byte[1024 * 20];
+	private byte[] markTypes = new byte[1024];
+	private final BitSet marks = new BitSet();
+
+	// In-memory branches (and tags being reset) by full ref name
+	private final Map<String, Branch> branches = new LinkedHashMap<>();
+	private final Map<String, String> tags = new LinkedHashMap<>();
+
+	private final long[] counts = new long[5];
+
+	private static final class Branch {
+		final String ref;
+		String tip;
+		Tree root = Tree.empty();
+
+		Branch(String ref) {
+			this.ref = ref;
+		}
+	}
+
+	// A directory: sha is null while it has unwritten changes, entries is
+	// null until it is read from the repository
+	private static final class Tree {
+		String sha;
+		TreeMap<String, Entry> entries;
+
+		static Tree empty() {
+			Tree tree = new Tree();
+			tree.entries = new TreeMap<>();
+			return tree;
+		}
+
+		static Tree of(String sha) {
+			Tree tree = new Tree();
+			tree.sha = sha;
+			return tree;
+		}
+	}
+
+	// A file (mode and blob or commit id) or a subdirectory (tree)
+	private static final class Entry {
+		final int mode;
+		final String sha;
+		final Tree tree;
+
+		Entry(int mode, String sha, Tree tree) {
+			this.mode = mode;
+			this.sha = sha;
+			this.tree = tree;
+		}
+	}
+
+	public GitFastImport(GitRepository repo, boolean force, PrintStream progress) {
+		this.repo = repo;
+		this.force = force;
+		this.progress = progress;
+	}
+
+	// ":<mark> <sha>" lines, as written by exportMarks
+	public void importMarks(Path file) throws IOException {
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			int space = line.indexOf(' ');
+			String sha = line.substring(space + 1).trim();
+			GitObjectInfo info = GitObjectHelper.objectInfo(repo, sha);
+			if (info == null) {
+				throw new IOException("Object " + sha + " of mark " + line.substring(0, space) + " not found");
+			}
+			setMark(Integer.parseInt(line.substring(1, space)), sha, typeCode(info.fmt()));
+		}
+	}
+
+	public void exportMarks(Path file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int mark = marks.nextSetBit(0); mark >= 0; mark = marks.nextSetBit(mark + 1)) {
+			sb.append(':').append(mark).append(' ').append(GitObjectHelper.shaToHex(markIds, mark * 20)).append('\n');
+		}
+		Files.writeString(file, sb, StandardCharsets.UTF_8);
+	}
+
+	// Imports the whole stream, then points the refs at the new commits
+	public void run(InputStream stream) throws IOException {
+		in = new Input(stream);
+		bulk = GitBulkCheckin.begin(repo);
+		try {
+			String line;
+			while ((line = in.readCommand()) != null) {
+				if (line.equals("blob")) {
+					parseBlob();
+				} else if (line.startsWith("commit ")) {
+					parseCommit(line.substring(7));
+				} else if (line.startsWith("tag ")) {
+					parseTag(line.substring(4));
+				} else if (line.startsWith("reset ")) {
+					parseReset(line.substring(6));
+				} else if (line.startsWith("progress ")) {
+					progress.println(line);
+				} else if (line.equals("checkpoint")) {
+					checkpoint();
+				} else if (line.startsWith("feature ")) {
+					parseFeature(line.substring(8));
+				} else if (line.startsWith("option ")) {
+					// Options for other importers, nothing to do here
+				} else if (line.equals("done")) {
+					break;
+				} else {
+					throw new IOException("Unsupported command: " + line);
+				}
+			}
+		} finally {
+			bulk.close();
+		}
+		updateRefs();
+	}
+
+	public String summary() {
+		return String.format("fast-import: %d blobs, %d trees, %d commits, %d tags, %d marks%n",
+				counts[GitPack.OBJ_BLOB], counts[GitPack.OBJ_TREE], counts[GitPack.OBJ_COMMIT],
+				counts[GitPack.OBJ_TAG], marks.cardinality());
+	}
+
+	// Writes out the pack so far and the refs, then starts a new pack
+	private void checkpoint() throws IOException {
+		bulk.close();
+		updateRefs();
+		bulk = GitBulkCheckin.begin(repo);
+	}
+
+	private void parseFeature(String feature) throws IOException {
+		String name = feature.contains("=") ? feature.substring(0, feature.indexOf('=')) : feature;
+		switch (name) {
+		case "done":
+		case "force":
+		case "date-format":
+		case "import-marks":
+		case "import-marks-if-exists":
+		case "export-marks":
+			// Either the default, or handled by the command line
+			if (name.equals("date-format") && !feature.equals("date-format=raw")) {
+				throw new IOException("Only the raw date format is supported");
+			}
+			break;
+		default:
+			throw new IOException("Unsupported feature: " + feature);
+		}
+	}
+
+	private void parseBlob() throws IOException {
+		int mark = parseMark();
+		byte[] data = in.readData(in.readCommandArg("data"));
+		setMark(mark, write("blob", data), GitPack.OBJ_BLOB);
+	}
+
+	private void parseCommit(String ref) throws IOException {
+		Branch branch = branches.computeIfAbsent(ref, Branch::new);
+		int mark = parseMark();
+		String author = null;
+		String line = in.readCommand();
+		if (line.startsWith("original-oid ")) {
+			line = in.readCommand();
+		}
+		if (line.startsWith("author ")) {
+			author = line.substring(7);
+			line = in.readCommand();
+		}
+		if (!line.startsWith("committer ")) {
+			throw new IOException("Expected committer but got: " + line);
+		}
+		String committer = line.substring(10);
+		line = in.readCommand();
+		String encoding = null;
+		if (line.startsWith("encoding ")) {
+			encoding = line.substring(9);
+			line = in.readCommand();
+		}
+		byte[] message = in.readData(line);
+
+		List<String> parents = new ArrayList<>();
+		line = in.readCommand();
+		if (line != null && line.startsWith("from ")) {
+			String from = resolveCommit(line.substring(5));
+			branch.root = Tree.of(commitTree(from));
+			parents.add(from);
+			line = in.readCommand();
+		} else if (branch.tip != null) {
+			parents.add(branch.tip);
+		}
+		while (line != null && line.startsWith("merge ")) {
+			parents.add(resolveCommit(line.substring(6)));
+			line = in.readCommand();
+		}
+
+		// File commands run until the first line that isn't one
+		while (line != null) {
+			if (line.startsWith("M ")) {
+				fileModify(branch, line.substring(2));
+			} else if (line.startsWith("D ")) {
+				remove(branch.root, parsePath(line.substring(2), true)[0]);
+			} else if (line.startsWith("C ") || line.startsWith("R ")) {
+				String[] paths = parsePath(line.substring(2), false);
+				Entry source = lookup(branch.root, paths[0]);
+				if (source == null) {
+					throw new IOException("Path " + paths[0] + " not in branch");
+				}
+				if (line.charAt(0) == 'R') {
+					remove(branch.root, paths[0]);
+				} else if (source.tree != null) {
+					// Copies share nothing mutable: the copy is reloaded from the written tree
+					source = new Entry(MODE_TREE, null, Tree.of(writeTree(source.tree)));
+				}
+				set(branch.root, paths[1], source);
+			} else if (line.equals("deleteall")) {
+				branch.root = Tree.empty();
+			} else if (line.startsWith("N ")) {
+				throw new IOException("Notes are not supported: " + line);
+			} else {
+				in.unread(line);
+				break;
+			}
+			line = in.readCommand();
+		}
+
+		StringBuilder headers = new StringBuilder();
+		headers.append("tree ").append(writeTree(branch.root)).append('\n');
+		for (String parent : parents) {
+			headers.append("parent ").append(parent).append('\n');
+		}
+		headers.append("author ").append(author != null ? author : committer).append('\n');
+		headers.append("committer ").append(committer).append('\n');
+		if (encoding != null) {
+			headers.append("encoding ").append(encoding).append('\n');
+		}
+		headers.append('\n');
+		String sha = write("commit", concat(headers.toString().getBytes(StandardCharsets.UTF_8), message));
+		branch.tip = sha;
+		setMark(mark, sha, GitPack.OBJ_COMMIT);
+	}
+
+	private void parseTag(String name) throws IOException {
+		String line = in.readCommand();
+		int mark = 0;
+		if (line.startsWith("mark :")) {
+			mark = Integer.parseInt(line.substring(6));
+			line = in.readCommand();
+		}
+		if (!line.startsWith("from ")) {
+			throw new IOException("Expected from command, got: " + line);
+		}
+		String object = resolve(line.substring(5));
+		int type = objectType(line.substring(5), object);
+		line = in.readCommand();
+		if (line.startsWith("original-oid ")) {
+			line = in.readCommand();
+		}
+		String tagger = null;
+		if (line.startsWith("tagger ")) {
+			tagger = line.substring(7);
+			line = in.readCommand();
+		}
+		byte[] message = in.readData(line);
+
+		StringBuilder headers = new StringBuilder();
+		headers.append("object ").append(object).append('\n');
+		headers.append("type ").append(typeName(type)).append('\n');
+		headers.append("tag ").append(name).append('\n');
+		if (tagger != null) {
+			headers.append("tagger ").append(tagger).append('\n');
+		}
+		headers.append('\n');
+		String sha = write("tag", concat(headers.toString().getBytes(StandardCharsets.UTF_8), message));
+		tags.put("refs/tags/" + name, sha);
+		setMark(mark, sha, GitPack.OBJ_TAG);
+	}
+
+	private void parseReset(String ref) throws IOException {
+		Branch branch = new Branch(ref);
+		branches.put(ref, branch);
+		String line = in.readCommand();
+		if (line != null && line.startsWith("from ")) {
+			branch.tip = resolveCommit(line.substring(5));
+			branch.root = Tree.of(commitTree(branch.tip));
+		} else if (line != null) {
+			in.unread(line);
+		}
+	}
+
+	private int parseMark() throws IOException {
+		String line = in.readCommand();
+		if (line != null && line.startsWith("mark :")) {
+			return Integer.parseInt(line.substring(6));
+		}
+		in.unread(line);
+		return 0;
+	}
+
+	// "<mode> <dataref> <path>", the dataref being a mark, an id or "inline"
+	private void fileModify(Branch branch, String args) throws IOException {
+		int space = args.indexOf(' ');
+		int mode = Integer.parseInt(args.substring(0, space), 8);
+		if (mode == 0644) {
+			mode = 0100644;
+		} else if (mode == 0755) {
+			mode = 0100755;
+		}
+		int space2 = args.indexOf(' ', space + 1);
+		String dataref = args.substring(space + 1, space2);
+		String path = parsePath(args.substring(space2 + 1), true)[0];
+
+		String sha;
+		if (dataref.equals("inline")) {
+			sha = write("blob", in.readData(in.readCommandArg("data")));
+		} else {
+			sha = resolve(dataref);
+		}
+		if (mode == MODE_TREE) {
+			set(branch.root, path, new Entry(MODE_TREE, null, Tree.of(sha)));
+		} else if (mode == 0100644 || mode == 0100755 || mode == 0120000 || mode == 0160000) {
+			set(branch.root, path, new Entry(mode, sha, null));
+		} else {
+			throw new IOException("Invalid mode " + args.substring(0, space));
+		}
+	}
+
+	// One path (the rest of the line) or two (source, then the rest). Quoted
+	// paths use C escapes.
+	private static String[] parsePath(String s, boolean single) throws IOException {
+		String first;
+		int end;
+		if (s.startsWith("\"")) {
+			StringBuilder sb = new StringBuilder();
+			end = unquote(s, sb);
+			first = sb.toString();
+		} else if (single) {
+			return new String[] { s };
+		} else {
+			end = s.indexOf(' ');
+			if (end < 0) {
+				throw new IOException("Missing destination path: " + s);
+			}
+			first = s.substring(0, end);
+		}
+		if (single) {
+			return new String[] { first };
+		}
+		String rest = s.substring(end + 1);
+		if (rest.startsWith("\"")) {
+			StringBuilder sb = new StringBuilder();
+			unquote(rest, sb);
+			rest = sb.toString();
+		}
+		return new String[] { first, rest };
+	}
+
+	// Unquotes the C style string at the start of s, returns the index after
+	// the closing quote
+	private static int unquote(String s, StringBuilder out) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int i = 1;
+		while (i < s.length()) {
+			char c = s.charAt(i++);
+			if (c == '"') {
+				out.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+				return i;
+			}
+			if (c != '\\') {
+				bytes.writeBytes(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+				continue;
+			}
+			char e = s.charAt(i++);
+			switch (e) {
+			case 'n':
+				bytes.write('\n');
+				break;
+			case 't':
+				bytes.write('\t');
+				break;
+			case 'a':
+				bytes.write(7);
+				break;
+			case 'b':
+				bytes.write('\b');
+				break;
+			case 'f':
+				bytes.write('\f');
+				break;
+			case 'r':
+				bytes.write('\r');
+				break;
+			case 'v':
+				bytes.write(11);
+				break;
+			case '"':
+			case '\\':
+				bytes.write(e);
+				break;
+			default:
+				if (e >= '0' && e <= '3') {
+					bytes.write(Integer.parseInt(s.substring(i - 1, i + 2), 8));
+					i += 2;
+				} else {
+					throw new IOException("Bad escape in path: " + s);
+				}
+			}
+		}
+		throw new IOException("Unterminated quoted path: " + s);
+	}
+
+	private Entry lookup(Tree tree, String path) throws IOException {
+		load(tree);
+		int slash = path.indexOf('/');
+		Entry entry = tree.entries.get(slash < 0 ? path : path.substring(0, slash));
+		if (slash < 0 || entry == null) {
+			return entry;
+		}
+		return entry.tree == null ? null : lookup(entry.tree, path.substring(slash + 1));
+	}
+
+	private void set(Tree tree, String path, Entry value) throws IOException {
+		load(tree);
+		tree.sha = null;
+		int slash = path.indexOf('/');
+		if (slash < 0) {
+			tree.entries.put(path, value);
+			return;
+		}
+		String name = path.substring(0, slash);
+		Entry dir = tree.entries.get(name);
+		if (dir == null || dir.tree == null) {
+			dir = new Entry(MODE_TREE, null, Tree.empty());
+			tree.entries.put(name, dir);
+		}
+		set(dir.tree, path.substring(slash + 1), value);
+	}
+
+	// Directories left empty disappear when the tree is written
+	private void remove(Tree tree, String path) throws IOException {
+		load(tree);
+		int slash = path.indexOf('/');
+		if (slash < 0) {
+			if (tree.entries.remove(path) != null) {
+				tree.sha = null;
+			}
+			return;
+		}
+		Entry dir = tree.entries.get(path.substring(0, slash));
+		if (dir != null && dir.tree != null) {
+			remove(dir.tree, path.substring(slash + 1));
+			if (dir.tree.sha == null) {
+				tree.sha = null;
+			}
+		}
+	}
+
+	private void load(Tree tree) throws IOException {
+		if (tree.entries != null) {
+			return;
+		}
+		tree.entries = new TreeMap<>();
+		byte[] raw = readRaw(tree.sha);
+		int pos = 0;
+		while (pos < raw.length) {
+			int space = indexOf(raw, (byte) ' ', pos);
+			int nul = indexOf(raw, (byte) 0, space);
+			int mode = Integer.parseInt(new String(raw, pos, space - pos, StandardCharsets.US_ASCII), 8);
+			String name = new String(raw, space + 1, nul - space - 1, StandardCharsets.UTF_8);
+			String sha = GitObjectHelper.shaToHex(raw, nul + 1);
+			tree.entries.put(name, mode == MODE_TREE ? new Entry(mode, null, Tree.of(sha)) : new Entry(mode, sha, null));
+			pos = nul + 21;
+		}
+	}
+
+	// Writes the changed directories bottom up, returns the tree's id
+	private String writeTree(Tree tree) throws IOException {
+		String sha = writeSubtree(tree);
+		return sha != null ? sha : write("tree", new byte[0]);
+	}
+
+	// Like writeTree, but directories left empty are dropped (null) rather
+	// than written
+	private String writeSubtree(Tree tree) throws IOException {
+		if (tree.sha != null) {
+			return tree.sha;
+		}
+		List<Map.Entry<String, Entry>> items = new ArrayList<>();
+		List<String> empty = new ArrayList<>();
+		for (Map.Entry<String, Entry> item : tree.entries.entrySet()) {
+			Entry entry = item.getValue();
+			if (entry.tree != null && writeSubtree(entry.tree) == null) {
+				empty.add(item.getKey());
+				continue;
+			}
+			items.add(item);
+		}
+		tree.entries.keySet().removeAll(empty);
+		if (items.isEmpty()) {
+			return null;
+		}
+
+		// Git order: directories sort as if their name ended with '/'
+		items.sort((a, b) -> Arrays.compareUnsigned(sortKey(a), sortKey(b)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(items.size() * 48);
+		for (Map.Entry<String, Entry> item : items) {
+			Entry entry = item.getValue();
+			out.writeBytes(Integer.toOctalString(entry.mode).getBytes(StandardCharsets.US_ASCII));
+			out.write(' ');
+			out.writeBytes(item.getKey().getBytes(StandardCharsets.UTF_8));
+			out.write(0);
+			out.writeBytes(GitObjectHelper.shaToBytes(entry.tree != null ? entry.tree.sha : entry.sha));
+		}
+		tree.sha = write("tree", out.toByteArray());
+		return tree.sha;
+	}
+
+	private static byte[] sortKey(Map.Entry<String, Entry> item) {
+		String name = item.getValue().tree != null ? item.getKey() + "/" : item.getKey();
+		return name.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private String write(String fmt, byte[] data) throws IOException {
+		counts[typeCode(fmt)]++;
+		return bulk.add(fmt, data);
+	}
+
+	// A commit-ish: a mark, an id, or a ref (this import's branches first)
+	private String resolve(String ref) throws IOException {
+		if (ref.endsWith("^0")) {
+			ref = ref.substring(0, ref.length() - 2);
+		}
+		if (ref.startsWith(":")) {
+			int mark = Integer.parseInt(ref.substring(1));
+			if (!marks.get(mark)) {
+				throw new IOException("Mark " + ref + " not declared");
+			}
+			return GitObjectHelper.shaToHex(markIds, mark * 20);
+		}
+		if (ref.matches("[0-9a-f]{40}")) {
+			return ref;
+		}
+		Branch branch = branches.get(ref);
+		if (branch != null && branch.tip != null) {
+			return branch.tip;
+		}
+		String sha = GitObjectHelper.refResolve(repo, ref);
+		if (sha == null) {
+			throw new IOException("Not a valid object name: " + ref);
+		}
+		return sha;
+	}
+
+	private String resolveCommit(String ref) throws IOException {
+		String sha = resolve(ref);
+		if (objectType(ref, sha) != GitPack.OBJ_COMMIT) {
+			throw new IOException(ref + " is not a commit");
+		}
+		return sha;
+	}
+
+	private int objectType(String ref, String sha) throws IOException {
+		if (ref.startsWith(":")) {
+			return markTypes[Integer.parseInt(ref.substring(1))];
+		}
+		GitObjectInfo info = GitObjectHelper.objectInfo(repo, sha);
+		if (info == null) {
+			throw new IOException("Object " + sha + " not found");
+		}
+		return typeCode(info.fmt());
+	}
+
+	private String commitTree(String commit) throws IOException {
+		byte[] raw = readRaw(commit);
+		return new String(raw, 5, 40, StandardCharsets.US_ASCII);
+	}
+
+	private byte[] readRaw(String sha) throws IOException {
+		Tuple<GitObjectInfo, InputStream> opened = GitObjectHelper.objectOpen(repo, sha);
+		if (opened == null) {
+			throw new IOException("Object " + sha + " not found");
+		}
+		try (InputStream body = opened.getSecond()) {
+			return body.readAllBytes();
+		}
+	}
+
+	private void setMark(int mark, String sha, int type) {
+		if (mark <= 0) {
+			return;
+		}
+		if (mark >= markTypes.length) {
+			int capacity = Math.max(markTypes.length * 2, mark + 1);
+			markTypes = Arrays.copyOf(markTypes, capacity);
+			markIds = Arrays.copyOf(markIds, capacity * 20);
+		}
+		System.arraycopy(GitObjectHelper.shaToBytes(sha), 0, markIds, mark * 20, 20);
+		markTypes[mark] = (byte) type;
+		marks.set(mark);
+	}
+
+	// Branches only move forward unless forced
+	private void updateRefs() throws IOException {
+		Map<String, String> updates = new LinkedHashMap<>();
+		for (Branch branch : branches.values()) {
+			if (branch.tip != null) {
+				updates.put(branch.ref, branch.tip);
+			}
+		}
+		updates.putAll(tags);
+		for (Map.Entry<String, String> update : updates.entrySet()) {
+			String ref = update.getKey();
+			String old = GitObjectHelper.refResolve(repo, ref);
+			if (update.getValue().equals(old)) {
+				continue;
+			}
+			if (old != null && !force && !ref.startsWith("refs/tags/") && !isAncestor(old, update.getValue())) {
+				System.err.println("warning: Not updating " + ref + " (new tip " + update.getValue()
+						+ " does not contain " + old + ")");
+				continue;
+			}
+			GitObjectHelper.refUpdate(repo, ref, update.getValue(), old);
+		}
+	}
+
+	private boolean isAncestor(String ancestor, String commit) throws IOException {
+		Deque<String> queue = new ArrayDeque<>();
+		Set<String> seen = new HashSet<>();
+		queue.add(commit);
+		while (!queue.isEmpty()) {
+			String sha = queue.poll();
+			if (sha.equals(ancestor)) {
+				return true;
+			}
+			if (!seen.add(sha)) {
+				continue;
+			}
+			GitObject obj = GitObjectHelper.objectRead(repo, sha);
+			if (obj instanceof GitCommit) {
+				queue.addAll(((GitCommit) obj).getParents());
+			}
+		}
+		return false;
+	}
+
+	private static int typeCode(String fmt) throws IOException {
+		switch (fmt) {
+		case "commit":
+			return GitPack.OBJ_COMMIT;
+		case "tree":
+			return GitPack.OBJ_TREE;
+		case "blob":
+			return GitPack.OBJ_BLOB;
+		case "tag":
+			return GitPack.OBJ_TAG;
+		default:
+			throw new IOException("Unknown type " + fmt);
+		}
+	}
+
+	private static String typeName(int type) {
+		return new String[] { null, "commit", "tree", "blob", "tag" }[type];
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] out = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, out, a.length, b.length);
+		return out;
+	}
+
+	private static int indexOf(byte[] data, byte b, int from) {
+		for (int i = from; i < data.length; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// The command stream: lines, raw data blocks, and one line of push back
+	private static final class Input {
+		private final InputStream in;
+		private String pending;
+
+		Input(InputStream in) {
+			this.in = new BufferedInputStream(in, 1 << 16);
+		}
+
+		// Next command line, skipping comments and blank lines; null at the end
+		String readCommand() throws IOException {
+			if (pending != null) {
+				String line = pending;
+				pending = null;
+				return line;
+			}
+			String line;
+			do {
+				line = readLine();
+			} while (line != null && (line.isEmpty() || line.startsWith("#")));
+			return line;
+		}
+
+		String readCommandArg(String command) throws IOException {
+			String line = readCommand();
+			if (line == null || !line.startsWith(command + " ")) {
+				throw new IOException("Expected '" + command + "' command, found: " + line);
+			}
+			return line;
+		}
+
+		void unread(String line) {
+			pending = line;
+		}
+
+		String readLine() throws IOException {
+			byte[] line = readLineBytes();
+			return line == null ? null : new String(line, StandardCharsets.UTF_8);
+		}
+
+		private byte[] readLineBytes() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				buf.write(c);
+			}
+			if (c == -1 && buf.size() == 0) {
+				return null;
+			}
+			return buf.toByteArray();
+		}
+
+		// "data <count>" followed by exactly that many bytes, or
+		// "data <<<delim>" followed by lines up to delim
+		byte[] readData(String line) throws IOException {
+			if (line == null || !line.startsWith("data ")) {
+				throw new IOException("Expected 'data' command, found: " + line);
+			}
+			String arg = line.substring(5);
+			byte[] data;
+			if (arg.startsWith("<<")) {
+				byte[] delim = arg.substring(2).getBytes(StandardCharsets.UTF_8);
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				byte[] l;
+				while (!Arrays.equals(l = readLineBytes(), delim)) {
+					if (l == null) {
+						throw new EOFException("Unterminated data block");
+					}
+					buf.writeBytes(l);
+					buf.write('\n');
+				}
+				data = buf.toByteArray();
+			} else {
+				data = in.readNBytes(Integer.parseInt(arg));
+				if (data.length != Integer.parseInt(arg)) {
+					throw new EOFException("Stream ends inside a data block");
+				}
+			}
+			// An optional LF after the data
+			in.mark(1);
+			if (in.read() != '\n') {
+				in.reset();
+			}
+			return data;
+		}
+	}
+}
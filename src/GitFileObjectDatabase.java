@@ -0,0 +1,369 @@
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Objects in .git/objects: zlib-compressed loose files under a two
+// character fan-out directory, and packs (searched through the
+// multi-pack-index where there is one). While a GitBulkCheckin session is
+// open, new objects go to its pack instead of loose files.
+//
+// The pack list itself stays with GitRepository, which rescans it when
+// objects/pack changes.
+public class GitFileObjectDatabase implements GitObjectDatabase {
+	// How far ahead of a batch read the pack is loaded into the page cache
+	private static final long READAHEAD = 8L << 20;
+
+	// A batch member found in a pack
+	private record Located(String sha, long offset) {
+	}
+
+	private final GitRepository repo;
+	private final Path objectsDir;
+
+	public GitFileObjectDatabase(GitRepository repo) {
+		this.repo = repo;
+		this.objectsDir = repo.getGitdir().resolve("objects");
+	}
+
+	public Path getObjectsDir() {
+		return objectsDir;
+	}
+
+	public Path loosePath(String sha) {
+		return objectsDir.resolve(sha.substring(0, 2)).resolve(sha.substring(2));
+	}
+
+	// Opens an object and parses its "type size\0" header. Only the header is
+	// inflated; the returned stream yields the content and must be closed.
+	@Override
+	public Tuple<GitObjectInfo, InputStream> open(String sha) throws IOException {
+		Path path = loosePath(sha);
+
+		if (!Files.isRegularFile(path)) {
+			return openNotLoose(sha);
+		}
+
+		FileInputStream file;
+		try {
+			file = new FileInputStream(path.toFile());
+		} catch (FileNotFoundException e) {
+			// Pruned since the check above
+			if (Files.exists(path)) {
+				throw e;
+			}
+			return openNotLoose(sha);
+		}
+		InputStream in = GitZlib.inflate(file);
+		try {
+			// Read object type
+			StringBuilder fmt = new StringBuilder();
+			int c;
+			while ((c = in.read()) != ' ') {
+				if (c == -1 || fmt.length() > 16) {
+					throw new IOException("Malformed object: missing object type");
+				}
+				fmt.append((char) c);
+			}
+
+			// Read object size
+			long size = 0;
+			int digits = 0;
+			while ((c = in.read()) != '\0') {
+				if (c < '0' || c > '9' || digits++ > 19) {
+					throw new IOException(c == -1 ? "Malformed object: missing object size separator"
+							: "Malformed object: invalid size");
+				}
+				size = size * 10 + (c - '0');
+			}
+			if (digits == 0) {
+				throw new IOException("Malformed object: invalid size");
+			}
+
+			return new Tuple<>(new GitObjectInfo(fmt.toString(), size), in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private Tuple<GitObjectInfo, InputStream> openNotLoose(String sha) throws IOException {
+		Tuple<GitObjectInfo, InputStream> pending = bulkOpen(sha);
+		if (pending != null) {
+			return pending;
+		}
+		Tuple<GitPack, Long> packed = packFind(sha);
+		if (packed == null) {
+			return null;
+		}
+		try {
+			return packed.getFirst().open(packed.getSecond());
+		} catch (ClosedChannelException e) {
+			// Deleted and closed by a rescan meanwhile: a repack moved it
+			packed = packFind(sha);
+			return packed == null ? null : packed.getFirst().open(packed.getSecond());
+		}
+	}
+
+	// Whole objects stream from their pack, which a rescan can close half way
+	@Override
+	public Tuple<GitObjectInfo, byte[]> read(String sha) throws IOException {
+		try {
+			return GitObjectDatabase.super.read(sha);
+		} catch (ClosedChannelException e) {
+			return GitObjectDatabase.super.read(sha);
+		}
+	}
+
+	// Loose objects only inflate their header, packed ones are answered from
+	// the pack entry header (and the delta header for deltified entries)
+	@Override
+	public GitObjectInfo info(String sha) throws IOException {
+		if (!Files.isRegularFile(loosePath(sha))) {
+			Tuple<GitObjectInfo, InputStream> pending = bulkOpen(sha);
+			if (pending != null) {
+				pending.getSecond().close();
+				return pending.getFirst();
+			}
+			Tuple<GitPack, Long> packed = packFind(sha);
+			if (packed == null) {
+				return null;
+			}
+			try {
+				return packed.getFirst().info(packed.getSecond());
+			} catch (ClosedChannelException e) {
+				packed = packFind(sha);
+				return packed == null ? null : packed.getFirst().info(packed.getSecond());
+			}
+		}
+
+		Tuple<GitObjectInfo, InputStream> opened = open(sha);
+		if (opened == null) {
+			return null;
+		}
+		opened.getSecond().close();
+		return opened.getFirst();
+	}
+
+	// Packs are rescanned once on a miss, as in packFind
+	@Override
+	public boolean contains(String sha) throws IOException {
+		return Files.isRegularFile(loosePath(sha)) || isPacked(sha) || (repo.rescanPacks() && isPacked(sha));
+	}
+
+	@Override
+	public void write(String fmt, byte[] data, String sha) throws IOException {
+		Path path = loosePath(sha);
+		if (freshen(path) || isPacked(sha)) {
+			return;
+		}
+		// A session finished meanwhile turns the object away, which then
+		// goes loose
+		GitPackWriter bulk = repo.getBulkCheckin();
+		if (bulk != null && bulk.add(fmt, data, sha)) {
+			return;
+		}
+		// Ensure the parent directory exists
+		Files.createDirectories(path.getParent());
+
+		// Written aside and renamed into place, so concurrent writers of the
+		// same object never interleave and readers never see half of it
+		byte[] header = (fmt + " " + data.length + "\0").getBytes(StandardCharsets.US_ASCII);
+		Path tmp = Files.createTempFile(path.getParent(), "tmp_obj_", "");
+		try {
+			try (OutputStream fos = new FileOutputStream(tmp.toFile());
+					OutputStream dos = GitZlib.deflate(fos, repo.getLooseCompression())) {
+				dos.write(header);
+				dos.write(data);
+			}
+			readOnly(tmp);
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	// Touches an existing loose object instead of writing it again. A
+	// concurrent prune only deletes objects older than its grace period, so
+	// a writer reusing an unreachable object must make it look new. False
+	// when there is no such file, including one pruned just now.
+	private static boolean freshen(Path path) {
+		try {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			// Someone else's file: it exists, at least
+			return Files.exists(path);
+		}
+	}
+
+	// Objects are immutable: read-only for everyone, as git leaves them
+	private static void readOnly(Path path) throws IOException {
+		try {
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("r--r--r--"));
+		} catch (UnsupportedOperationException e) {
+			// Not a POSIX file system
+		}
+	}
+
+	@Override
+	public void findPrefix(String prefix, Set<String> out) throws IOException {
+		Path dir = objectsDir.resolve(prefix.substring(0, 2));
+		if (Files.isDirectory(dir)) {
+			String rem = prefix.substring(2);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files) {
+					String name = file.getFileName().toString();
+					if (name.length() == 38 && name.startsWith(rem)) {
+						out.add(prefix.substring(0, 2) + name);
+					}
+				}
+			}
+		}
+		GitMultiPackIndex midx = repo.getMultiPackIndex();
+		if (midx != null) {
+			midx.findPrefix(prefix, out);
+		}
+		for (GitPack pack : repo.getPacks()) {
+			if (midx == null || !midx.covers(pack)) {
+				pack.findPrefix(prefix, out);
+			}
+		}
+	}
+
+	// Packed objects are grouped by pack and read in offset order, with the
+	// pack loaded READAHEAD bytes at a time ahead of the reads. Adjacent
+	// entries are usually one another's delta bases, so the delta base cache
+	// does the rest. Everything else (loose objects, the open bulk-checkin
+	// pack, packs added since the last scan) is read one at a time in
+	// fan-out directory order, which is sha order.
+	@Override
+	public void readBatch(Collection<String> shas, BatchConsumer consumer) throws IOException {
+		Map<GitPack, List<Located>> packed = new LinkedHashMap<>();
+		List<String> rest = new ArrayList<>();
+		for (String sha : new LinkedHashSet<>(shas)) {
+			Tuple<GitPack, Long> found = packLookup(GitObjectHelper.shaToBytes(sha));
+			if (found == null) {
+				rest.add(sha);
+			} else {
+				packed.computeIfAbsent(found.getFirst(), k -> new ArrayList<>())
+						.add(new Located(sha, found.getSecond()));
+			}
+		}
+
+		for (Map.Entry<GitPack, List<Located>> group : packed.entrySet()) {
+			GitPack pack = group.getKey();
+			List<Located> entries = group.getValue();
+			entries.sort(Comparator.comparingLong(Located::offset));
+			long loaded = 0;
+			int i = 0;
+			try {
+				for (; i < entries.size(); i++) {
+					long offset = entries.get(i).offset();
+					if (offset >= loaded) {
+						// Up to the start of the last entry in the window; that
+						// entry's own tail is left to the normal reads
+						int last = i;
+						while (last + 1 < entries.size() && entries.get(last + 1).offset() - offset < READAHEAD) {
+							last++;
+						}
+						loaded = entries.get(last).offset() + 1;
+						pack.willNeed(offset, loaded);
+					}
+					Tuple<String, byte[]> read = pack.read(offset);
+					consumer.accept(entries.get(i).sha(), new GitObjectInfo(read.getFirst(), read.getSecond().length),
+							read.getSecond());
+				}
+			} catch (ClosedChannelException e) {
+				// Deleted and closed by a rescan: the rest are looked up again
+				for (; i < entries.size(); i++) {
+					rest.add(entries.get(i).sha());
+				}
+			}
+		}
+
+		Collections.sort(rest);
+		for (String sha : rest) {
+			Tuple<GitObjectInfo, byte[]> read = read(sha);
+			consumer.accept(sha, read == null ? null : read.getFirst(), read == null ? null : read.getSecond());
+		}
+	}
+
+	// Pack and offset holding sha: one search of the multi-pack-index, then
+	// any pack it doesn't cover. Packs are rescanned once on a miss in case
+	// another process added one since they were listed.
+	public Tuple<GitPack, Long> packFind(String sha) throws IOException {
+		byte[] id = GitObjectHelper.shaToBytes(sha);
+		boolean rescanned = false;
+		while (true) {
+			Tuple<GitPack, Long> found = packLookup(id);
+			if (found != null) {
+				return found;
+			}
+			if (rescanned || !repo.rescanPacks()) {
+				return null;
+			}
+			rescanned = true;
+		}
+	}
+
+	// packFind over the packs as last scanned
+	private Tuple<GitPack, Long> packLookup(byte[] id) throws IOException {
+		GitMultiPackIndex midx = repo.getMultiPackIndex();
+		if (midx != null) {
+			Tuple<GitPack, Long> found = midx.find(id);
+			if (found != null) {
+				return found;
+			}
+		}
+		for (GitPack pack : repo.getPacks()) {
+			if (midx != null && midx.covers(pack)) {
+				continue;
+			}
+			long offset = pack.findOffset(id);
+			if (offset >= 0) {
+				return new Tuple<>(pack, offset);
+			}
+		}
+		return null;
+	}
+
+	// Whether a pack, finished or not, already has sha. Unlike packFind the
+	// pack directory isn't rescanned, so this is cheap enough to call before
+	// every write.
+	public boolean isPacked(String sha) throws IOException {
+		GitPackWriter bulk = repo.getBulkCheckin();
+		if (bulk != null && bulk.contains(sha)) {
+			return true;
+		}
+		return packLookup(GitObjectHelper.shaToBytes(sha)) != null;
+	}
+
+	// Object written to the pack of an open bulk-checkin session
+	private Tuple<GitObjectInfo, InputStream> bulkOpen(String sha) throws IOException {
+		GitPackWriter bulk = repo.getBulkCheckin();
+		return bulk == null ? null : bulk.open(sha);
+	}
+}
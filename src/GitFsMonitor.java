@@ -0,0 +1,336 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// File system monitor: watches the worktree and appends every changed path
+// to the .git/jwyag-fsmonitor journal, so any process can ask what changed
+// since a token instead of scanning.
+//
+// Journal: a "jwyag-fsmonitor 1 <session>" line, then "<seq>\t<path>" per
+// change, "<seq>\t*" when events were lost, and "#<cookie>" when a cookie
+// file shows up. Tokens are "<session>:<seq>"; a monitor restart starts a new
+// session, which invalidates every older token.
+//
+// Readers first create a cookie file in .git and wait until the monitor has
+// journaled it, so every change made before the call is in the journal.
+// The monitor holds a lock on .git/jwyag-fsmonitor.lock while it runs.
+public class GitFsMonitor implements Closeable {
+	static final String JOURNAL = "jwyag-fsmonitor";
+	static final String LOCK = "jwyag-fsmonitor.lock";
+	private static final String COOKIE_PREFIX = "jwyag-fsmonitor-cookie-";
+	private static final String HEADER = "jwyag-fsmonitor 1 ";
+	// Past this many entries the journal starts over in a new session
+	private static final int MAX_ENTRIES = 100_000;
+	// How long a reader waits for its cookie before giving up on the monitor
+	private static final long COOKIE_TIMEOUT_MS = 1000;
+
+	// Monitors running in this process, by gitdir. Their lock can't be
+	// probed from the same process: closing any channel on the lock file
+	// would drop it.
+	private static final Map<Path, GitFsMonitor> RUNNING = new ConcurrentHashMap<>();
+	private static final AtomicLong COOKIES = new AtomicLong();
+
+	private final GitRepository repo;
+	private final Path worktree;
+	private final Path gitdir;
+	private final Path journal;
+	private FileChannel lockChannel;
+	private WatchService watchService;
+	private String session;
+	private long seq;
+	private int entries;
+
+	public GitFsMonitor(GitRepository repo) {
+		this.repo = repo;
+		this.worktree = repo.getWorktree();
+		this.gitdir = repo.getGitdir();
+		this.journal = gitdir.resolve(JOURNAL);
+	}
+
+	// core.fsmonitor may also name a hook script, which isn't this monitor
+	public static boolean isEnabled(GitRepository repo) {
+		try {
+			return repo.getConf().getBoolean("core.fsmonitor", false);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public synchronized void start() throws IOException {
+		lockChannel = FileChannel.open(gitdir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException("A file system monitor is already running for " + worktree);
+		}
+
+		watchService = FileSystems.getDefault().newWatchService();
+		// Only cookies are looked at in .git, which isn't watched recursively
+		gitdir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+		registerTree(worktree);
+		newSession();
+		RUNNING.put(gitdir, this);
+
+		Thread thread = new Thread(this::watch, "jwyag-fsmonitor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		RUNNING.remove(gitdir, this);
+		if (watchService != null) {
+			watchService.close();
+		}
+		if (lockChannel != null) {
+			lockChannel.close();
+		}
+	}
+
+	private void newSession() throws IOException {
+		session = Long.toHexString(System.currentTimeMillis()) + Long.toHexString(System.nanoTime() & 0xffffff);
+		seq = 0;
+		entries = 0;
+		Files.writeString(journal, HEADER + session + "\n", StandardCharsets.UTF_8);
+	}
+
+	// Registers dir and every directory below it that isn't ignored. Called
+	// again for a directory whose .gitignore changed, since that can expose
+	// directories that were skipped.
+	private void registerTree(Path dir) throws IOException {
+		GitIgnore ignore = GitIgnore.load(repo);
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				String rel = relative(d);
+				if (rel.equals(".git") || rel.endsWith("/.git")) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (!rel.isEmpty()) {
+					GitIgnore.Rule rule = ignore.match(rel, true);
+					if (rule != null && !rule.isNegative()) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+				}
+				d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// Removed while walking
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private String relative(Path path) {
+		return worktree.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path dir = (Path) key.watchable();
+				List<String> lines = new ArrayList<>();
+				synchronized (this) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							lines.add(++seq + "\t*");
+							continue;
+						}
+						Path path = dir.resolve((Path) event.context());
+						if (dir.equals(gitdir)) {
+							String name = path.getFileName().toString();
+							if (name.startsWith(COOKIE_PREFIX)) {
+								lines.add("#" + name);
+							}
+							continue;
+						}
+						lines.add(++seq + "\t" + relative(path));
+						try {
+							if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+								registerTree(path);
+							} else if (path.getFileName().toString().equals(".gitignore")) {
+								registerTree(dir);
+							}
+						} catch (IOException e) {
+							// Gone again, or unreadable: whatever happens below is unknown
+							lines.add(++seq + "\t*");
+						}
+					}
+					key.reset();
+					append(lines);
+				}
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			// Shutting down
+		} catch (IOException e) {
+			System.err.println("File system monitor stopped: " + e.getMessage());
+		} finally {
+			// A journal nobody appends to would make every reader wait out
+			// COOKIE_TIMEOUT_MS; without the lock they don't ask at all
+			try {
+				close();
+			} catch (IOException e) {
+				// Nothing left to release
+			}
+		}
+	}
+
+	private void append(List<String> lines) throws IOException {
+		if (lines.isEmpty()) {
+			return;
+		}
+		if (entries + lines.size() > MAX_ENTRIES) {
+			// Readers holding an old token fall back to a full scan once.
+			// Cookies still have to be answered.
+			newSession();
+			lines.removeIf(line -> !line.startsWith("#"));
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		// One write, so readers never see half a batch
+		Files.writeString(journal, sb, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+		entries += lines.size();
+	}
+
+	// Paths changed since token, and the token to pass next time. The set is
+	// null when the journal can't answer for token (no token yet, another
+	// session, lost events). Returns null when no monitor is running.
+	public static Tuple<String, Set<String>> changedSince(GitRepository repo, String token) throws IOException {
+		if (!isRunning(repo)) {
+			return null;
+		}
+
+		// Wait for the monitor to catch up with everything done before now
+		String cookie = COOKIE_PREFIX + ProcessHandle.current().pid() + "-" + COOKIES.incrementAndGet();
+		Path cookiePath = repo.getGitdir().resolve(cookie);
+		Files.createFile(cookiePath);
+		try {
+			long deadline = System.currentTimeMillis() + COOKIE_TIMEOUT_MS;
+			while (true) {
+				Tuple<String, Set<String>> changes = readJournal(repo.getGitdir().resolve(JOURNAL), token, cookie);
+				if (changes != null) {
+					return changes;
+				}
+				if (System.currentTimeMillis() > deadline) {
+					return null;
+				}
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+		} finally {
+			Files.deleteIfExists(cookiePath);
+		}
+	}
+
+	// Null until the cookie line is in the journal
+	private static Tuple<String, Set<String>> readJournal(Path journal, String token, String cookie)
+			throws IOException {
+		if (!Files.exists(journal)) {
+			return null;
+		}
+		String text = new String(Files.readAllBytes(journal), StandardCharsets.UTF_8);
+		int nl = text.indexOf('\n');
+		if (nl < 0 || !text.startsWith(HEADER)) {
+			return null;
+		}
+		String session = text.substring(HEADER.length(), nl);
+		long since = -1;
+		if (token != null && token.startsWith(session + ":")) {
+			since = Long.parseLong(token.substring(session.length() + 1));
+		}
+
+		Set<String> paths = new HashSet<>();
+		boolean complete = since >= 0;
+		boolean sawCookie = false;
+		long last = 0;
+		int pos = nl + 1;
+		// A trailing line without its newline is still being written
+		while ((nl = text.indexOf('\n', pos)) >= 0) {
+			String line = text.substring(pos, nl);
+			pos = nl + 1;
+			if (line.startsWith("#")) {
+				sawCookie |= line.substring(1).equals(cookie);
+				continue;
+			}
+			int tab = line.indexOf('\t');
+			long n = Long.parseLong(line.substring(0, tab));
+			String path = line.substring(tab + 1);
+			last = n;
+			if (n > since) {
+				if (path.equals("*")) {
+					complete = false;
+				} else {
+					paths.add(path);
+				}
+			}
+		}
+		if (!sawCookie) {
+			return null;
+		}
+		return new Tuple<>(session + ":" + last, complete ? paths : null);
+	}
+
+	// The journal, its lock and cookies, which change all the time and say
+	// nothing about the repository
+	public static boolean isMonitorFile(String name) {
+		return name.startsWith(JOURNAL);
+	}
+
+	private static boolean isRunning(GitRepository repo) throws IOException {
+		if (RUNNING.containsKey(repo.getGitdir())) {
+			return true;
+		}
+		Path lockPath = repo.getGitdir().resolve(LOCK);
+		if (!Files.exists(lockPath)) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.WRITE)) {
+			FileLock lock = channel.tryLock();
+			if (lock == null) {
+				return true;
+			}
+			lock.release();
+			return false;
+		} catch (OverlappingFileLockException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,489 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Integrity check of a repository, as git fsck does it:
+//  - every loose and packed object is read back and its id recomputed from
+//    its content, and commits, trees and tags are parsed for the ids they
+//    refer to; each pack's trailing checksum is verified too
+//  - every referenced id, and every root (see GitRoots), must exist
+//    with the type it is referenced as ("missing ...")
+//  - objects that exist but nothing refers to are reported as dangling
+//
+// Objects are checked on a pool of threads, loose ones a fan-out directory
+// per task and packed ones in runs of CHUNK entries in pack order, so that
+// neighbouring deltas share their bases. The results are merged on the
+// calling thread, in submission order so the output is stable, into one
+// GitObjectIdSet: ids with their type and what was seen of them.
+public class GitFsck {
+	private static final int CHUNK = 1024;
+
+	// GitObjectIdSet flags: the low three bits hold the GitPack type
+	private static final int TYPE_MASK = 7;
+	private static final int PRESENT = 8;
+	private static final int REFERENCED = 16;
+	private static final int ROOT = 32;
+	// Stored but unreadable or not matching its id, already reported
+	private static final int CORRUPT = 64;
+
+	private static final String[] TYPE_NAMES = { null, "commit", "tree", "blob", "tag" };
+
+	private static final AtomicInteger POOLS = new AtomicInteger();
+
+	private final GitRepository repo;
+	private final PrintStream out;
+	private final GitObjectIdSet seen = new GitObjectIdSet(1 << 16);
+	// The error for each root id if it is missing, naming where it came from
+	private final Map<String, String> roots = new LinkedHashMap<>();
+	private int problems;
+
+	// What one task found: the ids it saw with their flags, and its errors
+	private static final class Result {
+		byte[] ids = new byte[64 * 20];
+		byte[] flags = new byte[64];
+		int count;
+		final List<String> errors = new ArrayList<>();
+
+		void add(byte[] id, int off, int flag) {
+			if (count == flags.length) {
+				ids = Arrays.copyOf(ids, ids.length * 2);
+				flags = Arrays.copyOf(flags, flags.length * 2);
+			}
+			System.arraycopy(id, off, ids, count * 20, 20);
+			flags[count++] = (byte) flag;
+		}
+
+		// Adds the id spelled in hex in data[from, to), if it is one
+		boolean addHex(byte[] data, int from, int to, int flag) {
+			if (to - from != 40) {
+				return false;
+			}
+			byte[] id = new byte[20];
+			for (int i = 0; i < 20; i++) {
+				int hi = hexDigit(data[from + 2 * i]);
+				int lo = hexDigit(data[from + 2 * i + 1]);
+				if (hi < 0 || lo < 0) {
+					return false;
+				}
+				id[i] = (byte) (hi << 4 | lo);
+			}
+			add(id, 0, flag);
+			return true;
+		}
+	}
+
+	public GitFsck(GitRepository repo, PrintStream out) {
+		this.repo = repo;
+		this.out = out;
+	}
+
+	// Runs the check, printing what it finds. Returns the number of errors
+	// and missing objects; dangling ones are not errors.
+	public int run() throws IOException {
+		if (!(repo.getObjectDatabase() instanceof GitFileObjectDatabase db)) {
+			throw new IOException("fsck only checks repositories stored in .git/objects");
+		}
+		addRoots();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		int pool = POOLS.incrementAndGet();
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "jwyag-fsck-" + pool + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+		try {
+			for (int i = 0; i < 256; i++) {
+				Path dir = db.getObjectsDir().resolve(String.format("%02x", i));
+				if (Files.isDirectory(dir)) {
+					submit(executor, pending, threads, () -> checkLoose(db, dir));
+				}
+			}
+			for (GitPack pack : repo.getPacks()) {
+				submit(executor, pending, threads, () -> checkPackChecksum(pack));
+				long[] offsets = new long[pack.getCount()];
+				for (int n = 0; n < offsets.length; n++) {
+					offsets[n] = pack.getOffset(n);
+				}
+				Arrays.sort(offsets);
+				for (int from = 0; from < offsets.length; from += CHUNK) {
+					int start = from;
+					submit(executor, pending, threads,
+							() -> checkPacked(pack, offsets, start, Math.min(start + CHUNK, offsets.length)));
+				}
+			}
+			while (!pending.isEmpty()) {
+				merge(pending.poll());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		report();
+		return problems;
+	}
+
+	// See GitRoots. A missing reflog entry is reported as such, like git
+	// does, rather than as a bad pointer.
+	private void addRoots() throws IOException {
+		GitRoots.collect(repo, (kind, name, sha) -> {
+			String format = kind == GitRoots.Kind.REFLOG ? "error: %s: invalid reflog entry %s"
+					: "error: %s: invalid sha1 pointer %s";
+			if (!sha.matches("[0-9a-f]{40}")) {
+				error(String.format(format, name, sha));
+				return;
+			}
+			roots.putIfAbsent(sha, String.format(format, name, sha));
+			seen.add(GitObjectHelper.shaToBytes(sha), 0, ROOT);
+		});
+	}
+
+	// Queues a task, merging the oldest results first once enough are
+	// waiting so that finished results don't pile up in memory
+	private void submit(ExecutorService executor, ArrayDeque<Future<Result>> pending, int threads,
+			Callable<Result> task) throws IOException {
+		pending.add(executor.submit(task));
+		while (pending.size() > 4 * threads) {
+			merge(pending.poll());
+		}
+	}
+
+	private void merge(Future<Result> future) throws IOException {
+		Result result;
+		try {
+			result = future.get();
+		} catch (ExecutionException e) {
+			throw new IOException("fsck failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("fsck interrupted", e);
+		}
+		for (String message : result.errors) {
+			error(message);
+		}
+		for (int i = 0; i < result.count; i++) {
+			mark(result.ids, i * 20, result.flags[i] & 0xff);
+		}
+	}
+
+	// Adds an id's flags to the set, checking its type against any seen before
+	private void mark(byte[] ids, int off, int flags) {
+		int type = flags & TYPE_MASK;
+		int old = seen.get(ids, off);
+		int known = old & TYPE_MASK;
+		if (type != 0 && known != 0 && type != known) {
+			String sha = GitObjectHelper.shaToHex(ids, off);
+			if ((flags & PRESENT) != 0) {
+				error(String.format("error: %s is a %s, referenced as a %s", sha, TYPE_NAMES[type], TYPE_NAMES[known]));
+			} else if ((old & PRESENT) != 0) {
+				error(String.format("error: %s is a %s, referenced as a %s", sha, TYPE_NAMES[known], TYPE_NAMES[type]));
+			} else {
+				error(String.format("error: %s is referenced as both a %s and a %s", sha, TYPE_NAMES[known],
+						TYPE_NAMES[type]));
+			}
+			flags &= ~TYPE_MASK;
+		}
+		if (known != 0) {
+			flags &= ~TYPE_MASK;
+		}
+		seen.add(ids, off, flags);
+	}
+
+	// Missing and dangling objects, sorted by id
+	private void report() {
+		List<String> missing = new ArrayList<>();
+		List<String> dangling = new ArrayList<>();
+		seen.forEach((ids, off, flags) -> {
+			if ((flags & CORRUPT) != 0) {
+				return;
+			}
+			String sha = GitObjectHelper.shaToHex(ids, off);
+			String type = TYPE_NAMES[flags & TYPE_MASK];
+			if ((flags & PRESENT) == 0) {
+				if ((flags & ROOT) != 0) {
+					missing.add(roots.get(sha));
+				} else {
+					missing.add(String.format("missing %s %s", type, sha));
+				}
+			} else if ((flags & (REFERENCED | ROOT)) == 0) {
+				dangling.add(String.format("dangling %s %s", type, sha));
+			}
+		});
+		Collections.sort(missing);
+		Collections.sort(dangling);
+		for (String line : missing) {
+			error(line);
+		}
+		for (String line : dangling) {
+			out.println(line);
+		}
+	}
+
+	private void error(String message) {
+		out.println(message);
+		problems++;
+	}
+
+	// The loose objects of one fan-out directory, in name order
+	private Result checkLoose(GitFileObjectDatabase db, Path dir) throws IOException {
+		Result result = new Result();
+		List<String> names = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.length() == 38 && name.matches("[0-9a-f]+")) {
+					names.add(name);
+				}
+			}
+		}
+		Collections.sort(names);
+
+		String prefix = dir.getFileName().toString();
+		for (String name : names) {
+			String sha = prefix + name;
+			try {
+				Tuple<GitObjectInfo, byte[]> read = db.read(sha);
+				if (read == null) {
+					// Pruned while we were looking
+					continue;
+				}
+				String computed = GitObjectHelper.objectId(read.getFirst().fmt(), read.getSecond());
+				if (!computed.equals(sha)) {
+					result.errors.add(String.format("error: hash mismatch for objects/%s/%s (computed %s)", prefix,
+							name, computed));
+					result.add(GitObjectHelper.shaToBytes(sha), 0, CORRUPT);
+					continue;
+				}
+				scan(result, GitObjectHelper.shaToBytes(sha), read.getFirst().fmt(), read.getSecond());
+			} catch (IOException | RuntimeException e) {
+				result.errors.add(String.format("error: %s: object corrupt or missing: %s", sha, e.getMessage()));
+				result.add(GitObjectHelper.shaToBytes(sha), 0, CORRUPT);
+			}
+		}
+		return result;
+	}
+
+	// The entries of pack at offsets[from, to), which are in pack order
+	private Result checkPacked(GitPack pack, long[] offsets, int from, int to) throws IOException {
+		Result result = new Result();
+		String name = pack.getPackPath().getFileName().toString();
+		for (int i = from; i < to; i++) {
+			long offset = offsets[i];
+			try {
+				Tuple<String, byte[]> read = pack.read(offset);
+				byte[] id = GitObjectHelper.shaToBytes(GitObjectHelper.objectId(read.getFirst(), read.getSecond()));
+				if (pack.findOffset(id) != offset) {
+					result.errors.add(String.format("error: hash mismatch for object at offset %d in %s", offset, name));
+					continue;
+				}
+				scan(result, id, read.getFirst(), read.getSecond());
+			} catch (IOException | RuntimeException e) {
+				byte[] id = idAt(pack, offset);
+				if (id == null) {
+					result.errors.add(String.format("error: cannot unpack object at offset %d in %s: %s", offset,
+							name, e.getMessage()));
+				} else {
+					result.errors.add(String.format("error: cannot unpack %s from %s at offset %d: %s",
+							GitObjectHelper.shaToHex(id, 0), name, offset, e.getMessage()));
+					result.add(id, 0, CORRUPT);
+				}
+			}
+		}
+		return result;
+	}
+
+	// Id of the entry at offset, by a scan of the index since only a
+	// corrupt entry needs it
+	private static byte[] idAt(GitPack pack, long offset) {
+		for (int n = 0; n < pack.getCount(); n++) {
+			if (pack.getOffset(n) == offset) {
+				return pack.getId(n);
+			}
+		}
+		return null;
+	}
+
+	// A pack ends with the SHA-1 of everything before it
+	private Result checkPackChecksum(GitPack pack) throws IOException {
+		Result result = new Result();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 algorithm not found", e);
+		}
+		try (FileChannel channel = FileChannel.open(pack.getPackPath(), StandardOpenOption.READ)) {
+			long end = channel.size() - 20;
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+			long position = 0;
+			while (position < end) {
+				buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+				int n = channel.read(buffer, position);
+				if (n <= 0) {
+					break;
+				}
+				digest.update(buffer.array(), 0, n);
+				position += n;
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(20);
+			if (end >= 0) {
+				channel.read(trailer, end);
+			}
+			if (trailer.hasRemaining() || !Arrays.equals(digest.digest(), trailer.array())) {
+				result.errors.add(String.format("error: %s: pack checksum mismatch", pack.getPackPath().getFileName()));
+			}
+		}
+		return result;
+	}
+
+	// Records an object that checked out and the ids its content refers to
+	private static void scan(Result result, byte[] id, String fmt, byte[] data) {
+		int type = Arrays.asList(TYPE_NAMES).indexOf(fmt);
+		if (type <= 0) {
+			result.errors.add(String.format("error: %s: unknown object type %s", GitObjectHelper.shaToHex(id, 0), fmt));
+			result.add(id, 0, PRESENT);
+			return;
+		}
+		result.add(id, 0, type | PRESENT);
+		String error = switch (type) {
+		case GitPack.OBJ_COMMIT -> scanCommit(result, data);
+		case GitPack.OBJ_TREE -> scanTree(result, data);
+		case GitPack.OBJ_TAG -> scanTag(result, data);
+		default -> null;
+		};
+		if (error != null) {
+			result.errors.add(String.format("error in %s %s: %s", fmt, GitObjectHelper.shaToHex(id, 0), error));
+		}
+	}
+
+	// "tree" and "parent" headers; the first blank line ends the headers
+	private static String scanCommit(Result result, byte[] data) {
+		boolean tree = false;
+		int p = 0;
+		while (p < data.length && data[p] != '\n') {
+			int eol = indexOf(data, (byte) '\n', p);
+			if (eol < 0) {
+				return "unterminated header";
+			}
+			if (startsWith(data, p, "tree ")) {
+				if (tree || !result.addHex(data, p + 5, eol, GitPack.OBJ_TREE | REFERENCED)) {
+					return "bad tree line";
+				}
+				tree = true;
+			} else if (startsWith(data, p, "parent ")) {
+				if (!result.addHex(data, p + 7, eol, GitPack.OBJ_COMMIT | REFERENCED)) {
+					return "bad parent line";
+				}
+			}
+			p = eol + 1;
+		}
+		return tree ? null : "missing tree";
+	}
+
+	// "<octal mode> <name>\0<20 byte id>" entries; gitlinks are skipped
+	private static String scanTree(Result result, byte[] data) {
+		int p = 0;
+		while (p < data.length) {
+			int mode = 0;
+			int sp = p;
+			while (sp < data.length && data[sp] != ' ') {
+				if (data[sp] < '0' || data[sp] > '7') {
+					return "bad mode";
+				}
+				mode = mode * 8 + (data[sp++] - '0');
+			}
+			if (sp == p || sp == data.length) {
+				return "bad mode";
+			}
+			int nul = indexOf(data, (byte) 0, sp + 1);
+			if (nul <= sp + 1 || nul + 21 > data.length) {
+				return "truncated entry";
+			}
+			int kind = mode & 0170000;
+			if (kind == 0040000) {
+				result.add(data, nul + 1, GitPack.OBJ_TREE | REFERENCED);
+			} else if (kind != 0160000) {
+				result.add(data, nul + 1, GitPack.OBJ_BLOB | REFERENCED);
+			}
+			p = nul + 21;
+		}
+		return null;
+	}
+
+	// "object" and "type" headers
+	private static String scanTag(Result result, byte[] data) {
+		int object = -1;
+		int objectEnd = -1;
+		int type = 0;
+		int p = 0;
+		while (p < data.length && data[p] != '\n') {
+			int eol = indexOf(data, (byte) '\n', p);
+			if (eol < 0) {
+				return "unterminated header";
+			}
+			if (startsWith(data, p, "object ")) {
+				object = p + 7;
+				objectEnd = eol;
+			} else if (startsWith(data, p, "type ")) {
+				type = Arrays.asList(TYPE_NAMES).indexOf(new String(data, p + 5, eol - p - 5, StandardCharsets.US_ASCII));
+			}
+			p = eol + 1;
+		}
+		if (object < 0 || type <= 0) {
+			return object < 0 ? "missing object" : "bad type";
+		}
+		return result.addHex(data, object, objectEnd, type | REFERENCED) ? null : "bad object line";
+	}
+
+	// Lowercase hex only, as ids are always written
+	private static int hexDigit(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+	}
+
+	private static int indexOf(byte[] data, byte b, int from) {
+		for (int i = from; i < data.length; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(byte[] data, int at, String prefix) {
+		if (at + prefix.length() > data.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (data[at + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,554 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// .gitignore rules for a worktree.
+//
+// Patterns are compiled once into small token programs (literal characters,
+// "?", "*", "**/", classes) with fast paths for the common shapes, an exact
+// name or "*.ext". Rules are looked up through a stack of frames, one per
+// directory that has a .gitignore; deeper frames win, then info/exclude,
+// then core.excludesFile. Within a file the last matching rule wins.
+public class GitIgnore {
+	private final Path worktree;
+	// info/exclude after core.excludesFile, so it takes precedence
+	private final Frame root;
+	// Identifies the global rule files, see getFingerprint()
+	private final String fingerprint;
+	// Parsed .gitignore by directory, empty when the directory has none
+	private final Map<String, Optional<List<Rule>>> perDir = new ConcurrentHashMap<>();
+
+	private GitIgnore(Path worktree, List<Rule> global, String fingerprint) {
+		this.worktree = worktree;
+		this.root = global.isEmpty() ? null : new Frame(null, global);
+		this.fingerprint = fingerprint;
+	}
+
+	public static GitIgnore load(GitRepository repo) throws IOException {
+		List<Rule> global = new ArrayList<>();
+
+		String excludesFile = repo.getConf().get("core.excludesfile");
+		Path excludes;
+		if (excludesFile != null) {
+			excludes = excludesFile.startsWith("~/")
+					? Paths.get(System.getProperty("user.home"), excludesFile.substring(2))
+					: Paths.get(excludesFile);
+		} else {
+			String xdg = System.getenv("XDG_CONFIG_HOME");
+			excludes = xdg != null && !xdg.isEmpty() ? Paths.get(xdg, "git", "ignore")
+					: Paths.get(System.getProperty("user.home"), ".config", "git", "ignore");
+		}
+		global.addAll(parseFile(excludes, excludes.toString(), ""));
+
+		Path info = repo.getGitdir().resolve("info").resolve("exclude");
+		global.addAll(parseFile(info, ".git/info/exclude", ""));
+
+		String fingerprint = excludes + ":" + stamp(excludes) + ":" + stamp(info);
+		return new GitIgnore(repo.getWorktree(), global, fingerprint);
+	}
+
+	private static String stamp(Path file) throws IOException {
+		if (!Files.isRegularFile(file)) {
+			return "-";
+		}
+		return Files.getLastModifiedTime(file).toInstant() + "/" + Files.size(file);
+	}
+
+	// Changes whenever info/exclude or core.excludesFile does, so results
+	// cached with another fingerprint can't be trusted
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	// One directory's rules on top of its parent's
+	public static final class Frame {
+		final Frame parent;
+		final List<Rule> rules;
+
+		Frame(Frame parent, List<Rule> rules) {
+			this.parent = parent;
+			this.rules = rules;
+		}
+	}
+
+	// Frame for the worktree root, including the root .gitignore
+	public Frame rootFrame() throws IOException {
+		return push(root, "");
+	}
+
+	// Frame for dir ("" for the root, else "a/b") given its parent's frame.
+	// Directories without a .gitignore share their parent's frame.
+	public Frame push(Frame parent, String dir) throws IOException {
+		Optional<List<Rule>> rules = perDir.get(dir);
+		if (rules == null) {
+			Path file = (dir.isEmpty() ? worktree : worktree.resolve(dir)).resolve(".gitignore");
+			String source = dir.isEmpty() ? ".gitignore" : dir + "/.gitignore";
+			List<Rule> parsed = Files.isRegularFile(file) ? parseFile(file, source, dir) : Collections.emptyList();
+			rules = parsed.isEmpty() ? Optional.empty() : Optional.of(parsed);
+			perDir.put(dir, rules);
+		}
+		return rules.isPresent() ? new Frame(parent, rules.get()) : parent;
+	}
+
+	// Frame for dir with all of its parents' rules
+	public Frame frame(String dir) throws IOException {
+		Frame frame = rootFrame();
+		if (dir.isEmpty()) {
+			return frame;
+		}
+		int slash = -1;
+		while ((slash = dir.indexOf('/', slash + 1)) >= 0) {
+			frame = push(frame, dir.substring(0, slash));
+		}
+		return push(frame, dir);
+	}
+
+	// Deciding rule for path in frame's directory, or null. The caller checks
+	// Rule.negative: a matching "!pattern" means not ignored.
+	public static Rule match(Frame frame, String path, boolean isDir) {
+		int slash = path.lastIndexOf('/');
+		String name = slash < 0 ? path : path.substring(slash + 1);
+		for (Frame f = frame; f != null; f = f.parent) {
+			for (int i = f.rules.size() - 1; i >= 0; i--) {
+				Rule rule = f.rules.get(i);
+				if (rule.matches(path, name, isDir)) {
+					return rule;
+				}
+			}
+		}
+		return null;
+	}
+
+	public static boolean isIgnored(Frame frame, String path, boolean isDir) {
+		Rule rule = match(frame, path, isDir);
+		return rule != null && !rule.negative;
+	}
+
+	// Deciding rule for any worktree-relative path. Nothing under an ignored
+	// directory can be re-included, so the parents are checked first.
+	public Rule match(String path, boolean isDir) throws IOException {
+		Frame frame = rootFrame();
+		int slash = -1;
+		while ((slash = path.indexOf('/', slash + 1)) >= 0) {
+			String dir = path.substring(0, slash);
+			Rule rule = match(frame, dir, true);
+			if (rule != null && !rule.negative) {
+				return rule;
+			}
+			frame = push(frame, dir);
+		}
+		return match(frame, path, isDir);
+	}
+
+	private static List<Rule> parseFile(Path file, String source, String dir) throws IOException {
+		if (!Files.isRegularFile(file)) {
+			return Collections.emptyList();
+		}
+		List<Rule> rules = new ArrayList<>();
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		for (int i = 0; i < lines.size(); i++) {
+			Rule rule = Rule.parse(lines.get(i), source, i + 1, dir);
+			if (rule != null) {
+				rules.add(rule);
+			}
+		}
+		return rules;
+	}
+
+	// One compiled pattern line
+	public static final class Rule {
+		// Tokens other than literal characters
+		private static final int ONE = -1;
+		private static final int STAR = -2;
+		// "**/": zero or more leading directories
+		private static final int DIRS = -3;
+		// Trailing "/**": everything below
+		private static final int ALL = -4;
+		// Classes are CLASS - index into classes
+		private static final int CLASS = -100;
+
+		// Match shapes with fast paths
+		private static final int EXACT = 0;
+		private static final int SUFFIX = 1;
+		private static final int GENERAL = 2;
+
+		final String source;
+		final int line;
+		final String text;
+		final boolean negative;
+		// Trailing "/": only matches directories
+		final boolean dirOnly;
+		// Contains a "/": matched against the path below base, not the name
+		final boolean anchored;
+		// Directory holding the file, "" or "a/b/"
+		final String base;
+
+		private final int kind;
+		// The literal for EXACT, the suffix for SUFFIX
+		private final String literal;
+		private final int[] program;
+		private final CharClass[] classes;
+
+		private Rule(String source, int line, String text, boolean negative, boolean dirOnly, boolean anchored,
+				String base, int[] program, CharClass[] classes) {
+			this.source = source;
+			this.line = line;
+			this.text = text;
+			this.negative = negative;
+			this.dirOnly = dirOnly;
+			this.anchored = anchored;
+			this.base = base;
+			this.program = program;
+			this.classes = classes;
+
+			int literals = 0;
+			while (literals < program.length && program[literals] >= 0) {
+				literals++;
+			}
+			if (literals == program.length) {
+				kind = EXACT;
+				literal = programString(0);
+			} else if (!anchored && program[0] == STAR && onlyLiterals(1)) {
+				kind = SUFFIX;
+				literal = programString(1);
+			} else {
+				kind = GENERAL;
+				literal = null;
+			}
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public boolean isNegative() {
+			return negative;
+		}
+
+		// Parses one line, null for blanks and comments
+		static Rule parse(String line, String source, int lineNumber, String dir) {
+			String text = line;
+			// Trailing spaces are dropped unless escaped
+			int end = text.length();
+			while (end > 0 && text.charAt(end - 1) == ' ' && (end < 2 || text.charAt(end - 2) != '\\')) {
+				end--;
+			}
+			if (end > 0 && text.charAt(end - 1) == '\r') {
+				end--;
+			}
+			text = text.substring(0, end);
+			if (text.isEmpty() || text.charAt(0) == '#') {
+				return null;
+			}
+
+			String pattern = text;
+			boolean negative = false;
+			if (pattern.charAt(0) == '!') {
+				negative = true;
+				pattern = pattern.substring(1);
+			}
+			boolean dirOnly = false;
+			if (pattern.endsWith("/") && !pattern.endsWith("\\/")) {
+				dirOnly = true;
+				pattern = pattern.substring(0, pattern.length() - 1);
+			}
+			boolean anchored = pattern.indexOf('/') >= 0;
+			if (pattern.startsWith("/")) {
+				pattern = pattern.substring(1);
+			}
+			if (pattern.isEmpty()) {
+				return null;
+			}
+
+			List<CharClass> classes = new ArrayList<>();
+			int[] program = compile(pattern, classes);
+			return new Rule(source, lineNumber, text, negative, dirOnly, anchored,
+					dir.isEmpty() ? "" : dir + "/", program, classes.toArray(new CharClass[0]));
+		}
+
+		private static int[] compile(String pattern, List<CharClass> classes) {
+			int[] out = new int[pattern.length()];
+			int n = 0;
+			int i = 0;
+			while (i < pattern.length()) {
+				char c = pattern.charAt(i);
+				if (c == '\\' && i + 1 < pattern.length()) {
+					out[n++] = pattern.charAt(i + 1);
+					i += 2;
+				} else if (c == '?') {
+					out[n++] = ONE;
+					i++;
+				} else if (c == '*') {
+					int run = i;
+					while (run < pattern.length() && pattern.charAt(run) == '*') {
+						run++;
+					}
+					boolean segmentStart = i == 0 || pattern.charAt(i - 1) == '/';
+					if (run - i >= 2 && segmentStart && run == pattern.length()) {
+						out[n++] = ALL;
+						i = run;
+					} else if (run - i >= 2 && segmentStart && pattern.charAt(run) == '/') {
+						out[n++] = DIRS;
+						i = run + 1;
+					} else {
+						out[n++] = STAR;
+						i = run;
+					}
+				} else if (c == '[') {
+					int close = CharClass.end(pattern, i);
+					if (close < 0) {
+						out[n++] = '[';
+						i++;
+					} else {
+						classes.add(CharClass.parse(pattern, i + 1, close));
+						out[n++] = CLASS - (classes.size() - 1);
+						i = close + 1;
+					}
+				} else {
+					out[n++] = c;
+					i++;
+				}
+			}
+			int[] program = new int[n];
+			System.arraycopy(out, 0, program, 0, n);
+			return program;
+		}
+
+		private boolean onlyLiterals(int from) {
+			for (int i = from; i < program.length; i++) {
+				if (program[i] < 0 || program[i] == '/') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private String programString(int from) {
+			StringBuilder sb = new StringBuilder(program.length);
+			for (int i = from; i < program.length; i++) {
+				sb.append((char) program[i]);
+			}
+			return sb.toString();
+		}
+
+		// path is worktree relative, name its last component
+		boolean matches(String path, String name, boolean isDir) {
+			if (dirOnly && !isDir) {
+				return false;
+			}
+			String subject;
+			if (anchored) {
+				if (!path.startsWith(base)) {
+					return false;
+				}
+				subject = path.substring(base.length());
+			} else {
+				subject = name;
+			}
+			switch (kind) {
+			case EXACT:
+				return subject.equals(literal);
+			case SUFFIX:
+				return subject.endsWith(literal);
+			default:
+				return match(0, subject, 0);
+			}
+		}
+
+		private boolean match(int pi, String s, int si) {
+			while (pi < program.length) {
+				int t = program[pi];
+				if (t == STAR) {
+					pi++;
+					if (pi == program.length) {
+						return s.indexOf('/', si) < 0;
+					}
+					for (int k = si;; k++) {
+						if (match(pi, s, k)) {
+							return true;
+						}
+						if (k == s.length() || s.charAt(k) == '/') {
+							return false;
+						}
+					}
+				}
+				if (t == ALL) {
+					return true;
+				}
+				if (t == DIRS) {
+					for (int k = si;;) {
+						if (match(pi + 1, s, k)) {
+							return true;
+						}
+						int slash = s.indexOf('/', k);
+						if (slash < 0) {
+							return false;
+						}
+						k = slash + 1;
+					}
+				}
+				if (si >= s.length()) {
+					return false;
+				}
+				char c = s.charAt(si);
+				if (t == ONE) {
+					if (c == '/') {
+						return false;
+					}
+				} else if (t <= CLASS) {
+					if (c == '/' || !classes[CLASS - t].matches(c)) {
+						return false;
+					}
+				} else if (t != c) {
+					return false;
+				}
+				pi++;
+				si++;
+			}
+			return si == s.length();
+		}
+	}
+
+	// A bracket expression: ranges, single characters and [:name:] classes
+	private static final class CharClass {
+		private final boolean negate;
+		// Inclusive ranges as pairs
+		private final char[] ranges;
+		private final String[] named;
+
+		private CharClass(boolean negate, char[] ranges, String[] named) {
+			this.negate = negate;
+			this.ranges = ranges;
+			this.named = named;
+		}
+
+		// Index of the closing bracket of the class opening at start, or -1
+		static int end(String pattern, int start) {
+			int i = start + 1;
+			if (i < pattern.length() && (pattern.charAt(i) == '!' || pattern.charAt(i) == '^')) {
+				i++;
+			}
+			// A leading ] is a member
+			if (i < pattern.length() && pattern.charAt(i) == ']') {
+				i++;
+			}
+			while (i < pattern.length()) {
+				char c = pattern.charAt(i);
+				if (c == '\\') {
+					i += 2;
+					continue;
+				}
+				if (c == '[' && i + 1 < pattern.length() && pattern.charAt(i + 1) == ':') {
+					int close = pattern.indexOf(":]", i + 2);
+					if (close > 0) {
+						i = close + 2;
+						continue;
+					}
+				}
+				if (c == ']') {
+					return i;
+				}
+				i++;
+			}
+			return -1;
+		}
+
+		static CharClass parse(String pattern, int from, int to) {
+			boolean negate = false;
+			int i = from;
+			if (pattern.charAt(i) == '!' || pattern.charAt(i) == '^') {
+				negate = true;
+				i++;
+			}
+			StringBuilder ranges = new StringBuilder();
+			List<String> named = new ArrayList<>();
+			boolean first = true;
+			while (i < to) {
+				char c = pattern.charAt(i);
+				if (c == '[' && i + 1 < to && pattern.charAt(i + 1) == ':') {
+					int close = pattern.indexOf(":]", i + 2);
+					named.add(pattern.substring(i + 2, close));
+					i = close + 2;
+					first = false;
+					continue;
+				}
+				if (c == '\\' && i + 1 < to) {
+					c = pattern.charAt(++i);
+				} else if (c == ']' && !first) {
+					break;
+				}
+				char hi = c;
+				if (i + 2 < to && pattern.charAt(i + 1) == '-') {
+					hi = pattern.charAt(i + 2);
+					if (hi == '\\' && i + 3 < to) {
+						hi = pattern.charAt(i + 3);
+						i++;
+					}
+					i += 2;
+				}
+				ranges.append(c).append(hi);
+				i++;
+				first = false;
+			}
+			return new CharClass(negate, ranges.toString().toCharArray(), named.toArray(new String[0]));
+		}
+
+		boolean matches(char c) {
+			boolean found = false;
+			for (int i = 0; i < ranges.length && !found; i += 2) {
+				found = c >= ranges[i] && c <= ranges[i + 1];
+			}
+			for (int i = 0; i < named.length && !found; i++) {
+				found = isNamed(named[i], c);
+			}
+			return found != negate;
+		}
+
+		private static boolean isNamed(String name, char c) {
+			switch (name) {
+			case "alnum":
+				return c < 128 && Character.isLetterOrDigit(c);
+			case "alpha":
+				return c < 128 && Character.isLetter(c);
+			case "blank":
+				return c == ' ' || c == '\t';
+			case "digit":
+				return c >= '0' && c <= '9';
+			case "lower":
+				return c >= 'a' && c <= 'z';
+			case "upper":
+				return c >= 'A' && c <= 'Z';
+			case "space":
+				return c == ' ' || (c >= '\t' && c <= '\r');
+			case "punct":
+				return c > 32 && c < 127 && !Character.isLetterOrDigit(c);
+			case "xdigit":
+				return Character.digit(c, 16) >= 0 && c < 128;
+			case "cntrl":
+				return c < 32 || c == 127;
+			case "print":
+				return c >= 32 && c < 127;
+			case "graph":
+				return c > 32 && c < 127;
+			default:
+				return false;
+			}
+		}
+	}
+}
@@ -1,12 +1,21 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -16,6 +25,12 @@ import java.util.TimeZone;
 public class GitIndex {
 	private int version;
 	private List<GitIndexEntry> entries;
+	// Optional TREE extension, null when absent
+	private GitCacheTree cacheTree;
+	// Optional JWUC extension, null when absent
+	private GitUntrackedCache untrackedCache;
+	// Set on copies shared between threads, see readOnly()
+	private boolean readOnly;
 
 	public static final Map<Integer, String> MODE_TYPE_MAP;
 	static {
@@ -34,8 +49,16 @@ public class GitIndex {
 	}
 
 	public static GitIndex indexRead(GitRepository repo) throws IOException {
+		long start = GitMetrics.start();
+		try {
+			return indexReadUntimed(repo);
+		} finally {
+			GitMetrics.end(GitMetrics.Op.INDEX_READ, start);
+		}
+	}
+
+	private static GitIndex indexReadUntimed(GitRepository repo) throws IOException {
 		Path indexFile = GitObjectHelper.repoFile(repo, "index");
-		System.out.println(indexFile);
 		// New repositories have no index!
 		if (!Files.exists(indexFile)) {
 			return new GitIndex(2, new ArrayList<>());
@@ -62,6 +85,8 @@ public class GitIndex {
 		ByteBuffer content = ByteBuffer.wrap(raw, 12, raw.length - 12).order(ByteOrder.BIG_ENDIAN);
 
 		for (int i = 0; i < count; i++) {
+			int entryStart = content.position();
+
 			// Read fields
 			long ctimeS = content.getInt() & 0xFFFFFFFFL;
 			long ctimeNs = content.getInt() & 0xFFFFFFFFL;
@@ -73,7 +98,7 @@ public class GitIndex {
 			if (unused != 0) {
 				throw new IOException("Unused field is not zero");
 			}
-			int mode = content.getShort();
+			int mode = content.getShort() & 0xFFFF;
 			int modeType = mode >> 12;
 			int modePerms = mode & 0x1FF;
 			int uid = content.getInt();
@@ -82,7 +107,7 @@ public class GitIndex {
 			byte[] shaBytes = new byte[20];
 			content.get(shaBytes);
 			String sha = String.format("%040x", new BigInteger(1, shaBytes));
-			int flags = content.getShort();
+			int flags = content.getShort() & 0xFFFF;
 			boolean flagAssumeValid = (flags & 0x8000) != 0;
 			boolean flagExtended = (flags & 0x4000) != 0;
 			if (flagExtended) {
@@ -107,16 +132,167 @@ public class GitIndex {
 			}
 			String name = new String(nameBytes, "UTF-8");
 
-			// Skip padding bytes
-			int align = (8 - (content.position() % 8)) % 8;
-			content.position(content.position() + align);
+			// Skip padding bytes, entries are padded to a multiple of 8 from their start
+			int entryLength = content.position() - entryStart;
+			content.position(entryStart + ((entryLength + 7) & ~7));
 
 			entries.add(new GitIndexEntry(new Tuple<>((int) ctimeS, (int) ctimeNs),
 					new Tuple<>((int) mtimeS, (int) mtimeNs), dev, ino, modeType, modePerms, uid, gid, fsize, sha,
 					flagAssumeValid, flagStage, name));
 		}
 
-		return new GitIndex(version, entries);
+		// Extensions between the entries and the trailing checksum. Other
+		// tools' optional ones (upper case signature) are caches that go stale
+		// once we rewrite the index, so they are dropped.
+		GitIndex index = new GitIndex(version, entries);
+		int end = raw.length - 20;
+		while (content.position() + 8 <= end) {
+			byte[] extension = new byte[4];
+			content.get(extension);
+			int size = content.getInt();
+			if (size < 0 || content.position() + size > end) {
+				throw new IOException("Truncated index extension");
+			}
+			String name = new String(extension, StandardCharsets.US_ASCII);
+			if (name.equals(GitCacheTree.SIGNATURE)) {
+				index.cacheTree = GitCacheTree
+						.parse(Arrays.copyOfRange(raw, content.position(), content.position() + size));
+			} else if (name.equals(GitUntrackedCache.SIGNATURE)) {
+				index.untrackedCache = GitUntrackedCache
+						.parse(Arrays.copyOfRange(raw, content.position(), content.position() + size));
+			} else if (extension[0] < 'A' || extension[0] > 'Z') {
+				throw new IOException("Unsupported index extension " + name);
+			}
+			content.position(content.position() + size);
+		}
+
+		return index;
+	}
+
+	// Writes the index through index.lock, renamed over the index once
+	// complete. Read-modify-write callers take a Lock before reading instead.
+	public static void indexWrite(GitRepository repo, GitIndex index) throws IOException {
+		try (Lock lock = Lock.lock(repo)) {
+			lock.commit(index);
+		}
+	}
+
+	// index.lock held from before a read until the rewritten index is
+	// renamed into place, as git does, so that no two writers both start
+	// from the same index. Closing without commit() leaves the index as it
+	// was.
+	public static final class Lock implements Closeable {
+		private final GitRepository repo;
+		private final Path lockFile;
+		private boolean committed;
+
+		private Lock(GitRepository repo, Path lockFile) {
+			this.repo = repo;
+			this.lockFile = lockFile;
+		}
+
+		public static Lock lock(GitRepository repo) throws IOException {
+			Path lockFile = GitObjectHelper.repoFile(repo, "index.lock");
+			try {
+				Files.createFile(lockFile);
+			} catch (FileAlreadyExistsException e) {
+				throw new IOException("Index is locked by another process: " + lockFile, e);
+			}
+			return new Lock(repo, lockFile);
+		}
+
+		// Null when another process holds the lock, for writes that are only
+		// worth doing if nobody else is at it
+		public static Lock tryLock(GitRepository repo) throws IOException {
+			try {
+				return lock(repo);
+			} catch (IOException e) {
+				if (e.getCause() instanceof FileAlreadyExistsException) {
+					return null;
+				}
+				throw e;
+			}
+		}
+
+		// The index as it is under this lock
+		public GitIndex read() throws IOException {
+			return indexRead(repo);
+		}
+
+		public void commit(GitIndex index) throws IOException {
+			if (committed) {
+				throw new IOException("Index lock already committed");
+			}
+			Files.write(lockFile, index.serialize(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			Files.move(lockFile, GitObjectHelper.repoFile(repo, "index"), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				Files.deleteIfExists(lockFile);
+			}
+		}
+	}
+
+	private byte[] serialize() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + entries.size() * 96);
+
+		// Header
+		ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.BIG_ENDIAN);
+		header.put("DIRC".getBytes(StandardCharsets.US_ASCII));
+		header.putInt(2);
+		header.putInt(entries.size());
+		out.write(header.array(), 0, 12);
+
+		for (GitIndexEntry e : entries) {
+			byte[] name = e.name().getBytes(StandardCharsets.UTF_8);
+			// 62 bytes of fields, the name, then 1 to 8 NULs up to a multiple of 8
+			int length = (62 + name.length + 8) & ~7;
+			ByteBuffer entry = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+			entry.putInt(e.ctime().getFirst());
+			entry.putInt(e.ctime().getSecond());
+			entry.putInt(e.mtime().getFirst());
+			entry.putInt(e.mtime().getSecond());
+			entry.putInt(e.dev());
+			entry.putInt(e.ino());
+			entry.putShort((short) 0);
+			entry.putShort((short) ((e.modeType() << 12) | e.modePerms()));
+			entry.putInt(e.uid());
+			entry.putInt(e.gid());
+			entry.putInt(e.fsize());
+			entry.put(GitObjectHelper.shaToBytes(e.sha()));
+			int flags = (e.flagAssumeValid() ? 0x8000 : 0) | e.flagStage() | Math.min(name.length, 0xFFF);
+			entry.putShort((short) flags);
+			entry.put(name);
+			out.write(entry.array(), 0, length);
+		}
+
+		if (cacheTree != null) {
+			writeExtension(out, GitCacheTree.SIGNATURE, cacheTree.serialize());
+		}
+		if (untrackedCache != null) {
+			writeExtension(out, GitUntrackedCache.SIGNATURE, untrackedCache.serialize());
+		}
+
+		// Trailing checksum of everything before it
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(out.toByteArray());
+			out.write(digest, 0, digest.length);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 algorithm not found", e);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeExtension(ByteArrayOutputStream out, String signature, byte[] data) {
+		ByteBuffer extension = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+		extension.put(signature.getBytes(StandardCharsets.US_ASCII));
+		extension.putInt(data.length);
+		out.write(extension.array(), 0, 8);
+		out.write(data, 0, data.length);
 	}
 
 	private static int findNullByteIndex(byte[] array, int start) {
@@ -128,6 +304,16 @@ public class GitIndex {
 		return -1;
 	}
 
+	// A copy that can't be changed through its setters or entry list, for
+	// GitRepository to share. Changes go into a new GitIndex.
+	public GitIndex readOnly() {
+		GitIndex copy = new GitIndex(version, Collections.unmodifiableList(new ArrayList<>(entries)));
+		copy.cacheTree = cacheTree;
+		copy.untrackedCache = untrackedCache;
+		copy.readOnly = true;
+		return copy;
+	}
+
 	public int getVersion() {
 		return this.version;
 	}
@@ -136,6 +322,30 @@ public class GitIndex {
 		return this.entries;
 	}
 
+	public GitCacheTree getCacheTree() {
+		return this.cacheTree;
+	}
+
+	public void setCacheTree(GitCacheTree cacheTree) {
+		checkWritable();
+		this.cacheTree = cacheTree;
+	}
+
+	public GitUntrackedCache getUntrackedCache() {
+		return this.untrackedCache;
+	}
+
+	public void setUntrackedCache(GitUntrackedCache untrackedCache) {
+		checkWritable();
+		this.untrackedCache = untrackedCache;
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Shared index is read-only");
+		}
+	}
+
 	public static String formatTimestamp(long seconds) {
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
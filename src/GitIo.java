@@ -0,0 +1,11 @@
+import java.io.InputStream;
+import java.io.PrintStream;
+
+// The standard streams of one command. The CLI runs commands on the
+// process's own; GitDaemon gives each connection its own, so that clients
+// are served at the same time without sharing System.out.
+public record GitIo(InputStream in, PrintStream out, PrintStream err) {
+	public static GitIo system() {
+		return new GitIo(System.in, System.out, System.err);
+	}
+}
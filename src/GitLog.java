@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+// log -- <path>...: the commits that changed the paths, newest committer
+// date first, with git's default history simplification. A commit with the
+// same content at the paths as one of its parents (TREESAME) isn't shown,
+// and only that parent is followed, so a merge that kept one side's version
+// hides the other side's history of the paths.
+//
+// Commits in the commit-graph are walked without reading them. With its
+// changed-path Bloom filters, most comparisons against a first parent are
+// settled without reading a tree either: on a monorepo, the history of one
+// file only diffs the commits whose filters might have its path.
+public class GitLog {
+	private final GitRepository repo;
+	private final GitCommitGraph graph;
+	private final GitTreeDiff diff;
+	// Each path split at '/', an empty array for the whole tree
+	private final List<String[]> paths = new ArrayList<>();
+	// Bloom keys of each path and its leading directories, null when the
+	// filters can't be used
+	private final List<List<int[]>> bloomKeys;
+
+	private final Set<String> seen = new HashSet<>();
+	private final PriorityQueue<Node> queue = new PriorityQueue<>(
+			(a, b) -> a.time() != b.time() ? Long.compare(b.time(), a.time()) : Integer.compare(a.order(), b.order()));
+	private int queued;
+
+	// A commit waiting to be walked; order breaks date ties first in, first out
+	private record Node(String sha, long time, String tree, List<String> parents, int order) {
+	}
+
+	// paths are relative to the top of the worktree; none shows the whole
+	// history
+	public GitLog(GitRepository repo, List<String> paths) throws IOException {
+		this.repo = repo;
+		this.graph = repo.getCommitGraph();
+		this.diff = new GitTreeDiff(repo);
+		boolean wholeTree = false;
+		for (String path : paths) {
+			String normalized = path.replaceAll("/+$", "").replaceAll("^(\\./)+", "");
+			if (normalized.isEmpty() || normalized.equals(".")) {
+				wholeTree = true;
+				this.paths.add(new String[0]);
+			} else {
+				this.paths.add(normalized.split("/+"));
+			}
+		}
+		if (graph == null || !graph.hasBloomFilters() || wholeTree) {
+			bloomKeys = null;
+		} else {
+			bloomKeys = new ArrayList<>();
+			for (String[] components : this.paths) {
+				List<int[]> keys = new ArrayList<>();
+				String key = components[0];
+				keys.add(graph.bloomKey(key));
+				for (int i = 1; i < components.length; i++) {
+					key += "/" + components[i];
+					keys.add(graph.bloomKey(key));
+				}
+				bloomKeys.add(keys);
+			}
+		}
+	}
+
+	// Prints "<sha> <subject>" of each commit shown, walking from start.
+	// Returns the number of commits shown.
+	public int run(String start, PrintStream out) throws IOException {
+		enqueue(start);
+		int shown = 0;
+		while (!queue.isEmpty()) {
+			Node node = queue.poll();
+			List<String> parents = node.parents();
+			boolean treesame = false;
+			if (paths.isEmpty()) {
+				// No paths limit nothing, as with git log --: every commit is
+				// shown and every parent followed
+			} else if (parents.isEmpty()) {
+				// A root commit changed the paths if it has them
+				treesame = same(null, node.tree());
+			}
+			for (int i = 0; i < parents.size() && !treesame && !paths.isEmpty(); i++) {
+				String parent = parents.get(i);
+				if (i == 0 ? !maybeChanged(node) || same(parentTree(parent), node.tree())
+						: same(parentTree(parent), node.tree())) {
+					parents = List.of(parent);
+					treesame = true;
+				}
+			}
+			if (!treesame) {
+				out.println(node.sha() + " " + subject(node.sha()));
+				shown++;
+			}
+			for (String parent : parents) {
+				enqueue(parent);
+			}
+		}
+		return shown;
+	}
+
+	// False when the Bloom filter proves that no path changed against the
+	// first parent
+	private boolean maybeChanged(Node node) {
+		if (bloomKeys == null) {
+			return true;
+		}
+		int pos = graph.find(GitObjectHelper.shaToBytes(node.sha()));
+		if (pos < 0) {
+			return true;
+		}
+		for (List<int[]> keys : bloomKeys) {
+			if (graph.maybeChanged(pos, keys)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Whether every path is the same in both trees (null for an empty tree)
+	private boolean same(String a, String b) throws IOException {
+		for (String[] path : paths) {
+			if (!diff.samePath(a, b, path)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String parentTree(String sha) throws IOException {
+		int pos = graph == null ? -1 : graph.find(GitObjectHelper.shaToBytes(sha));
+		return pos >= 0 ? graph.getTree(pos) : readCommit(sha).getTree();
+	}
+
+	private void enqueue(String sha) throws IOException {
+		if (!seen.add(sha)) {
+			return;
+		}
+		int pos = graph == null ? -1 : graph.find(GitObjectHelper.shaToBytes(sha));
+		if (pos >= 0) {
+			List<String> parents = new ArrayList<>();
+			for (int parent : graph.getParents(pos)) {
+				parents.add(graph.getId(parent));
+			}
+			queue.add(new Node(sha, graph.getCommitTime(pos), graph.getTree(pos), parents, queued++));
+		} else {
+			GitCommit commit = readCommit(sha);
+			queue.add(new Node(sha, GitCommitGraph.commitTime(commit), commit.getTree(), commit.getParents(),
+					queued++));
+		}
+	}
+
+	// The first paragraph of the message on one line, as git's %s
+	private String subject(String sha) throws IOException {
+		String message = readCommit(sha).getMessage();
+		if (message == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String line : message.split("\n")) {
+			String trimmed = line.stripTrailing();
+			if (trimmed.isEmpty()) {
+				if (sb.length() > 0) {
+					break;
+				}
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(trimmed);
+		}
+		return sb.toString();
+	}
+
+	private GitCommit readCommit(String sha) throws IOException {
+		GitObject obj = GitObjectHelper.objectRead(repo, sha);
+		if (!(obj instanceof GitCommit) || obj instanceof GitTag) {
+			throw new IOException("Not a commit: " + sha);
+		}
+		return (GitCommit) obj;
+	}
+}
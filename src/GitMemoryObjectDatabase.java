@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Objects kept in memory only, for throwaway repositories: nothing touches
+// the file system and nothing is compressed.
+//
+// Contents live off-heap, appended to direct buffers of CHUNK_SIZE bytes
+// (large objects get a buffer of their own), so a big store neither
+// inflates the Java heap nor slows the collector down. Only the id to
+// location map is on the heap. Everything is released on close().
+public class GitMemoryObjectDatabase implements GitObjectDatabase {
+	private static final int CHUNK_SIZE = 4 << 20;
+
+	// Where an object's content is: a read-only window of its chunk
+	private record Entry(String fmt, ByteBuffer chunk, int offset, int length) {
+	}
+
+	private final Map<String, Entry> objects = new ConcurrentHashMap<>();
+	private final List<ByteBuffer> chunks = new ArrayList<>();
+	private ByteBuffer current;
+	private long size;
+	private boolean closed;
+
+	@Override
+	public Tuple<GitObjectInfo, InputStream> open(String sha) {
+		Entry entry = objects.get(sha);
+		if (entry == null) {
+			return null;
+		}
+		return new Tuple<>(new GitObjectInfo(entry.fmt, entry.length),
+				new BufferInputStream(entry.chunk.slice(entry.offset, entry.length)));
+	}
+
+	@Override
+	public GitObjectInfo info(String sha) {
+		Entry entry = objects.get(sha);
+		return entry == null ? null : new GitObjectInfo(entry.fmt, entry.length);
+	}
+
+	@Override
+	public boolean contains(String sha) {
+		return objects.containsKey(sha);
+	}
+
+	// Copied straight out of the chunk, without the stream open() would use
+	@Override
+	public Tuple<GitObjectInfo, byte[]> read(String sha) {
+		Entry entry = objects.get(sha);
+		if (entry == null) {
+			return null;
+		}
+		byte[] data = new byte[entry.length];
+		entry.chunk.get(entry.offset, data);
+		return new Tuple<>(new GitObjectInfo(entry.fmt, entry.length), data);
+	}
+
+	@Override
+	public synchronized void write(String fmt, byte[] data, String sha) throws IOException {
+		if (objects.containsKey(sha)) {
+			return;
+		}
+		if (closed) {
+			throw new IOException("Object database is closed");
+		}
+		ByteBuffer chunk;
+		if (data.length > CHUNK_SIZE / 4) {
+			chunk = ByteBuffer.allocateDirect(data.length);
+			chunks.add(chunk);
+		} else {
+			if (current == null || current.remaining() < data.length) {
+				current = ByteBuffer.allocateDirect(CHUNK_SIZE);
+				chunks.add(current);
+			}
+			chunk = current;
+		}
+		int offset = chunk.position();
+		chunk.put(data);
+		size += data.length;
+		// Readers only ever use absolute gets on their own view, never the
+		// position the writer moves
+		objects.put(sha, new Entry(fmt.intern(), chunk.asReadOnlyBuffer(), offset, data.length));
+	}
+
+	@Override
+	public void findPrefix(String prefix, Set<String> out) {
+		for (String sha : objects.keySet()) {
+			if (sha.startsWith(prefix)) {
+				out.add(sha);
+			}
+		}
+	}
+
+	public int getCount() {
+		return objects.size();
+	}
+
+	// Bytes of object content held
+	public synchronized long getSize() {
+		return size;
+	}
+
+	// Drops every object; the direct buffers are freed once unreachable
+	@Override
+	public synchronized void close() {
+		objects.clear();
+		chunks.clear();
+		current = null;
+		size = 0;
+		closed = true;
+	}
+
+	// Reads a buffer from its position to its limit
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
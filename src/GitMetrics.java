@@ -0,0 +1,231 @@
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Counters and latency histograms for the hot operations. Nothing is
+// recorded unless metrics were enabled (--trace-perf, -Djwyag.metrics=true);
+// until then every hook is a single read of a static boolean, and no JFR
+// class is loaded, which would cost every command its startup time. Once
+// enabled, each operation is also a jwyag.Operation JFR event, committed
+// when a running recording has it enabled.
+public final class GitMetrics {
+
+	public enum Op {
+		OBJECT_READ("object-read"), OBJECT_WRITE("object-write"), REF_RESOLVE("ref-resolve"),
+		INDEX_READ("index-read"), TREE_CHECKOUT("tree-checkout");
+
+		final String label;
+
+		Op(String label) {
+			this.label = label;
+		}
+	}
+
+	@Name("jwyag.Operation")
+	@Label("Git Operation")
+	@Category("jwyag")
+	static class OperationEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Duration (ns)")
+		long durationNanos;
+	}
+
+	// Latency in power of two nanosecond buckets
+	private static final class Histogram {
+		final LongAdder calls = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final AtomicLongArray buckets = new AtomicLongArray(64);
+
+		void record(long elapsed) {
+			calls.increment();
+			nanos.add(elapsed);
+			buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(elapsed, 1)));
+		}
+
+		// Upper bound of the bucket holding the given fraction of calls
+		long percentile(double fraction) {
+			long total = calls.sum();
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if (seen > 0 && seen >= total * fraction) {
+					return 1L << Math.min(i + 1, 62);
+				}
+			}
+			return 0;
+		}
+
+		void reset() {
+			calls.reset();
+			nanos.reset();
+			for (int i = 0; i < 64; i++) {
+				buckets.set(i, 0);
+			}
+		}
+	}
+
+	// The only field read on the fast path
+	private static volatile boolean enabled = false;
+
+	private static final Map<Op, Histogram> OPS = new EnumMap<>(Op.class);
+	private static final LongAdder BYTES_INFLATED = new LongAdder();
+	private static final LongAdder BYTES_DEFLATED = new LongAdder();
+	// Cache name -> { hits, misses }
+	private static final Map<String, LongAdder[]> CACHES = new ConcurrentHashMap<>();
+
+	static {
+		for (Op op : Op.values()) {
+			OPS.put(op, new Histogram());
+		}
+		if (Boolean.getBoolean("jwyag.metrics")) {
+			enable();
+		}
+	}
+
+	private GitMetrics() {
+	}
+
+	public static synchronized void enable() {
+		if (enabled) {
+			return;
+		}
+		enabled = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(),
+					new ObjectName("jwyag:type=Metrics"));
+		} catch (JMException e) {
+			// Already registered, or JMX unavailable; counters still work
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	// Returns a start timestamp to pass to end(), 0 when inactive
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	public static void end(Op op, long start) {
+		if (start == 0) {
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+		OPS.get(op).record(elapsed);
+		OperationEvent event = new OperationEvent();
+		if (event.shouldCommit()) {
+			event.operation = op.label;
+			event.durationNanos = elapsed;
+			event.commit();
+		}
+	}
+
+	public static void inflated(long bytes) {
+		if (enabled) {
+			BYTES_INFLATED.add(bytes);
+		}
+	}
+
+	public static void deflated(long bytes) {
+		if (enabled) {
+			BYTES_DEFLATED.add(bytes);
+		}
+	}
+
+	public static void cacheHit(String cache) {
+		if (enabled) {
+			cacheCounters(cache)[0].increment();
+		}
+	}
+
+	public static void cacheMiss(String cache) {
+		if (enabled) {
+			cacheCounters(cache)[1].increment();
+		}
+	}
+
+	private static LongAdder[] cacheCounters(String cache) {
+		return CACHES.computeIfAbsent(cache, k -> new LongAdder[] { new LongAdder(), new LongAdder() });
+	}
+
+	public static Map<String, Long> counters() {
+		Map<String, Long> ret = new LinkedHashMap<>();
+		for (Map.Entry<Op, Histogram> entry : OPS.entrySet()) {
+			ret.put(entry.getKey().label + ".calls", entry.getValue().calls.sum());
+			ret.put(entry.getKey().label + ".nanos", entry.getValue().nanos.sum());
+		}
+		ret.put("bytes.inflated", BYTES_INFLATED.sum());
+		ret.put("bytes.deflated", BYTES_DEFLATED.sum());
+		for (Map.Entry<String, LongAdder[]> entry : CACHES.entrySet()) {
+			ret.put("cache." + entry.getKey() + ".hits", entry.getValue()[0].sum());
+			ret.put("cache." + entry.getKey() + ".misses", entry.getValue()[1].sum());
+		}
+		return ret;
+	}
+
+	public static String summary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-14s %10s %12s %10s %10s %10s%n", "operation", "calls", "total ms", "avg us",
+				"p50 us", "p99 us"));
+		for (Map.Entry<Op, Histogram> entry : OPS.entrySet()) {
+			Histogram h = entry.getValue();
+			long calls = h.calls.sum();
+			if (calls == 0) {
+				continue;
+			}
+			long nanos = h.nanos.sum();
+			sb.append(String.format("%-14s %10d %12.2f %10.1f %10s %10s%n", entry.getKey().label, calls,
+					nanos / 1e6, nanos / 1e3 / calls, String.format("<%.1f", h.percentile(0.5) / 1e3),
+					String.format("<%.1f", h.percentile(0.99) / 1e3)));
+		}
+		sb.append(String.format("bytes inflated: %d, deflated: %d%n", BYTES_INFLATED.sum(), BYTES_DEFLATED.sum()));
+		for (Map.Entry<String, LongAdder[]> entry : CACHES.entrySet()) {
+			long hits = entry.getValue()[0].sum();
+			long misses = entry.getValue()[1].sum();
+			sb.append(String.format("cache %s: %d hits, %d misses (%.1f%% hit ratio)%n", entry.getKey(), hits,
+					misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses)));
+		}
+		return sb.toString();
+	}
+
+	public static void reset() {
+		for (Histogram h : OPS.values()) {
+			h.reset();
+		}
+		BYTES_INFLATED.reset();
+		BYTES_DEFLATED.reset();
+		CACHES.clear();
+	}
+
+	private static final class MXBean implements GitMetricsMXBean {
+		@Override
+		public Map<String, Long> getCounters() {
+			return counters();
+		}
+
+		@Override
+		public String getSummary() {
+			return summary();
+		}
+
+		@Override
+		public void reset() {
+			GitMetrics.reset();
+		}
+	}
+}
@@ -0,0 +1,11 @@
+import java.util.Map;
+
+// JMX view of GitMetrics, registered as jwyag:type=Metrics
+public interface GitMetricsMXBean {
+	// Calls, total nanoseconds, bytes and cache hits/misses by name
+	Map<String, Long> getCounters();
+
+	String getSummary();
+
+	void reset();
+}
@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// objects/pack/multi-pack-index: one sorted id table over many packs, so a
+// lookup is a single binary search however many packs there are. Version 1
+// format as written by git: a header, a chunk table, then the PNAM (pack
+// names), OIDF (fanout), OIDL (ids), OOFF (pack and offset per id) and
+// optional LOFF (64 bit offsets) chunks, and a SHA-1 trailer.
+public class GitMultiPackIndex {
+	public static final String FILE = "multi-pack-index";
+
+	private static final int SIGNATURE = 0x4d494458; // "MIDX"
+	private static final int CHUNK_PNAM = 0x504e414d;
+	private static final int CHUNK_OIDF = 0x4f494446;
+	private static final int CHUNK_OIDL = 0x4f49444c;
+	private static final int CHUNK_OOFF = 0x4f4f4646;
+	private static final int CHUNK_LOFF = 0x4c4f4646;
+	private static final int LARGE_OFFSET = 0x80000000;
+
+	private final ByteBuffer midx;
+	// Packs by pack-int-id, the order of their names in PNAM
+	private final GitPack[] packs;
+	private final int count;
+	private final int fanout;
+	private final int ids;
+	private final int offsets;
+	// -1 without a LOFF chunk
+	private final int largeOffsets;
+
+	private GitMultiPackIndex(ByteBuffer midx, GitPack[] packs, int fanout, int ids, int offsets, int largeOffsets) {
+		this.midx = midx;
+		this.packs = packs;
+		this.fanout = fanout;
+		this.count = midx.getInt(fanout + 255 * 4);
+		this.ids = ids;
+		this.offsets = offsets;
+		this.largeOffsets = largeOffsets;
+	}
+
+	// Maps the multi-pack-index of packDir. packs are the opened packs by
+	// .idx file name; null is returned if the file names a pack that isn't
+	// there, in which case the packs have to be searched one by one.
+	public static GitMultiPackIndex open(Path packDir, Map<String, GitPack> packs) throws IOException {
+		Path path = packDir.resolve(FILE);
+		ByteBuffer midx;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			midx = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.BIG_ENDIAN);
+		}
+		if (midx.limit() < 12 + 20 || midx.getInt(0) != SIGNATURE) {
+			throw new IOException("Not a multi-pack-index: " + path);
+		}
+		if (midx.get(4) != 1 || midx.get(5) != 1) {
+			throw new IOException("Unsupported multi-pack-index version in " + path);
+		}
+		int chunkCount = midx.get(6) & 0xff;
+		int packCount = midx.getInt(8);
+
+		Map<Integer, Integer> chunks = new HashMap<>();
+		for (int i = 0; i < chunkCount; i++) {
+			int entry = 12 + i * 12;
+			chunks.put(midx.getInt(entry), (int) midx.getLong(entry + 4));
+		}
+		for (int id : new int[] { CHUNK_PNAM, CHUNK_OIDF, CHUNK_OIDL, CHUNK_OOFF }) {
+			if (!chunks.containsKey(id)) {
+				throw new IOException("Multi-pack-index is missing a required chunk: " + path);
+			}
+		}
+
+		GitPack[] byId = new GitPack[packCount];
+		int pos = chunks.get(CHUNK_PNAM);
+		for (int i = 0; i < packCount; i++) {
+			int end = pos;
+			while (midx.get(end) != 0) {
+				end++;
+			}
+			byte[] name = new byte[end - pos];
+			midx.get(pos, name);
+			byId[i] = packs.get(new String(name, StandardCharsets.UTF_8));
+			if (byId[i] == null) {
+				return null;
+			}
+			pos = end + 1;
+		}
+		return new GitMultiPackIndex(midx, byId, chunks.get(CHUNK_OIDF), chunks.get(CHUNK_OIDL),
+				chunks.get(CHUNK_OOFF), chunks.getOrDefault(CHUNK_LOFF, -1));
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	// Whether pack's objects are all listed here
+	public boolean covers(GitPack pack) {
+		for (GitPack p : packs) {
+			if (p == pack) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Pack and offset of id, or null
+	public Tuple<GitPack, Long> find(byte[] id) {
+		int first = id[0] & 0xff;
+		int lo = first == 0 ? 0 : midx.getInt(fanout + (first - 1) * 4);
+		int hi = midx.getInt(fanout + first * 4);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareId(mid, id);
+			if (cmp == 0) {
+				return new Tuple<>(packs[midx.getInt(offsets + mid * 8)], getOffset(mid));
+			} else if (cmp < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return null;
+	}
+
+	// Adds the full hex id of every object starting with prefix (at least two
+	// hex digits); one binary search to the first candidate
+	public void findPrefix(String prefix, Collection<String> out) {
+		int first = Integer.parseInt(prefix.substring(0, 2), 16);
+		int lo = first == 0 ? 0 : midx.getInt(fanout + (first - 1) * 4);
+		int hi = midx.getInt(fanout + first * 4);
+		byte[] low = GitObjectHelper.shaToBytes((prefix + "0".repeat(40)).substring(0, 40));
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareId(mid, low) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int n = lo; n < count; n++) {
+			byte[] id = new byte[20];
+			midx.get(ids + n * 20, id);
+			String sha = GitObjectHelper.shaToHex(id, 0);
+			if (!sha.startsWith(prefix)) {
+				break;
+			}
+			out.add(sha);
+		}
+	}
+
+	private long getOffset(int n) {
+		int off = midx.getInt(offsets + n * 8 + 4);
+		if (largeOffsets >= 0 && (off & LARGE_OFFSET) != 0) {
+			return midx.getLong(largeOffsets + (off & 0x7fffffff) * 8);
+		}
+		return off & 0xffffffffL;
+	}
+
+	private int compareId(int n, byte[] id) {
+		int base = ids + n * 20;
+		for (int i = 0; i < 20; i++) {
+			int a = midx.get(base + i) & 0xff;
+			int b = id[i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	// Writes a multi-pack-index over every pack of the repository, returning
+	// the number of objects. An object in several packs is listed in the most
+	// recently modified one.
+	public static int write(GitRepository repo) throws IOException {
+		repo.rescanPacks();
+		List<GitPack> sorted = new ArrayList<>(repo.getPacks());
+		sorted.sort(Comparator.comparing(GitMultiPackIndex::idxName));
+		int packCount = sorted.size();
+		long[] mtimes = new long[packCount];
+		for (int i = 0; i < packCount; i++) {
+			FileTime mtime = Files.getLastModifiedTime(sorted.get(i).getPackPath());
+			mtimes[i] = mtime.toMillis();
+		}
+
+		// Merge the packs' sorted id tables
+		int total = 0;
+		for (GitPack pack : sorted) {
+			total += pack.getCount();
+		}
+		byte[] oids = new byte[total * 20];
+		int[] packIds = new int[total];
+		long[] packOffsets = new long[total];
+		int n = 0;
+		PriorityQueue<Cursor> cursors = new PriorityQueue<>((a, b) -> {
+			int c = Arrays.compareUnsigned(a.id, b.id);
+			return c != 0 ? c : Long.compare(mtimes[b.pack], mtimes[a.pack]);
+		});
+		for (int i = 0; i < packCount; i++) {
+			if (sorted.get(i).getCount() > 0) {
+				cursors.add(new Cursor(i, sorted.get(i).getId(0)));
+			}
+		}
+		byte[] last = null;
+		while (!cursors.isEmpty()) {
+			Cursor cursor = cursors.poll();
+			GitPack pack = sorted.get(cursor.pack);
+			// Duplicates come newest pack first
+			if (last == null || !Arrays.equals(last, cursor.id)) {
+				System.arraycopy(cursor.id, 0, oids, n * 20, 20);
+				packIds[n] = cursor.pack;
+				packOffsets[n] = pack.getOffset(cursor.n);
+				n++;
+				last = cursor.id;
+			}
+			if (++cursor.n < pack.getCount()) {
+				cursor.id = pack.getId(cursor.n);
+				cursors.add(cursor);
+			}
+		}
+
+		// Offsets of 4 GiB and up need the LOFF chunk; when it's there, every
+		// offset with the top bit set goes into it
+		boolean largeNeeded = false;
+		int large = 0;
+		for (int i = 0; i < n; i++) {
+			largeNeeded |= packOffsets[i] > 0xffffffffL;
+			if (packOffsets[i] > 0x7fffffffL) {
+				large++;
+			}
+		}
+		if (!largeNeeded) {
+			large = 0;
+		}
+
+		ByteBuffer pnam = ByteBuffer.allocate(sorted.stream().mapToInt(p -> idxName(p).length() + 1).sum() + 3);
+		for (GitPack pack : sorted) {
+			pnam.put(idxName(pack).getBytes(StandardCharsets.UTF_8)).put((byte) 0);
+		}
+		int pnamSize = (pnam.position() + 3) & ~3;
+
+		int chunkCount = largeNeeded ? 5 : 4;
+		int[] chunkIds = { CHUNK_PNAM, CHUNK_OIDF, CHUNK_OIDL, CHUNK_OOFF, CHUNK_LOFF };
+		long[] chunkSizes = { pnamSize, 256 * 4, n * 20L, n * 8L, large * 8L };
+		long size = 12 + (chunkCount + 1) * 12;
+		for (int i = 0; i < chunkCount; i++) {
+			size += chunkSizes[i];
+		}
+		if (size + 20 > Integer.MAX_VALUE) {
+			throw new IOException("Too many objects for a multi-pack-index");
+		}
+
+		ByteBuffer out = ByteBuffer.allocate((int) size + 20);
+		out.putInt(SIGNATURE);
+		out.put((byte) 1).put((byte) 1).put((byte) chunkCount).put((byte) 0);
+		out.putInt(packCount);
+		long chunkOffset = 12 + (chunkCount + 1) * 12;
+		for (int i = 0; i < chunkCount; i++) {
+			out.putInt(chunkIds[i]).putLong(chunkOffset);
+			chunkOffset += chunkSizes[i];
+		}
+		out.putInt(0).putLong(chunkOffset);
+
+		out.put(pnam.array(), 0, pnamSize);
+		int[] fanout = new int[256];
+		for (int i = 0; i < n; i++) {
+			fanout[oids[i * 20] & 0xff]++;
+		}
+		int running = 0;
+		for (int i = 0; i < 256; i++) {
+			running += fanout[i];
+			out.putInt(running);
+		}
+		out.put(oids, 0, n * 20);
+		int nextLarge = 0;
+		for (int i = 0; i < n; i++) {
+			out.putInt(packIds[i]);
+			if (largeNeeded && packOffsets[i] > 0x7fffffffL) {
+				out.putInt(LARGE_OFFSET | nextLarge++);
+			} else {
+				out.putInt((int) packOffsets[i]);
+			}
+		}
+		if (largeNeeded) {
+			for (int i = 0; i < n; i++) {
+				if (packOffsets[i] > 0x7fffffffL) {
+					out.putLong(packOffsets[i]);
+				}
+			}
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(out.array(), 0, out.position());
+			out.put(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 algorithm not found", e);
+		}
+
+		Path packDir = GitObjectHelper.repoFile(repo, "objects", "pack");
+		Files.createDirectories(packDir);
+		Path tmp = Files.createTempFile(packDir, "tmp_midx_", "");
+		try {
+			Files.write(tmp, out.array());
+			Files.move(tmp, packDir.resolve(FILE), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		repo.rescanPacks();
+		return n;
+	}
+
+	// Position in one pack's id table while merging
+	private static final class Cursor {
+		final int pack;
+		int n;
+		byte[] id;
+
+		Cursor(int pack, byte[] id) {
+			this.pack = pack;
+			this.id = id;
+		}
+	}
+
+	private static String idxName(GitPack pack) {
+		String name = pack.getPackPath().getFileName().toString();
+		return name.substring(0, name.length() - 5) + ".idx";
+	}
+}
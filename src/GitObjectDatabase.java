@@ -0,0 +1,95 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Where a repository's objects are stored. GitObjectHelper's objectRead,
+// objectOpen, objectInfo and objectWrite go through the database the
+// repository owns: GitFileObjectDatabase (loose files and packs under
+// .git/objects) unless another one was set, such as a
+// GitMemoryObjectDatabase for throwaway repositories.
+//
+// Ids are 40 character lowercase hex strings. Implementations must be safe
+// to use from several threads.
+public interface GitObjectDatabase extends Closeable {
+	// Type and size of an object, and a stream of its content which the
+	// caller must close; null when absent
+	Tuple<GitObjectInfo, InputStream> open(String sha) throws IOException;
+
+	// Type and size of an object without reading its content; null when absent
+	GitObjectInfo info(String sha) throws IOException;
+
+	boolean contains(String sha) throws IOException;
+
+	// Stores an object of type fmt whose id the caller computed. Objects
+	// already present are left alone.
+	void write(String fmt, byte[] data, String sha) throws IOException;
+
+	// Adds the ids starting with prefix (lowercase hex) to out
+	void findPrefix(String prefix, Set<String> out) throws IOException;
+
+	// Type and whole content of an object, null when absent
+	default Tuple<GitObjectInfo, byte[]> read(String sha) throws IOException {
+		Tuple<GitObjectInfo, InputStream> opened = open(sha);
+		if (opened == null) {
+			return null;
+		}
+		long size = opened.getFirst().size();
+		try (InputStream body = opened.getSecond()) {
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException(String.format("Object %s is too large to load in memory", sha));
+			}
+			// The header gives the exact size, so read straight into the final array
+			byte[] data = body.readNBytes((int) size);
+			if (data.length != size || body.read() != -1) {
+				throw new IOException(String.format("Malformed object %s: bad length", sha));
+			}
+			return new Tuple<>(opened.getFirst(), data);
+		}
+	}
+
+	// Receives the objects of a readBatch, with null info and data for a
+	// missing id. The data may be shared with a cache and must not be
+	// modified.
+	@FunctionalInterface
+	interface BatchConsumer {
+		void accept(String sha, GitObjectInfo info, byte[] data) throws IOException;
+	}
+
+	// Reads every id in shas and hands each to consumer as soon as it is
+	// read, once per distinct id. The order is the store's choice, so a
+	// store can follow its own layout and give a caller needing many
+	// objects sequential rather than random I/O.
+	default void readBatch(Collection<String> shas, BatchConsumer consumer) throws IOException {
+		for (String sha : new LinkedHashSet<>(shas)) {
+			Tuple<GitObjectInfo, byte[]> read = read(sha);
+			consumer.accept(sha, read == null ? null : read.getFirst(), read == null ? null : read.getSecond());
+		}
+	}
+
+	// The objects of shas in order, null for missing ones, read through
+	// readBatch. As there, the data must not be modified.
+	default List<Tuple<GitObjectInfo, byte[]>> readAll(List<String> shas) throws IOException {
+		Map<String, Tuple<GitObjectInfo, byte[]>> found = new HashMap<>();
+		readBatch(shas, (sha, info, data) -> {
+			if (info != null) {
+				found.put(sha, new Tuple<>(info, data));
+			}
+		});
+		List<Tuple<GitObjectInfo, byte[]>> ret = new ArrayList<>(shas.size());
+		for (String sha : shas) {
+			ret.add(found.get(sha));
+		}
+		return ret;
+	}
+
+	@Override
+	default void close() throws IOException {
+	}
+}
@@ -1,65 +1,50 @@
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
 public class GitObjectHelper {
 
 	public static GitObject objectRead(GitRepository repo, String sha) throws IOException {
-		Path path = repoFile(repo, "objects", sha.substring(0, 2), sha.substring(2));
-
-		if (!Files.isRegularFile(path)) {
-			return null;
-		}
-
-		byte[] raw;
-		try (InputStream fis = new FileInputStream(path.toFile());
-				InflaterInputStream iis = new InflaterInputStream(fis)) {
-			raw = iis.readAllBytes();
-		}
-
-		// Read object type
-		int x = indexOf(raw, (byte) ' ');
-		if (x == -1) {
-			throw new IOException("Malformed object: missing object type");
-		}
-		String fmt = new String(raw, 0, x);
-
-		// Read and validate object size
-		int y = indexOf(raw, (byte) '\0', x);
-		if (y == -1) {
-			throw new IOException("Malformed object: missing object size separator");
-		}
-		int size;
+		long start = GitMetrics.start();
 		try {
-			size = Integer.parseInt(new String(raw, x + 1, y - x - 1));
-		} catch (NumberFormatException e) {
-			throw new IOException("Malformed object: invalid size", e);
-		}
-		if (size != raw.length - y - 1) {
-			throw new IOException(String.format("Malformed object %s: bad length", sha));
+			return objectReadUntimed(repo, sha);
+		} finally {
+			GitMetrics.end(GitMetrics.Op.OBJECT_READ, start);
 		}
+	}
 
-		byte[] data = new byte[size];
-		System.arraycopy(raw, y + 1, data, 0, size);
+	private static GitObject objectReadUntimed(GitRepository repo, String sha) throws IOException {
+		Tuple<GitObjectInfo, byte[]> read = repo.getObjectDatabase().read(sha);
+		if (read == null) {
+			return null;
+		}
+		return objectParse(sha, read.getFirst().fmt(), read.getSecond());
+	}
 
+	private static GitObject objectParse(String sha, String fmt, byte[] data) throws IOException {
 		// Pick constructor
 		GitObject gitObject;
 		switch (fmt) {
@@ -83,32 +68,57 @@ public class GitObjectHelper {
 		return gitObject;
 	}
 
-	public static String objectWrite(GitObject obj, GitRepository repo) throws IOException {
-		// Serialize object data
-		byte[] data = obj.serialize();
+	// Receives the objects of objectReadBatch, null for a missing id
+	@FunctionalInterface
+	public interface ObjectConsumer {
+		void accept(String sha, GitObject obj) throws IOException;
+	}
 
-		// Add header
-		String fmt = obj.getFmt(); // Assuming GitObject has a getFmt() method
-		byte[] header = (fmt + " " + data.length + "\0").getBytes();
-		byte[] result = new byte[header.length + data.length];
-		System.arraycopy(header, 0, result, 0, header.length);
-		System.arraycopy(data, 0, result, header.length, data.length);
+	// objectRead for many ids at once, for callers such as checkout that
+	// need them all anyway: the database reads them in storage order (see
+	// GitObjectDatabase.readBatch) and consumer gets each as it is read,
+	// once per distinct id, in no particular order
+	public static void objectReadBatch(GitRepository repo, Collection<String> shas, ObjectConsumer consumer)
+			throws IOException {
+		repo.getObjectDatabase().readBatch(shas,
+				(sha, info, data) -> consumer.accept(sha, info == null ? null : objectParse(sha, info.fmt(), data)));
+	}
 
-		// Compute hash
-		String sha = computeSha1(result);
+	// objectRead on the repository's read pool; see GitAsyncObjectReader
+	public static CompletableFuture<GitObject> objectReadAsync(GitRepository repo, String sha) {
+		return repo.getAsyncReader().readAsync(sha);
+	}
 
+	public static CompletableFuture<List<GitObject>> objectReadAll(GitRepository repo, List<String> shas) {
+		return repo.getAsyncReader().readAll(shas);
+	}
+
+	// Type and size of an object, without reading its content
+	public static GitObjectInfo objectInfo(GitRepository repo, String sha) throws IOException {
+		return repo.getObjectDatabase().info(sha);
+	}
+
+	// Opens an object: its type and size, and a stream of the content which
+	// must be closed
+	public static Tuple<GitObjectInfo, InputStream> objectOpen(GitRepository repo, String sha) throws IOException {
+		return repo.getObjectDatabase().open(sha);
+	}
+
+	public static String objectWrite(GitObject obj, GitRepository repo) throws IOException {
+		long start = GitMetrics.start();
+		try {
+			return objectWriteUntimed(obj, repo);
+		} finally {
+			GitMetrics.end(GitMetrics.Op.OBJECT_WRITE, start);
+		}
+	}
+
+	private static String objectWriteUntimed(GitObject obj, GitRepository repo) throws IOException {
+		byte[] data = obj.serialize();
+		String fmt = obj.getFmt();
+		String sha = objectId(fmt, data);
 		if (repo != null) {
-			// Compute path
-			Path path = repoFile(repo, "objects", sha.substring(0, 2), sha.substring(2));
-			if (!Files.exists(path)) {
-				// Ensure the parent directory exists
-				Files.createDirectories(path.getParent());
-
-				try (OutputStream fos = new FileOutputStream(path.toFile());
-						DeflaterOutputStream dos = new DeflaterOutputStream(fos)) {
-					dos.write(result);
-				}
-			}
+			repo.getObjectDatabase().write(fmt, data, sha);
 		}
 		return sha;
 	}
@@ -121,14 +131,14 @@ public class GitObjectHelper {
 
 		switch (fmtString) {
 		case "commit":
-			// obj = new GitCommit(data);
-			// break;
+			obj = new GitCommit(data);
+			break;
 		case "tree":
-			// obj = new GitTree(data);
-			// break;
+			obj = new GitTree(data);
+			break;
 		case "tag":
-			// obj = new GitTag(data);
-			// break;
+			obj = new GitTag(data);
+			break;
 		case "blob":
 			obj = new GitBlob(data);
 			break;
@@ -204,15 +214,100 @@ public class GitObjectHelper {
 		return ret;
 	}
 
+	// Every ref under refs/ by full name, sorted, pointing at its sha: the
+	// packed ones and the loose ones, a loose ref overriding its packed copy
+	// as it does in git
+	public static Map<String, String> refListAll(GitRepository repo) throws IOException {
+		Map<String, String> ret = new TreeMap<>(packedRefs(repo));
+		if (Files.isDirectory(repoFile(repo, "refs"))) {
+			flattenRefs(refList(repo, null), "refs", ret);
+		}
+		return ret;
+	}
+
+	// The refs in packed-refs, which git pack-refs and gc move loose refs
+	// into, by full name. Lines are "<sha> <ref>", a "^<sha>" line after a
+	// tag gives the commit it peels to, and '#' starts the header. Empty
+	// when there is no packed-refs file.
+	public static Map<String, String> packedRefs(GitRepository repo) throws IOException {
+		Map<String, String> ret = new LinkedHashMap<>();
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(repoFile(repo, "packed-refs"), StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return ret;
+		}
+		for (String line : lines) {
+			if (line.isEmpty() || line.startsWith("#") || line.startsWith("^")) {
+				continue;
+			}
+			if (line.length() < 42 || line.charAt(40) != ' ') {
+				throw new IOException("Bad line in packed-refs: " + line);
+			}
+			ret.put(line.substring(41), line.substring(0, 40));
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void flattenRefs(Map<String, Object> refs, String prefix, Map<String, String> out) {
+		for (Map.Entry<String, Object> entry : refs.entrySet()) {
+			String name = prefix + "/" + entry.getKey();
+			if (entry.getValue() instanceof Map<?, ?>) {
+				flattenRefs((Map<String, Object>) entry.getValue(), name, out);
+			} else {
+				out.put(name, (String) entry.getValue());
+			}
+		}
+	}
+
 	public static String refResolve(GitRepository repo, String ref) throws IOException {
+		long start = GitMetrics.start();
+		try {
+			return refResolveUntimed(repo, ref);
+		} finally {
+			GitMetrics.end(GitMetrics.Op.REF_RESOLVE, start);
+		}
+	}
+
+	private static String refResolveUntimed(GitRepository repo, String ref) throws IOException {
+		Map<String, GitRepository.CachedRef> cache = repo.getRefCache();
+		if (cache == null) {
+			return refResolveUncached(repo, ref, new ArrayList<>(), new ArrayList<>());
+		}
+		// The daemon's watcher invalidates asynchronously, so an entry is only
+		// trusted while the files it was read from are unchanged; otherwise a
+		// ref written just before a request could resolve to its old value
+		GitRepository.CachedRef cached = cache.get(ref);
+		if (cached != null && cached.isCurrent()) {
+			GitMetrics.cacheHit("refs");
+			return cached.sha();
+		}
+		GitMetrics.cacheMiss("refs");
+		List<Path> files = new ArrayList<>();
+		List<Object> stamps = new ArrayList<>();
+		String resolved = refResolveUncached(repo, ref, files, stamps);
+		cache.put(ref, new GitRepository.CachedRef(resolved, files, stamps));
+		return resolved;
+	}
+
+	// Adds each file looked at, and its stamp from before it was read, to
+	// files and stamps
+	private static String refResolveUncached(GitRepository repo, String ref, List<Path> files, List<Object> stamps)
+			throws IOException {
 		Path path = repoFile(repo, ref);
+		files.add(path);
+		stamps.add(GitRepository.fileStamp(path));
 
-		// Sometimes, an indirect reference may be broken. This is normal
-		// in one specific case: we're looking for HEAD on a new repository
-		// with no commits. In that case, .git/HEAD points to "ref:
-		// refs/heads/main", but .git/refs/heads/main doesn't exist yet.
+		// Without a loose file the ref may be packed. Otherwise it is
+		// missing, which is normal in one specific case: we're looking for
+		// HEAD on a new repository with no commits. In that case, .git/HEAD
+		// points to "ref: refs/heads/main", which doesn't exist yet.
 		if (Files.notExists(path)) {
-			return null;
+			Path packed = repoFile(repo, "packed-refs");
+			files.add(packed);
+			stamps.add(GitRepository.fileStamp(packed));
+			return packedRefs(repo).get(ref);
 		}
 
 		try (BufferedReader reader = Files.newBufferedReader(path)) {
@@ -224,15 +319,49 @@ public class GitObjectHelper {
 
 			// If the reference is another reference, resolve it recursively
 			if (data.startsWith("ref: ")) {
-				return refResolve(repo, data.substring(5));
+				return refResolveUncached(repo, data.substring(5), files, stamps);
 			} else {
 				return data;
 			}
 		}
 	}
 
+	// Name of the checked out branch, or null when HEAD is detached
+	public static String branchGetActive(GitRepository repo) throws IOException {
+		String head = Files.readString(repoFile(repo, "HEAD")).trim();
+		if (head.startsWith("ref: refs/heads/")) {
+			return head.substring(16);
+		}
+		return null;
+	}
+
+	// Points ref ("refs/heads/main", "HEAD") at sha. The new value is written
+	// to <ref>.lock and renamed over the ref, and nothing is changed unless
+	// the ref still holds expected (null: the ref must not exist yet).
+	public static void refUpdate(GitRepository repo, String ref, String sha, String expected) throws IOException {
+		Path path = repoFile(repo, ref);
+		Path lock = path.resolveSibling(path.getFileName() + ".lock");
+		Files.createDirectories(path.getParent());
+		try {
+			Files.writeString(lock, sha + "\n", StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (FileAlreadyExistsException e) {
+			throw new IOException("Unable to lock " + ref + ", another process holds " + lock, e);
+		}
+		try {
+			String current = Files.exists(path) ? Files.readString(path).trim() : packedRefs(repo).get(ref);
+			if (!Objects.equals(current, expected)) {
+				throw new IOException("Cannot update " + ref + ": expected " + expected + " but found " + current);
+			}
+			Files.move(lock, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(lock);
+		}
+		repo.invalidateRefs();
+	}
+
 	public static List<String> objectResolve(GitRepository repo, String name) throws Exception {
-		List<String> candidates = new ArrayList<>();
+		// An object can be both loose and packed, or in several packs
+		Set<String> candidates = new LinkedHashSet<>();
 		Pattern hashRE = Pattern.compile("^[0-9A-Fa-f]{4,40}$");
 
 		// Empty string? Abort.
@@ -252,20 +381,7 @@ public class GitObjectHelper {
 		if (hashRE.matcher(name).matches()) {
 			// This may be a hash, either small or full.
 			name = name.toLowerCase();
-			String prefix = name.substring(0, 2);
-			String path = repoDir(repo, false, "objects", prefix);
-			if (path != null) {
-				String rem = name.substring(2);
-				File dir = new File(path);
-				String[] files = dir.list();
-				if (files != null) {
-					for (String f : files) {
-						if (f.startsWith(rem)) {
-							candidates.add(prefix + f);
-						}
-					}
-				}
-			}
+			repo.getObjectDatabase().findPrefix(name, candidates);
 		}
 
 		// Try for references.
@@ -279,7 +395,7 @@ public class GitObjectHelper {
 			candidates.add(asBranch);
 		}
 
-		return candidates.isEmpty() ? null : candidates;
+		return candidates.isEmpty() ? null : new ArrayList<>(candidates);
 	}
 
 	public static String repoDir(GitRepository repo, boolean mkdir, String... pathTuple) {
@@ -341,11 +457,12 @@ public class GitObjectHelper {
 		}
 
 		while (true) {
-			GitObject obj = GitObjectHelper.objectRead(repo, sha);
-			if (obj == null) {
+			// The type check only needs the header, the body is read when following
+			GitObjectInfo info = GitObjectHelper.objectInfo(repo, sha);
+			if (info == null) {
 				throw new IllegalStateException("Object not found: " + sha);
 			}
-			if (obj.getFmt().equals(fmt)) {
+			if (info.fmt().equals(fmt)) {
 				return sha;
 			}
 
@@ -354,39 +471,51 @@ public class GitObjectHelper {
 			}
 
 			// Follow tags
-			if (obj.getFmt().equals("tag")) {
-				if (!(obj instanceof GitTag)) {
-					throw new IllegalStateException("Expected a GitTag object.");
-				}
-				GitTag tagObj = (GitTag) obj;
-				sha = new String((byte[]) tagObj.getKvlm().get("object".getBytes()), StandardCharsets.US_ASCII);
-			} else if (obj.getFmt().equals("commit") && fmt.equals("tree")) {
-				if (!(obj instanceof GitCommit)) {
-					throw new IllegalStateException("Expected a GitCommit object.");
-				}
-				GitCommit commitObj = (GitCommit) obj;
-				sha = (String) commitObj.getValueFromKvlm("tree".getBytes());
-				// commitObj.printKvlm()
+			if (info.fmt().equals("tag")) {
+				GitTag tagObj = (GitTag) GitObjectHelper.objectRead(repo, sha);
+				sha = tagObj.getObject();
+			} else if (info.fmt().equals("commit") && fmt.equals("tree")) {
+				GitCommit commitObj = (GitCommit) GitObjectHelper.objectRead(repo, sha);
+				sha = commitObj.getTree();
 			} else {
 				return null;
 			}
 		}
 	}
 
-	private static String computeSha1(byte[] data) throws IOException {
+	// Sha of an object given its type and content, without building the
+	// header-prefixed copy
+	public static String objectId(String fmt, byte[] data) throws IOException {
 		try {
 			MessageDigest digest = MessageDigest.getInstance("SHA-1");
-			byte[] hashBytes = digest.digest(data);
-			StringBuilder sb = new StringBuilder();
-			for (byte b : hashBytes) {
-				sb.append(String.format("%02x", b));
-			}
-			return sb.toString();
+			digest.update((fmt + " " + data.length + "\0").getBytes(StandardCharsets.US_ASCII));
+			return shaToHex(digest.digest(data), 0);
 		} catch (NoSuchAlgorithmException e) {
 			throw new IOException("SHA-1 algorithm not found", e);
 		}
 	}
 
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// Hex form of the 20 byte id starting at offset
+	public static String shaToHex(byte[] raw, int offset) {
+		char[] out = new char[40];
+		for (int i = 0; i < 20; i++) {
+			int b = raw[offset + i] & 0xff;
+			out[i * 2] = HEX[b >> 4];
+			out[i * 2 + 1] = HEX[b & 0x0f];
+		}
+		return new String(out);
+	}
+
+	public static byte[] shaToBytes(String sha) {
+		byte[] raw = new byte[20];
+		for (int i = 0; i < 20; i++) {
+			raw[i] = (byte) ((Character.digit(sha.charAt(i * 2), 16) << 4) | Character.digit(sha.charAt(i * 2 + 1), 16));
+		}
+		return raw;
+	}
+
 	public static Path repoFile(GitRepository repo, String... parts) {
 		Path path = repo.getGitdir(); // Assuming GitRepository has a method to get the base path
 		for (String part : parts) {
@@ -395,36 +524,63 @@ public class GitObjectHelper {
 		return path;
 	}
 
-	private static int indexOf(byte[] array, byte value) {
-		return indexOf(array, value, 0);
+	public static void treeCheckout(GitRepository repo, GitTree tree, String path) throws Exception {
+		long start = GitMetrics.start();
+		try {
+			treeCheckoutBatched(repo, tree, Paths.get(path));
+		} finally {
+			GitMetrics.end(GitMetrics.Op.TREE_CHECKOUT, start);
+		}
 	}
 
-	private static int indexOf(byte[] array, byte value, int startIndex) {
-		for (int i = startIndex; i < array.length; i++) {
-			if (array[i] == value) {
-				return i;
+	// Trees are read a level at a time and the blobs all together at the end,
+	// each through objectReadBatch, so the reads follow the pack rather than
+	// jumping around it in tree order. A blob at several paths is read once.
+	private static void treeCheckoutBatched(GitRepository repo, GitTree root, Path path) throws IOException {
+		Map<String, List<Path>> blobs = new LinkedHashMap<>();
+		List<Tuple<GitTree, Path>> level = List.of(new Tuple<>(root, path));
+		while (!level.isEmpty()) {
+			Map<String, List<Path>> subtrees = new LinkedHashMap<>();
+			for (Tuple<GitTree, Path> dir : level) {
+				for (GitTreeLeaf item : dir.getFirst().getItems()) {
+					Path dest = dir.getSecond().resolve(item.getPath().toString());
+					if (item.isTree()) {
+						Files.createDirectories(dest);
+						subtrees.computeIfAbsent(item.getSha(), k -> new ArrayList<>()).add(dest);
+					} else if (item.isGitlink()) {
+						// A submodule's commit isn't in this repository; git
+						// leaves an empty directory until it is initialized
+						Files.createDirectories(dest);
+					} else {
+						blobs.computeIfAbsent(item.getSha(), k -> new ArrayList<>()).add(dest);
+					}
+				}
 			}
+
+			List<Tuple<GitTree, Path>> next = new ArrayList<>();
+			objectReadBatch(repo, subtrees.keySet(), (sha, obj) -> {
+				if (!(obj instanceof GitTree)) {
+					throw new IOException(obj == null ? "Missing tree " + sha : "Not a tree: " + sha);
+				}
+				for (Path dest : subtrees.get(sha)) {
+					next.add(new Tuple<>((GitTree) obj, dest));
+				}
+			});
+			level = next;
 		}
-		return -1;
-	}
 
-	public static void treeCheckout(GitRepository repo, GitTree tree, String path) throws Exception {
-		for (GitTreeLeaf item : tree.getItems()) {
-			GitObject obj = GitObjectHelper.objectRead(repo, item.getSha());
-			Path dest = Paths.get(path, item.getPath().toString());
-
-			if (obj.getFmt().equals("tree")) {
-				// Create a directory and recursively checkout the tree
-				Files.createDirectories(dest);
-				GitObjectHelper.treeCheckout(repo, (GitTree) obj, dest.toString());
-			} else if (obj.getFmt().equals("blob")) {
-				// Write blob data to file
+		objectReadBatch(repo, blobs.keySet(), (sha, obj) -> {
+			if (obj == null) {
+				throw new IOException("Missing blob " + sha);
+			}
+			if (!(obj instanceof GitBlob)) {
+				throw new IOException("Unsupported object format: " + obj.getFmt());
+			}
+			for (Path dest : blobs.get(sha)) {
 				try (FileOutputStream fos = new FileOutputStream(dest.toFile())) {
 					fos.write(obj.serialize());
 				}
-			} else {
-				throw new IOException("Unsupported object format: " + new String(obj.getFmt()));
 			}
-		}
+		});
 	}
 }
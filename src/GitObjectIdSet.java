@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+// A set of raw 20 byte object ids, each carrying a byte of flags, for walks
+// over every object in a repository. Ids sit back to back in one byte array
+// with linear probing, so a slot costs 21 bytes against the hundred or
+// more of a String in a HashSet: ten million ids take 2^24 slots, about
+// 350 MiB.
+//
+// A slot is free while its flags are 0, so callers must always add some
+// flag. Not thread-safe.
+public class GitObjectIdSet {
+	// The largest table whose id array an int can still index
+	private static final int MAX_CAPACITY = 1 << 26;
+
+	private byte[] ids;
+	private byte[] flags;
+	private int size;
+
+	// Reads a visited entry in place: the id is ids[off, off + 20)
+	@FunctionalInterface
+	public interface Visitor {
+		void visit(byte[] ids, int off, int flags);
+	}
+
+	public GitObjectIdSet() {
+		this(1024);
+	}
+
+	public GitObjectIdSet(int expected) {
+		int capacity = 1024;
+		while (capacity < expected + expected / 3 && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		ids = new byte[capacity * 20];
+		flags = new byte[capacity];
+	}
+
+	// Ors flags into the id's flags, adding it if needed. Returns the flags
+	// the id had before, 0 when it is new.
+	public int add(byte[] id, int off, int flag) {
+		if (flag == 0) {
+			throw new IllegalArgumentException("No flags for " + GitObjectHelper.shaToHex(id, off));
+		}
+		if ((size + 1) * 4L > flags.length * 3L) {
+			grow();
+		}
+		int slot = find(id, off);
+		int old = flags[slot] & 0xff;
+		if (old == 0) {
+			System.arraycopy(id, off, ids, slot * 20, 20);
+			size++;
+		}
+		flags[slot] = (byte) (old | flag);
+		return old;
+	}
+
+	// The id's flags, 0 when absent
+	public int get(byte[] id, int off) {
+		return flags[find(id, off)] & 0xff;
+	}
+
+	public boolean contains(byte[] id, int off) {
+		return get(id, off) != 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Entries in table order, which is no particular order
+	public void forEach(Visitor visitor) {
+		for (int slot = 0; slot < flags.length; slot++) {
+			if (flags[slot] != 0) {
+				visitor.visit(ids, slot * 20, flags[slot] & 0xff);
+			}
+		}
+	}
+
+	// The id's slot, or the free slot where it would go
+	private int find(byte[] id, int off) {
+		int mask = flags.length - 1;
+		int slot = hash(id, off) & mask;
+		while (flags[slot] != 0 && !Arrays.equals(ids, slot * 20, slot * 20 + 20, id, off, off + 20)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		byte[] oldIds = ids;
+		byte[] oldFlags = flags;
+		if (oldFlags.length >= MAX_CAPACITY) {
+			throw new IllegalStateException("Too many object ids");
+		}
+		ids = new byte[oldIds.length * 2];
+		flags = new byte[oldFlags.length * 2];
+		for (int i = 0; i < oldFlags.length; i++) {
+			if (oldFlags[i] != 0) {
+				int slot = find(oldIds, i * 20);
+				System.arraycopy(oldIds, i * 20, ids, slot * 20, 20);
+				flags[slot] = oldFlags[i];
+			}
+		}
+	}
+
+	// Ids are uniformly distributed already
+	private static int hash(byte[] id, int off) {
+		return (id[off] & 0xff) << 24 | (id[off + 1] & 0xff) << 16 | (id[off + 2] & 0xff) << 8 | (id[off + 3] & 0xff);
+	}
+}
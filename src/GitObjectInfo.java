@@ -0,0 +1,6 @@
+public record GitObjectInfo(
+		// The object type: blob, commit, tag or tree
+		String fmt,
+		// Size of the object's content, without the header
+		long size) {
+}
@@ -0,0 +1,504 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Read access to one objects/pack/pack-*.pack file through its version 2 .idx.
+// The index is memory mapped; pack data is read with positional reads so a
+// pack can be shared by any number of readers. GitRepository closes a pack
+// once a rescan finds it deleted; reads of a closed pack throw
+// ClosedChannelException.
+public class GitPack implements Closeable {
+	public static final int OBJ_COMMIT = 1;
+	public static final int OBJ_TREE = 2;
+	public static final int OBJ_BLOB = 3;
+	public static final int OBJ_TAG = 4;
+	public static final int OBJ_OFS_DELTA = 6;
+	public static final int OBJ_REF_DELTA = 7;
+
+	// Bound on one willNeed() call, and the size of its reads
+	private static final long MAX_READAHEAD = 8L << 20;
+	private static final int READAHEAD_CHUNK = 256 << 10;
+
+	private static final String[] TYPE_NAMES = { null, "commit", "tree", "blob", "tag", null, null, null };
+
+	private final GitRepository repo;
+	private final Path packPath;
+	private final FileChannel pack;
+	private final ByteBuffer idx;
+	private final int count;
+
+	// Offsets of the idx tables
+	private final int shaTable;
+	private final int offsetTable;
+	private final int largeOffsetTable;
+
+	private GitPack(GitRepository repo, Path packPath, FileChannel pack, ByteBuffer idx) throws IOException {
+		this.repo = repo;
+		this.packPath = packPath;
+		this.pack = pack;
+		this.idx = idx;
+
+		if (idx.getInt(0) != 0xff744f63 || idx.getInt(4) != 2) {
+			throw new IOException("Unsupported pack index " + packPath);
+		}
+		this.count = idx.getInt(8 + 255 * 4);
+		this.shaTable = 8 + 256 * 4;
+		this.offsetTable = shaTable + count * 24;
+		this.largeOffsetTable = offsetTable + count * 4;
+	}
+
+	// Opens pack-X.pack given the path of its pack-X.idx
+	public static GitPack open(GitRepository repo, Path idxPath) throws IOException {
+		String name = idxPath.getFileName().toString();
+		Path packPath = idxPath.resolveSibling(name.substring(0, name.length() - 4) + ".pack");
+
+		ByteBuffer idx;
+		try (FileChannel idxChannel = FileChannel.open(idxPath, StandardOpenOption.READ)) {
+			idx = idxChannel.map(FileChannel.MapMode.READ_ONLY, 0, idxChannel.size()).order(ByteOrder.BIG_ENDIAN);
+		}
+		FileChannel pack = FileChannel.open(packPath, StandardOpenOption.READ);
+		try {
+			return new GitPack(repo, packPath, pack, idx);
+		} catch (IOException e) {
+			pack.close();
+			throw e;
+		}
+	}
+
+	// Releases the pack file. The mapped index goes with the last reference.
+	@Override
+	public void close() throws IOException {
+		pack.close();
+	}
+
+	public Path getPackPath() {
+		return packPath;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	// Raw 20 byte id of the n-th object in sha order
+	public byte[] getId(int n) {
+		byte[] id = new byte[20];
+		idx.get(shaTable + n * 20, id);
+		return id;
+	}
+
+	public long getOffset(int n) {
+		int off = idx.getInt(offsetTable + n * 4);
+		if (off >= 0) {
+			return off;
+		}
+		return idx.getLong(largeOffsetTable + (off & 0x7fffffff) * 8);
+	}
+
+	// Position of id in the sha table, or -1
+	public int find(byte[] id) {
+		int first = id[0] & 0xff;
+		int lo = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+		int hi = idx.getInt(8 + first * 4);
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareId(mid, id);
+			if (cmp == 0) {
+				return mid;
+			} else if (cmp < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return -1;
+	}
+
+	// Pack offset of id, or -1
+	public long findOffset(byte[] id) {
+		int n = find(id);
+		return n < 0 ? -1 : getOffset(n);
+	}
+
+	// Readahead for a caller about to read the entries in [from, to) in
+	// order: the range, up to MAX_READAHEAD of it, is pulled into the page
+	// cache with large sequential positional reads instead of a small read
+	// per entry. No mapping is made, so nothing is left for the GC to unmap
+	// and the read stops at the bound however large the range.
+	public void willNeed(long from, long to) throws IOException {
+		long end = Math.min(Math.min(to, from + MAX_READAHEAD), pack.size() - 20);
+		ByteBuffer buf = ByteBuffer.allocate(READAHEAD_CHUNK);
+		for (long position = from; position < end;) {
+			buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+			int read = pack.read(buf, position);
+			if (read <= 0) {
+				break;
+			}
+			position += read;
+		}
+	}
+
+	// Adds the full hex id of every object starting with prefix
+	public void findPrefix(String prefix, Collection<String> out) {
+		int first = Integer.parseInt(prefix.substring(0, 2), 16);
+		int lo = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+		int hi = idx.getInt(8 + first * 4);
+		for (int n = lo; n < hi; n++) {
+			String sha = GitObjectHelper.shaToHex(getId(n), 0);
+			if (sha.startsWith(prefix)) {
+				out.add(sha);
+			}
+		}
+	}
+
+	private int compareId(int n, byte[] id) {
+		int base = shaTable + n * 20;
+		for (int i = 0; i < 20; i++) {
+			int a = idx.get(base + i) & 0xff;
+			int b = id[i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	// Type and size of the object at offset. For deltas the type comes from the
+	// end of the chain and the size from the delta's own header, so nothing
+	// but a few header bytes is ever inflated.
+	public GitObjectInfo info(long offset) throws IOException {
+		Entry entry = readEntry(offset);
+		if (entry.type != OBJ_OFS_DELTA && entry.type != OBJ_REF_DELTA) {
+			return new GitObjectInfo(TYPE_NAMES[entry.type], entry.size);
+		}
+
+		// Result size is the second varint of the delta data
+		byte[] head = inflatePrefix(entry.dataOffset, 20);
+		int[] pos = { 0 };
+		readDeltaSize(head, pos);
+		long size = readDeltaSize(head, pos);
+
+		return new GitObjectInfo(baseInfo(entry).fmt(), size);
+	}
+
+	private GitObjectInfo baseInfo(Entry delta) throws IOException {
+		if (delta.type == OBJ_OFS_DELTA) {
+			return info(delta.baseOffset);
+		}
+		long baseOffset = findOffset(delta.baseId);
+		if (baseOffset >= 0) {
+			return info(baseOffset);
+		}
+		GitObjectInfo info = GitObjectHelper.objectInfo(repo, GitObjectHelper.shaToHex(delta.baseId, 0));
+		if (info == null) {
+			throw new IOException("Missing delta base in " + packPath);
+		}
+		return info;
+	}
+
+	// Opens the object at offset. Whole objects are inflated as they are read,
+	// deltas have to be resolved up front.
+	public Tuple<GitObjectInfo, InputStream> open(long offset) throws IOException {
+		Entry entry = readEntry(offset);
+		if (entry.type != OBJ_OFS_DELTA && entry.type != OBJ_REF_DELTA) {
+			InputStream in = GitZlib.inflate(packStream(entry.dataOffset));
+			return new Tuple<>(new GitObjectInfo(TYPE_NAMES[entry.type], entry.size), in);
+		}
+		Tuple<String, byte[]> resolved = read(offset);
+		return new Tuple<>(new GitObjectInfo(resolved.getFirst(), resolved.getSecond().length),
+				new ByteArrayInputStream(resolved.getSecond()));
+	}
+
+	// Fully inflates the object at offset, applying deltas. The chain is
+	// followed down to a whole object or to a base still in the repository's
+	// delta base cache, then the deltas are applied back up, caching every
+	// intermediate result since neighbouring chains share them. The returned
+	// array may be shared with the cache and must not be modified.
+	public Tuple<String, byte[]> read(long offset) throws IOException {
+		GitDeltaBaseCache cache = repo.getDeltaBaseCache();
+		Tuple<String, byte[]> base = cache.get(this, offset);
+		if (base != null) {
+			return base;
+		}
+
+		List<Entry> chain = new ArrayList<>();
+		long at = offset;
+		while (true) {
+			Entry entry = readEntry(at);
+			if (entry.type != OBJ_OFS_DELTA && entry.type != OBJ_REF_DELTA) {
+				base = new Tuple<>(TYPE_NAMES[entry.type], inflate(entry.dataOffset, entry.size));
+				if (!chain.isEmpty()) {
+					cache.put(this, at, base);
+				}
+				break;
+			}
+			chain.add(entry);
+			long baseOffset = entry.type == OBJ_OFS_DELTA ? entry.baseOffset : findOffset(entry.baseId);
+			if (baseOffset < 0) {
+				base = readExternal(entry.baseId);
+				break;
+			}
+			base = cache.get(this, baseOffset);
+			if (base != null) {
+				break;
+			}
+			at = baseOffset;
+		}
+
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			Entry delta = chain.get(i);
+			base = new Tuple<>(base.getFirst(), applyDelta(base.getSecond(), inflate(delta.dataOffset, delta.size)));
+			if (i > 0) {
+				cache.put(this, delta.offset, base);
+			}
+		}
+		return base;
+	}
+
+	private Tuple<String, byte[]> readExternal(byte[] id) throws IOException {
+		Tuple<GitObjectInfo, InputStream> opened = GitObjectHelper.objectOpen(repo, GitObjectHelper.shaToHex(id, 0));
+		if (opened == null) {
+			throw new IOException("Missing delta base in " + packPath);
+		}
+		try (InputStream in = opened.getSecond()) {
+			return new Tuple<>(opened.getFirst().fmt(), in.readAllBytes());
+		}
+	}
+
+	// Every offset and size in the delta is checked against the base, the
+	// delta and the result, so a corrupt delta fails with an IOException
+	// rather than an index out of bounds
+	public static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+		int[] pos = { 0 };
+		long baseSize = readDeltaSize(delta, pos);
+		long resultSize = readDeltaSize(delta, pos);
+		if (baseSize != base.length) {
+			throw new IOException("Delta base size mismatch");
+		}
+		if (resultSize > Integer.MAX_VALUE - 8) {
+			throw new IOException("Delta result of " + resultSize + " bytes is too large");
+		}
+
+		byte[] result = new byte[(int) resultSize];
+		int p = pos[0];
+		int out = 0;
+		while (p < delta.length) {
+			int cmd = delta[p++] & 0xff;
+			if ((cmd & 0x80) != 0) {
+				// Copy from base
+				if (Integer.bitCount(cmd & 0x7f) > delta.length - p) {
+					throw new IOException("Truncated delta copy instruction");
+				}
+				long copyOffset = 0;
+				int copySize = 0;
+				for (int i = 0; i < 4; i++) {
+					if ((cmd & (1 << i)) != 0) {
+						copyOffset |= (long) (delta[p++] & 0xff) << (8 * i);
+					}
+				}
+				for (int i = 0; i < 3; i++) {
+					if ((cmd & (0x10 << i)) != 0) {
+						copySize |= (delta[p++] & 0xff) << (8 * i);
+					}
+				}
+				if (copySize == 0) {
+					copySize = 0x10000;
+				}
+				if (copyOffset + copySize > base.length || copySize > result.length - out) {
+					throw new IOException("Delta copy out of bounds");
+				}
+				System.arraycopy(base, (int) copyOffset, result, out, copySize);
+				out += copySize;
+			} else if (cmd != 0) {
+				// Insert literal bytes
+				if (cmd > delta.length - p || cmd > result.length - out) {
+					throw new IOException("Delta insert out of bounds");
+				}
+				System.arraycopy(delta, p, result, out, cmd);
+				p += cmd;
+				out += cmd;
+			} else {
+				throw new IOException("Invalid delta opcode 0");
+			}
+		}
+		if (out != result.length) {
+			throw new IOException("Delta result size mismatch");
+		}
+		return result;
+	}
+
+	private static long readDeltaSize(byte[] data, int[] pos) throws IOException {
+		long size = 0;
+		int shift = 0;
+		int c;
+		do {
+			if (pos[0] >= data.length || shift > 56) {
+				throw new IOException("Bad delta header");
+			}
+			c = data[pos[0]++] & 0xff;
+			size |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return size;
+	}
+
+	// Parsed pack entry header
+	private static class Entry {
+		long offset;
+		int type;
+		long size;
+		long dataOffset;
+		long baseOffset;
+		byte[] baseId;
+	}
+
+	private Entry readEntry(long offset) throws IOException {
+		// Type and size varint, plus at most a 20 byte base id
+		ByteBuffer buf = ByteBuffer.allocate(40);
+		pack.read(buf, offset);
+		int p = 0;
+
+		Entry entry = new Entry();
+		entry.offset = offset;
+		int c = buf.get(p++) & 0xff;
+		entry.type = (c >> 4) & 7;
+		long size = c & 0x0f;
+		int shift = 4;
+		while ((c & 0x80) != 0) {
+			c = buf.get(p++) & 0xff;
+			size |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		}
+		entry.size = size;
+
+		if (entry.type == OBJ_OFS_DELTA) {
+			c = buf.get(p++) & 0xff;
+			long rel = c & 0x7f;
+			while ((c & 0x80) != 0) {
+				c = buf.get(p++) & 0xff;
+				rel = ((rel + 1) << 7) | (c & 0x7f);
+			}
+			entry.baseOffset = offset - rel;
+		} else if (entry.type == OBJ_REF_DELTA) {
+			entry.baseId = new byte[20];
+			buf.get(p, entry.baseId);
+			p += 20;
+		} else if (TYPE_NAMES[entry.type] == null) {
+			throw new IOException(String.format("Bad object type %d at %d in %s", entry.type, offset, packPath));
+		}
+		entry.dataOffset = offset + p;
+		return entry;
+	}
+
+	private byte[] inflate(long dataOffset, long size) throws IOException {
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IOException("Pack entry is too large to load in memory");
+		}
+		byte[] out = new byte[(int) size];
+		// The size is known, so the Inflater is driven directly instead of
+		// through a stream and its buffers; the compressed data is seldom
+		// much bigger than the result, so one read of about that much usually
+		// covers a small entry
+		Inflater inflater = GitZlib.acquireInflater();
+		try {
+			byte[] in = new byte[(int) Math.min(8192, size + 64)];
+			long position = dataOffset;
+			int n = 0;
+			while (n < out.length) {
+				if (inflater.needsInput()) {
+					int read = pack.read(ByteBuffer.wrap(in), position);
+					if (read <= 0) {
+						throw new IOException("Truncated pack entry in " + packPath);
+					}
+					position += read;
+					inflater.setInput(in, 0, read);
+				}
+				int inflated = inflater.inflate(out, n, out.length - n);
+				if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+					throw new IOException("Truncated pack entry in " + packPath);
+				}
+				n += inflated;
+			}
+			return out;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt pack entry in " + packPath, e);
+		} finally {
+			GitZlib.releaseInflater(inflater);
+		}
+	}
+
+	// Inflates at most max bytes from the start of an entry's data. Input is fed
+	// in small chunks since a block's Huffman tables can come before any output.
+	private byte[] inflatePrefix(long dataOffset, int max) throws IOException {
+		Inflater inflater = GitZlib.acquireInflater();
+		try {
+			byte[] in = new byte[256];
+			byte[] out = new byte[max];
+			int n = 0;
+			long position = dataOffset;
+			while (n < max && !inflater.finished()) {
+				if (inflater.needsInput()) {
+					int read = pack.read(ByteBuffer.wrap(in), position);
+					if (read <= 0) {
+						throw new IOException("Truncated pack entry in " + packPath);
+					}
+					position += read;
+					inflater.setInput(in, 0, read);
+				}
+				int inflated = inflater.inflate(out, n, max - n);
+				// finished() ends the loop: an entry shorter than max is fine here
+				if (inflated == 0 && inflater.needsDictionary()) {
+					throw new IOException("Corrupt pack entry in " + packPath);
+				}
+				n += inflated;
+			}
+			return n == max ? out : Arrays.copyOf(out, n);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt pack entry in " + packPath, e);
+		} finally {
+			GitZlib.releaseInflater(inflater);
+		}
+	}
+
+	private InputStream packStream(long position) {
+		return new BufferedInputStream(new PackInputStream(position), 8192);
+	}
+
+	// Sequential stream over the pack from a given offset, independent of
+	// the channel's own position
+	private class PackInputStream extends InputStream {
+		private long position;
+
+		PackInputStream(long position) {
+			this.position = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = pack.read(ByteBuffer.wrap(b, off, len), position);
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		}
+	}
+}
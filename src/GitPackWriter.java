@@ -0,0 +1,346 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Streams whole (undeltified) objects into a new pack under objects/pack.
+// The pack is written to a temporary file and only shows up as
+// pack-<sha>.pack/.idx once finish() has written its index; until then
+// open() reads objects back from the temporary file.
+//
+// Safe for concurrent use: objects are compressed in the calling thread
+// and only the append is serialized.
+public class GitPackWriter implements Closeable {
+	private final Path packDir;
+	private final Path tmpPack;
+	private final OutputStream out;
+	private final int level;
+	private final CRC32 crc = new CRC32();
+	private long offset;
+	// Reads back unfinished objects, opened on first use
+	private FileChannel reader;
+
+	// Written objects, in write order, and their position by sha
+	private final List<Entry> entries = new ArrayList<>();
+	private final Map<String, Entry> byId = new HashMap<>();
+	private boolean finished = false;
+
+	private static class Entry {
+		final byte[] id;
+		final long offset;
+		int crc;
+		// Where the next entry starts
+		long end;
+
+		Entry(byte[] id, long offset) {
+			this.id = id;
+			this.offset = offset;
+		}
+	}
+
+	public GitPackWriter(GitRepository repo) throws IOException {
+		this(repo, repo.getPackCompression());
+	}
+
+	public GitPackWriter(GitRepository repo, int level) throws IOException {
+		this.packDir = GitObjectHelper.repoFile(repo, "objects", "pack");
+		Files.createDirectories(packDir);
+		this.tmpPack = Files.createTempFile(packDir, "tmp_pack_", "");
+		this.out = new BufferedOutputStream(Files.newOutputStream(tmpPack), 1 << 16);
+		this.level = level;
+
+		// Header; the object count is patched in by finish()
+		byte[] header = { 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0 };
+		out.write(header);
+		offset = header.length;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	// Only while unfinished: afterwards the object is in a real pack, or
+	// gone with an abandoned one
+	public synchronized boolean contains(String sha) {
+		return !finished && byId.containsKey(sha);
+	}
+
+	// Appends an object unless this pack already has it, returns its sha
+	public String add(String fmt, byte[] data) throws IOException {
+		String sha = GitObjectHelper.objectId(fmt, data);
+		if (!add(fmt, data, sha)) {
+			throw new IOException("Pack already finished");
+		}
+		return sha;
+	}
+
+	// Same, for callers that already hashed the object. False when the pack
+	// was finished or abandoned meanwhile; the caller then writes the object
+	// some other way, typically loose.
+	boolean add(String fmt, byte[] data, String sha) throws IOException {
+		synchronized (this) {
+			if (finished) {
+				return false;
+			}
+			if (byId.containsKey(sha)) {
+				return true;
+			}
+		}
+		int type = typeCode(fmt);
+
+		byte[] deflated;
+		Deflater deflater = GitZlib.acquireDeflater(level);
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] chunk = new byte[8192];
+			deflater.setInput(data);
+			deflater.finish();
+			while (!deflater.finished()) {
+				int n = deflater.deflate(chunk);
+				buffer.write(chunk, 0, n);
+			}
+			deflated = buffer.toByteArray();
+		} finally {
+			GitZlib.releaseDeflater(deflater, level);
+		}
+
+		synchronized (this) {
+			if (finished) {
+				return false;
+			}
+			if (byId.containsKey(sha)) {
+				return true;
+			}
+			Entry entry = new Entry(GitObjectHelper.shaToBytes(sha), offset);
+			crc.reset();
+
+			// Type and size header: 3 bits of type, then the size 4 + 7n bits at a time
+			long size = data.length;
+			int c = (type << 4) | (int) (size & 0x0f);
+			size >>>= 4;
+			while (size != 0) {
+				writeTracked(c | 0x80);
+				c = (int) (size & 0x7f);
+				size >>>= 7;
+			}
+			writeTracked(c);
+			out.write(deflated);
+			crc.update(deflated);
+			offset += deflated.length;
+
+			entry.crc = (int) crc.getValue();
+			entry.end = offset;
+			entries.add(entry);
+			byId.put(sha, entry);
+		}
+		return true;
+	}
+
+	// Opens an object added to this unfinished pack, null if it has none
+	public synchronized Tuple<GitObjectInfo, InputStream> open(String sha) throws IOException {
+		Entry entry = byId.get(sha);
+		if (entry == null || finished) {
+			return null;
+		}
+		out.flush();
+		if (reader == null) {
+			reader = FileChannel.open(tmpPack, StandardOpenOption.READ);
+		}
+		ByteBuffer raw = ByteBuffer.allocate((int) (entry.end - entry.offset));
+		while (raw.hasRemaining()) {
+			if (reader.read(raw, entry.offset + raw.position()) < 0) {
+				throw new IOException("Truncated pack entry in " + tmpPack);
+			}
+		}
+		byte[] bytes = raw.array();
+
+		int p = 0;
+		int c = bytes[p++] & 0xff;
+		int type = (c >> 4) & 7;
+		long size = c & 0x0f;
+		int shift = 4;
+		while ((c & 0x80) != 0) {
+			c = bytes[p++] & 0xff;
+			size |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		}
+		InputStream in = GitZlib.inflate(new ByteArrayInputStream(bytes, p, bytes.length - p));
+		return new Tuple<>(new GitObjectInfo(typeName(type), size), in);
+	}
+
+	private static String typeName(int type) throws IOException {
+		switch (type) {
+		case GitPack.OBJ_COMMIT:
+			return "commit";
+		case GitPack.OBJ_TREE:
+			return "tree";
+		case GitPack.OBJ_BLOB:
+			return "blob";
+		case GitPack.OBJ_TAG:
+			return "tag";
+		default:
+			throw new IOException("Unknown type code " + type);
+		}
+	}
+
+	private void writeTracked(int b) throws IOException {
+		out.write(b);
+		crc.update(b);
+		offset++;
+	}
+
+	private static int typeCode(String fmt) throws IOException {
+		switch (fmt) {
+		case "commit":
+			return GitPack.OBJ_COMMIT;
+		case "tree":
+			return GitPack.OBJ_TREE;
+		case "blob":
+			return GitPack.OBJ_BLOB;
+		case "tag":
+			return GitPack.OBJ_TAG;
+		default:
+			throw new IOException("Unknown type " + fmt);
+		}
+	}
+
+	// Completes the pack and writes its index. Returns the .pack path, or
+	// null if nothing was added.
+	public synchronized Path finish() throws IOException {
+		finished = true;
+		out.close();
+		if (reader != null) {
+			reader.close();
+		}
+		if (entries.isEmpty()) {
+			Files.deleteIfExists(tmpPack);
+			return null;
+		}
+
+		MessageDigest digest = sha1();
+		try (FileChannel channel = FileChannel.open(tmpPack, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(4).putInt(0, entries.size()), 8);
+
+			// Checksum the whole pack now that the header is final
+			ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+			long position = 0;
+			int n;
+			while ((n = channel.read(chunk, position)) > 0) {
+				digest.update(chunk.array(), 0, n);
+				position += n;
+				chunk.clear();
+			}
+			byte[] packSha = digest.digest();
+			channel.write(ByteBuffer.wrap(packSha), position);
+			// On disk before the renames publish it, so a crash can't leave
+			// an index naming objects the pack never got
+			channel.force(true);
+
+			String name = "pack-" + GitObjectHelper.shaToHex(packSha, 0);
+			Path packPath = packDir.resolve(name + ".pack");
+			Path tmpIdx = Files.createTempFile(packDir, "tmp_idx_", "");
+			writeIndex(tmpIdx, packSha);
+
+			// The idx goes last: readers find packs through their index
+			Files.move(tmpPack, packPath, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpIdx, packDir.resolve(name + ".idx"), StandardCopyOption.ATOMIC_MOVE);
+			return packPath;
+		}
+	}
+
+	// Version 2 pack index
+	private void writeIndex(Path path, byte[] packSha) throws IOException {
+		Entry[] sorted = entries.toArray(new Entry[0]);
+		Arrays.sort(sorted, (a, b) -> Arrays.compareUnsigned(a.id, b.id));
+
+		int large = 0;
+		for (Entry e : sorted) {
+			if (e.offset >= 0x80000000L) {
+				large++;
+			}
+		}
+
+		int size = 8 + 256 * 4 + sorted.length * (20 + 4 + 4) + large * 8 + 40;
+		ByteBuffer idx = ByteBuffer.allocate(size);
+		idx.putInt(0xff744f63);
+		idx.putInt(2);
+
+		int[] fanout = new int[256];
+		for (Entry e : sorted) {
+			fanout[e.id[0] & 0xff]++;
+		}
+		int total = 0;
+		for (int i = 0; i < 256; i++) {
+			total += fanout[i];
+			idx.putInt(total);
+		}
+		for (Entry e : sorted) {
+			idx.put(e.id);
+		}
+		for (Entry e : sorted) {
+			idx.putInt(e.crc);
+		}
+		int nextLarge = 0;
+		for (Entry e : sorted) {
+			idx.putInt(e.offset < 0x80000000L ? (int) e.offset : 0x80000000 | nextLarge++);
+		}
+		for (Entry e : sorted) {
+			if (e.offset >= 0x80000000L) {
+				idx.putLong(e.offset);
+			}
+		}
+		idx.put(packSha);
+
+		MessageDigest digest = sha1();
+		digest.update(idx.array(), 0, idx.position());
+		idx.put(digest.digest());
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			idx.flip();
+			while (idx.hasRemaining()) {
+				channel.write(idx);
+			}
+			channel.force(true);
+		}
+	}
+
+	private static MessageDigest sha1() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 algorithm not found", e);
+		}
+	}
+
+	// Abandons an unfinished pack
+	@Override
+	public synchronized void close() throws IOException {
+		if (!finished) {
+			finished = true;
+			out.close();
+			if (reader != null) {
+				reader.close();
+			}
+			Files.deleteIfExists(tmpPack);
+		}
+	}
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// prune: deletes the loose objects nothing reachable refers to, once they
+// are older than a grace period. Mark and sweep, both on a pool of threads:
+//  - mark walks from the GitRoots (refs, HEAD, index, reflogs), one task per
+//    commit, tree or tag read; a subtree or commit already claimed by
+//    another task is never read twice, and blobs are only claimed
+//  - sweep goes through the objects/xx fan-out directories in parallel
+//
+// Concurrent writers are safe the way they are with git: whatever they
+// are writing is newer than the grace period, and GitFileObjectDatabase
+// freshens an existing object rather than skipping it, so an unreachable
+// object that becomes reachable again looks new too. Stale temporary
+// files of interrupted writes are removed along the way. Packs are left
+// alone.
+//
+// Marking fails rather than guesses when a reachable object can't be
+// read, since anything below it could be wrongly deleted.
+public class GitPrune {
+	// git's gc.pruneExpire default
+	public static final String DEFAULT_EXPIRE = "2.weeks.ago";
+
+	private static final int STRIPES = 16;
+	private static final Pattern RELATIVE = Pattern.compile("(\\d+)\\.(second|minute|hour|day|week)s?\\.ago");
+	private static final AtomicInteger POOLS = new AtomicInteger();
+
+	private final GitRepository repo;
+	private final long expire;
+	private final boolean dryRun;
+	private final PrintStream report;
+
+	// Reachable ids, striped by the last id byte (which the sets don't hash
+	// on) so marking threads rarely wait on one another
+	private final GitObjectIdSet[] marked = new GitObjectIdSet[STRIPES];
+	private final AtomicInteger pending = new AtomicInteger();
+	private final CompletableFuture<Void> marking = new CompletableFuture<>();
+	private ExecutorService executor;
+
+	// Loose objects last modified before expire (epoch millis) go. With
+	// dryRun nothing is deleted. The ids and types of the objects pruned are
+	// printed to report unless it is null.
+	public GitPrune(GitRepository repo, long expire, boolean dryRun, PrintStream report) {
+		this.repo = repo;
+		this.expire = expire;
+		this.dryRun = dryRun;
+		this.report = report;
+		for (int i = 0; i < STRIPES; i++) {
+			marked[i] = new GitObjectIdSet();
+		}
+	}
+
+	// Cutoff for an expiry of "now", "never" or "<n>.<unit>.ago" (git's
+	// approxidate also takes absolute dates; these are the forms gc uses)
+	public static long parseExpire(String expire, long now) {
+		if (expire.equals("now")) {
+			return now;
+		}
+		if (expire.equals("never")) {
+			return Long.MIN_VALUE;
+		}
+		Matcher m = RELATIVE.matcher(expire);
+		if (!m.matches()) {
+			throw new IllegalArgumentException("Bad expiry " + expire);
+		}
+		long seconds = switch (m.group(2)) {
+		case "second" -> 1;
+		case "minute" -> 60;
+		case "hour" -> 3600;
+		case "day" -> 86400;
+		default -> 7 * 86400;
+		};
+		return now - Long.parseLong(m.group(1)) * seconds * 1000;
+	}
+
+	// The cutoff from gc.pruneExpire, two weeks by default
+	public static long configuredExpire(GitRepository repo) throws IOException {
+		return parseExpire(repo.getConf().getString("gc.pruneexpire", DEFAULT_EXPIRE), System.currentTimeMillis());
+	}
+
+	// Returns the number of loose objects pruned, or that would be
+	public int run() throws IOException {
+		if (!(repo.getObjectDatabase() instanceof GitFileObjectDatabase db)) {
+			throw new IOException("prune only works on repositories stored in .git/objects");
+		}
+		if (repo.getConf().getBoolean("extensions.preciousobjects", false)) {
+			throw new IOException("Not pruning: the repository has extensions.preciousObjects set");
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		int pool = POOLS.incrementAndGet();
+		AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "jwyag-prune-" + pool + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			mark(db);
+			int pruned = sweep(db);
+			removeTemporary(db.getObjectsDir().resolve("pack"));
+			return pruned;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void mark(GitFileObjectDatabase db) throws IOException {
+		// Held until every root is queued, so the count can't reach zero early
+		pending.incrementAndGet();
+		GitRoots.collect(repo, (kind, name, sha) -> {
+			if (kind == GitRoots.Kind.INDEX) {
+				claim(sha);
+			} else if (kind != GitRoots.Kind.REFLOG || db.contains(sha)) {
+				// Reflog entries whose objects are gone are skipped
+				visit(sha);
+			}
+		});
+		done();
+
+		try {
+			marking.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Marking reachable objects failed, nothing pruned", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while marking, nothing pruned", e);
+		}
+	}
+
+	// Marks sha and, if nobody had, queues reading it for what it refers to
+	private void visit(String sha) {
+		if (!claim(sha) || marking.isDone()) {
+			return;
+		}
+		pending.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					read(sha);
+				} catch (Throwable e) {
+					marking.completeExceptionally(e);
+				} finally {
+					done();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			marking.completeExceptionally(e);
+			done();
+		}
+	}
+
+	private void read(String sha) throws IOException {
+		GitObject obj = GitObjectHelper.objectRead(repo, sha);
+		if (obj == null) {
+			throw new IOException("Missing reachable object " + sha);
+		}
+		// GitTag extends GitCommit, so it goes first
+		if (obj instanceof GitTag tag) {
+			visit(tag.getObject());
+		} else if (obj instanceof GitCommit commit) {
+			visit(commit.getTree());
+			for (String parent : commit.getParents()) {
+				visit(parent);
+			}
+		} else if (obj instanceof GitTree tree) {
+			for (GitTreeLeaf item : tree.getItems()) {
+				if (item.isTree()) {
+					visit(item.getSha());
+				} else if (!item.isGitlink()) {
+					claim(item.getSha());
+				}
+			}
+		}
+	}
+
+	private void done() {
+		if (pending.decrementAndGet() == 0) {
+			marking.complete(null);
+		}
+	}
+
+	// Marks an id, true if it wasn't yet
+	private boolean claim(String sha) {
+		byte[] id = GitObjectHelper.shaToBytes(sha);
+		GitObjectIdSet set = marked[id[19] & (STRIPES - 1)];
+		synchronized (set) {
+			return set.add(id, 0, 1) == 0;
+		}
+	}
+
+	private boolean isMarked(byte[] id) {
+		GitObjectIdSet set = marked[id[19] & (STRIPES - 1)];
+		synchronized (set) {
+			return set.contains(id, 0);
+		}
+	}
+
+	// A task per fan-out directory; reports come out in directory order
+	private int sweep(GitFileObjectDatabase db) throws IOException {
+		List<Future<List<String>>> dirs = new ArrayList<>();
+		for (int i = 0; i < 256; i++) {
+			Path dir = db.getObjectsDir().resolve(String.format("%02x", i));
+			if (Files.isDirectory(dir)) {
+				dirs.add(executor.submit(() -> sweep(db, dir)));
+			}
+		}
+		int pruned = 0;
+		for (Future<List<String>> dir : dirs) {
+			List<String> lines;
+			try {
+				lines = dir.get();
+			} catch (ExecutionException e) {
+				throw new IOException("Sweeping loose objects failed", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while sweeping", e);
+			}
+			pruned += lines.size();
+			if (report != null) {
+				lines.forEach(report::println);
+			}
+		}
+		return pruned;
+	}
+
+	// "<sha> <type>" of each object pruned from dir
+	private List<String> sweep(GitFileObjectDatabase db, Path dir) throws IOException {
+		List<String> names = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				names.add(file.getFileName().toString());
+			}
+		}
+		Collections.sort(names);
+
+		List<String> ret = new ArrayList<>();
+		String prefix = dir.getFileName().toString();
+		for (String name : names) {
+			Path file = dir.resolve(name);
+			if (name.startsWith("tmp_")) {
+				if (isExpired(file) && !dryRun) {
+					Files.deleteIfExists(file);
+				}
+				continue;
+			}
+			if (name.length() != 38 || !name.matches("[0-9a-f]+")) {
+				continue;
+			}
+			String sha = prefix + name;
+			if (isMarked(GitObjectHelper.shaToBytes(sha)) || !isExpired(file)) {
+				continue;
+			}
+			if (report != null) {
+				GitObjectInfo info = db.info(sha);
+				ret.add(sha + " " + (info == null ? "unknown" : info.fmt()));
+			} else {
+				ret.add(sha);
+			}
+			if (!dryRun) {
+				Files.deleteIfExists(file);
+			}
+		}
+		return ret;
+	}
+
+	// Leftovers of interrupted pack writes
+	private void removeTemporary(Path dir) throws IOException {
+		if (dryRun || !Files.isDirectory(dir)) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "tmp_*")) {
+			for (Path file : files) {
+				if (isExpired(file)) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	// Last modified before the cutoff; a file already gone isn't
+	private boolean isExpired(Path file) throws IOException {
+		try {
+			return Files.getLastModifiedTime(file).toMillis() < expire;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+}
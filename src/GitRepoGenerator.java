@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+// Builds synthetic repositories for load and scaling tests. Everything is
+// derived from the seed, so the same profile, sizes and seed always give
+// the same objects whether they are written loose or into a pack.
+public class GitRepoGenerator {
+
+	public enum Profile {
+		// Nested directories, a few files per commit, a merge every 10 commits
+		MONOREPO(3, 16, 4, 10),
+		// Every file in the root tree
+		WIDE_FLAT(0, 1, 1, 0),
+		// Small tree, long linear history touching one file per commit
+		DEEP_LINEAR(2, 4, 1, 0);
+
+		// Directory levels above the files, and subdirectories per level
+		final int depth;
+		final int fanout;
+		final int changesPerCommit;
+		// 0 for a linear history
+		final int mergeEvery;
+
+		Profile(int depth, int fanout, int changesPerCommit, int mergeEvery) {
+			this.depth = depth;
+			this.fanout = fanout;
+			this.changesPerCommit = changesPerCommit;
+			this.mergeEvery = mergeEvery;
+		}
+	}
+
+	private static final long EPOCH = 1_500_000_000L;
+
+	private final Profile profile;
+	private final Random random;
+	private final int files;
+	private final int commits;
+	// zlib level overriding the repository config, null to keep it
+	private final Integer compression;
+
+	private GitRepository repo;
+	// Set when writing into a pack instead of loose objects
+	private GitPackWriter pack;
+	private int commitCount;
+
+	public GitRepoGenerator(Profile profile, long seed, int files, int commits) {
+		this(profile, seed, files, commits, null);
+	}
+
+	public GitRepoGenerator(Profile profile, long seed, int files, int commits, Integer compression) {
+		this.profile = profile;
+		this.random = new Random(seed);
+		this.files = files;
+		this.commits = commits;
+		this.compression = compression;
+	}
+
+	// A file in a tree: its blob and size
+	private record FileEntry(String sha, int size) {
+	}
+
+	// Directory node. Nodes are never changed once shared: with() copies the
+	// path down to the change, so older snapshots stay valid and untouched
+	// subtrees keep their already written sha.
+	private static final class Dir {
+		final TreeMap<String, Object> entries;
+		String sha;
+
+		Dir() {
+			this(new TreeMap<>());
+		}
+
+		Dir(TreeMap<String, Object> entries) {
+			this.entries = entries;
+		}
+
+		Dir with(String[] path, int i, FileEntry file) {
+			TreeMap<String, Object> copy = new TreeMap<>(entries);
+			if (i == path.length - 1) {
+				copy.put(path[i], file);
+			} else {
+				Object child = copy.get(path[i]);
+				Dir dir = child instanceof Dir ? (Dir) child : new Dir();
+				copy.put(path[i], dir.with(path, i + 1, file));
+			}
+			return new Dir(copy);
+		}
+
+		// In place insert, only used while building the first tree
+		void put(String[] path, FileEntry file) {
+			Dir dir = this;
+			for (int i = 0; i < path.length - 1; i++) {
+				dir = (Dir) dir.entries.computeIfAbsent(path[i], k -> new Dir());
+			}
+			dir.entries.put(path[path.length - 1], file);
+		}
+	}
+
+	// Generates into path, which must not already be a repository
+	public void generate(String path, boolean packed) throws Exception {
+		repo = GitRepository.createRepo(path);
+		if (compression != null) {
+			repo.setCompression(compression);
+		}
+		pack = packed ? new GitPackWriter(repo) : null;
+		try {
+			generate();
+			if (pack != null) {
+				pack.finish();
+			}
+		} finally {
+			if (pack != null) {
+				pack.close();
+			}
+		}
+	}
+
+	private void generate() throws Exception {
+		// File layout: each file gets a fixed random directory path
+		String[][] paths = new String[files][];
+		for (int i = 0; i < files; i++) {
+			String[] p = new String[profile.depth + 1];
+			for (int level = 0; level < profile.depth; level++) {
+				p[level] = String.format("dir%02d", random.nextInt(profile.fanout));
+			}
+			p[profile.depth] = String.format("file%07d.txt", i);
+			paths[i] = p;
+		}
+		int[] revisions = new int[files];
+
+		// Initial commit with every file
+		Dir root = new Dir();
+		for (int i = 0; i < files; i++) {
+			root.put(paths[i], writeBlob(i, 0));
+		}
+		String head = writeCommit(root, new String[0]);
+
+		String topic = null;
+		while (commitCount < commits) {
+			if (profile.mergeEvery > 0 && commitCount % profile.mergeEvery == 0 && commits - commitCount >= 4) {
+				// Two commits on a side branch, one on the main line, then a merge.
+				// Both sides change different files, so the merge is the main tree
+				// plus the side's changes.
+				Dir side = root;
+				List<Integer> sideChanges = new ArrayList<>();
+				String sideHead = head;
+				for (int c = 0; c < 2; c++) {
+					for (int n = 0; n < profile.changesPerCommit; n++) {
+						int f = random.nextInt(files);
+						side = side.with(paths[f], 0, writeBlob(f, ++revisions[f]));
+						sideChanges.add(f);
+					}
+					sideHead = writeCommit(side, new String[] { sideHead });
+				}
+
+				for (int n = 0; n < profile.changesPerCommit; n++) {
+					int f = random.nextInt(files);
+					if (!sideChanges.contains(f)) {
+						root = root.with(paths[f], 0, writeBlob(f, ++revisions[f]));
+					}
+				}
+				head = writeCommit(root, new String[] { head });
+
+				for (int f : sideChanges) {
+					root = root.with(paths[f], 0, findFile(side, paths[f]));
+				}
+				head = writeCommit(root, new String[] { head, sideHead });
+				topic = sideHead;
+			} else {
+				for (int n = 0; n < profile.changesPerCommit; n++) {
+					int f = random.nextInt(files);
+					root = root.with(paths[f], 0, writeBlob(f, ++revisions[f]));
+				}
+				head = writeCommit(root, new String[] { head });
+			}
+		}
+
+		writeRef("refs/heads/master", head);
+		if (topic != null) {
+			writeRef("refs/heads/topic", topic);
+		}
+		writeIndex(root);
+	}
+
+	private static FileEntry findFile(Dir root, String[] path) {
+		Dir dir = root;
+		for (int i = 0; i < path.length - 1; i++) {
+			dir = (Dir) dir.entries.get(path[i]);
+		}
+		return (FileEntry) dir.entries.get(path[path.length - 1]);
+	}
+
+	// Text content, a few hundred bytes to a few kilobytes
+	private FileEntry writeBlob(int file, int revision) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("file ").append(file).append(" revision ").append(revision).append('\n');
+		int lines = 4 + random.nextInt(60);
+		for (int l = 0; l < lines; l++) {
+			int width = 10 + random.nextInt(60);
+			for (int c = 0; c < width; c++) {
+				sb.append((char) ('a' + random.nextInt(26)));
+			}
+			sb.append('\n');
+		}
+		byte[] data = sb.toString().getBytes(StandardCharsets.US_ASCII);
+		return new FileEntry(write(new GitBlob(data)), data.length);
+	}
+
+	private String writeTree(Dir dir) throws IOException {
+		if (dir.sha != null) {
+			return dir.sha;
+		}
+		GitTree tree = new GitTree(null);
+		for (Map.Entry<String, Object> entry : dir.entries.entrySet()) {
+			if (entry.getValue() instanceof Dir) {
+				String sha = writeTree((Dir) entry.getValue());
+				tree.getItems().add(new GitTreeLeaf("40000".getBytes(), Paths.get(entry.getKey()), sha));
+			} else {
+				String sha = ((FileEntry) entry.getValue()).sha();
+				tree.getItems().add(new GitTreeLeaf("100644".getBytes(), Paths.get(entry.getKey()), sha));
+			}
+		}
+		dir.sha = write(tree);
+		return dir.sha;
+	}
+
+	private String writeCommit(Dir root, String[] parents) throws IOException {
+		long time = EPOCH + commitCount * 97L;
+		String ident = "Generator <generator@example.com> " + time + " +0000";
+
+		GitCommit commit = new GitCommit(null);
+		commit.setHeader("tree", writeTree(root));
+		for (String parent : parents) {
+			commit.addHeader("parent", parent);
+		}
+		commit.setHeader("author", ident);
+		commit.setHeader("committer", ident);
+		commit.setMessage(String.format("%s commit %d\n", profile.name().toLowerCase(), commitCount));
+		commitCount++;
+		return write(commit);
+	}
+
+	private String write(GitObject obj) throws IOException {
+		if (pack != null) {
+			return pack.add(obj.getFmt(), obj.serialize());
+		}
+		return GitObjectHelper.objectWrite(obj, repo);
+	}
+
+	private void writeRef(String ref, String sha) throws IOException {
+		Files.writeString(GitObjectHelper.repoFile(repo, ref), sha + "\n");
+	}
+
+	// One entry per file of the final tree, with empty stat data
+	private void writeIndex(Dir root) throws IOException {
+		List<GitIndexEntry> entries = new ArrayList<>(files);
+		collect(root, "", entries);
+		// The index is sorted by path bytes, which differs from tree order
+		entries.sort((a, b) -> Arrays.compareUnsigned(a.name().getBytes(StandardCharsets.UTF_8),
+				b.name().getBytes(StandardCharsets.UTF_8)));
+		GitIndex.indexWrite(repo, new GitIndex(2, entries));
+	}
+
+	private static void collect(Dir dir, String prefix, List<GitIndexEntry> out) {
+		Tuple<Integer, Integer> zero = new Tuple<>(0, 0);
+		for (Map.Entry<String, Object> entry : dir.entries.entrySet()) {
+			String name = prefix + entry.getKey();
+			if (entry.getValue() instanceof Dir) {
+				collect((Dir) entry.getValue(), name + "/", out);
+			} else {
+				FileEntry file = (FileEntry) entry.getValue();
+				out.add(new GitIndexEntry(zero, zero, 0, 0, 0b1000, 0644, 0, 0, file.size(), file.sha(), false, 0,
+						name));
+			}
+		}
+	}
+}
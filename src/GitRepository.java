@@ -1,15 +1,101 @@
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Properties;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+// An opened repository. One instance can be shared by any number of
+// threads: state read on every object lookup (config, pack list, ref cache,
+// object database) is published as immutable snapshots through volatile
+// fields, so readers never lock. Only building a new snapshot does.
 public class GitRepository {
 
 	private Path worktree;
 	private Path gitdir;
-	private Properties conf;
+	private volatile GitConfig conf;
+
+	// Warm state, only kept by long-lived processes such as GitDaemon.
+	// Both are dropped by invalidateCaches() whenever .git changes.
+	private volatile boolean caching = false;
+	private volatile IndexSnapshot indexSnapshot;
+	// Replaced rather than cleared on invalidation, so a reader that read a
+	// ref just before it changed can only fill a map nobody uses anymore
+	private volatile Map<String, CachedRef> refCache = new ConcurrentHashMap<>();
+
+	// The parsed index, read-only since every thread shares it, and the mtime
+	// of the file it was parsed from
+	private record IndexSnapshot(GitIndex index, FileTime mtime) {
+	}
+
+	// A resolved ref (sha null when missing) with the files it was read
+	// from, symbolic refs included, and their fileStamp()s from before
+	public record CachedRef(String sha, List<Path> files, List<Object> stamps) {
+		// Whether no file changed since, missing ones included
+		public boolean isCurrent() throws IOException {
+			for (int i = 0; i < files.size(); i++) {
+				if (!Objects.equals(fileStamp(files.get(i)), stamps.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	// Object storage, a GitFileObjectDatabase unless set otherwise
+	private volatile GitObjectDatabase objectDatabase;
+
+	// Opened packs and the multi-pack-index over them (null without a usable
+	// objects/pack/multi-pack-index), as of the pack directory's mtime
+	private record PackSet(List<GitPack> packs, GitMultiPackIndex multiPackIndex, FileTime mtime) {
+	}
+
+	private volatile PackSet packSet;
+	// Not synchronized: a virtual thread blocking on a monitor while another
+	// one does I/O would pin its carrier
+	private final ReentrantLock packLock = new ReentrantLock();
+
+	// objects/info/commit-graph (null when missing or unreadable) as of its
+	// mtime, null until first asked for
+	private record CommitGraphFile(GitCommitGraph graph, FileTime mtime) {
+	}
+
+	private volatile CommitGraphFile commitGraph;
+
+	// Pack of the open GitBulkCheckin session, null outside of one. Sessions
+	// start and finish under the lock, for the same reason as packLock.
+	private volatile GitPackWriter bulkCheckin;
+	private final ReentrantLock bulkCheckinLock = new ReentrantLock();
+
+	// Pool for GitObjectHelper.objectReadAsync, started on first use
+	private volatile GitAsyncObjectReader asyncReader;
+
+	// Resolved delta bases shared by all packs, created on first use
+	private volatile GitDeltaBaseCache deltaBaseCache;
+
+	// zlib levels, read from the config on first use. Racing threads compute
+	// the same value, so no lock.
+	private volatile Integer looseCompression;
+	private volatile Integer packCompression;
+
+	// Extensions that change nothing this implementation reads or writes:
+	// the hash (only sha1 is accepted below), and preciousobjects, which
+	// GitPrune honours
+	private static final Set<String> KNOWN_EXTENSIONS = Set.of("extensions.noop", "extensions.objectformat",
+			"extensions.preciousobjects");
 
 	// Constructor
 	public GitRepository(String path, boolean force) throws IOException {
@@ -21,23 +107,28 @@ public class GitRepository {
 		}
 
 		// Initialize configuration
-		this.conf = new Properties();
-		Path configFilePath = worktree.resolve(".git/config");
-
-		if (Files.exists(configFilePath)) {
-			try (var reader = Files.newBufferedReader(configFilePath)) {
-				conf.load(reader);
-			}
-		} else if (!force) {
+		if (!force && !Files.exists(gitdir.resolve("config"))) {
 			throw new IOException("Configuration file missing");
 		}
+		this.conf = GitConfig.load(gitdir);
 
 		if (!force) {
-			String versStr = conf.getProperty("core.repositoryformatversion");
-			if (versStr != null) {
-				int vers = Integer.parseInt(versStr);
-				if (vers != 0) {
-					throw new IOException("Unsupported repositoryformatversion " + vers);
+			// Version 1 adds extensions, and git refuses a repository with one
+			// it doesn't know, since each may change how the repository is
+			// stored (refstorage=reftable moves every ref out of refs/)
+			int vers = conf.getInt("core.repositoryformatversion", 0);
+			if (vers > 1) {
+				throw new IOException("Unsupported repositoryformatversion " + vers);
+			}
+			if (vers == 1) {
+				for (String name : conf.names()) {
+					if (name.startsWith("extensions.") && !KNOWN_EXTENSIONS.contains(name)) {
+						throw new IOException("Unsupported extension " + name.substring("extensions.".length()));
+					}
+				}
+				String objectFormat = conf.get("extensions.objectformat");
+				if (objectFormat != null && !objectFormat.equalsIgnoreCase("sha1")) {
+					throw new IOException("Unsupported object format " + objectFormat);
 				}
 			}
 		}
@@ -100,8 +191,8 @@ public class GitRepository {
 		repo.writeFile("HEAD", "ref: refs/heads/master\n");
 
 		// .git/config
-		Properties config = repo.defaultConfig();
-		repo.writeConfig("config", config);
+		repo.writeConfig("config", repo.defaultConfig());
+		repo.conf = GitConfig.load(gitdir);
 
 		return repo;
 	}
@@ -126,32 +217,300 @@ public class GitRepository {
 
 	// Helper method to write content to a file
 	private void writeFile(String path, String content) throws IOException {
-		try (BufferedWriter writer = Files.newBufferedWriter(computeRepoPath(path))) {
-			writer.write(content);
-		}
+		Files.writeString(computeRepoPath(path), content);
 	}
 
 	// Helper method to write the config file
-	private void writeConfig(String path, Properties config) throws IOException {
-		try (BufferedWriter writer = Files.newBufferedWriter(computeRepoPath(path))) {
-			writer.write("[core]\n");
-			for (String key : config.stringPropertyNames()) {
-				String value = config.getProperty(key);
-				// Remove "core." prefix before writing to the file
-				String formattedKey = key.replace("core.", "");
-				writer.write("\t" + formattedKey + " = " + value + "\n");
+	private void writeConfig(String path, GitConfig config) throws IOException {
+		config.write(computeRepoPath(path));
+	}
+
+	// Helper method to get default configuration
+	public GitConfig defaultConfig() {
+		return new GitConfig.Builder()
+				.add("core.repositoryformatversion", "0")
+				.add("core.filemode", "false")
+				.add("core.bare", "false")
+				.add("core.symlinks", "false")
+				.build();
+	}
+
+	// zlib level for loose objects: core.loosecompression, then
+	// core.compression, then best speed as in git
+	public int getLooseCompression() throws IOException {
+		Integer level = looseCompression;
+		if (level == null) {
+			GitConfig config = getConf();
+			level = checkCompression(config.getInt("core.loosecompression", config.getInt("core.compression", 1)));
+			looseCompression = level;
+		}
+		return level;
+	}
+
+	// zlib level for packs: pack.compression, then core.compression, then
+	// the zlib default
+	public int getPackCompression() throws IOException {
+		Integer level = packCompression;
+		if (level == null) {
+			GitConfig config = getConf();
+			level = checkCompression(config.getInt("pack.compression", config.getInt("core.compression", -1)));
+			packCompression = level;
+		}
+		return level;
+	}
+
+	public GitObjectDatabase getObjectDatabase() {
+		GitObjectDatabase db = objectDatabase;
+		if (db == null) {
+			synchronized (this) {
+				if (objectDatabase == null) {
+					objectDatabase = new GitFileObjectDatabase(this);
+				}
+				db = objectDatabase;
 			}
 		}
+		return db;
 	}
 
-	// Helper method to get default configuration
-	public Properties defaultConfig() {
-		Properties properties = new Properties();
-		properties.setProperty("core.repositoryformatversion", "0");
-		properties.setProperty("core.filemode", "false");
-		properties.setProperty("core.bare", "false");
-		properties.setProperty("core.symlinks", "false");
-		return properties;
+	// Replaces where objects are read from and written to, e.g. with a
+	// GitMemoryObjectDatabase for a repository that only lives for one job.
+	// Refs, the index and config stay in the gitdir.
+	public synchronized void setObjectDatabase(GitObjectDatabase objectDatabase) {
+		this.objectDatabase = objectDatabase;
+	}
+
+	public GitAsyncObjectReader getAsyncReader() {
+		GitAsyncObjectReader reader = asyncReader;
+		if (reader == null) {
+			synchronized (this) {
+				if (asyncReader == null) {
+					asyncReader = new GitAsyncObjectReader(this);
+				}
+				reader = asyncReader;
+			}
+		}
+		return reader;
+	}
+
+	public GitPackWriter getBulkCheckin() {
+		return bulkCheckin;
+	}
+
+	void setBulkCheckin(GitPackWriter bulkCheckin) {
+		this.bulkCheckin = bulkCheckin;
+	}
+
+	ReentrantLock getBulkCheckinLock() {
+		return bulkCheckinLock;
+	}
+
+	// Bounded by core.deltaBaseCacheLimit
+	public GitDeltaBaseCache getDeltaBaseCache() throws IOException {
+		GitDeltaBaseCache cache = deltaBaseCache;
+		if (cache == null) {
+			synchronized (this) {
+				if (deltaBaseCache == null) {
+					deltaBaseCache = new GitDeltaBaseCache(
+							getConf().getLong("core.deltabasecachelimit", GitDeltaBaseCache.DEFAULT_LIMIT));
+				}
+				cache = deltaBaseCache;
+			}
+		}
+		return cache;
+	}
+
+	// Overrides both levels for this process, e.g. 0 or 1 for bulk imports
+	public void setCompression(int level) throws IOException {
+		checkCompression(level);
+		looseCompression = level;
+		packCompression = level;
+	}
+
+	private static int checkCompression(int level) throws IOException {
+		if (level < -1 || level > 9) {
+			throw new IOException("Bad zlib compression level " + level);
+		}
+		return level;
+	}
+
+	// Keep the index and resolved refs in memory between commands
+	public void enableCaching() {
+		this.caching = true;
+	}
+
+	public boolean isCaching() {
+		return caching;
+	}
+
+	public void invalidateCaches() {
+		indexSnapshot = null;
+		invalidateRefs();
+		looseCompression = null;
+		packCompression = null;
+	}
+
+	// Drops the resolved refs, after a ref was written
+	public void invalidateRefs() {
+		refCache = new ConcurrentHashMap<>();
+	}
+
+	// Returns the index, reusing the parsed copy while the file is unchanged.
+	// With caching on the copy is shared and read-only. Threads that miss
+	// together each parse the file, and the last one to finish publishes.
+	// The mtime is taken before the read, so a change in between only
+	// costs another read.
+	public GitIndex getIndex() throws IOException {
+		if (!caching) {
+			return GitIndex.indexRead(this);
+		}
+		Path indexFile = gitdir.resolve("index");
+		FileTime mtime = Files.exists(indexFile) ? Files.getLastModifiedTime(indexFile) : null;
+		IndexSnapshot snapshot = indexSnapshot;
+		if (snapshot == null || !Objects.equals(mtime, snapshot.mtime())) {
+			GitMetrics.cacheMiss("index");
+			snapshot = new IndexSnapshot(GitIndex.indexRead(this).readOnly(), mtime);
+			indexSnapshot = snapshot;
+		} else {
+			GitMetrics.cacheHit("index");
+		}
+		return snapshot.index();
+	}
+
+	// Refs resolved since the last change, used by GitObjectHelper.refResolve;
+	// null when caching is off
+	public Map<String, CachedRef> getRefCache() {
+		return caching ? refCache : null;
+	}
+
+	// What a file looked like: mtime, size and inode, or null when it is
+	// missing. Refs are rewritten by renaming a new file over them, so the
+	// inode changes even when the mtime doesn't.
+	public static Object fileStamp(Path file) throws IOException {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		return Arrays.asList(attrs.lastModifiedTime(), attrs.size(), attrs.fileKey());
+	}
+
+	public List<GitPack> getPacks() throws IOException {
+		return packSet().packs();
+	}
+
+	// Null when there is none, or it doesn't match the packs on disk
+	public GitMultiPackIndex getMultiPackIndex() throws IOException {
+		return packSet().multiPackIndex();
+	}
+
+	// Null when there is none, it can't be read or core.commitGraph is off.
+	// Reopened once the file is replaced.
+	public GitCommitGraph getCommitGraph() throws IOException {
+		if (!getConf().getBoolean("core.commitgraph", true)) {
+			return null;
+		}
+		Path file = gitdir.resolve("objects").resolve("info").resolve(GitCommitGraph.FILE);
+		FileTime mtime = Files.isRegularFile(file) ? Files.getLastModifiedTime(file) : null;
+		CommitGraphFile seen = commitGraph;
+		if (seen != null && Objects.equals(mtime, seen.mtime())) {
+			return seen.graph();
+		}
+		GitCommitGraph graph = null;
+		if (mtime != null) {
+			try {
+				graph = GitCommitGraph.open(file);
+			} catch (IOException e) {
+				// A broken commit-graph only costs speed: commits are read instead
+			}
+		}
+		commitGraph = new CommitGraphFile(graph, mtime);
+		return graph;
+	}
+
+	private PackSet packSet() throws IOException {
+		PackSet set = packSet;
+		if (set == null) {
+			rescanPacks();
+			set = packSet;
+		}
+		return set;
+	}
+
+	// Reopens the pack list if objects/pack changed, returns true if it did.
+	// Readers keep using the previous list until the new one is complete.
+	public boolean rescanPacks() throws IOException {
+		Path packDir = gitdir.resolve("objects").resolve("pack");
+		FileTime mtime = Files.isDirectory(packDir) ? Files.getLastModifiedTime(packDir) : null;
+		PackSet seen = packSet;
+		if (seen != null && Objects.equals(mtime, seen.mtime())) {
+			return false;
+		}
+
+		packLock.lock();
+		try {
+			PackSet current = packSet;
+			if (current != seen && current != null && Objects.equals(mtime, current.mtime())) {
+				// Another thread rescanned meanwhile
+				return true;
+			}
+
+			// Keep packs that are still there open, open the new ones. What is
+			// left in opened afterwards is gone from disk.
+			Map<Path, GitPack> opened = new HashMap<>();
+			if (current != null) {
+				for (GitPack pack : current.packs()) {
+					opened.put(pack.getPackPath(), pack);
+				}
+			}
+			List<GitPack> found = new ArrayList<>();
+			List<GitPack> added = new ArrayList<>();
+			Map<String, GitPack> byIdx = new HashMap<>();
+			if (mtime != null) {
+				try (DirectoryStream<Path> idxFiles = Files.newDirectoryStream(packDir, "pack-*.idx")) {
+					for (Path idx : idxFiles) {
+						String name = idx.getFileName().toString();
+						Path packPath = idx.resolveSibling(name.substring(0, name.length() - 4) + ".pack");
+						GitPack pack = opened.remove(packPath);
+						if (pack == null) {
+							pack = GitPack.open(this, idx);
+							added.add(pack);
+						}
+						found.add(pack);
+						byIdx.put(name, pack);
+					}
+				} catch (IOException e) {
+					closeAll(added);
+					throw e;
+				}
+			}
+			GitMultiPackIndex midx = null;
+			if (Files.isRegularFile(packDir.resolve(GitMultiPackIndex.FILE))) {
+				try {
+					midx = GitMultiPackIndex.open(packDir, byIdx);
+				} catch (IOException e) {
+					// A broken multi-pack-index only costs speed: packs are searched one by one
+				}
+			}
+			packSet = new PackSet(Collections.unmodifiableList(found), midx, mtime);
+			// Deleted packs would otherwise keep their descriptor, and their
+			// disk space, for as long as the process runs. A reader still
+			// inside one gets a ClosedChannelException and looks again.
+			closeAll(opened.values());
+			return true;
+		} finally {
+			packLock.unlock();
+		}
+	}
+
+	private static void closeAll(Collection<GitPack> packs) {
+		for (GitPack pack : packs) {
+			try {
+				pack.close();
+			} catch (IOException e) {
+				// Nothing is left to release
+			}
+		}
 	}
 
 	// Getters
@@ -163,7 +522,14 @@ public class GitRepository {
 		return gitdir;
 	}
 
-	public Properties getConf() {
+	// Layered config. Long-lived processes recheck the files' mtimes, which
+	// is a few stats when nothing changed.
+	public GitConfig getConf() throws IOException {
+		if (caching) {
+			GitConfig loaded = GitConfig.load(gitdir);
+			conf = loaded;
+			return loaded;
+		}
 		return conf;
 	}
 }
@@ -0,0 +1,95 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// Where the reachability walks of fsck and prune start, the same places git
+// looks: every ref, HEAD, the index entries and cache-tree, and the old and
+// new id of every reflog entry. Both commands take them from here so that
+// what fsck calls reachable is what prune keeps.
+public final class GitRoots {
+	public enum Kind {
+		// A ref or HEAD
+		REF,
+		// A blob staged in the index (gitlinks are left out: they name
+		// commits of another repository)
+		INDEX,
+		// A valid cache-tree directory
+		CACHE_TREE,
+		// An id in a reflog; old entries may name objects long gone
+		REFLOG
+	}
+
+	@FunctionalInterface
+	public interface RootConsumer {
+		// name is where sha was found: the ref (also for a reflog entry),
+		// "HEAD", or "index <path>"
+		void accept(Kind kind, String name, String sha) throws IOException;
+	}
+
+	private GitRoots() {
+	}
+
+	public static void collect(GitRepository repo, RootConsumer consumer) throws IOException {
+		for (Map.Entry<String, String> ref : GitObjectHelper.refListAll(repo).entrySet()) {
+			consumer.accept(Kind.REF, ref.getKey(), ref.getValue());
+		}
+		String head = GitObjectHelper.refResolve(repo, "HEAD");
+		if (head != null) {
+			consumer.accept(Kind.REF, "HEAD", head);
+		}
+
+		GitIndex index = GitIndex.indexRead(repo);
+		for (GitIndexEntry entry : index.getEntries()) {
+			if (entry.modeType() != 0b1110) {
+				consumer.accept(Kind.INDEX, "index " + entry.name(), entry.sha());
+			}
+		}
+		if (index.getCacheTree() != null) {
+			collectCacheTree(index.getCacheTree(), consumer);
+		}
+
+		collectReflogs(repo, consumer);
+	}
+
+	// A stale directory can still have valid subdirectories
+	private static void collectCacheTree(GitCacheTree cacheTree, RootConsumer consumer) throws IOException {
+		if (cacheTree.isValid()) {
+			consumer.accept(Kind.CACHE_TREE, "index cache-tree", cacheTree.getSha());
+		}
+		for (GitCacheTree child : cacheTree.getChildren()) {
+			collectCacheTree(child, consumer);
+		}
+	}
+
+	// Every file under logs/ is the reflog of the ref at the same path
+	private static void collectReflogs(GitRepository repo, RootConsumer consumer) throws IOException {
+		Path logs = GitObjectHelper.repoFile(repo, "logs");
+		if (!Files.isDirectory(logs)) {
+			return;
+		}
+		List<Path> files;
+		try (var walk = Files.walk(logs)) {
+			files = walk.filter(Files::isRegularFile).sorted().toList();
+		}
+		for (Path file : files) {
+			String ref = logs.relativize(file).toString().replace('\\', '/');
+			// Messages needn't be UTF-8; only the ids are looked at
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.length() > 82 && line.charAt(40) == ' ' && line.charAt(81) == ' ') {
+						for (String sha : new String[] { line.substring(0, 40), line.substring(41, 81) }) {
+							if (sha.matches("[0-9a-f]{40}") && !sha.matches("0{40}")) {
+								consumer.accept(Kind.REFLOG, ref, sha);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,12 +1,9 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedHashMap;
 
 public class GitTag extends GitCommit {
 
-	public LinkedHashMap<byte[], Object> kvlm;
-
 	public GitTag(byte[] data) {
 		super(data);
 	}
@@ -16,6 +13,11 @@ public class GitTag extends GitCommit {
 		return "tag";
 	}
 
+	// The tagged object's sha
+	public String getObject() {
+		return getHeader("object");
+	}
+
 	public static void tagCreate(GitRepository repo, String name, String ref, boolean createTagObject)
 			throws Exception {
 		// Find the object reference
@@ -24,11 +26,11 @@ public class GitTag extends GitCommit {
 		if (createTagObject) {
 			// Create a tag object
 			GitTag tag = new GitTag(null);
-			tag.kvlm.put("object".getBytes(), sha.getBytes());
-			tag.kvlm.put("type".getBytes(), "commit".getBytes());
-			tag.kvlm.put("tag".getBytes(), name.getBytes());
-			tag.kvlm.put("tagger".getBytes(), "Wyag <wyag@example.com>".getBytes());
-			tag.kvlm.put(null, "A tag generated by wyag, which won't let you customize the message!".getBytes());
+			tag.setHeader("object", sha);
+			tag.setHeader("type", "commit");
+			tag.setHeader("tag", name);
+			tag.setHeader("tagger", "Wyag <wyag@example.com>");
+			tag.setMessage("A tag generated by wyag, which won't let you customize the message!\n");
 
 			String tagSha = GitObjectHelper.objectWrite(tag, repo);
 			refCreate(repo, "tags/" + name, tagSha);
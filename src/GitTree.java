@@ -1,9 +1,15 @@
-import java.nio.ByteBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class GitTree extends GitObject {
 	List<GitTreeLeaf> items;
@@ -38,36 +44,28 @@ public class GitTree extends GitObject {
 
 	// Serialization method similar to tree_serialize in Python
 	public byte[] treeSerialize() {
-		// Sort the items using the conversion function
-		items.sort(Comparator.comparing(GitTree::treeLeafSortKey));
+		// git's order: unsigned bytes, with directories compared as "name/"
+		items.sort((a, b) -> Arrays.compareUnsigned(treeLeafSortKey(a), treeLeafSortKey(b)));
 
-		ByteBuffer buffer = ByteBuffer.allocate(1024); // Assuming a large enough buffer
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(items.size() * 48);
 		for (GitTreeLeaf leaf : items) {
-			buffer.put(leaf.getMode());
-			buffer.put((byte) ' ');
-			buffer.put(leaf.getPath().toString().getBytes(StandardCharsets.UTF_8));
-			buffer.put((byte) 0); // Null byte separator
-
-			// Convert SHA to bytes
-			ByteBuffer shaBuffer = ByteBuffer.allocate(20);
-			shaBuffer.putLong(Long.parseUnsignedLong(leaf.getSha(), 16));
-			buffer.put(shaBuffer.array());
+			// Undo the leading space added to five byte modes when parsing
+			buffer.writeBytes(new String(leaf.getMode()).trim().getBytes(StandardCharsets.US_ASCII));
+			buffer.write(' ');
+			buffer.writeBytes(leaf.getPath().toString().getBytes(StandardCharsets.UTF_8));
+			buffer.write(0); // Null byte separator
+
+			// The sha is stored as 20 raw bytes
+			buffer.writeBytes(GitObjectHelper.shaToBytes(leaf.getSha()));
 		}
-
-		// Resize the buffer to the actual data length
-		byte[] result = new byte[buffer.position()];
-		buffer.rewind();
-		buffer.get(result);
-		return result;
+		return buffer.toByteArray();
 	}
 
-	// Conversion function similar to tree_leaf_sort_key in Python
-	private static String treeLeafSortKey(GitTreeLeaf leaf) {
-		if (new String(leaf.getMode()).startsWith("10")) {
-			return leaf.getPath().toString();
-		} else {
-			return leaf.getPath() + "/";
-		}
+	// Conversion function similar to tree_leaf_sort_key in Python, as UTF-8
+	// since String order (UTF-16 units) differs above the BMP
+	private static byte[] treeLeafSortKey(GitTreeLeaf leaf) {
+		String name = leaf.getPath().toString();
+		return (leaf.isTree() ? name + "/" : name).getBytes(StandardCharsets.UTF_8);
 	}
 
 	public String getFmt() {
@@ -98,10 +96,45 @@ public class GitTree extends GitObject {
 		}
 
 		GitTree tree = (GitTree) obj;
+		Map<String, GitTree> trees = new HashMap<>();
+		trees.put(sha, tree);
+		if (recursive) {
+			readSubtrees(repo, tree, trees);
+		}
+		lsTree(trees, tree, recursive, prefix);
+	}
+
+	// Reads every tree below root into trees, a level at a time through
+	// objectReadBatch, so a recursive listing reads the pack in order
+	// instead of in tree order
+	private static void readSubtrees(GitRepository repo, GitTree root, Map<String, GitTree> trees) throws IOException {
+		List<GitTree> level = List.of(root);
+		while (!level.isEmpty()) {
+			Set<String> wanted = new LinkedHashSet<>();
+			for (GitTree tree : level) {
+				for (GitTreeLeaf item : tree.getItems()) {
+					if (item.isTree() && !trees.containsKey(item.getSha())) {
+						wanted.add(item.getSha());
+					}
+				}
+			}
+			List<GitTree> next = new ArrayList<>();
+			GitObjectHelper.objectReadBatch(repo, wanted, (sha, obj) -> {
+				if (!(obj instanceof GitTree)) {
+					throw new IllegalStateException(String.format("No such tree %s", sha));
+				}
+				trees.put(sha, (GitTree) obj);
+				next.add((GitTree) obj);
+			});
+			level = next;
+		}
+	}
 
+	private static void lsTree(Map<String, GitTree> trees, GitTree tree, boolean recursive, String prefix) {
 		for (GitTreeLeaf item : tree.getItems()) {
 			String typeStr;
-			String mode = new String(item.getMode());
+			// Five byte modes are normalized with a leading space
+			String mode = new String(item.getMode()).replace(' ', '0');
 
 			// Determine the type based on the mode
 			if (mode.length() == 6) {
@@ -126,12 +159,34 @@ public class GitTree extends GitObject {
 
 			if (!(recursive && typeStr.equals("tree"))) {
 				// This is a leaf
-				String modeStr = String.format("%06d", Integer.parseInt(mode, 16));
-				System.out.printf("%s %s %s\t%s%n", modeStr, typeStr, item.getSha(),
+				System.out.printf("%s %s %s\t%s%n", mode, typeStr, item.getSha(),
 						Paths.get(prefix, item.getPath().toString()));
 			} else {
 				// This is a branch, recurse
-				lsTree(repo, item.getSha(), recursive, Paths.get(prefix, item.getPath().toString()).toString());
+				lsTree(trees, trees.get(item.getSha()), recursive,
+						Paths.get(prefix, item.getPath().toString()).toString());
+			}
+		}
+	}
+
+	// Flattens a tree into a map of full path -> blob sha
+	public static Map<String, String> treeToMap(GitRepository repo, String ref) throws Exception {
+		Map<String, String> ret = new LinkedHashMap<>();
+		treeToMap(repo, ref, "", ret);
+		return ret;
+	}
+
+	private static void treeToMap(GitRepository repo, String ref, String prefix, Map<String, String> ret)
+			throws Exception {
+		String sha = GitObjectHelper.objectFind(repo, ref, "tree");
+		GitTree tree = (GitTree) GitObjectHelper.objectRead(repo, sha);
+
+		for (GitTreeLeaf leaf : tree.getItems()) {
+			String fullPath = prefix.isEmpty() ? leaf.getPath().toString() : prefix + "/" + leaf.getPath();
+			if (leaf.isTree()) {
+				treeToMap(repo, leaf.getSha(), fullPath, ret);
+			} else {
+				ret.put(fullPath, leaf.getSha());
 			}
 		}
 	}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Tree comparisons for history walks: which files differ between two trees,
+// and whether one path does. Subtrees with equal ids are never read, and
+// the trees read last are kept, since a commit's tree is read again as its
+// child's parent tree.
+public class GitTreeDiff {
+	private static final int CACHED_TREES = 256;
+
+	private final GitRepository repo;
+	private final Map<String, List<GitTreeLeaf>> trees = new LinkedHashMap<>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<GitTreeLeaf>> eldest) {
+			return size() > CACHED_TREES;
+		}
+	};
+
+	public GitTreeDiff(GitRepository repo) {
+		this.repo = repo;
+	}
+
+	// Paths of the files added, removed or modified from tree a to tree b
+	// (null for an empty tree), as a recursive diff lists them. Null if
+	// there are more than limit.
+	public List<String> changedPaths(String a, String b, int limit) throws IOException {
+		List<String> ret = new ArrayList<>();
+		return diff(a, b, "", ret, limit) ? ret : null;
+	}
+
+	private boolean diff(String a, String b, String prefix, List<String> out, int limit) throws IOException {
+		if (a != null && a.equals(b)) {
+			return true;
+		}
+		List<GitTreeLeaf> left = a == null ? List.of() : readTree(a);
+		List<GitTreeLeaf> right = b == null ? List.of() : readTree(b);
+		int i = 0;
+		int j = 0;
+		while (i < left.size() || j < right.size()) {
+			int cmp = i == left.size() ? 1 : j == right.size() ? -1 : compare(left.get(i), right.get(j));
+			GitTreeLeaf old = cmp <= 0 ? left.get(i++) : null;
+			GitTreeLeaf now = cmp >= 0 ? right.get(j++) : null;
+			GitTreeLeaf leaf = now != null ? now : old;
+			String path = prefix + leaf.getPath();
+			if (leaf.isTree()) {
+				if (!diff(old == null ? null : old.getSha(), now == null ? null : now.getSha(), path + "/", out,
+						limit)) {
+					return false;
+				}
+			} else if (old == null || now == null || !old.getSha().equals(now.getSha())
+					|| !Arrays.equals(old.getMode(), now.getMode())) {
+				out.add(path);
+				if (out.size() > limit) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Whether path ("dir/file", or a directory) has the same mode and id in
+	// trees a and b; missing from both counts as the same
+	public boolean samePath(String a, String b, String[] path) throws IOException {
+		for (int depth = 0; depth < path.length; depth++) {
+			if (a == null ? b == null : a.equals(b)) {
+				return true;
+			}
+			GitTreeLeaf left = a == null ? null : find(a, path[depth]);
+			GitTreeLeaf right = b == null ? null : find(b, path[depth]);
+			if (depth == path.length - 1) {
+				if (left == null || right == null) {
+					return left == right;
+				}
+				return left.getSha().equals(right.getSha()) && Arrays.equals(left.getMode(), right.getMode());
+			}
+			a = left != null && left.isTree() ? left.getSha() : null;
+			b = right != null && right.isTree() ? right.getSha() : null;
+		}
+		return a == null ? b == null : a.equals(b);
+	}
+
+	// The entry called name, a file or a directory
+	private GitTreeLeaf find(String tree, String name) throws IOException {
+		for (GitTreeLeaf leaf : readTree(tree)) {
+			if (leaf.getPath().toString().equals(name)) {
+				return leaf;
+			}
+		}
+		return null;
+	}
+
+	private List<GitTreeLeaf> readTree(String sha) throws IOException {
+		List<GitTreeLeaf> items = trees.get(sha);
+		if (items == null) {
+			GitObject obj = GitObjectHelper.objectRead(repo, sha);
+			if (!(obj instanceof GitTree)) {
+				throw new IOException("Not a tree: " + sha);
+			}
+			items = ((GitTree) obj).getItems();
+			trees.put(sha, items);
+		}
+		return items;
+	}
+
+	// Tree order: directories sort as if their name ended with '/'
+	private static int compare(GitTreeLeaf a, GitTreeLeaf b) {
+		return Arrays.compareUnsigned(sortKey(a), sortKey(b));
+	}
+
+	private static byte[] sortKey(GitTreeLeaf leaf) {
+		String name = leaf.getPath().toString();
+		return (leaf.isTree() ? name + "/" : name).getBytes(StandardCharsets.UTF_8);
+	}
+}
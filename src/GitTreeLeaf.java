@@ -45,8 +45,7 @@ public class GitTreeLeaf {
 		String path = new String(raw, x + 1, y - x - 1, StandardCharsets.UTF_8);
 
 		// Read the SHA and convert to a hex string
-		byte[] shaBytes = Arrays.copyOfRange(raw, y + 1, y + 21);
-		String sha = bytesToHex(shaBytes);
+		String sha = GitObjectHelper.shaToHex(raw, y + 1);
 
 		return new Tuple<Integer, GitTreeLeaf>(y + 21, new GitTreeLeaf(mode, Paths.get(path), sha));
 	}
@@ -60,12 +59,14 @@ public class GitTreeLeaf {
 		throw new IllegalArgumentException("Byte not found");
 	}
 
-	private static String bytesToHex(byte[] bytes) {
-		StringBuilder sb = new StringBuilder();
-		for (byte b : bytes) {
-			sb.append(String.format("%02x", b));
-		}
-		return sb.toString();
+	// Directories are stored with mode 40000, normalized to " 40000"
+	public boolean isTree() {
+		return (Integer.parseInt(new String(mode).trim(), 8) & 0170000) == 040000;
+	}
+
+	// Submodule commits, mode 160000: objects of another repository
+	public boolean isGitlink() {
+		return (Integer.parseInt(new String(mode).trim(), 8) & 0170000) == 0160000;
 	}
 
 	public byte[] getMode() {
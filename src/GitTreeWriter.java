@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Writes the index out as trees. One pass over the sorted entries groups
+// them by directory, then the trees are hashed bottom up, one fork-join task
+// per directory so independent subtrees are done in parallel. Directories
+// the index's cache tree still has a valid id for are reused whole.
+public class GitTreeWriter {
+	// A directory of the index: its entries and subdirectories, in index order
+	private static final class Dir {
+		final String name;
+		final String path;
+		final List<Object> items = new ArrayList<>();
+		// Index entries below this directory, subdirectories included
+		int entryCount;
+
+		Dir(String name, String path) {
+			this.name = name;
+			this.path = path;
+		}
+	}
+
+	// Id of the root tree. The index's cache tree is created if missing and
+	// left valid for every directory, so the caller can write it back.
+	public static String writeTree(GitRepository repo, GitIndex index) throws IOException {
+		Dir root = group(index.getEntries());
+		if (index.getCacheTree() == null) {
+			index.setCacheTree(new GitCacheTree());
+		}
+		try {
+			return ForkJoinPool.commonPool().invoke(new TreeTask(repo, root, index.getCacheTree()));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// Entries under a directory are contiguous in index order, so a stack of
+	// the directories being filled is all it takes
+	private static Dir group(List<GitIndexEntry> entries) throws IOException {
+		Deque<Dir> stack = new ArrayDeque<>();
+		stack.push(new Dir("", ""));
+		for (GitIndexEntry entry : entries) {
+			if (entry.flagStage() != 0) {
+				throw new IOException("Committing is not possible because you have unmerged files: " + entry.name());
+			}
+			String name = entry.name();
+			int slash = name.lastIndexOf('/');
+			String parent = slash < 0 ? "" : name.substring(0, slash);
+
+			while (!isWithin(parent, stack.peek().path)) {
+				pop(stack);
+			}
+			String top = stack.peek().path;
+			int start = top.isEmpty() ? 0 : top.length() + 1;
+			while (start < parent.length() + 1 && slash >= 0) {
+				int end = name.indexOf('/', start);
+				Dir dir = new Dir(name.substring(start, end), name.substring(0, end));
+				stack.peek().items.add(dir);
+				stack.push(dir);
+				start = end + 1;
+			}
+			stack.peek().items.add(entry);
+			stack.peek().entryCount++;
+		}
+		while (stack.size() > 1) {
+			pop(stack);
+		}
+		return stack.pop();
+	}
+
+	private static boolean isWithin(String path, String dir) {
+		return dir.isEmpty() || path.equals(dir) || path.startsWith(dir + "/");
+	}
+
+	private static void pop(Deque<Dir> stack) {
+		Dir done = stack.pop();
+		stack.peek().entryCount += done.entryCount;
+	}
+
+	private static final class TreeTask extends RecursiveTask<String> {
+		private static final long serialVersionUID = 1L;
+
+		private final GitRepository repo;
+		private final Dir dir;
+		private final GitCacheTree cache;
+
+		TreeTask(GitRepository repo, Dir dir, GitCacheTree cache) {
+			this.repo = repo;
+			this.dir = dir;
+			this.cache = cache;
+		}
+
+		@Override
+		protected String compute() {
+			try {
+				return write();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private String write() throws IOException {
+			// A stale count means entries were added or removed below
+			if (cache.isValid() && cache.getEntryCount() == dir.entryCount) {
+				return cache.getSha();
+			}
+
+			// Each task only touches its own cache node, so children are
+			// set up before forking
+			List<TreeTask> subtrees = new ArrayList<>();
+			List<String> names = new ArrayList<>();
+			for (Object item : dir.items) {
+				if (item instanceof Dir) {
+					Dir sub = (Dir) item;
+					subtrees.add(new TreeTask(repo, sub, cache.child(sub.name)));
+					names.add(sub.name);
+				}
+			}
+			cache.retain(names);
+			invokeAll(subtrees);
+
+			GitTree tree = new GitTree(null);
+			int next = 0;
+			for (Object item : dir.items) {
+				if (item instanceof Dir) {
+					String sha = subtrees.get(next++).join();
+					tree.getItems().add(new GitTreeLeaf("40000".getBytes(), Paths.get(((Dir) item).name), sha));
+				} else {
+					GitIndexEntry entry = (GitIndexEntry) item;
+					String mode = Integer.toOctalString((entry.modeType() << 12) | entry.modePerms());
+					String name = entry.name().substring(entry.name().lastIndexOf('/') + 1);
+					tree.getItems().add(new GitTreeLeaf(mode.getBytes(), Paths.get(name), entry.sha()));
+				}
+			}
+			// Stored unless the database has it already, loose or packed
+			byte[] data = tree.serialize();
+			String sha = GitObjectHelper.objectId("tree", data);
+			repo.getObjectDatabase().write("tree", data, sha);
+			cache.setValid(dir.entryCount, sha);
+			return sha;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Results of the last worktree walk, kept in the index as an optional
+// extension so status can skip directories that haven't changed.
+//
+// A directory is reused while its mtime (entries added, removed or renamed)
+// and its .gitignore are unchanged, and none of its parents' rules changed.
+// With a file system monitor the token says which directories to rescan
+// and nothing else is stat'ed.
+public record GitUntrackedCache(
+		// Identity of info/exclude and core.excludesFile when the cache was built
+		String fingerprint,
+		// GitFsMonitor token the cache is valid at, "" if none
+		String token,
+		// Walk results by directory, "" for the root
+		Map<String, Dir> dirs) {
+
+	// Index extension signature. Upper case, so git treats it as optional:
+	// it skips the data but warns "ignoring JWUC extension" on every read,
+	// which is why status only writes it under jwyag.untrackedCache
+	public static final String SIGNATURE = "JWUC";
+	private static final int VERSION = 1;
+
+	// mtime for directories changed too recently to trust their mtime
+	public static final long RACY = -1;
+
+	// One scanned directory: its mtime and .gitignore stamp in nanoseconds,
+	// -1 size when there is no .gitignore, then the names of the files and
+	// subdirectories that aren't ignored
+	public record Dir(long mtime, long ignoreMtime, long ignoreSize, List<String> files, List<String> subdirs) {
+	}
+
+	public static GitUntrackedCache empty() {
+		return new GitUntrackedCache("", "", Collections.emptyMap());
+	}
+
+	// Every file below the root, in index order
+	public List<String> listFiles() {
+		List<String> out = new ArrayList<>();
+		collect("", out);
+		out.sort((a, b) -> Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8),
+				b.getBytes(StandardCharsets.UTF_8)));
+		return out;
+	}
+
+	private void collect(String dir, List<String> out) {
+		Dir d = dirs.get(dir);
+		if (d == null) {
+			return;
+		}
+		String prefix = dir.isEmpty() ? "" : dir + "/";
+		for (String file : d.files()) {
+			out.add(prefix + file);
+		}
+		for (String subdir : d.subdirs()) {
+			collect(prefix + subdir, out);
+		}
+	}
+
+	public byte[] serialize() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(VERSION);
+		out.writeUTF(fingerprint);
+		out.writeUTF(token);
+		out.writeInt(dirs.size());
+		for (Map.Entry<String, Dir> entry : dirs.entrySet()) {
+			Dir dir = entry.getValue();
+			out.writeUTF(entry.getKey());
+			out.writeLong(dir.mtime());
+			out.writeLong(dir.ignoreMtime());
+			out.writeLong(dir.ignoreSize());
+			writeNames(out, dir.files());
+			writeNames(out, dir.subdirs());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	// Returns null for a version this code doesn't know, which just means
+	// starting over with an empty cache
+	public static GitUntrackedCache parse(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readInt() != VERSION) {
+			return null;
+		}
+		String fingerprint = in.readUTF();
+		String token = in.readUTF();
+		int count = in.readInt();
+		Map<String, Dir> dirs = new HashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			String path = in.readUTF();
+			long mtime = in.readLong();
+			long ignoreMtime = in.readLong();
+			long ignoreSize = in.readLong();
+			dirs.put(path, new Dir(mtime, ignoreMtime, ignoreSize, readNames(in), readNames(in)));
+		}
+		return new GitUntrackedCache(fingerprint, token, dirs);
+	}
+
+	private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+		out.writeInt(names.size());
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+	}
+
+	private static List<String> readNames(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> names = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			names.add(in.readUTF());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+// Lists the files of a worktree that are not ignored, one fork-join task per
+// directory. Ignored directories are dropped before they are opened, so a
+// node_modules or build tree costs one rule lookup. .git and nested
+// repositories are skipped. Symlinks are listed, never followed.
+public class GitWorktreeWalker {
+	private final Path worktree;
+	private final GitIgnore ignore;
+
+	public GitWorktreeWalker(GitRepository repo, GitIgnore ignore) {
+		this.worktree = repo.getWorktree();
+		this.ignore = ignore;
+	}
+
+	// Worktree relative paths and their attributes, in index order
+	public List<Tuple<String, BasicFileAttributes>> walk() throws IOException {
+		return walk("");
+	}
+
+	// Same, below dir ("a/b"); ignore rules of dir's parents still apply
+	public List<Tuple<String, BasicFileAttributes>> walk(String dir) throws IOException {
+		GitIgnore.Frame frame = ignore.rootFrame();
+		if (!dir.isEmpty()) {
+			GitIgnore.Rule rule = ignore.match(dir, true);
+			if (rule != null && !rule.isNegative()) {
+				return new ArrayList<>();
+			}
+			int slash = -1;
+			while ((slash = dir.indexOf('/', slash + 1)) >= 0) {
+				frame = ignore.push(frame, dir.substring(0, slash));
+			}
+		}
+
+		List<Tuple<String, BasicFileAttributes>> files;
+		try {
+			files = ForkJoinPool.commonPool().invoke(new DirTask(frame, dir));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		files.sort((a, b) -> Arrays.compareUnsigned(a.getFirst().getBytes(StandardCharsets.UTF_8),
+				b.getFirst().getBytes(StandardCharsets.UTF_8)));
+		return files;
+	}
+
+	// Walk reusing an earlier result. changed holds the paths a GitFsMonitor
+	// reported since old's token, or null to fall back on directory mtimes.
+	// Returns the new cache; its listFiles() are the non-ignored files.
+	public GitUntrackedCache walk(GitUntrackedCache old, Set<String> changed) throws IOException {
+		if (!old.fingerprint().equals(ignore.getFingerprint())) {
+			old = GitUntrackedCache.empty();
+		}
+		Set<String> dirtyDirs = null;
+		if (changed != null) {
+			dirtyDirs = new HashSet<>();
+			for (String path : changed) {
+				int slash = path.lastIndexOf('/');
+				dirtyDirs.add(slash < 0 ? "" : path.substring(0, slash));
+			}
+		}
+
+		// Directories modified this recently may still change within the
+		// same mtime tick, so their mtime isn't recorded
+		long racyAfter = nanos(FileTime.from(Instant.now())) - TimeUnit.SECONDS.toNanos(2);
+		Map<String, GitUntrackedCache.Dir> dirs = new ConcurrentHashMap<>();
+		CachedDirTask root = new CachedDirTask(old.dirs(), changed, dirtyDirs, racyAfter, dirs, null, "", false);
+		try {
+			ForkJoinPool.commonPool().invoke(root);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return new GitUntrackedCache(ignore.getFingerprint(), old.token(), dirs);
+	}
+
+	private static long nanos(FileTime time) {
+		Instant instant = time.toInstant();
+		return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+	}
+
+	private class CachedDirTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, GitUntrackedCache.Dir> old;
+		private final Set<String> changed;
+		private final Set<String> dirtyDirs;
+		private final long racyAfter;
+		private final Map<String, GitUntrackedCache.Dir> out;
+		// Parent's rules when they were loaded, null if the parent was reused
+		private final GitIgnore.Frame parentFrame;
+		private final String dir;
+		// A parent's .gitignore changed, so cached results below can't be used
+		private final boolean rulesChanged;
+
+		CachedDirTask(Map<String, GitUntrackedCache.Dir> old, Set<String> changed, Set<String> dirtyDirs,
+				long racyAfter, Map<String, GitUntrackedCache.Dir> out, GitIgnore.Frame parentFrame, String dir,
+				boolean rulesChanged) {
+			this.old = old;
+			this.changed = changed;
+			this.dirtyDirs = dirtyDirs;
+			this.racyAfter = racyAfter;
+			this.out = out;
+			this.parentFrame = parentFrame;
+			this.dir = dir;
+			this.rulesChanged = rulesChanged;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				scan();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void scan() throws IOException {
+			Path path = dir.isEmpty() ? worktree : worktree.resolve(dir);
+			GitUntrackedCache.Dir cached = rulesChanged ? null : old.get(dir);
+
+			GitUntrackedCache.Dir result = null;
+			GitIgnore.Frame frame = null;
+			boolean ownRulesChanged = rulesChanged;
+			if (cached != null && changed != null && !isDirty()) {
+				// The monitor saw nothing here, not even a stat is needed
+				result = cached;
+			} else {
+				long mtime = GitUntrackedCache.RACY;
+				if (Files.isDirectory(path)) {
+					mtime = nanos(Files.getLastModifiedTime(path));
+				}
+				Path gitignore = path.resolve(".gitignore");
+				boolean hasIgnore = Files.isRegularFile(gitignore);
+				long ignoreMtime = hasIgnore ? nanos(Files.getLastModifiedTime(gitignore)) : 0;
+				long ignoreSize = hasIgnore ? Files.size(gitignore) : -1;
+				if (cached != null && (cached.ignoreMtime() != ignoreMtime || cached.ignoreSize() != ignoreSize)) {
+					ownRulesChanged = true;
+				} else if (cached != null && changed == null && cached.mtime() == mtime
+						&& mtime != GitUntrackedCache.RACY) {
+					result = cached;
+				}
+
+				if (result == null) {
+					if (mtime > racyAfter) {
+						mtime = GitUntrackedCache.RACY;
+					}
+					frame = parentFrame == null ? ignore.frame(dir)
+							: dir.isEmpty() ? parentFrame : ignore.push(parentFrame, dir);
+					result = list(path, frame, mtime, ignoreMtime, ignoreSize);
+				}
+			}
+			out.put(dir, result);
+
+			if (!result.subdirs().isEmpty()) {
+				List<CachedDirTask> subdirs = new ArrayList<>(result.subdirs().size());
+				String prefix = dir.isEmpty() ? "" : dir + "/";
+				for (String subdir : result.subdirs()) {
+					subdirs.add(new CachedDirTask(old, changed, dirtyDirs, racyAfter, out, frame, prefix + subdir,
+							ownRulesChanged));
+				}
+				invokeAll(subdirs);
+			}
+		}
+
+		// Something in the directory changed, or the directory itself or one
+		// of its parents was created, removed or renamed
+		private boolean isDirty() {
+			if (dirtyDirs.contains(dir) || changed.contains(dir)) {
+				return true;
+			}
+			for (int slash = dir.indexOf('/'); slash >= 0; slash = dir.indexOf('/', slash + 1)) {
+				if (changed.contains(dir.substring(0, slash))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private GitUntrackedCache.Dir list(Path path, GitIgnore.Frame frame, long mtime, long ignoreMtime,
+				long ignoreSize) throws IOException {
+			String prefix = dir.isEmpty() ? "" : dir + "/";
+			List<String> files = new ArrayList<>();
+			List<String> subdirs = new ArrayList<>();
+			if (Files.isDirectory(path)) {
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+					for (Path entry : entries) {
+						String name = entry.getFileName().toString();
+						if (name.equals(".git")) {
+							continue;
+						}
+						BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+								LinkOption.NOFOLLOW_LINKS);
+						if (attrs.isDirectory()) {
+							if (!GitIgnore.isIgnored(frame, prefix + name, true)
+									&& !Files.exists(entry.resolve(".git"))) {
+								subdirs.add(name);
+							}
+						} else if (!attrs.isOther() && !GitIgnore.isIgnored(frame, prefix + name, false)) {
+							files.add(name);
+						}
+					}
+				}
+			}
+			return new GitUntrackedCache.Dir(mtime, ignoreMtime, ignoreSize, files, subdirs);
+		}
+	}
+
+	private class DirTask extends RecursiveTask<List<Tuple<String, BasicFileAttributes>>> {
+		private static final long serialVersionUID = 1L;
+
+		// Rules of the parent directory
+		private final GitIgnore.Frame parentFrame;
+		private final String dir;
+
+		DirTask(GitIgnore.Frame parentFrame, String dir) {
+			this.parentFrame = parentFrame;
+			this.dir = dir;
+		}
+
+		@Override
+		protected List<Tuple<String, BasicFileAttributes>> compute() {
+			try {
+				return scan();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private List<Tuple<String, BasicFileAttributes>> scan() throws IOException {
+			// The root frame already has the root .gitignore
+			GitIgnore.Frame frame = dir.isEmpty() ? parentFrame : ignore.push(parentFrame, dir);
+			Path path = dir.isEmpty() ? worktree : worktree.resolve(dir);
+			String prefix = dir.isEmpty() ? "" : dir + "/";
+
+			List<Tuple<String, BasicFileAttributes>> files = new ArrayList<>();
+			List<DirTask> subdirs = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+				for (Path entry : entries) {
+					String name = entry.getFileName().toString();
+					if (name.equals(".git")) {
+						continue;
+					}
+					BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+					String rel = prefix + name;
+					if (attrs.isDirectory()) {
+						if (!GitIgnore.isIgnored(frame, rel, true) && !Files.exists(entry.resolve(".git"))) {
+							subdirs.add(new DirTask(frame, rel));
+						}
+					} else if (!attrs.isOther() && !GitIgnore.isIgnored(frame, rel, false)) {
+						files.add(new Tuple<>(rel, attrs));
+					}
+				}
+			}
+
+			if (!subdirs.isEmpty()) {
+				invokeAll(subdirs);
+				for (DirTask subdir : subdirs) {
+					files.addAll(subdir.join());
+				}
+			}
+			return files;
+		}
+	}
+}
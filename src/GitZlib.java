@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Per-thread pools of Inflater/Deflater instances. Each one holds native
+// zlib state; reusing them with reset() avoids allocating and freeing that
+// state for every object. A thread can hold several at once (an object
+// stream left open while another object is read), so each pool is a small
+// free list rather than a single instance.
+public final class GitZlib {
+	// Levels -1 (zlib default) to 9
+	private static final int LEVELS = 11;
+	// Instances kept per thread and level, extra ones are ended on release
+	private static final int MAX_POOLED = 4;
+
+	private static final ThreadLocal<ArrayDeque<Inflater>> INFLATERS = ThreadLocal.withInitial(ArrayDeque::new);
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final ThreadLocal<ArrayDeque<Deflater>[]> DEFLATERS = ThreadLocal
+			.withInitial(() -> new ArrayDeque[LEVELS]);
+
+	private GitZlib() {
+	}
+
+	public static Inflater acquireInflater() {
+		Inflater inflater = INFLATERS.get().poll();
+		return inflater != null ? inflater : new Inflater();
+	}
+
+	// Every Inflater and Deflater goes through these pools, so releasing
+	// one is where its work is counted in GitMetrics
+	public static void releaseInflater(Inflater inflater) {
+		GitMetrics.inflated(inflater.getBytesWritten());
+		ArrayDeque<Inflater> pool = INFLATERS.get();
+		if (pool.size() < MAX_POOLED) {
+			inflater.reset();
+			pool.push(inflater);
+		} else {
+			inflater.end();
+		}
+	}
+
+	public static Deflater acquireDeflater(int level) {
+		ArrayDeque<Deflater> pool = deflaterPool(level);
+		Deflater deflater = pool.poll();
+		return deflater != null ? deflater : new Deflater(level);
+	}
+
+	public static void releaseDeflater(Deflater deflater, int level) {
+		GitMetrics.deflated(deflater.getBytesRead());
+		ArrayDeque<Deflater> pool = deflaterPool(level);
+		if (pool.size() < MAX_POOLED) {
+			deflater.reset();
+			pool.push(deflater);
+		} else {
+			deflater.end();
+		}
+	}
+
+	private static ArrayDeque<Deflater> deflaterPool(int level) {
+		if (level < -1 || level > 9) {
+			throw new IllegalArgumentException("Bad zlib compression level " + level);
+		}
+		ArrayDeque<Deflater>[] pools = DEFLATERS.get();
+		if (pools[level + 1] == null) {
+			pools[level + 1] = new ArrayDeque<>();
+		}
+		return pools[level + 1];
+	}
+
+	// Inflating stream whose Inflater goes back to the pool on close
+	public static InputStream inflate(InputStream in) {
+		Inflater inflater = acquireInflater();
+		return new InflaterInputStream(in, inflater, 8192) {
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					super.close();
+					releaseInflater(inflater);
+				}
+			}
+		};
+	}
+
+	// Deflating stream whose Deflater goes back to the pool on close
+	public static OutputStream deflate(OutputStream out, int level) {
+		Deflater deflater = acquireDeflater(level);
+		return new DeflaterOutputStream(out, deflater, 8192) {
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					super.close();
+					releaseDeflater(deflater, level);
+				}
+			}
+		};
+	}
+}
@@ -1,110 +1,399 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 public class main {
-	private static String repoPath = ".\\repo\\";
+	private static String repoPath = ".";
 
 	public static void main(String[] fullArgs) {
-		fullArgs = new String[] { "ls-files" };
 		if (fullArgs.length == 0) {
-			// System.out.println("Please enter some command");
-			// return;
+			System.out.println("Please enter some command");
+			return;
+		}
+		// Global flags come before the command
+		int first = 0;
+		boolean tracePerf = false;
+		while (first < fullArgs.length && fullArgs[first].equals("--trace-perf")) {
+			tracePerf = true;
+			first++;
+		}
+		if (first == fullArgs.length) {
+			System.out.println("Please enter some command");
+			return;
+		}
+		if (tracePerf) {
+			GitMetrics.enable();
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(GitMetrics.summary())));
 		}
-		String command = fullArgs[0];
-		final String[] args = Arrays.copyOfRange(fullArgs, 1, fullArgs.length);
 
+		String command = fullArgs[first];
+		final String[] args = Arrays.copyOfRange(fullArgs, first + 1, fullArgs.length);
+
+		int status = 0;
 		try {
-			if (command.equals("add")) {
-			} else if (command.equals("cat-file")) {
-				cmdCatFile(args);
-			} else if (command.equals("check-ignore")) {
-				cmdCheckIgnore(args);
-			} else if (command.equals("checkout")) {
-				cmdCheckout(args);
-			} else if (command.equals("commit")) {
-
-			} else if (command.equals("hash-object")) {
-				cmdHashObject(args);
-			} else if (command.equals("init")) {
-				cmdInitRepo(args);
-			} else if (command.equals("log")) {
-				cmdLog(args);
-			} else if (command.equals("ls-files")) {
-				cmdLsFiles(args);
-			} else if (command.equals("ls-tree")) {
-				cmdLsTree(args);
-			} else if (command.equals("rev-parse")) {
-				cmdRevParse(args);
-			} else if (command.equals("rm")) {
-
-			} else if (command.equals("show-ref")) {
-				cmdShowRef(args);
-			} else if (command.equals("status")) {
-
-			} else if (command.equals("tag")) {
-				cmdTag(args);
+			if (command.equals("daemon")) {
+				cmdDaemon(args);
 			} else {
-				System.out.println("Bad command.");
+				status = run(command, args, GitIo.system());
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+			// git's status for a fatal error
+			status = 128;
+		}
+		if (status != 0) {
+			System.out.flush();
+			System.exit(status);
+		}
+	}
+
+	// Dispatches a single command, shared by the CLI and GitDaemon. Returns
+	// the exit status. The commands GitDaemon serves print to io; the others
+	// only ever run in the CLI and use System's streams.
+	public static int run(String command, final String[] args, GitIo io) throws Exception {
+		if (command.equals("add")) {
+			cmdAdd(args);
+		} else if (command.equals("cat-file")) {
+			return cmdCatFile(args, io);
+		} else if (command.equals("check-ignore")) {
+			cmdCheckIgnore(args);
+		} else if (command.equals("checkout")) {
+			cmdCheckout(args);
+		} else if (command.equals("commit")) {
+			cmdCommit(args);
+		} else if (command.equals("commit-graph")) {
+			cmdCommitGraph(args);
+		} else if (command.equals("fast-export")) {
+			cmdFastExport(args);
+		} else if (command.equals("fast-import")) {
+			cmdFastImport(args);
+		} else if (command.equals("fsck")) {
+			cmdFsck(args);
+		} else if (command.equals("generate")) {
+			cmdGenerate(args);
+		} else if (command.equals("hash-object")) {
+			cmdHashObject(args);
+		} else if (command.equals("init")) {
+			cmdInitRepo(args);
+		} else if (command.equals("log")) {
+			return cmdLog(args, io);
+		} else if (command.equals("ls-files")) {
+			return cmdLsFiles(args, io);
+		} else if (command.equals("ls-tree")) {
+			cmdLsTree(args);
+		} else if (command.equals("multi-pack-index")) {
+			cmdMultiPackIndex(args);
+		} else if (command.equals("prune")) {
+			cmdPrune(args);
+		} else if (command.equals("rev-parse")) {
+			return cmdRevParse(args, io);
+		} else if (command.equals("rm")) {
+
+		} else if (command.equals("show-ref")) {
+			cmdShowRef(args);
+		} else if (command.equals("status")) {
+			return cmdStatus(args, io);
+		} else if (command.equals("tag")) {
+			cmdTag(args);
+		} else {
+			io.err().println("Bad command.");
+			return 1;
+		}
+		return 0;
+	}
+
+	// Set while running inside GitDaemon so commands reuse its warm repository
+	static GitRepository daemonRepo;
+
+	static GitRepository openRepo() throws IOException {
+		if (daemonRepo != null) {
+			return daemonRepo;
+		}
+		return GitRepository.repoFind(repoPath);
+	}
+
+	private static void cmdDaemon(final String[] args) throws Exception {
+		GitRepository repo = openRepo();
+		Path socket = args.length > 0 ? Paths.get(args[0]) : repo.getGitdir().resolve("jwyag.sock");
+		new GitDaemon(repo, socket).serve();
+	}
+
+	private static int cmdStatus(final String[] args, GitIo io) throws Exception {
+		GitRepository repo = openRepo();
+		Path indexFile = repo.getGitdir().resolve("index");
+		FileTime indexMtime = Files.exists(indexFile) ? Files.getLastModifiedTime(indexFile) : null;
+		GitIndex index = repo.getIndex();
+
+		String branch = GitObjectHelper.branchGetActive(repo);
+		if (branch != null) {
+			io.out().println("On branch " + branch + ".");
+		} else {
+			io.out().println("HEAD detached at " + GitObjectHelper.objectFind(repo, "HEAD"));
+		}
+
+		// HEAD against the index
+		io.out().println("Changes to be committed:");
+		Map<String, String> head = new HashMap<>();
+		if (GitObjectHelper.refResolve(repo, "HEAD") != null) {
+			head = GitTree.treeToMap(repo, "HEAD");
+		}
+		for (GitIndexEntry entry : index.getEntries()) {
+			String headSha = head.remove(entry.name());
+			if (headSha == null) {
+				io.out().println("  added:    " + entry.name());
+			} else if (!headSha.equals(entry.sha())) {
+				io.out().println("  modified: " + entry.name());
+			}
+		}
+		for (String name : head.keySet()) {
+			io.out().println("  deleted:  " + name);
+		}
+
+		// Index against the worktree
+		io.out().println();
+		io.out().println("Changes not staged for commit:");
+		for (GitIndexEntry entry : index.getEntries()) {
+			Path path = repo.getWorktree().resolve(entry.name());
+			if (!Files.exists(path)) {
+				io.out().println("  deleted:  " + entry.name());
+				continue;
+			}
+			// Only hash files whose stat data differs from the index
+			Instant mtime = Files.getLastModifiedTime(path).toInstant();
+			if (mtime.getEpochSecond() == entry.mtime().getFirst() && mtime.getNano() == entry.mtime().getSecond()
+					&& Files.size(path) == entry.fsize()) {
+				continue;
+			}
+			String sha = GitObjectHelper.objectHash(Files.readAllBytes(path), "blob".getBytes(), null);
+			if (!sha.equals(entry.sha())) {
+				io.out().println("  modified: " + entry.name());
+			}
+		}
+
+		// Files neither tracked nor ignored. Like git, a directory without
+		// any tracked file is shown once instead of file by file.
+		Set<String> tracked = new HashSet<>();
+		Set<String> trackedDirs = new HashSet<>();
+		for (GitIndexEntry entry : index.getEntries()) {
+			tracked.add(entry.name());
+			for (int slash = entry.name().indexOf('/'); slash >= 0; slash = entry.name().indexOf('/', slash + 1)) {
+				trackedDirs.add(entry.name().substring(0, slash));
+			}
+		}
+		Set<String> untracked = new LinkedHashSet<>();
+		for (String name : statusWalk(repo, index, indexMtime)) {
+			if (tracked.contains(name)) {
+				continue;
+			}
+			int slash = name.indexOf('/');
+			while (slash >= 0 && trackedDirs.contains(name.substring(0, slash))) {
+				slash = name.indexOf('/', slash + 1);
+			}
+			untracked.add(slash < 0 ? name : name.substring(0, slash + 1));
+		}
+		io.out().println();
+		io.out().println("Untracked files:");
+		for (String name : untracked) {
+			io.out().println("  " + name);
+		}
+		return 0;
+	}
+
+	// Non-ignored worktree files for status. With jwyag.untrackedCache the
+	// walk reuses the result kept in the index, only rescanning directories
+	// that changed (as told by GitFsMonitor when one runs, else by their
+	// mtime), and the index is rewritten with the new result. The key is our
+	// own rather than git's core.untrackedCache, as git warns about the
+	// extension on every read of an index that has it.
+	private static List<String> statusWalk(GitRepository repo, GitIndex index, FileTime indexMtime)
+			throws IOException {
+		GitWorktreeWalker walker = new GitWorktreeWalker(repo, GitIgnore.load(repo));
+		if (!repo.getConf().getBoolean("jwyag.untrackedcache", false)) {
+			List<String> names = new ArrayList<>();
+			for (Tuple<String, BasicFileAttributes> file : walker.walk()) {
+				names.add(file.getFirst());
+			}
+			return names;
+		}
+
+		GitUntrackedCache old = index.getUntrackedCache();
+		if (old == null) {
+			old = GitUntrackedCache.empty();
 		}
+		Tuple<String, Set<String>> changes = GitFsMonitor.changedSince(repo, old.token());
+		GitUntrackedCache cache = walker.walk(old, changes == null ? null : changes.getSecond());
+		if (changes != null) {
+			cache = new GitUntrackedCache(cache.fingerprint(), changes.getFirst(), cache.dirs());
+		}
+
+		// Only a cache: skip the write if someone else holds the index lock, or
+		// changed the index since it was read
+		if (!cache.equals(old)) {
+			try (GitIndex.Lock lock = GitIndex.Lock.tryLock(repo)) {
+				Path indexFile = repo.getGitdir().resolve("index");
+				FileTime mtime = Files.exists(indexFile) ? Files.getLastModifiedTime(indexFile) : null;
+				if (lock != null && Objects.equals(mtime, indexMtime)) {
+					// A copy: the daemon shares index between requests
+					GitIndex updated = new GitIndex(index.getVersion(), index.getEntries());
+					updated.setCacheTree(index.getCacheTree());
+					updated.setUntrackedCache(cache);
+					lock.commit(updated);
+				}
+			} catch (IOException e) {
+				// Next status tries again
+			}
+		}
+		return cache.listFiles();
 	}
 
+	// add <path>...
+	private static void cmdAdd(final String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("Nothing specified, nothing added.");
+			return;
+		}
+		GitRepository repo = openRepo();
+		List<String> paths = new ArrayList<>();
+		for (String arg : args) {
+			paths.add(worktreePath(repo, arg));
+		}
+		new GitAdd(repo).add(paths);
+	}
+
+	// check-ignore [-v] [-n] [--no-index] [--stdin] <path>...
 	public static void cmdCheckIgnore(final String[] args) throws IOException {
-		String[] paths = new String[] { "." };
-		GitRepository repo = GitRepository.repoFind(repoPath);
-		// Object rules = gitignoreRead(repo);
+		boolean verbose = false;
+		boolean nonMatching = false;
+		boolean noIndex = false;
+		boolean stdin = false;
+		List<String> paths = new ArrayList<>();
+		for (String arg : args) {
+			switch (arg) {
+			case "-v":
+			case "--verbose":
+				verbose = true;
+				break;
+			case "-n":
+			case "--non-matching":
+				nonMatching = true;
+				break;
+			case "--no-index":
+				noIndex = true;
+				break;
+			case "--stdin":
+				stdin = true;
+				break;
+			default:
+				paths.add(arg);
+			}
+		}
+		if (stdin) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				paths.add(line);
+			}
+		}
+
+		GitRepository repo = openRepo();
+		GitIgnore ignore = GitIgnore.load(repo);
+		// Tracked files are never ignored
+		Set<String> tracked = new HashSet<>();
+		if (!noIndex) {
+			for (GitIndexEntry entry : repo.getIndex().getEntries()) {
+				tracked.add(entry.name());
+			}
+		}
+
 		for (String path : paths) {
+			String rel = worktreePath(repo, path);
+			GitIgnore.Rule rule = null;
+			if (!rel.isEmpty() && !tracked.contains(rel)) {
+				rule = ignore.match(rel, Files.isDirectory(repo.getWorktree().resolve(rel)));
+			}
+			if (verbose) {
+				if (rule != null) {
+					System.out.println(rule.getSource() + ":" + rule.getLine() + ":" + rule.getText() + "\t" + path);
+				} else if (nonMatching) {
+					System.out.println("::\t" + path);
+				}
+			} else if (rule != null && !rule.isNegative()) {
+				System.out.println(path);
+			}
 		}
+	}
 
+	// A path given on the command line, relative to the worktree with "/"
+	// separators; "" for the worktree itself
+	static String worktreePath(GitRepository repo, String path) throws IOException {
+		Path absolute = Paths.get(path).toAbsolutePath().normalize();
+		if (!absolute.startsWith(repo.getWorktree())) {
+			throw new IOException(path + " is outside repository at " + repo.getWorktree());
+		}
+		return repo.getWorktree().relativize(absolute).toString().replace(File.separatorChar, '/');
 	}
 
-	public static void cmdLsFiles(final String[] args) throws IOException {
+	public static int cmdLsFiles(final String[] args, GitIo io) throws IOException {
 		boolean verbose = false;
 
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		GitRepository repo = openRepo();
 
-		GitIndex index = GitIndex.indexRead(repo);
+		GitIndex index = repo.getIndex();
 
 		if (verbose) {
-			System.out.println(String.format("Index file format v%d, containing %d entries.", index.getVersion(),
+			io.out().println(String.format("Index file format v%d, containing %d entries.", index.getVersion(),
 					index.getEntries().size()));
 		}
 
 		for (GitIndexEntry e : index.getEntries()) {
-			System.out.println(e.name());
+			io.out().println(e.name());
 			if (verbose) {
 				String modeType = GitIndex.MODE_TYPE_MAP.get(e.modeType());
-				System.out.println(String.format("  %s with perms: %o", modeType, e.modePerms()));
-				System.out.println(String.format("  on blob: %s", e.sha()));
-				System.out.println(String.format("  created: %s.%d, modified: %s.%d",
+				io.out().println(String.format("  %s with perms: %o", modeType, e.modePerms()));
+				io.out().println(String.format("  on blob: %s", e.sha()));
+				io.out().println(String.format("  created: %s.%d, modified: %s.%d",
 						GitIndex.formatTimestamp(e.ctime().getFirst()), e.ctime().getSecond(),
 						GitIndex.formatTimestamp(e.mtime().getFirst()), e.mtime().getSecond()));
-				System.out.println(String.format("  device: %d, inode: %d", e.dev(), e.ino()));
-				System.out.println(String.format("  user: %s (%d)  group: %s (%d)", GitIndex.getUsernameById(e.uid()),
+				io.out().println(String.format("  device: %d, inode: %d", e.dev(), e.ino()));
+				io.out().println(String.format("  user: %s (%d)  group: %s (%d)", GitIndex.getUsernameById(e.uid()),
 						e.uid(), GitIndex.getGroupnameById(e.gid()), e.gid()));
-				System.out.println(
+				io.out().println(
 						String.format("  flags: stage=%d assume_valid=%b", e.flagStage(), e.flagAssumeValid()));
 			}
 		}
+		return 0;
 	}
 
-	private static void cmdRevParse(final String[] args) throws Exception {
+	private static int cmdRevParse(final String[] args, GitIo io) throws Exception {
 		String type = "blob";
 		String name = "HEAD";
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		GitRepository repo = openRepo();
 
-		System.out.println(GitObjectHelper.objectFind(repo, name, type, true));
+		io.out().println(GitObjectHelper.objectFind(repo, name, type, true));
+		return 0;
 	}
 
 	private static void cmdTag(final String[] args) throws Exception {
@@ -124,7 +413,7 @@ public class main {
 		}
 
 		// Find the Git repository
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		GitRepository repo = openRepo();
 
 		// Create the tag (lightweight or annotated)
 		GitTag.tagCreate(repo, name, objectName, createTagObject);
@@ -135,16 +424,190 @@ public class main {
 		if (args.length != 0) {
 			path = args[0];
 		}
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		GitRepository repo = openRepo();
 
 		Map<String, Object> refs = GitObjectHelper.refList(repo, path);
 		GitObjectHelper.showRef(repo, refs);
 
 	}
 
+	// multi-pack-index write
+	private static void cmdMultiPackIndex(final String[] args) throws Exception {
+		if (args.length != 1 || !args[0].equals("write")) {
+			System.out.println("Usage: multi-pack-index write");
+			return;
+		}
+		GitRepository repo = openRepo();
+		int count = GitMultiPackIndex.write(repo);
+		System.out.println("Indexed " + count + " objects in " + repo.getPacks().size() + " packs");
+	}
+
+	// commit-graph write [--[no-]changed-paths]
+	private static void cmdCommitGraph(final String[] args) throws Exception {
+		boolean changedPaths = true;
+		boolean usage = args.length == 0 || !args[0].equals("write");
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--changed-paths")) {
+				changedPaths = true;
+			} else if (args[i].equals("--no-changed-paths")) {
+				changedPaths = false;
+			} else {
+				usage = true;
+			}
+		}
+		if (usage) {
+			System.out.println("Usage: commit-graph write [--[no-]changed-paths]");
+			return;
+		}
+		GitRepository repo = openRepo();
+		int count = GitCommitGraph.write(repo, changedPaths);
+		System.out.println("Wrote " + count + " commits" + (changedPaths ? " with changed paths" : ""));
+	}
+
+	// prune [-n] [-v] [--expire=<time>]
+	private static void cmdPrune(final String[] args) throws Exception {
+		GitRepository repo = openRepo();
+		boolean dryRun = false;
+		boolean verbose = false;
+		long expire = GitPrune.configuredExpire(repo);
+		for (String arg : args) {
+			if (arg.equals("-n") || arg.equals("--dry-run")) {
+				dryRun = true;
+			} else if (arg.equals("-v") || arg.equals("--verbose")) {
+				verbose = true;
+			} else if (arg.startsWith("--expire=")) {
+				expire = GitPrune.parseExpire(arg.substring(9), System.currentTimeMillis());
+			} else {
+				System.out.println("Usage: prune [-n] [-v] [--expire=<time>]");
+				return;
+			}
+		}
+		new GitPrune(repo, expire, dryRun, dryRun || verbose ? System.out : null).run();
+	}
+
+	// fsck: verifies every object and reports missing and dangling ones
+	private static void cmdFsck(final String[] args) throws Exception {
+		GitRepository repo = openRepo();
+		int problems = new GitFsck(repo, System.out).run();
+		if (problems > 0) {
+			System.err.println(problems + " problems found");
+		}
+	}
+
+	// fast-export [--import-marks=<file>] [--export-marks=<file>] (--all | <ref>...) > stream
+	private static void cmdFastExport(final String[] args) throws Exception {
+		GitRepository repo = openRepo();
+		List<String> refs = new ArrayList<>();
+		Path importMarks = null;
+		Path exportMarks = null;
+		for (String arg : args) {
+			if (arg.equals("--all")) {
+				refs.addAll(GitObjectHelper.refListAll(repo).keySet());
+			} else if (arg.startsWith("--import-marks=")) {
+				importMarks = Paths.get(arg.substring(15));
+			} else if (arg.startsWith("--export-marks=")) {
+				exportMarks = Paths.get(arg.substring(15));
+			} else if (arg.startsWith("refs/")) {
+				refs.add(arg);
+			} else if (GitObjectHelper.refResolve(repo, "refs/heads/" + arg) != null) {
+				refs.add("refs/heads/" + arg);
+			} else if (GitObjectHelper.refResolve(repo, "refs/tags/" + arg) != null) {
+				refs.add("refs/tags/" + arg);
+			} else {
+				System.err.println("Not a valid ref: " + arg);
+				return;
+			}
+		}
+		if (refs.isEmpty()) {
+			System.out.println("Usage: fast-export [--import-marks=<file>] [--export-marks=<file>] (--all | <ref>...)");
+			return;
+		}
+
+		// Straight to the file descriptor, past System.out's own buffering.
+		// The stream is left open: closing it would close fd 1 under
+		// System.out and anything else still writing there.
+		System.out.flush();
+		FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+		GitFastExport exporter = new GitFastExport(repo, out.getChannel());
+		if (importMarks != null) {
+			exporter.importMarks(importMarks);
+		}
+		exporter.export(refs);
+		if (exportMarks != null) {
+			exporter.exportMarks(exportMarks);
+		}
+	}
+
+	// fast-import [--force] [--quiet] [--import-marks=<file>] [--export-marks=<file>] < stream
+	private static void cmdFastImport(final String[] args) throws Exception {
+		boolean force = false;
+		boolean quiet = false;
+		Path importMarks = null;
+		Path exportMarks = null;
+		for (String arg : args) {
+			if (arg.equals("--force")) {
+				force = true;
+			} else if (arg.equals("--quiet")) {
+				quiet = true;
+			} else if (arg.startsWith("--import-marks=")) {
+				importMarks = Paths.get(arg.substring(15));
+			} else if (arg.startsWith("--export-marks=")) {
+				exportMarks = Paths.get(arg.substring(15));
+			} else {
+				System.out.println("Usage: fast-import [--force] [--quiet] [--import-marks=<file>] [--export-marks=<file>]");
+				return;
+			}
+		}
+
+		GitRepository repo = openRepo();
+		GitFastImport importer = new GitFastImport(repo, force, System.out);
+		if (importMarks != null) {
+			importer.importMarks(importMarks);
+		}
+		importer.run(System.in);
+		if (exportMarks != null) {
+			importer.exportMarks(exportMarks);
+		}
+		if (!quiet) {
+			System.err.print(importer.summary());
+		}
+	}
+
+	// commit -m <message>... [--allow-empty]
+	private static void cmdCommit(final String[] args) throws Exception {
+		List<String> paragraphs = new ArrayList<>();
+		boolean allowEmpty = false;
+		for (int i = 0; i < args.length; i++) {
+			if ((args[i].equals("-m") || args[i].equals("--message")) && i + 1 < args.length) {
+				paragraphs.add(args[++i]);
+			} else if (args[i].equals("--allow-empty")) {
+				allowEmpty = true;
+			} else {
+				System.out.println("Usage: commit -m <message> [--allow-empty]");
+				return;
+			}
+		}
+		if (paragraphs.isEmpty()) {
+			System.out.println("Usage: commit -m <message> [--allow-empty]");
+			return;
+		}
+
+		GitRepository repo = openRepo();
+		boolean root = GitObjectHelper.refResolve(repo, "HEAD") == null;
+		String sha = new GitCommitWriter(repo).commit(String.join("\n\n", paragraphs), allowEmpty);
+		if (sha == null) {
+			System.out.println("nothing to commit");
+			return;
+		}
+		String branch = GitObjectHelper.branchGetActive(repo);
+		String subject = paragraphs.get(0).strip().split("\n", 2)[0];
+		System.out.println("[" + (branch == null ? "detached HEAD" : branch) + (root ? " (root-commit) " : " ")
+				+ sha.substring(0, 7) + "] " + subject);
+	}
+
 	private static void cmdCheckout(final String[] args) throws Exception {
 		String commit = "HEAD";
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		GitRepository repo = openRepo();
 
 		String commitSha = GitObjectHelper.objectFind(repo, commit);
 		GitObject obj = GitObjectHelper.objectRead(repo, commitSha);
@@ -152,12 +615,10 @@ public class main {
 		// If the object is a commit, we grab its tree
 		if (obj.getFmt().equals("commit")) {
 			GitCommit objCommit = (GitCommit) obj;
-			Object value = objCommit.getValueFromKvlm("tree".getBytes());
-			if (value == null) {
+			String treeSha = objCommit.getTree();
+			if (treeSha == null) {
 				throw new Exception("Tree doesn't exist");
-
 			}
-			String treeSha = (String) value;
 			obj = GitObjectHelper.objectRead(repo, treeSha);
 		}
 		GitTree objTree = (GitTree) obj;
@@ -181,71 +642,263 @@ public class main {
 		GitObjectHelper.treeCheckout(repo, objTree, path.getAbsolutePath());
 	}
 
+	// ls-tree [-r] [<tree-ish>]
 	private static void cmdLsTree(final String[] args) throws Exception {
 		String tree = "HEAD";
 		boolean recursive = false;
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		for (String arg : args) {
+			if (arg.equals("-r")) {
+				recursive = true;
+			} else {
+				tree = arg;
+			}
+		}
+		GitRepository repo = openRepo();
 
 		GitTree.lsTree(repo, tree, recursive);
 	}
 
-	private static void cmdLog(final String args[]) throws Exception {
+	// log [<commit>] prints the history as a graphviz graph; log [<commit>]
+	// -- <path>... lists the commits that changed the paths
+	private static int cmdLog(final String args[], GitIo io) throws Exception {
+		int separator = Arrays.asList(args).indexOf("--");
+		if (separator > 1 || (separator < 0 && args.length > 1)) {
+			io.err().println("Usage: log [<commit>] [-- <path>...]");
+			return 129;
+		}
+		GitRepository repo = openRepo();
+		if (separator >= 0) {
+			String start = GitObjectHelper.objectFind(repo, separator == 1 ? args[0] : "HEAD", "commit");
+			List<String> paths = Arrays.asList(args).subList(separator + 1, args.length);
+			new GitLog(repo, paths).run(start, io.out());
+			return 0;
+		}
+
 		// String commit = "8b16a2e683abf2abc34d5e0cab3e6e2af2468cba";
-		String commit = "master";
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		String commit = args.length == 1 ? args[0] : "master";
 
 		String foundObj = GitObjectHelper.objectFind(repo, commit);
 		if (foundObj == null) {
-			System.out.println("Object not found");
+			io.err().println("Object not found");
+			return 1;
 		}
+		io.out().println("digraph wyaglog{");
+		io.out().println("  node[shape=rect]");
 		Set<String> emptySet = new HashSet<>();
-		GitCommit.logGraphviz(repo, foundObj, emptySet);
-		// Set<String>);
-		System.out.println("}");
+		GitCommit.logGraphviz(repo, foundObj, emptySet, io.out());
+		io.out().println("}");
+		return 0;
 	}
 
+	// hash-object [-w] [-t <type>] [--stdin-paths] <file>...
 	private static void cmdHashObject(final String args[]) throws Exception {
-		String path = args[1];
 		boolean write = false;
+		boolean stdinPaths = false;
 		String type = "blob";
-
-		GitRepository repo = null;
-		if (write) {
-			repo = GitRepository.repoFind(path);
+		List<String> paths = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w")) {
+				write = true;
+			} else if (args[i].equals("-t") && i + 1 < args.length) {
+				type = args[++i];
+			} else if (args[i].equals("--stdin-paths")) {
+				stdinPaths = true;
+			} else {
+				paths.add(args[i]);
+			}
 		}
-
-		Path filePath = Paths.get(path);
-		if (!Files.isRegularFile(filePath)) {
-			System.err.println("File does not exist: " + path);
+		if (stdinPaths) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				paths.add(line);
+			}
+		}
+		if (paths.isEmpty()) {
+			System.out.println("Usage: hash-object [-w] [-t <type>] [--stdin-paths] <file>...");
 			return;
 		}
 
-		byte[] fileData;
-		try (InputStream is = new FileInputStream(filePath.toFile())) {
-			fileData = is.readAllBytes();
+		GitRepository repo = write ? openRepo() : null;
+		// Batches are written into one pack rather than a loose file each
+		GitBulkCheckin bulk = write && paths.size() >= GitBulkCheckin.THRESHOLD ? GitBulkCheckin.begin(repo) : null;
+		try {
+			for (String path : paths) {
+				Path filePath = Paths.get(path);
+				if (!Files.isRegularFile(filePath)) {
+					System.err.println("File does not exist: " + path);
+					return;
+				}
+				String sha = GitObjectHelper.objectHash(Files.readAllBytes(filePath), type.getBytes(), repo);
+				System.out.println(sha);
+			}
+		} finally {
+			if (bulk != null) {
+				bulk.close();
+			}
 		}
-
-		String sha = GitObjectHelper.objectHash(fileData, type.getBytes(), repo);
-		System.out.println(sha);
 	}
 
-	private static void cmdCatFile(final String args[]) throws Exception {
-		String type = "blob";
-		String objectIdentifier = "idk";
+	private static int cmdCatFile(final String args[], GitIo io) throws Exception {
+		if (args.length == 1 && (args[0].equals("--batch") || args[0].equals("--batch-check"))) {
+			return cmdCatFileBatch(args[0].equals("--batch"), io);
+		}
+		if (args.length == 2 && (args[0].equals("-t") || args[0].equals("-s"))) {
+			GitRepository repo = openRepo();
+			GitObjectInfo info = GitObjectHelper.objectInfo(repo, GitObjectHelper.objectFind(repo, args[1]));
+			if (info == null) {
+				io.err().println("Object not found");
+				return 1;
+			}
+			io.out().println(args[0].equals("-t") ? info.fmt() : String.valueOf(info.size()));
+			return 0;
+		}
+		if (args.length != 2) {
+			io.err().println("usage: cat-file (-t | -s | <type>) <object> | cat-file (--batch | --batch-check)");
+			return 129;
+		}
+		String type = args[0];
+		String objectIdentifier = args[1];
 
-		GitRepository repo = GitRepository.repoFind(repoPath);
+		GitRepository repo = openRepo();
 
 		String foundObjectName = GitObjectHelper.objectFind(repo, objectIdentifier, type);
 		if (foundObjectName == null) {
-			System.out.println("Object not found");
-			return;
+			io.err().println("Object not found");
+			return 1;
 		}
 		GitObject obj = GitObjectHelper.objectRead(repo, foundObjectName);
 		if (obj == null) {
-			System.out.println("Cannot read object with name: " + foundObjectName);
+			io.err().println("Cannot read object with name: " + foundObjectName);
+			return 1;
+		}
+		io.out().write(obj.serialize());
+		io.out().flush();
+		return 0;
+	}
+
+	// Reads one object name per line from stdin and writes "<sha> <type> <size>"
+	// for each, followed by the raw content with --batch. Content is streamed
+	// from the inflater to stdout without being decoded.
+	private static int cmdCatFileBatch(boolean contents, GitIo io) throws Exception {
+		GitRepository repo = openRepo();
+		BufferedReader in = new BufferedReader(new InputStreamReader(io.in(), StandardCharsets.UTF_8), 1 << 16);
+		OutputStream out = new BufferedOutputStream(io.out(), 1 << 16);
+
+		String line;
+		while ((line = in.readLine()) != null) {
+			String name = line.trim();
+			String sha = batchResolve(repo, name);
+
+			if (!contents) {
+				GitObjectInfo info = sha == null ? null : GitObjectHelper.objectInfo(repo, sha);
+				if (info == null) {
+					out.write((name + " missing\n").getBytes(StandardCharsets.UTF_8));
+				} else {
+					out.write((sha + " " + info.fmt() + " " + info.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+				}
+			} else {
+				Tuple<GitObjectInfo, InputStream> obj = sha == null ? null : GitObjectHelper.objectOpen(repo, sha);
+				if (obj == null) {
+					out.write((name + " missing\n").getBytes(StandardCharsets.UTF_8));
+				} else {
+					try (InputStream body = obj.getSecond()) {
+						GitObjectInfo info = obj.getFirst();
+						out.write((sha + " " + info.fmt() + " " + info.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+						copyExactly(body, out, info.size(), sha);
+						out.write('\n');
+					}
+				}
+			}
+
+			// Only flush once the caller has nothing more queued, so pipes get
+			// large writes while interactive callers still see each answer
+			if (!in.ready()) {
+				out.flush();
+			}
+		}
+		out.flush();
+		return 0;
+	}
+
+	// Copies the size bytes the object header announced. A body of any other
+	// length would leave the client reading the next answer at the wrong
+	// place, so that fails the whole batch instead.
+	private static void copyExactly(InputStream body, OutputStream out, long size, String sha) throws IOException {
+		byte[] buf = new byte[(int) Math.min(size + 1, 1 << 16)];
+		long left = size;
+		while (left > 0) {
+			int n = body.read(buf, 0, (int) Math.min(left, buf.length));
+			if (n < 0) {
+				throw new IOException("Object " + sha + " is " + (size - left) + " bytes, expected " + size);
+			}
+			out.write(buf, 0, n);
+			left -= n;
+		}
+		if (body.read() != -1) {
+			throw new IOException("Object " + sha + " is longer than its " + size + " bytes");
+		}
+	}
+
+	private static String batchResolve(GitRepository repo, String name) throws Exception {
+		if (name.length() == 40 && name.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+			return name.toLowerCase();
+		}
+		try {
+			return GitObjectHelper.objectFind(repo, name);
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	// generate <path> [--profile monorepo|wide-flat|deep-linear] [--seed N]
+	// [--files N] [--commits N] [--format loose|packed|both] [--compression N]
+	private static void cmdGenerate(final String args[]) throws Exception {
+		String path = null;
+		GitRepoGenerator.Profile profile = GitRepoGenerator.Profile.MONOREPO;
+		long seed = 1;
+		int files = 10000;
+		int commits = 1000;
+		String format = "loose";
+		Integer compression = null;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--profile":
+				profile = GitRepoGenerator.Profile.valueOf(args[++i].toUpperCase().replace('-', '_'));
+				break;
+			case "--seed":
+				seed = Long.parseLong(args[++i]);
+				break;
+			case "--files":
+				files = Integer.parseInt(args[++i]);
+				break;
+			case "--commits":
+				commits = Integer.parseInt(args[++i]);
+				break;
+			case "--format":
+				format = args[++i];
+				break;
+			case "--compression":
+				compression = Integer.parseInt(args[++i]);
+				break;
+			default:
+				path = args[i];
+			}
+		}
+		if (path == null) {
+			System.out.println("usage: generate <path> [--profile monorepo|wide-flat|deep-linear] [--seed N]"
+					+ " [--files N] [--commits N] [--format loose|packed|both] [--compression N]");
 			return;
 		}
-		System.out.print(obj.serialize());
+
+		// Same seed, same objects: "both" writes <path>-loose and <path>-packed
+		if (format.equals("both")) {
+			new GitRepoGenerator(profile, seed, files, commits, compression).generate(path + "-loose", false);
+			new GitRepoGenerator(profile, seed, files, commits, compression).generate(path + "-packed", true);
+		} else {
+			new GitRepoGenerator(profile, seed, files, commits, compression).generate(path, format.equals("packed"));
+		}
 	}
 
 	private static void cmdInitRepo(final String args[]) throws Exception {
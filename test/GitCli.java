@@ -0,0 +1,53 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// Runs the real git on repositories the tests wrote, so that what counts as
+// correct is what git reads back. Tests calling assumeInstalled() are
+// skipped where there is no git.
+final class GitCli {
+	private GitCli() {
+	}
+
+	static void assumeInstalled() {
+		boolean installed;
+		try {
+			installed = new ProcessBuilder("git", "--version").redirectErrorStream(true).start().waitFor() == 0;
+		} catch (IOException e) {
+			installed = false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			installed = false;
+		}
+		assumeTrue(installed, "git is not installed");
+	}
+
+	// Stdout and stderr of git run in dir, failing the test unless it exits 0
+	static String run(Path dir, String... args) throws IOException, InterruptedException {
+		return run(dir, null, args);
+	}
+
+	// Same, with the contents of input on stdin
+	static String run(Path dir, Path input, String... args) throws IOException, InterruptedException {
+		String[] command = new String[args.length + 1];
+		command[0] = "git";
+		System.arraycopy(args, 0, command, 1, args.length);
+		ProcessBuilder builder = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true);
+		// Only the repository's own config
+		builder.environment().put("GIT_CONFIG_NOSYSTEM", "1");
+		builder.environment().put("GIT_CONFIG_GLOBAL", "/dev/null");
+		if (input != null) {
+			builder.redirectInput(input.toFile());
+		}
+		Process process = builder.start();
+		if (input == null) {
+			process.getOutputStream().close();
+		}
+		String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		assertEquals(0, process.waitFor(), () -> String.join(" ", command) + " failed:\n" + output);
+		return output;
+	}
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitCommitGraphTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void writesGraphThatGitVerifies() throws Exception {
+		GitCli.assumeInstalled();
+		Path path = generate();
+		GitRepository repo = new GitRepository(path.toString());
+
+		int count = GitCommitGraph.write(repo, true);
+		List<String> commits = GitCli.run(path, "rev-list", "--all").lines().toList();
+		assertEquals(commits.size(), count);
+		GitCli.run(path, "commit-graph", "verify");
+
+		GitCommitGraph graph = repo.getCommitGraph();
+		assertNotNull(graph);
+		assertTrue(graph.hasBloomFilters());
+		for (String sha : commits) {
+			int pos = graph.find(GitObjectHelper.shaToBytes(sha));
+			assertEquals(sha, graph.getId(pos));
+			assertEquals(GitCli.run(path, "rev-parse", sha + "^{tree}").trim(), graph.getTree(pos));
+		}
+	}
+
+	// A filter may claim a path changed when it didn't, never the reverse.
+	// git compares each commit with its first parent, the root commit with
+	// the empty tree.
+	@Test
+	void bloomFiltersHaveNoFalseNegatives() throws Exception {
+		GitCli.assumeInstalled();
+		Path path = generate();
+		GitRepository repo = new GitRepository(path.toString());
+		GitCommitGraph.write(repo, true);
+		GitCommitGraph graph = repo.getCommitGraph();
+
+		List<String> allPaths = GitCli.run(path, "ls-tree", "-r", "--name-only", "HEAD").lines().toList();
+		int skipped = 0;
+		for (String sha : GitCli.run(path, "rev-list", "--all").lines().toList()) {
+			int pos = graph.find(GitObjectHelper.shaToBytes(sha));
+			boolean root = graph.getParents(pos).length == 0;
+			String changed = root ? GitCli.run(path, "ls-tree", "-r", "--name-only", sha)
+					: GitCli.run(path, "diff", "--name-only", sha + "^1", sha);
+			for (String file : changed.lines().toList()) {
+				assertTrue(graph.maybeChanged(pos, keys(graph, file)), sha + " " + file);
+			}
+			for (String file : allPaths) {
+				if (!changed.lines().anyMatch(file::equals) && !graph.maybeChanged(pos, keys(graph, file))) {
+					skipped++;
+				}
+			}
+		}
+		// The filters do rule paths out
+		assertTrue(skipped > 0);
+	}
+
+	private Path generate() throws Exception {
+		Path path = dir.resolve("repo");
+		new GitRepoGenerator(GitRepoGenerator.Profile.MONOREPO, 1, 60, 25).generate(path.toString(), false);
+		return path;
+	}
+
+	// Keys of the path and of each directory above it
+	private static List<int[]> keys(GitCommitGraph graph, String path) {
+		List<int[]> keys = new ArrayList<>();
+		keys.add(graph.bloomKey(path));
+		for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+			keys.add(graph.bloomKey(path.substring(0, slash)));
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,137 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitConfigTest {
+	private static final String TEXT = "# comment\n" //
+			+ "[core]\n" //
+			+ "\tbare = false ; trailing comment\n" //
+			+ "\tFileMode\n" //
+			+ "\tcompression = 9\n" //
+			+ "[Remote \"Origin\"]\n" //
+			+ "\turl = https://example.com/repo.git\n" //
+			+ "\tfetch = +refs/heads/*:refs/remotes/origin/*\n" //
+			+ "\tfetch = +refs/tags/*:refs/tags/*\n" //
+			+ "[section.Sub]\n" //
+			+ "\tkey = deprecated form\n" //
+			+ "[values]\n" //
+			+ "\tquoted = \"  keeps # and ; \"\n" //
+			+ "\tescapes = tab\\there\\nnewline \\\"q\\\" back\\\\slash\n" //
+			+ "\tcontinued = one \\\n" //
+			+ "two\n" //
+			+ "\tinner =   a   b   \n" //
+			+ "\tempty =\n" //
+			+ "\tsize = 96m\n";
+	// Keys in TEXT written without "=", which getAll() can't tell from ""
+	private static final Set<String> BARE_KEYS = Set.of("core.filemode");
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void parsesValues() throws Exception {
+		GitConfig config = GitConfig.read(write("config", TEXT));
+		assertFalse(config.getBoolean("core.bare", true));
+		assertTrue(config.getBoolean("core.filemode", false));
+		assertEquals("", config.get("core.filemode"));
+		assertEquals(9, config.getInt("core.compression", 0));
+		assertEquals(96L << 20, config.getLong("values.size", 0));
+
+		// Section and key names are case-insensitive, subsections are not
+		assertEquals("https://example.com/repo.git", config.get("REMOTE.Origin.URL"));
+		assertNull(config.get("remote.origin.url"));
+		assertEquals(List.of("+refs/heads/*:refs/remotes/origin/*", "+refs/tags/*:refs/tags/*"),
+				config.getAll("remote.Origin.fetch"));
+		assertEquals("+refs/tags/*:refs/tags/*", config.get("remote.Origin.fetch"));
+		assertEquals(Set.of("Origin"), config.getSubsections("remote"));
+		assertEquals("deprecated form", config.get("section.sub.key"));
+
+		assertEquals("  keeps # and ; ", config.get("values.quoted"));
+		assertEquals("tab\there\nnewline \"q\" back\\slash", config.get("values.escapes"));
+		assertEquals("one two", config.get("values.continued"));
+		assertEquals("a   b", config.get("values.inner"));
+		assertEquals("", config.get("values.empty"));
+		assertFalse(config.getBoolean("values.empty", true));
+	}
+
+	@Test
+	void followsIncludes() throws Exception {
+		write("included", "[user]\n\tname = Included\n\temail = a@example.com\n");
+		GitConfig config = GitConfig.read(
+				write("config", "[user]\n\tname = Before\n[include]\n\tpath = included\n[user]\n\temail = b@example.com\n"));
+		assertEquals("Included", config.get("user.name"));
+		assertEquals("b@example.com", config.get("user.email"));
+	}
+
+	@Test
+	void rereadsChangedFiles() throws Exception {
+		Path file = write("config", "[core]\n\tbare = true\n");
+		assertTrue(GitConfig.read(file).getBoolean("core.bare", false));
+		Files.writeString(file, "[core]\n\tbare = false\n");
+		Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+		assertFalse(GitConfig.read(file).getBoolean("core.bare", true));
+	}
+
+	@Test
+	void rejectsMalformedFiles() throws Exception {
+		for (String text : new String[] { "key = outside a section\n", "[unterminated\n", "[s]\n\tk = \"open\n",
+				"[s]\n\tk = bad \\q escape\n", "[s \"sub]\n" }) {
+			Path file = write("bad", text);
+			assertThrows(IOException.class, () -> GitConfig.read(file), text);
+		}
+		GitConfig config = GitConfig.read(write("bool", "[s]\n\tk = maybe\n"));
+		assertThrows(IOException.class, () -> config.getBoolean("s.k", false));
+	}
+
+	// Same names and values as git config --list
+	@Test
+	void agreesWithGit() throws Exception {
+		GitCli.assumeInstalled();
+		write("included", "[user]\n\tname = Included\n");
+		Path file = write("config", TEXT + "[include]\n\tpath = included\n");
+		String listed = GitCli.run(dir, "config", "--file", file.toString(), "--includes", "--list", "-z");
+
+		List<String> expected = new ArrayList<>();
+		for (String item : listed.split("\0")) {
+			// "name\nvalue", or just "name" for a key without "="
+			int nl = item.indexOf('\n');
+			expected.add(nl < 0 ? item + "=<true>" : item.substring(0, nl) + "=" + item.substring(nl + 1));
+		}
+
+		GitConfig config = GitConfig.read(file);
+		List<String> actual = new ArrayList<>();
+		for (String name : config.names()) {
+			for (String value : config.getAll(name)) {
+				actual.add(name + "=" + (value.isEmpty() && BARE_KEYS.contains(name) ? "<true>" : value));
+			}
+		}
+		// git lists in file order, we group by name: compare as multisets
+		assertEquals(count(expected), count(actual));
+	}
+
+	private static Map<String, Long> count(List<String> items) {
+		return items.stream().collect(Collectors.groupingBy(s -> s, TreeMap::new, Collectors.counting()));
+	}
+
+	private Path write(String name, String text) throws IOException {
+		Path file = dir.resolve(name);
+		Files.writeString(file, text);
+		return file;
+	}
+}
@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// fast-export and fast-import together: a history exported and imported
+// again must come back with the same commit ids
+class GitFastImportTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void roundTripKeepsIds() throws Exception {
+		GitCli.assumeInstalled();
+		GitRepository source = generate();
+		Path stream = export(source);
+
+		GitRepository target = GitRepository.createRepo(dir.resolve("target").toString());
+		ByteArrayOutputStream progress = new ByteArrayOutputStream();
+		GitFastImport importer = new GitFastImport(target, false, new PrintStream(progress, true, StandardCharsets.UTF_8));
+		try (InputStream in = Files.newInputStream(stream)) {
+			importer.run(in);
+		}
+
+		Map<String, String> refs = GitObjectHelper.refListAll(source);
+		assertFalse(refs.isEmpty());
+		assertEquals(refs, GitObjectHelper.refListAll(target));
+		GitCli.run(target.getWorktree(), "fsck", "--strict", "--no-dangling");
+	}
+
+	// The stream is one git itself accepts, with the same result
+	@Test
+	void gitImportsExportedStream() throws Exception {
+		GitCli.assumeInstalled();
+		GitRepository source = generate();
+		Path stream = export(source);
+
+		Path target = dir.resolve("git-target");
+		Files.createDirectories(target);
+		GitCli.run(target, "init", "-q");
+		GitCli.run(target, stream, "fast-import", "--quiet");
+
+		for (Map.Entry<String, String> ref : GitObjectHelper.refListAll(source).entrySet()) {
+			assertEquals(ref.getValue(), GitCli.run(target, "rev-parse", ref.getKey()).trim());
+		}
+	}
+
+	private GitRepository generate() throws Exception {
+		Path path = dir.resolve("source");
+		new GitRepoGenerator(GitRepoGenerator.Profile.MONOREPO, 1, 40, 15).generate(path.toString(), false);
+		return new GitRepository(path.toString());
+	}
+
+	private Path export(GitRepository repo) throws Exception {
+		Path stream = dir.resolve("stream");
+		try (FileChannel channel = FileChannel.open(stream, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			new GitFastExport(repo, channel).export(new ArrayList<>(GitObjectHelper.refListAll(repo).keySet()));
+		}
+		return stream;
+	}
+}
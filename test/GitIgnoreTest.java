@@ -0,0 +1,124 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitIgnoreTest {
+	// Files, and directories with a trailing "/"
+	private static final List<String> PATHS = List.of("a.log", "keep.log", "sub/keep.log", "build/", "build/x.o",
+			"build/keep.log", "src/build/", "src/build/y.o", "root-only", "sub/root-only", "doc/x.tmp",
+			"doc/a/b/y.tmp", "x.tmp", "abc", "axc", "abbc", "cat", "bat", "mat", "#hash", "notes.txt", "sub/notes.txt",
+			"sub/important.txt", "sub/local", "sub/deeper/local", "secret", "sub/secret", "file.swp", "normal.c");
+
+	@TempDir
+	Path dir;
+
+	private Path worktree;
+	private GitRepository repo;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		worktree = dir.resolve("repo");
+		repo = GitRepository.createRepo(worktree.toString());
+		write(".gitignore", "# comment\n*.log\n!keep.log\nbuild/\n/root-only\ndoc/**/*.tmp\na?c\n[bc]at\n\\#hash\n");
+		write("sub/.gitignore", "*.txt\n!important.txt\nlocal\n");
+		write(".git/info/exclude", "secret\n");
+		Path excludes = dir.resolve("excludes");
+		Files.writeString(excludes, "*.swp\n");
+		Files.writeString(worktree.resolve(".git/config"), "[core]\n\texcludesFile = " + excludes + "\n",
+				StandardOpenOption.APPEND);
+		for (String path : PATHS) {
+			if (path.endsWith("/")) {
+				Files.createDirectories(worktree.resolve(path));
+			} else {
+				write(path, "");
+			}
+		}
+		repo = new GitRepository(worktree.toString());
+	}
+
+	@Test
+	void matchesPatterns() throws Exception {
+		GitIgnore ignore = GitIgnore.load(repo);
+		assertTrue(ignored(ignore, "a.log"));
+		assertFalse(ignored(ignore, "keep.log"));
+		assertFalse(ignored(ignore, "sub/keep.log"));
+		assertTrue(ignored(ignore, "build/"));
+		assertTrue(ignored(ignore, "src/build/"));
+		assertTrue(ignored(ignore, "root-only"));
+		assertFalse(ignored(ignore, "sub/root-only"));
+		assertTrue(ignored(ignore, "doc/x.tmp"));
+		assertTrue(ignored(ignore, "doc/a/b/y.tmp"));
+		assertFalse(ignored(ignore, "x.tmp"));
+		assertTrue(ignored(ignore, "abc"));
+		assertFalse(ignored(ignore, "abbc"));
+		assertTrue(ignored(ignore, "bat"));
+		assertFalse(ignored(ignore, "mat"));
+		assertTrue(ignored(ignore, "#hash"));
+		assertFalse(ignored(ignore, "notes.txt"));
+		assertTrue(ignored(ignore, "sub/notes.txt"));
+		assertFalse(ignored(ignore, "sub/important.txt"));
+		assertTrue(ignored(ignore, "sub/deeper/local"));
+		assertTrue(ignored(ignore, "sub/secret"));
+		assertTrue(ignored(ignore, "file.swp"));
+		assertNull(ignore.match("normal.c", false));
+	}
+
+	// Nothing below an ignored directory can be re-included
+	@Test
+	void negationCannotReachIntoIgnoredDirectory() throws Exception {
+		GitIgnore.Rule rule = GitIgnore.load(repo).match("build/keep.log", false);
+		assertFalse(rule.isNegative());
+		assertEquals("build/", rule.getText());
+		assertEquals(".gitignore", rule.getSource());
+		assertEquals(4, rule.getLine());
+	}
+
+	// Every path gets the answer git check-ignore gives
+	@Test
+	void agreesWithGit() throws Exception {
+		GitCli.assumeInstalled();
+		Path input = dir.resolve("paths");
+		List<String> names = new ArrayList<>();
+		for (String path : PATHS) {
+			names.add(path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+		}
+		Files.write(input, names, StandardCharsets.UTF_8);
+		List<String> lines = GitCli.run(worktree, input, "check-ignore", "--no-index", "--verbose", "--non-matching",
+				"--stdin").lines().toList();
+
+		GitIgnore ignore = GitIgnore.load(repo);
+		assertEquals(PATHS.size(), lines.size());
+		for (int i = 0; i < PATHS.size(); i++) {
+			// "<source>:<line>:<pattern>\t<path>", or "::\t<path>" for no match
+			String line = lines.get(i);
+			String pattern = line.substring(0, line.indexOf('\t'));
+			pattern = pattern.substring(pattern.indexOf(':', pattern.indexOf(':') + 1) + 1);
+			boolean gitIgnored = !pattern.isEmpty() && !pattern.startsWith("!");
+			assertEquals(gitIgnored, ignored(ignore, PATHS.get(i)), line);
+		}
+	}
+
+	private static boolean ignored(GitIgnore ignore, String path) throws Exception {
+		boolean isDir = path.endsWith("/");
+		GitIgnore.Rule rule = ignore.match(isDir ? path.substring(0, path.length() - 1) : path, isDir);
+		return rule != null && !rule.isNegative();
+	}
+
+	private void write(String path, String text) throws Exception {
+		Path file = worktree.resolve(path);
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, text);
+	}
+}
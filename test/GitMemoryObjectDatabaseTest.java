@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitMemoryObjectDatabaseTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void readsBackWhatWasWritten() throws Exception {
+		try (GitMemoryObjectDatabase db = new GitMemoryObjectDatabase()) {
+			Random random = new Random(1);
+			// Small objects share chunks, the large one gets its own
+			byte[] small = "small\n".getBytes(StandardCharsets.UTF_8);
+			byte[] large = new byte[3 << 20];
+			random.nextBytes(large);
+			String smallSha = write(db, "blob", small);
+			String largeSha = write(db, "blob", large);
+			// Written twice, stored once
+			write(db, "blob", small);
+
+			assertEquals(2, db.getCount());
+			assertEquals(small.length + large.length, db.getSize());
+			assertTrue(db.contains(smallSha));
+			assertFalse(db.contains("0".repeat(40)));
+			assertNull(db.read("0".repeat(40)));
+
+			assertEquals("blob", db.info(largeSha).fmt());
+			assertEquals(large.length, db.info(largeSha).size());
+			assertArrayEquals(small, db.read(smallSha).getSecond());
+			assertArrayEquals(large, db.read(largeSha).getSecond());
+			Tuple<GitObjectInfo, InputStream> opened = db.open(largeSha);
+			try (InputStream in = opened.getSecond()) {
+				assertArrayEquals(large, in.readAllBytes());
+			}
+
+			Set<String> found = new HashSet<>();
+			db.findPrefix(smallSha.substring(0, 6), found);
+			assertEquals(Set.of(smallSha), found);
+		}
+	}
+
+	@Test
+	void closeDropsEverything() throws Exception {
+		GitMemoryObjectDatabase db = new GitMemoryObjectDatabase();
+		String sha = write(db, "blob", "gone\n".getBytes(StandardCharsets.UTF_8));
+		db.close();
+		assertFalse(db.contains(sha));
+		assertEquals(0, db.getSize());
+		assertThrows(IOException.class, () -> write(db, "blob", new byte[1]));
+	}
+
+	// A repository using it writes no object files
+	@Test
+	void backsRepository() throws Exception {
+		GitRepository repo = GitRepository.createRepo(dir.resolve("repo").toString());
+		GitMemoryObjectDatabase db = new GitMemoryObjectDatabase();
+		repo.setObjectDatabase(db);
+
+		GitCommit commit = new GitCommit(null);
+		commit.setHeader("tree", GitObjectHelper.objectWrite(new GitTree(null), repo));
+		commit.setHeader("author", "A <a@example.com> 0 +0000");
+		commit.setHeader("committer", "A <a@example.com> 0 +0000");
+		commit.setMessage("in memory\n");
+		String sha = GitObjectHelper.objectWrite(commit, repo);
+
+		assertEquals(2, db.getCount());
+		GitObject read = GitObjectHelper.objectRead(repo, sha);
+		assertArrayEquals(commit.serialize(), read.serialize());
+		try (Stream<Path> files = Files.walk(repo.getGitdir().resolve("objects"))) {
+			assertEquals(0, files.filter(Files::isRegularFile).count());
+		}
+	}
+
+	private static String write(GitMemoryObjectDatabase db, String fmt, byte[] data) throws IOException {
+		String sha = GitObjectHelper.objectId(fmt, data);
+		db.write(fmt, data, sha);
+		return sha;
+	}
+}
@@ -0,0 +1,50 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitMultiPackIndexTest {
+	@TempDir
+	Path dir;
+
+	// The generated history in one pack, then two more packs sharing an
+	// object, which the index must list once
+	@Test
+	void writesIndexThatGitVerifies() throws Exception {
+		GitCli.assumeInstalled();
+		Path path = dir.resolve("repo");
+		new GitRepoGenerator(GitRepoGenerator.Profile.MONOREPO, 1, 40, 12).generate(path.toString(), true);
+		GitRepository repo = new GitRepository(path.toString());
+		int generated = repo.getPacks().get(0).getCount();
+
+		byte[] shared = "in both packs\n".getBytes(StandardCharsets.UTF_8);
+		writePack(repo, shared, "first\n".getBytes(StandardCharsets.UTF_8));
+		writePack(repo, shared, "second\n".getBytes(StandardCharsets.UTF_8));
+
+		int count = GitMultiPackIndex.write(repo);
+		assertEquals(generated + 3, count);
+		assertTrue(Files.isRegularFile(repo.getGitdir().resolve("objects/pack/multi-pack-index")));
+		GitCli.run(path, "multi-pack-index", "verify");
+
+		repo.rescanPacks();
+		assertNotNull(repo.getMultiPackIndex());
+		assertEquals(count, repo.getMultiPackIndex().getCount());
+		String head = GitObjectHelper.refResolve(repo, "HEAD");
+		assertNotNull(GitObjectHelper.objectRead(repo, head));
+	}
+
+	private static void writePack(GitRepository repo, byte[]... blobs) throws Exception {
+		try (GitPackWriter writer = new GitPackWriter(repo)) {
+			for (byte[] blob : blobs) {
+				writer.add("blob", blob);
+			}
+			writer.finish();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitPackWriterTest {
+	@TempDir
+	Path dir;
+
+	// Empty, small and incompressible blobs, one big enough for a size
+	// header of several bytes
+	@Test
+	void writesPackThatGitVerifies() throws Exception {
+		GitCli.assumeInstalled();
+		GitRepository repo = GitRepository.createRepo(dir.resolve("repo").toString());
+		Random random = new Random(1);
+		List<byte[]> contents = new ArrayList<>();
+		contents.add(new byte[0]);
+		contents.add("hello\n".getBytes(StandardCharsets.UTF_8));
+		for (int size : new int[] { 100, 70_000, 1 << 20 }) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			contents.add(data);
+		}
+
+		List<String> shas = new ArrayList<>();
+		GitPackWriter writer = new GitPackWriter(repo);
+		Path packPath;
+		try {
+			for (byte[] data : contents) {
+				shas.add(writer.add("blob", data));
+			}
+			// Added twice, stored once
+			writer.add("blob", contents.get(1));
+			assertEquals(contents.size(), writer.getCount());
+			packPath = writer.finish();
+		} finally {
+			writer.close();
+		}
+		assertNotNull(packPath);
+
+		String idx = packPath.toString().replaceAll("\\.pack$", ".idx");
+		String verify = GitCli.run(repo.getWorktree(), "verify-pack", "-v", idx);
+		assertTrue(verify.contains("non delta: " + contents.size() + " objects"), verify);
+		for (String sha : shas) {
+			assertTrue(verify.contains(sha + " blob"), verify);
+		}
+
+		repo.rescanPacks();
+		for (int i = 0; i < shas.size(); i++) {
+			assertArrayEquals(contents.get(i), GitObjectHelper.objectRead(repo, shas.get(i)).serialize());
+		}
+	}
+
+	// A nested session that outlives its owner must not add to the finished
+	// pack: its objects go loose and stay readable
+	@Test
+	void bulkCheckinClosedByOwnerFallsBackToLoose() throws Exception {
+		GitRepository repo = GitRepository.createRepo(dir.resolve("repo").toString());
+		GitBulkCheckin outer = GitBulkCheckin.begin(repo);
+		GitBulkCheckin inner = GitBulkCheckin.begin(repo);
+		String packed = inner.add("blob", "packed\n".getBytes(StandardCharsets.UTF_8));
+		assertNotNull(GitObjectHelper.objectRead(repo, packed));
+		outer.close();
+
+		byte[] data = "late\n".getBytes(StandardCharsets.UTF_8);
+		String late = inner.add("blob", data);
+		inner.close();
+
+		Path loose = repo.getGitdir().resolve("objects").resolve(late.substring(0, 2)).resolve(late.substring(2));
+		assertTrue(Files.isRegularFile(loose));
+		assertArrayEquals(data, GitObjectHelper.objectRead(repo, late).serialize());
+		assertNotNull(GitObjectHelper.objectRead(repo, packed));
+	}
+}
@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitPruneTest {
+	@TempDir
+	Path dir;
+
+	// Two commits whose refs were all moved to packed-refs, with no reflogs
+	// left: the history is only reachable through packed-refs
+	@Test
+	void keepsObjectsOnlyReachableFromPackedRefs() throws Exception {
+		GitRepository repo = generate();
+		Path gitdir = repo.getGitdir();
+		StringBuilder packed = new StringBuilder("# pack-refs with: peeled fully-peeled sorted \n");
+		for (Map.Entry<String, String> ref : GitObjectHelper.refListAll(repo).entrySet()) {
+			packed.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+			Files.delete(gitdir.resolve(ref.getKey()));
+		}
+		Files.writeString(gitdir.resolve("packed-refs"), packed);
+		deleteRecursively(gitdir.resolve("logs"));
+		List<String> before = looseObjects(gitdir);
+
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		int pruned = new GitPrune(repo, Long.MAX_VALUE, false, new PrintStream(report, true, StandardCharsets.UTF_8))
+				.run();
+
+		assertEquals("", report.toString(StandardCharsets.UTF_8));
+		assertEquals(0, pruned);
+		assertEquals(before, looseObjects(gitdir));
+	}
+
+	@Test
+	void prunesUnreachableObjects() throws Exception {
+		GitRepository repo = generate();
+		String orphan = GitObjectHelper.objectWrite(new GitBlob("orphan\n".getBytes(StandardCharsets.UTF_8)), repo);
+		List<String> before = looseObjects(repo.getGitdir());
+
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		int pruned = new GitPrune(repo, Long.MAX_VALUE, false, new PrintStream(report, true, StandardCharsets.UTF_8))
+				.run();
+
+		assertEquals(orphan + " blob\n", report.toString(StandardCharsets.UTF_8));
+		assertEquals(1, pruned);
+		List<String> after = looseObjects(repo.getGitdir());
+		assertEquals(before.size() - 1, after.size());
+		assertNull(GitObjectHelper.objectRead(repo, orphan));
+		assertNotNull(GitObjectHelper.objectRead(repo, GitObjectHelper.refResolve(repo, "HEAD")));
+	}
+
+	private GitRepository generate() throws Exception {
+		Path path = dir.resolve("repo");
+		new GitRepoGenerator(GitRepoGenerator.Profile.DEEP_LINEAR, 1, 4, 2).generate(path.toString(), false);
+		return new GitRepository(path.toString());
+	}
+
+	private static List<String> looseObjects(Path gitdir) throws IOException {
+		List<String> ret = new ArrayList<>();
+		try (Stream<Path> walk = Files.walk(gitdir.resolve("objects"))) {
+			walk.filter(Files::isRegularFile).map(p -> gitdir.resolve("objects").relativize(p).toString())
+					.filter(name -> name.matches("[0-9a-f]{2}/[0-9a-f]{38}")).sorted().forEach(ret::add);
+		}
+		return ret;
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> walk = Files.walk(path)) {
+			for (Path p : walk.sorted((a, b) -> b.compareTo(a)).toList()) {
+				Files.delete(p);
+			}
+		}
+	}
+}